@@ -0,0 +1,61 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.api.command
+
+import org.junit.Assert._
+import org.junit.Test
+import org.greatcactus.xs.api.display.RichLabel
+
+/**
+ * Test progress accumulation through subtasks, and that the UI is not told about every unit of work.
+ */
+class ZZZ_ProgressMonitor {
+
+  class CountingUI extends ProgressMonitorUI {
+    @volatile var updates = 0
+    @volatile var last = 0.0
+    def donePortion(progressPortion:Double) { updates+=1; last=progressPortion }
+    def failed(message:Option[RichLabel]) {}
+    def succeeded(message:Option[RichLabel]) {}
+  }
+
+  @Test
+  def testSubtasks {
+    val ui = new CountingUI
+    val monitor = ProgressMonitor(ui)
+    monitor.maxUIUpdatesPerSecond=0 // no rate limit
+    val sub = monitor.subTask(0.5).get("sub",Some(10.0))
+    for (i<-0 until 5) sub.doUnitWork()
+    assertEquals(0.25,monitor.donePortion,1e-9)
+    assertEquals(0.25,ui.last,1e-9)
+    sub.finished()
+    assertEquals(0.5,monitor.donePortion,1e-9)
+    assertEquals(5,monitor.unitsOfWork)
+  }
+
+  @Test
+  def testRateLimited {
+    val ui = new CountingUI
+    val monitor = ProgressMonitor(ui)
+    monitor.maxUIUpdatesPerSecond=1
+    val sub = monitor.startTask("loop",Some(100000.0))
+    for (i<-0 until 100000) sub.doUnitWork()
+    assertTrue(ui.updates<=2)
+    assertEquals(1.0,monitor.donePortion,1e-9)
+    assertEquals(100000,monitor.unitsOfWork)
+  }
+
+  @Test
+  def testTrailingUpdate {
+    val ui = new CountingUI
+    val monitor = ProgressMonitor(ui)
+    monitor.maxUIUpdatesPerSecond=10
+    val sub = monitor.startTask("loop",Some(10.0))
+    for (i<-0 until 10) sub.doUnitWork()
+    assertEquals(0.1,ui.last,1e-9) // only the first got through
+    Thread.sleep(400)
+    assertEquals(1.0,ui.last,1e-9)
+    assertEquals(2,ui.updates)
+  }
+}
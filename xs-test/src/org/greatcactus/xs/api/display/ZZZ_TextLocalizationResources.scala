@@ -0,0 +1,33 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.api.display
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.Locale
+import org.greatcactus.xs.test.Star
+
+/**
+ * Test the flattened localization tables and the MessageFormat cache.
+ */
+class ZZZ_TextLocalizationResources {
+
+  @Test
+  def testFlattened {
+    val fr = TextLocalizationResources.getCached(Locale.FRENCH,classOf[Star])
+    assertTrue(fr eq TextLocalizationResources.getCached(Locale.FRENCH,classOf[Star]))
+    assertEquals(Some("Name"),fr.get("name")) // from the default bundle
+    assertEquals("Ajoutez un \u00e9toile",fr("Add")) // overridden in the French bundle
+    assertEquals(Some("Add Star"),TextLocalizationResources.getCached(Locale.ENGLISH,classOf[Star]).get("Add"))
+    assertEquals(None,fr.get("No such key"))
+    assertEquals(Some("The star must have a name."),new PrefixedTextLocalizationResources(fr,"name.").get("ErrorIfBlank"))
+  }
+
+  @Test
+  def testFormat {
+    assertEquals("3 of 4",TextLocalizationResources.format("{0} of {1}",Locale.ENGLISH,Array[AnyRef](Integer.valueOf(3),Integer.valueOf(4))))
+    assertTrue(TextLocalizationResources.messageFormat("{0} of {1}",Locale.ENGLISH) eq TextLocalizationResources.messageFormat("{0} of {1}",Locale.ENGLISH))
+    assertEquals("x",new LocalizableFromSources(Nil,"x",Array("y")).localize(Locale.ENGLISH))
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.ExecutionContext
+import scala.concurrent.Promise
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+import scala.util.Success
+import scala.util.Failure
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConverters._
+import org.greatcactus.xs.frontend.DetailsPaneFieldActionAdd
+import org.greatcactus.xs.api.icon.IconManifests
+import org.greatcactus.xs.api.icon.URLOfIcon
+import org.greatcactus.xs.api.icon.ResolvedIcon
+import org.greatcactus.xs.frontend.html.servlet.StaticAssets
+
+/**
+ * Pretends to be a browser talking to an HTML5Client, for load testing. Messages are serialized and deserialized as they would be
+ * by XSServlet, and sent through the session's message orderer. Messages to the client are collected by long polling through
+ * HTTPSession.cometCallFuture, as with a real comet connection.
+ *
+ * Random actions (selecting and opening tree nodes, editing text fields, adding children, adding and pasting grid rows) are
+ * chosen from what the server thinks the client is currently showing.
+ *
+ * The messages sent can be recorded, and replayed on another client. The session id is replaced by a placeholder in the trace.
+ * Other ids (like tree node ids) are the same if the replaying client starts with the same document, as they are allocated
+ * deterministically.
+ */
+class HeadlessClient(val client:HTML5Client,val stats:LoadStatistics,val random:java.util.Random) {
+  val session = client.session
+  /** What the browser would get when loading the page. This also creates the tree on the client. */
+  val pageHTML = client.baseHTML.toString
+  stats.receivedPage(pageHTML.length)
+
+  private[this] var messageCount = 0L
+  var recording = false
+  private[this] val recorded = new ListBuffer[String]
+  def trace : List[String] = recorded.toList
+
+  /** Send a message to the server, as a browser would. */
+  def send(message:SimpleClientMessage) { sendJSON(message.serializeToString()) }
+
+  def sendJSON(json:String) {
+    if (recording) recorded+=json.replace(session.id,HeadlessClient.sessionPlaceholder)
+    val message = ClientMessage.deserialize(json)
+    val command = message match {
+      case sm:SimpleClientMessage => sm.command
+      case _ => "Multiple"
+    }
+    val start = System.nanoTime()
+    val ack = session.receivedPossiblyUnorderedMessage(message,messageCount)
+    stats.handled(command,System.nanoTime()-start,json.length)
+    messageCount+=1
+    stats.received(ack)
+  }
+
+  /** Replay a trace recorded on some other client */
+  def replay(trace:Seq[String]) {
+    for (line<-trace) sendJSON(line.replace(HeadlessClient.sessionPlaceholder,session.id))
+  }
+
+  @volatile private[this] var polling = false
+  @volatile private[this] var pollingStarted = false
+  /** Completed when the polling loop has ended, so nothing more will be run on its execution context */
+  private[this] val pollingEnded = Promise[Unit]
+  /** Start a long polling loop, like the comet connection of xsedit.js */
+  def startPolling(executionContext:ExecutionContext) {
+    polling=true
+    pollingStarted=true
+    poll(executionContext)
+  }
+  def stopPolling() { polling=false }
+  private def poll(executionContext:ExecutionContext) {
+    if (polling && !session.disposed) session.cometCallFuture.onComplete{
+      case Success(Some(message)) => stats.received(message); poll(executionContext)
+      case Success(None) => poll(executionContext)
+      case Failure(e) => stats.exception(e); pollingEnded.trySuccess(())
+    }(executionContext)
+    else pollingEnded.trySuccess(())
+  }
+
+  //
+  // Actions a user might do
+  //
+
+  private def pick[T](choices:Seq[T]) : Option[T] = if (choices.isEmpty) None else Some(choices(random.nextInt(choices.length)))
+  private def treeNodeIDs : IndexedSeq[String] = client.treePane.clientNodes.keys.toIndexedSeq
+
+  def selectRandomNode() {
+    for (id<-pick(treeNodeIDs)) send(new SimpleClientMessage("TreeSelect",Array(id,"false")))
+  }
+
+  def toggleRandomNode() {
+    for (id<-pick(treeNodeIDs);node<-client.treePane.clientNodes.get(id)) send(new SimpleClientMessage("TreeOpen",Array(id,(!client.treeModel.isOpen(node.node)).toString)))
+  }
+
+  private val pane = client.detailsPane
+  private def visibleFields : List[pane.UIField] = for (gui<-pane.getCurrentUIElements.toList;f<-gui.elems if f.currently.visible && f.currently.enabled) yield f
+
+  def editRandomTextField() {
+    val nodeID = pane.nodeIDCurrentlyBeingEdited
+    for (f<-pick(visibleFields.collect{case f:pane.UIFieldText => f})) {
+      send(new SimpleClientMessage("Change",Array(f.gui,random.nextInt(1000).toString,nodeID)))
+      stats.edited()
+    }
+  }
+
+  def addRandomChild() {
+    val nodeID = pane.nodeIDCurrentlyBeingEdited
+    for (f<-pick(visibleFields.collect{case f:pane.UIFieldAction if f.field.isInstanceOf[DetailsPaneFieldActionAdd] => f})) {
+      send(new SimpleClientMessage("Action",Array(f.gui,"0",nodeID)))
+      stats.edited()
+    }
+  }
+
+  /** Add a row to a grid if it is empty, otherwise paste a few rows over some existing ones. */
+  def pasteRandomGridRows() {
+    val nodeID = pane.nodeIDCurrentlyBeingEdited
+    for (f<-pick(visibleFields.collect{case f:pane.UIFieldTable => f})) {
+      val columns = f.field.columnExtractors.fields
+      if (f.currentlyShowing.isEmpty) send(new SimpleClientMessage("NewRowOnGrid",Array(f.gui,columns.head.name,random.nextInt(100).toString,nodeID)))
+      else {
+        val args = new ArrayBuffer[String]
+        args+=f.gui+"_grid"
+        args+=nodeID
+        args+=random.nextInt(f.currentlyShowing.length).toString
+        args+=columns.head.name
+        for (row<-0 to random.nextInt(3)) {
+          args+=columns.length.toString
+          for (c<-columns) args+=random.nextInt(100).toString
+        }
+        send(new SimpleClientMessage("PasteTable",args.toArray))
+      }
+      stats.edited()
+    }
+  }
+
+  /** Do one random action, weighted roughly like a user editing a document. */
+  def randomAction() {
+    random.nextInt(10) match {
+      case 0 | 1 | 2 => selectRandomNode()
+      case 3 => toggleRandomNode()
+      case 4 | 5 | 6 => editRandomTextField()
+      case 7 | 8 => addRandomChild()
+      case _ => pasteRandomGridRows()
+    }
+  }
+
+  /** End the session, and wait for the polling loop (if started) to notice. */
+  def dispose() {
+    stopPolling()
+    session.dispose()
+    if (pollingStarted) Await.ready(pollingEnded.future,Duration(30,TimeUnit.SECONDS))
+  }
+}
+
+object HeadlessClient {
+  val sessionPlaceholder = "${session}"
+
+  /** Run code with icon URLs worked out as XSServlet does, which is needed to make HTML for the details pane. */
+  def withIconURLs[T](code: =>T) : T = {
+    val old = IconManifests.urlOfIcon
+    IconManifests.urlOfIcon = new URLOfIcon {
+      def apply(icon:ResolvedIcon) : String = StaticAssets.iconURL(icon)
+    }
+    try { code } finally { IconManifests.urlOfIcon = old }
+  }
+}
+
+/**
+ * Statistics gathered by HeadlessClients. Thread safe.
+ */
+class LoadStatistics {
+  private[this] val latencies = new ConcurrentHashMap[String,ArrayBuffer[Long]]
+  private[this] val messagesToServer = new AtomicLong
+  private[this] val bytesToServer = new AtomicLong
+  private[this] val messagesToClient = new AtomicLong
+  private[this] val bytesToClient = new AtomicLong
+  private[this] val pageBytes = new AtomicLong
+  private[this] val edits = new AtomicLong
+  private[this] val _exceptions = new ConcurrentLinkedQueue[Throwable]
+  @volatile var memoryPerSession : Option[Long] = None
+  @volatile var memoryPerSessionAfterEdits : Option[Long] = None
+
+  def handled(command:String,nanos:Long,bytes:Int) {
+    messagesToServer.incrementAndGet()
+    bytesToServer.addAndGet(bytes)
+    val existing = latencies.get(command)
+    val samples = if (existing!=null) existing else {
+      val res = new ArrayBuffer[Long]
+      val already = latencies.putIfAbsent(command,res)
+      if (already!=null) already else res
+    }
+    samples.synchronized { samples+=nanos }
+  }
+
+  def received(message:ClientMessage) {
+    messagesToClient.addAndGet(message match {
+      case m:MultipleClientMessage => m.commands.length
+      case _ => 1
+    })
+    bytesToClient.addAndGet(message.serializeToByteArray().length)
+  }
+  def receivedPage(bytes:Int) { pageBytes.addAndGet(bytes) }
+  def edited() { edits.incrementAndGet() }
+  /** Something went wrong, usually on the server. See LoadTest.ExceptionRecorder */
+  def exception(e:Throwable) { _exceptions.add(e) }
+
+  def numEdits : Long = edits.get
+  def numMessagesToClient : Long = messagesToClient.get
+  def exceptions : List[Throwable] = _exceptions.asScala.toList
+  def commands : List[String] = latencies.keySet.asScala.toList.sorted
+  def count(command:String) : Int = Option(latencies.get(command)).map{s=>s.synchronized{s.length}}.getOrElse(0)
+
+  /** The given percentile (0 to 100) of the time taken to handle a command, in nanoseconds */
+  def percentile(command:String,percent:Double) : Long = Option(latencies.get(command)) match {
+    case Some(s) =>
+      val sorted = s.synchronized { s.toArray }.sorted
+      if (sorted.isEmpty) 0 else sorted(((sorted.length-1)*percent/100).round.toInt)
+    case None => 0
+  }
+
+  def report : String = {
+    val res = new StringBuilder
+    def ms(nanos:Long) = "%.2f".format(nanos/1e6)
+    res.append("Command                  count    p50ms    p90ms    p99ms    maxms\n")
+    for (c<-commands) res.append("%-20s %9d %8s %8s %8s %8s\n".format(c,count(c),ms(percentile(c,50)),ms(percentile(c,90)),ms(percentile(c,99)),ms(percentile(c,100))))
+    res.append("Messages to server "+messagesToServer.get+" ("+bytesToServer.get+" bytes)\n")
+    res.append("Messages to client "+messagesToClient.get+" ("+bytesToClient.get+" bytes, plus "+pageBytes.get+" bytes of page HTML)\n")
+    if (numEdits>0) res.append("Per edit: "+"%.1f".format(messagesToClient.get.toDouble/numEdits)+" messages and "+(bytesToClient.get/numEdits)+" bytes to client\n")
+    for (m<-memoryPerSession) res.append("Memory per new session "+m/1024+"KB\n")
+    for (m<-memoryPerSessionAfterEdits) res.append("Memory per session after edits "+m/1024+"KB\n")
+    if (!_exceptions.isEmpty) res.append("Exceptions "+_exceptions.size+"\n")
+    res.toString
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import java.util.Locale
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.ThreadPoolExecutor
+import java.io.File
+import java.io.PrintWriter
+import java.io.PrintStream
+import scala.concurrent.ExecutionContext
+import scala.io.Source
+import org.greatcactus.xs.frontend.XSEdit
+import org.greatcactus.xs.frontend.XSToolBar
+import org.greatcactus.xs.impl.XSExecutionContext
+import org.greatcactus.xs.test.Space
+import org.greatcactus.xs.test.History
+
+/**
+ * Run many HeadlessClients in this process, each editing its own copy of a Space document, and report latencies,
+ * message counts and memory use.
+ *
+ * Usage: LoadTest [clients [actionsPerClient [threads [record|replay traceFile]]]]
+ *
+ * With "record", the first client's messages are saved to traceFile. With "replay", each client sends the messages in traceFile
+ * instead of random actions.
+ */
+object LoadTest {
+
+  def main(args:Array[String]) {
+    def arg(n:Int,default:Int) = if (args.length>n) args(n).toInt else default
+    val replayTrace = if (args.length>4 && args(3)=="replay") Some(Source.fromFile(args(4),"UTF-8").getLines.toList) else None
+    val stats = new LoadStatistics
+    val trace = run(arg(0,50),arg(1,200),arg(2,8),stats,replayTrace,true)
+    if (args.length>4 && args(3)=="record") {
+      val out = new PrintWriter(new File(args(4)),"UTF-8")
+      try { for (line<-trace) out.println(line) } finally { out.close() }
+    }
+    println(stats.report)
+    System.exit(0)
+  }
+
+  def newDocument() : AnyRef = new Space(new History(""),Nil)
+
+  private def usedMemory() : Long = {
+    for (i<-0 until 3) System.gc()
+    val runtime = Runtime.getRuntime
+    runtime.totalMemory-runtime.freeMemory
+  }
+
+  /**
+   * Create the clients, then have each do actionsPerClient random actions (or replay the given trace), with at most threads of them
+   * working at once. Returns the messages sent by the first client. Exceptions printed (by the server) while running are recorded in stats.
+   */
+  def run(numClients:Int,actionsPerClient:Int,threads:Int,stats:LoadStatistics,replayTrace:Option[Seq[String]],measureMemory:Boolean) : List[String] = {
+    val executorService = Executors.newFixedThreadPool(4).asInstanceOf[ThreadPoolExecutor]
+    val executionContext = ExecutionContext.fromExecutorService(executorService)
+    val oldContext = XSExecutionContext.context
+    XSExecutionContext.context = executionContext
+    val oldErr = System.err
+    System.setErr(new ExceptionRecorder(oldErr,stats))
+    try { HeadlessClient.withIconURLs {
+      val workers = Executors.newFixedThreadPool(threads)
+      val memoryBefore = if (measureMemory) usedMemory() else 0L
+      val clients = for (i<-0 until numClients) yield {
+        val client = new HTML5Client(new XSEdit(newDocument()),Some(new XSToolBar),Locale.ENGLISH,executionContext)
+        val headless = new HeadlessClient(client,stats,new java.util.Random(i))
+        headless.recording = i==0
+        headless.startPolling(executionContext)
+        headless
+      }
+      if (measureMemory) stats.memoryPerSession=Some((usedMemory()-memoryBefore)/(numClients max 1))
+      for (c<-clients) workers.execute(new Runnable() {
+        override def run() {
+          try {
+            replayTrace match {
+              case Some(trace) => c.replay(trace)
+              case None => for (i<-0 until actionsPerClient) c.randomAction()
+            }
+          } catch { case e:Exception => e.printStackTrace() }
+        }
+      })
+      workers.shutdown()
+      workers.awaitTermination(1,TimeUnit.HOURS)
+      if (measureMemory) stats.memoryPerSessionAfterEdits=Some((usedMemory()-memoryBefore)/(numClients max 1))
+      val trace = clients.headOption.map{_.trace}.getOrElse(Nil)
+      for (c<-clients) c.dispose() // waits for their comet calls, so nothing is left to run when executorService is shut down.
+      trace
+    }} finally {
+      XSExecutionContext.context = oldContext
+      awaitIdle(executorService) // dependency injection futures may still be completing, with callbacks that need the executor.
+      executorService.shutdown()
+      executorService.awaitTermination(1,TimeUnit.MINUTES)
+      System.setErr(oldErr)
+    }
+  }
+
+  /** Wait (for up to a minute) until the executor has had nothing to do for a little while. */
+  private def awaitIdle(executor:ThreadPoolExecutor) {
+    def idle = executor.getActiveCount==0 && executor.getQueue.isEmpty
+    val giveUp = System.currentTimeMillis()+60000
+    var idleFor = 0
+    while (idleFor<5 && System.currentTimeMillis()<giveUp) {
+      Thread.sleep(10)
+      if (idle) idleFor+=1 else idleFor=0
+    }
+  }
+
+  /**
+   * Passes everything on to out, but records any exception printed by printStackTrace, which is how the server reports
+   * exceptions it has caught (to not crash the thread it is on).
+   */
+  class ExceptionRecorder(out:PrintStream,stats:LoadStatistics) extends PrintStream(out,true) {
+    override def println(x:AnyRef) {
+      x match {
+        case e:Throwable => stats.exception(e)
+        case _ =>
+      }
+      super.println(x)
+    }
+  }
+}
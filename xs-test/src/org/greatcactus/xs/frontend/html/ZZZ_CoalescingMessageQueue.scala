@@ -0,0 +1,91 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Test that stale messages to the client are removed, and that the queue is bounded.
+ */
+class ZZZ_CoalescingMessageQueue {
+
+  def commands(m:Option[ClientMessage]) : List[String] = m match {
+    case None => Nil
+    case Some(mm:MultipleClientMessage) => mm.commands.toList.map{_.toString}
+    case Some(s) => List(s.toString)
+  }
+
+  @Test
+  def testCoalesce {
+    val q = new CoalescingMessageQueue(1000,1000000)
+    assertTrue(q.add(ClientMessage.setHTMLID("a","one")))
+    assertTrue(q.add(ClientMessage.removeID("b")))
+    assertTrue(q.add(ClientMessage.setHTMLID("c","x")))
+    assertTrue(q.add(ClientMessage.setHTMLID("a","two")))
+    assertTrue(q.add(ClientMessage.workQueueStatus(false,2)))
+    assertTrue(q.add(ClientMessage.workQueueStatus(true,1))) // older, so should be ignored
+    assertEquals(5,q.length)
+    assertEquals(List("SetHTML(a,one)","Remove(#b)","SetHTML(c,x)","SetHTML(a,two)","ServerStatus(false,2)"),commands(q.drain())) // the remove might be inside a
+    assertTrue(q.add(ClientMessage.setHTMLID("a","one")))
+    assertTrue(q.add(ClientMessage.setValueID("b","x")))
+    assertTrue(q.add(ClientMessage.setHTMLID("a","two")))
+    assertEquals(List("SetValue(b,x)","SetHTML(a,two)"),commands(q.drain()))
+    assertTrue(q.isEmpty)
+    assertEquals(None,q.drain())
+  }
+
+  @Test
+  def testNotAcrossStructuralMessages {
+    val q = new CoalescingMessageQueue(1000,1000000)
+    assertTrue(q.add(ClientMessage.setHTMLID("a","<div id='b'/>")))
+    assertTrue(q.add(ClientMessage.run("f('b')")))
+    assertTrue(q.add(ClientMessage.setHTMLID("a","<div id='b'>new</div>")))
+    assertEquals(List("SetHTML(a,<div id='b'/>)","Run(f('b'))","SetHTML(a,<div id='b'>new</div>)"),commands(q.drain())) // the javascript still runs on the HTML it was meant for.
+    assertTrue(q.add(ClientMessage.setHTMLID("a","old")))
+    assertTrue(q.add(new SimpleClientMessage("PatchHTML",Array("a","patch"))))
+    assertTrue(q.add(ClientMessage.setHTMLID("a","new")))
+    assertEquals(List("SetHTML(a,old)","PatchHTML(a,patch)","SetHTML(a,new)"),commands(q.drain())) // the patch is applied to what it was made from.
+    assertTrue(q.add(ClientMessage.setAttributeID("c","title","1")))
+    assertTrue(q.add(ClientMessage.setHTMLID("parent","<span id='c'/>")))
+    assertTrue(q.add(ClientMessage.setAttributeID("c","title","2")))
+    assertEquals(3,q.length) // the second title is for the new c.
+  }
+
+  @Test
+  def testNullArgument {
+    val q = new CoalescingMessageQueue(1000,1000000)
+    val m = new SimpleClientMessage("SetAtt",Array("a","title",null))
+    assertTrue(m.approximateSize>0)
+    assertTrue(q.add(m))
+    assertTrue(q.add(new MultipleClientMessage(List(new SimpleClientMessage("Custom",Array(null,"x")),ClientMessage.removeID("b")))))
+    assertEquals(3,q.length)
+    assertTrue(q.add(new SetRow("g",0,IndexedSeq("x",null),_.toString))) // an empty cell
+    assertTrue(q.add(new SetRowRange("g",0,1,List(List(null,"y")),_.toString)))
+    assertEquals(5,q.length)
+  }
+
+  @Test
+  def testGridWindow {
+    val q = new CoalescingMessageQueue(1000,1000000)
+    val names = (i:Int) => "c"+i
+    assertTrue(q.add(new SetRows("g",List(List("a"),List("b")),names)))
+    assertTrue(q.add(new SetRowRange("g",0,1,List(List("x")),names)))
+    assertTrue(q.add(new SetGridWindowed("g",5000,2)))
+    assertTrue(q.add(new SetRowRange("g",10,2,List(List("y")),names)))
+    assertEquals(List("SetGridWindowed(g,5000,2)","SetRowRange(g,10,2,[y])"),commands(q.drain()))
+  }
+
+  @Test
+  def testBounded {
+    val q = new CoalescingMessageQueue(10,1000000)
+    for (i<-0 until 100) assertTrue(q.add(ClientMessage.setHTMLID("a",i.toString)))
+    for (i<-1 until 10) assertTrue(q.add(ClientMessage.removeID("r"+i)))
+    assertFalse(q.add(ClientMessage.removeID("r10")))
+    assertEquals(10,q.length)
+    val small = new CoalescingMessageQueue(1000,100)
+    assertFalse(small.add(ClientMessage.setHTMLID("a","x"*200)))
+    assertEquals(0,small.approximateSize)
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.Locale
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.ExecutionContext
+import org.greatcactus.xs.frontend.XSEdit
+import org.greatcactus.xs.test._
+
+/**
+ * Test that a large table only sends the client the rows it asks for, and only the changes to those rows.
+ */
+class ZZZ_GridWindow {
+
+  @Test
+  def testWindow { HeadlessClient.withIconURLs {
+    val oldMinRows = HTML5DetailsPane.gridWindowMinRows
+    val oldInitialRows = HTML5DetailsPane.gridWindowInitialRows
+    val oldMaxRequest = HTML5DetailsPane.gridWindowMaxRequest
+    HTML5DetailsPane.gridWindowMinRows = 3
+    HTML5DetailsPane.gridWindowInitialRows = 2
+    val composition = for (i<-0 until 5) yield new CoreComposition("E"+i,i,false,"",null)
+    val earth = new Planet("Earth",1.0,null,Some(new Core(composition.toList)),Nil,false,null)
+    val client = new HTML5Client(new XSEdit(new Space(new History(""),List(new Star("Sol",None,List(earth))))),None,Locale.ENGLISH,ExecutionContext.global)
+    try {
+      val sent = new ListBuffer[ClientMessage]
+      def flatten(m:ClientMessage) { m match {
+        case multiple:MultipleClientMessage => for (c<-multiple.commands) flatten(c)
+        case _ => sent.synchronized { sent+=m }
+      }}
+      client.session.setDirectSendToClient(flatten)
+      def take() : List[ClientMessage] = { client.flushMessages(); sent.synchronized { val res = sent.toList; sent.clear(); res }}
+      /** The rows sent in SetRowRange messages, as (from, first column of each row) */
+      def ranges() : List[(Int,List[String])] = take().collect{case m:SetRowRange => (m.from,m.rows.map{_.head}.toList)}
+      val pane = client.detailsPane
+      client.xsedit.changeCurrentlyEditing(client.xsedit.query("//Core").head)
+      val shown = take()
+      val windowed = shown.collect{case m:SetGridWindowed => m}
+      assertEquals(List(5),windowed.map{_.total})
+      assertFalse(shown.exists{_.isInstanceOf[SetRows]})
+      assertEquals(List((0,List("E0","E1"))),shown.collect{case m:SetRowRange => (m.from,m.rows.map{_.head}.toList)}) // enough to show straight away.
+      val grid = windowed.head.baseid
+      val version = windowed.head.version
+      pane.uiGridRange(grid,1,4,version)
+      assertEquals(List((1,List("E1","E2","E3"))),ranges())
+      pane.uiGridRange(grid,0,2,version-1) // out of date.
+      assertEquals(Nil,ranges())
+      pane.uiGridRange(grid,3,100,version)
+      assertEquals(List((3,List("E3","E4"))),ranges()) // only as many as there are.
+      pane.changeUISingleLineTable(grid,0,IndexedSeq("X0","0","false","",""))
+      assertEquals(Nil,take().collect{case m:SetRow => m}) // the client doesn't have row 0...
+      pane.changeUISingleLineTable(grid,4,IndexedSeq("X4","4","false","",""))
+      assertEquals(List(4),take().collect{case m:SetRow => m.rownumber}) // ...but does have row 4.
+      HTML5DetailsPane.gridWindowMaxRequest = 2
+      pane.uiGridRange(grid,0,5,version)
+      assertEquals(List((0,List("X0","E1"))),ranges()) // the change to row 0 was kept for when it was asked for.
+      pane.changeUIWholeTable(grid,IndexedSeq(IndexedSeq("Y0","0","false","",""),IndexedSeq("Y1","1","false","","")))
+      assertEquals(List(2),take().collect{case m:SetRows => m.rows.length}) // small enough to send in full...
+      pane.uiGridRange(grid,0,5,version)
+      assertEquals(Nil,ranges()) // ...so there is no window.
+    } finally {
+      HTML5DetailsPane.gridWindowMinRows = oldMinRows
+      HTML5DetailsPane.gridWindowInitialRows = oldInitialRows
+      HTML5DetailsPane.gridWindowMaxRequest = oldMaxRequest
+      client.session.dispose()
+    }
+  }}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.Locale
+import scala.collection.mutable.ListBuffer
+import scala.xml.Text
+import org.greatcactus.xs.api.display.RichLabel
+import org.greatcactus.xs.frontend.XSClipBoard
+
+/**
+ * Test the messages sent for a node whose children are windowed.
+ */
+class ZZZ_HTML5Tree {
+
+  class Node(val name:String) { var kids : IndexedSeq[Node] = IndexedSeq.empty }
+
+  object Model extends TreeModel[Node] {
+    def children(node:Node) : Seq[Node] = node.kids
+    def title(node:Node) : RichLabel = RichLabel(node.name,Text(node.name))
+    def icon(node:Node) : Option[String] = None
+    def errorLevel(node:Node) : Int = 1000
+    def userToggledStatus(node:Node,isNowOpen:Boolean) {}
+    def userSelected(node:Node) {}
+    def uniqueID(node:Node) : String = node.name
+    def isOpen(node:Node) : Boolean = true
+    def isGhosted(node:Node) : Boolean = false
+    def dragLocal(source:Node,dest:Node,isAbove:Boolean) {}
+    def userContextMenu(command:String,nodes:Seq[Node]) {}
+    def dragInFile(dest:Node,isAbove:Boolean,contents:Array[Byte],filename:String,lastModified:Option[Long]) {}
+    def nonLocalDrag(dest:Node,isAbove:Boolean,clip:XSClipBoard) {}
+  }
+
+  val sent = new ListBuffer[SimpleClientMessage]
+  val transport = new HTMLTransport { def sendMessageWork(message:ClientMessage) { sent+=message.asInstanceOf[SimpleClientMessage] } }
+  def take() : List[SimpleClientMessage] = { val res = sent.toList; sent.clear(); res }
+  def adds(messages:List[SimpleClientMessage]) = messages.filter{_.command.startsWith("Add")}
+
+  @Test
+  def testWindowAndSpacers {
+    val root = new Node("root")
+    root.kids = for (i<-0 until 3) yield new Node("k"+i)
+    val tree = new HTML5Tree(Locale.ENGLISH,transport,Model,root,"xs.","T",false,false)
+    tree.childWindow = 5
+    tree.baseHTML()
+    take()
+    root.kids = root.kids++(for (i<-3 until 10) yield new Node("k"+i)) // now windowed.
+    tree.refresh(root)
+    val added = adds(take())
+    val before = "#xsTreeNodeT_root_wbefore"
+    assertEquals(("AddAtStart",before.replace("_wbefore","_subs")),(added(0).command,added(0).args(0)))
+    assertTrue(added(0).args(1).contains("root_wbefore"))
+    assertTrue(added(1).args(1).contains("root_wafter"))
+    for (kid<-added.drop(2)) assertEquals("AddAfter",kid.command) // after the spacer or an earlier kid, never at the start.
+    assertEquals(List("#xsTreeNodeT_k2_all","#xsTreeNodeT_k3_all"),added.drop(2).map{_.args(0)}) // k0..k2 are kept, k3 and k4 complete the window.
+    root.kids = new Node("first")+:root.kids
+    tree.refresh(root)
+    assertEquals(List(("AddAfter",before)),adds(take()).map{m=>(m.command,m.args(0))}) // goes after the spacer, not before it.
+    // select a node outside the window. It should be added, and scrolled to.
+    tree.setSelected(Some(root.kids.last),false) // k9
+    val selecting = take()
+    assertTrue(adds(selecting).exists{_.args(1).contains("xsTreeNodeT_k9_all")})
+    assertTrue(selecting.exists{m => m.command=="SetAtt" && m.args.toList==List("xsTreeNodeT_root_wbefore","data-rows","6")}) // the window is the last 5 of 11.
+    assertTrue(selecting.exists{m => m.command=="Run" && m.args(0).contains("xsTreeNodeT_k9_all") && m.args(0).contains("scrollIntoView")})
+  }
+}
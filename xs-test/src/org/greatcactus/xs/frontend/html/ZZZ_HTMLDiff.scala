@@ -0,0 +1,41 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import scala.xml.NodeSeq
+import scala.xml.Text
+
+/**
+ * Test the patches produced by HTMLDiff
+ */
+class ZZZ_HTMLDiff {
+
+  def patch(old:NodeSeq,now:NodeSeq) : List[String] = HTMLDiff.patch("id",old,now).map{_.args.toList.tail}.getOrElse(Nil)
+  
+  @Test
+  def testText {
+    assertEquals(List("T","1.0","world"),patch(<b>Hello</b><span>there</span>, <b>Hello</b><span>world</span>))
+    assertEquals(List("T","0","Hello world"),patch(Text("Hello ")++Text("there"),Text("Hello world")))
+  }
+
+  @Test
+  def testAttributes {
+    assertEquals(List("A","0","class","b","R","0","title"),patch(<span class="a" title="t">x</span>, <span class="b">x</span>))
+  }
+
+  @Test
+  def testChildren {
+    assertEquals(List("C","","1","0","<i>new</i>"),patch(<b>a</b><b>c</b>, <b>a</b><i>new</i><b>c</b>))
+    assertEquals(List("C","","0","1","<i>x</i>"),patch(<b>x</b>, <i>x</i>))
+  }
+
+  @Test
+  def testUnsafe {
+    assertEquals(None,HTMLDiff.patch("id", <table><tr><td>a</td></tr></table>, <table><tr><td>b</td></tr></table>))
+    val same = <b>a</b>
+    assertEquals(ClientMessage.setHTMLID("id",same).toString,HTMLDiff.change("id",null,same).toString)
+  }
+}
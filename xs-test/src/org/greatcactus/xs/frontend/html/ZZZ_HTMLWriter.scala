@@ -0,0 +1,34 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import org.greatcactus.xs.api.display.RichLabel
+
+/**
+ * Test that HTMLWriter produces the same as scala.xml would.
+ */
+class ZZZ_HTMLWriter {
+
+  @Test
+  def testSameAsXML {
+    val w = new HTMLWriter
+    w.start("div").att("id","a&b").att("class",null) // one attribute per element as scala.xml may reorder them
+    w.start("span").att("onclick","f('x'); return \"y\"").text("1<2").end("span")
+    w.start("img").att("src","i.png").endEmpty()
+    w.start("span").raw(RichLabel("bold","<b>bold</b> &amp; more")).end("span")
+    w.end("div")
+    val xml = <div id="a&amp;b"><span onclick={"f('x'); return \"y\""}>{"1<2"}</span><img src="i.png"/><span><span><b>bold</b> &amp; more</span></span></div>
+    assertEquals(xml.toString,w.toString)
+  }
+
+  @Test
+  def testParsedHTMLShared {
+    val l1 = RichLabel("a","<i>a</i>")
+    val l2 = RichLabel("a","<i>a</i>")
+    assertTrue(l1.html eq l2.html)
+    assertEquals("<span><i>a</i></span>",l1.htmlString)
+  }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * A small run of the load test harness, checking that the clients can talk to the server, and that a trace can be replayed.
+ */
+class ZZZ_LoadTest {
+
+  @Test
+  def testRandomAndReplay {
+    val stats = new LoadStatistics
+    val trace = LoadTest.run(3,40,2,stats,None,false)
+    assertTrue(stats.numEdits>0)
+    assertTrue(stats.count("TreeSelect")>0)
+    assertFalse(trace.isEmpty)
+    assertTrue(trace.exists{_.contains(HeadlessClient.sessionPlaceholder)}) // tree node ids contain the session id
+    assertEquals(Nil,stats.exceptions)
+    val replayStats = new LoadStatistics
+    LoadTest.run(2,0,2,replayStats,Some(trace),false)
+    assertEquals(2*trace.length,replayStats.commands.map{replayStats.count(_)}.sum)
+    assertEquals(Nil,replayStats.exceptions)
+    assertTrue(stats.report.contains("TreeSelect"))
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.Locale
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.ExecutionContext
+import org.greatcactus.xs.frontend.XSEdit
+import org.greatcactus.xs.test._
+
+/**
+ * Test that a form hidden when another node is selected lets go of its grid window, and is brought up to date when shown again.
+ */
+class ZZZ_RetainedForms {
+
+  @Test
+  def testHideAndShow { HeadlessClient.withIconURLs {
+    val oldMinRows = HTML5DetailsPane.gridWindowMinRows
+    HTML5DetailsPane.gridWindowMinRows = 3
+    val composition = for (i<-0 until 5) yield new CoreComposition("E"+i,i,false,"",null)
+    val earth = new Planet("Earth",1.0,null,Some(new Core(composition.toList)),Nil,false,null)
+    val client = new HTML5Client(new XSEdit(new Space(new History(""),List(new Star("Sol",None,List(earth))))),None,Locale.ENGLISH,ExecutionContext.global)
+    try {
+      val sent = new ListBuffer[ClientMessage]
+      def flatten(m:ClientMessage) { m match {
+        case multiple:MultipleClientMessage => for (c<-multiple.commands) flatten(c)
+        case _ => sent.synchronized { sent+=m }
+      }}
+      client.session.setDirectSendToClient(flatten)
+      def take() : List[ClientMessage] = sent.synchronized { val res = sent.toList; sent.clear(); res }
+      val xsedit = client.xsedit
+      val core = xsedit.query("//Core").head
+      val planet = xsedit.query("//Planet").head
+      xsedit.changeCurrentlyEditing(core)
+      val shown = take().collect{case m:SetGridWindowed => m}
+      assertEquals(1,shown.length)
+      val grid = shown.head.baseid
+      xsedit.changeCurrentlyEditing(planet)
+      take()
+      client.detailsPane.uiGridRange(grid,0,5,shown.head.version) // a hidden grid has no window, so no rows are sent.
+      assertEquals(Nil,take().collect{case m:SetRowRange => m})
+      xsedit.changeCurrentlyEditing(core)
+      val reshown = take()
+      assertTrue(reshown.exists{_.serializeToString().contains("ShowForm")})
+      val resent = reshown.collect{case m:SetGridWindowed => m}
+      assertEquals(List(grid),resent.map{_.baseid}) // the same grid, resent in full.
+      client.detailsPane.uiGridRange(grid,0,5,resent.head.version)
+      assertEquals(1,take().collect{case m:SetRowRange => m}.length)
+    } finally {
+      HTML5DetailsPane.gridWindowMinRows = oldMinRows
+      client.session.dispose()
+    }
+  }}
+}
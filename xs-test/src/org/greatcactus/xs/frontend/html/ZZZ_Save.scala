@@ -0,0 +1,65 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
+import scala.concurrent.ExecutionContext
+import org.greatcactus.xs.frontend.XSEdit
+import org.greatcactus.xs.frontend.XSEditJournal
+import org.greatcactus.xs.frontend.XSToolBar
+import org.greatcactus.xs.test._
+
+/**
+ * Test that the save button saves the whole object with the toolbar's onSave, unless there is a journal, in which case it just syncs that.
+ */
+class ZZZ_Save {
+
+  class CountingToolBar extends XSToolBar {
+    val saves = new AtomicInteger
+    override def onSave() { saves.incrementAndGet() }
+  }
+
+  /** Make an edit, press save, and wait for the document to no longer be dirty */
+  def editAndSave(client:HTML5Client,star:String) {
+    val xsedit = client.xsedit
+    xsedit.changeNode(xsedit.treeRoot,new Space(new History(""),List(new Star(star,None,Nil))),None,"edit")
+    assertTrue(xsedit.isDirty)
+    client.session.receivedOrderedMessage(SimpleClientMessage("Toolbar",Array("save")))
+    for (i<-0 until 100 if xsedit.isDirty) Thread.sleep(50)
+    assertFalse(xsedit.isDirty)
+  }
+
+  @Test
+  def testSave { HeadlessClient.withIconURLs {
+    val toolbar = new CountingToolBar
+    val client = new HTML5Client(new XSEdit(new Space(new History(""),Nil)),Some(toolbar),Locale.ENGLISH,ExecutionContext.global)
+    try {
+      editAndSave(client,"Sol")
+      assertEquals(1,toolbar.saves.get)
+    } finally { client.session.dispose() }
+  }}
+
+  @Test
+  def testJournalledSave { HeadlessClient.withIconURLs {
+    val dir = java.nio.file.Files.createTempDirectory("xssave").toFile
+    val toolbar = new CountingToolBar
+    val original = new Space(new History(""),Nil)
+    val xsedit = new XSEdit(original)
+    val journal = XSEditJournal.attach(xsedit,dir,ExecutionContext.global)
+    val client = new HTML5Client(xsedit,Some(toolbar),Locale.ENGLISH,ExecutionContext.global)
+    try {
+      editAndSave(client,"Sol")
+      assertEquals(0,toolbar.saves.get) // the journal has it.
+      assertEquals("Sol",XSEditJournal.recover(dir,original).asInstanceOf[Space].stars.head.name)
+    } finally {
+      client.session.dispose()
+      journal.close()
+      for (f<-dir.listFiles()) f.delete()
+      dir.delete()
+    }
+  }}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import org.junit.Assert._
+import org.junit.Test
+import scala.collection.mutable.ListBuffer
+import org.greatcactus.xs.frontend.XSClipBoard
+
+/**
+ * Test that a passivated session is rebuilt when a message arrives, and that its saved state survives a failed rebuild (after which the client is told to resynchronize).
+ */
+class ZZZ_SessionPassivation {
+
+  val received = new ListBuffer[String]
+  var saved : List[Saved] = Nil
+
+  class Worker extends HTTPSessionWorker {
+    override def receivedMessage(message:SimpleClientMessage) { received+=message.command }
+    override def getDraggedElement(subid:String) : Option[XSClipBoard] = None
+    override def passivate() : Option[PassivatedSessionWorker] = { val res = new Saved; saved::=res; Some(res) }
+  }
+
+  class Saved extends PassivatedSessionWorker {
+    var failuresLeft = 0
+    var discarded = false
+    def reactivate(session:HTTPSession) {
+      if (failuresLeft>0) { failuresLeft-=1; throw new java.io.IOException("Transient failure") }
+      session.setWorker(new Worker)
+    }
+    def discard() { discarded=true }
+  }
+
+  @Test
+  def testPassivateAndReactivate {
+    val session = new HTTPSession(new Worker)
+    try {
+      assertTrue(session.passivate())
+      assertTrue(session.isPassivated)
+      assertNull(session.worker)
+      session.receivedOrderedMessage(SimpleClientMessage("hello",Array()))
+      assertEquals(List("hello"),received.toList)
+      assertFalse(session.isPassivated)
+      assertTrue(saved.head.discarded)
+    } finally { session.dispose() }
+  }
+
+  @Test
+  def testFailedReactivationKeepsState {
+    val session = new HTTPSession(new Worker)
+    try {
+      assertTrue(session.passivate())
+      saved.head.failuresLeft=1
+      val sent = new ListBuffer[String]
+      session.setDirectSendToClient(m=>sent+=m.toString)
+      session.receivedOrderedMessage(SimpleClientMessage("lost",Array()))
+      assertEquals(Nil,received.toList)
+      assertEquals(List("Resync()"),sent.toList) // the client is told its message was lost, and reloads.
+      assertTrue(session.isPassivated)
+      assertFalse(saved.head.discarded)
+      assertTrue(SessionManagement.get(session.id).isDefined) // second try works.
+      assertTrue(saved.head.discarded)
+      session.receivedOrderedMessage(SimpleClientMessage("hello",Array()))
+      assertEquals(List("hello"),received.toList)
+    } finally { session.dispose() }
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html.servlet
+
+import org.junit.Assert._
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintWriter
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import javax.servlet.AsyncContext
+import javax.servlet.AsyncListener
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import scala.collection.mutable.ListBuffer
+import org.greatcactus.xs.frontend.XSClipBoard
+import org.greatcactus.xs.frontend.html._
+import org.greatcactus.xs.impl.XSExecutionContext
+
+/**
+ * Test that a message reaching a suspended comet request after the request has timed out is not lost, with just enough
+ * of a container to call XSServlet.doPost.
+ */
+class ZZZ_CometRace {
+
+  class Worker extends HTTPSessionWorker {
+    override def receivedMessage(message:SimpleClientMessage) {}
+    override def getDraggedElement(subid:String) : Option[XSClipBoard] = None
+  }
+
+  /** A suspended request. Runnables given to start are only run by runStarted, so the test decides the order things happen in. */
+  class Async {
+    val listeners = new ListBuffer[AsyncListener]
+    val started = new ListBuffer[Runnable]
+    var completed = false
+    val body = new ByteArrayOutputStream
+    val writer = new PrintWriter(body)
+    val response = Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[HttpServletResponse]),new InvocationHandler {
+      override def invoke(proxy:AnyRef,method:Method,args:Array[AnyRef]) : AnyRef = method.getName match {
+        case "getOutputStream" => new ServletOutputStream { override def write(b:Int) { body.write(b) } }
+        case "getWriter" => writer
+        case _ => null
+      }
+    }).asInstanceOf[HttpServletResponse]
+    val context = Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[AsyncContext]),new InvocationHandler {
+      override def invoke(proxy:AnyRef,method:Method,args:Array[AnyRef]) : AnyRef = method.getName match {
+        case "addListener" => listeners+=args(0).asInstanceOf[AsyncListener]; null
+        case "getResponse" => response
+        case "start" => if (completed) throw new IllegalStateException("completed") else started+=args(0).asInstanceOf[Runnable]; null
+        case "complete" => completed=true; null
+        case "hashCode" => Integer.valueOf(System.identityHashCode(proxy))
+        case "equals" => java.lang.Boolean.valueOf(proxy eq args(0))
+        case _ => null
+      }
+    }).asInstanceOf[AsyncContext]
+    def timeout() { for (l<-listeners) l.onTimeout(null) }
+    def runStarted() { for (r<-started) r.run(); started.clear() }
+    def written : String = { writer.flush(); body.toString("UTF-8") }
+  }
+
+  def withServlet(code:XSServlet=>Unit) {
+    val oldContext = XSExecutionContext.context
+    val servlet = new XSServlet { def mainPage(request:HttpServletRequest,response:HttpServletResponse) {} }
+    try { code(servlet) } finally {
+      servlet.executorService.shutdown()
+      XSExecutionContext.context = oldContext
+    }
+  }
+
+  /** Make a comet request, as the client does, which is left suspended */
+  def comet(servlet:XSServlet,session:HTTPSession) : Async = {
+    val async = new Async
+    val request = Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[HttpServletRequest]),new InvocationHandler {
+      override def invoke(proxy:AnyRef,method:Method,args:Array[AnyRef]) : AnyRef = method.getName match {
+        case "getParameter" => Map("xsSessionID"->session.id,"sub"->"comet").get(args(0).toString).orNull
+        case "isAsyncSupported" => java.lang.Boolean.TRUE
+        case "startAsync" => async.context
+        case _ => null
+      }
+    }).asInstanceOf[HttpServletRequest]
+    servlet.doPost(request,async.response)
+    async
+  }
+
+  def pending(session:HTTPSession) : Option[String] = session.cometCallShouldReturnImmediately().map{_.toString}
+
+  @Test
+  def testMessageAfterTimeout {
+    withServlet{servlet=>
+      val session = new HTTPSession(new Worker)
+      try {
+        val async = comet(servlet,session)
+        async.timeout()
+        assertEquals("null",async.written)
+        session.addMessage(ClientMessage.setHTMLID("a","one"))
+        assertEquals(Some("SetHTML(a,one)"),pending(session)) // kept for the next comet request.
+      } finally { session.dispose() }
+    }
+  }
+
+  @Test
+  def testTimeoutBeforeMessageWritten {
+    withServlet{servlet=>
+      val session = new HTTPSession(new Worker)
+      try {
+        val async = comet(servlet,session)
+        session.addMessage(ClientMessage.setHTMLID("a","one")) // taken by the request, to be written on a container thread...
+        async.timeout() // ...but it times out first.
+        session.addMessage(ClientMessage.setHTMLID("b","two"))
+        async.runStarted()
+        assertEquals("null",async.written)
+        assertEquals(Some("[SetHTML(a,one);SetHTML(b,two)]"),pending(session)) // still in order.
+      } finally { session.dispose() }
+    }
+  }
+
+  @Test
+  def testMessageAfterComplete {
+    withServlet{servlet=>
+      val session = new HTTPSession(new Worker)
+      try {
+        val async = comet(servlet,session)
+        async.completed=true // e.g. the container gave up on it without telling the listener.
+        session.addMessage(ClientMessage.setHTMLID("a","one"))
+        assertEquals(Some("SetHTML(a,one)"),pending(session))
+      } finally { session.dispose() }
+    }
+  }
+}
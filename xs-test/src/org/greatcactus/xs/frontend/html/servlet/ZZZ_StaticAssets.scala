@@ -0,0 +1,103 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html.servlet
+
+import org.junit.Assert._
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.ByteArrayInputStream
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.zip.GZIPInputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import scala.collection.mutable.HashMap
+import org.greatcactus.xs.util.FileUtil
+
+/**
+ * Test the caching headers, "not modified" responses and gzip of StaticAssets.serve, with just enough of a request and response to call it.
+ */
+class ZZZ_StaticAssets {
+
+  class Response {
+    var status = HttpServletResponse.SC_OK
+    val headers = new HashMap[String,String]
+    val body = new ByteArrayOutputStream
+    val servletResponse = Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[HttpServletResponse]),new InvocationHandler {
+      override def invoke(proxy:AnyRef,method:Method,args:Array[AnyRef]) : AnyRef = {
+        method.getName match {
+          case "setStatus" => status=args(0).asInstanceOf[Integer]
+          case "setHeader" => headers(args(0).toString)=args(1).toString
+          case "setDateHeader" => headers(args(0).toString)=args(1).toString
+          case "setContentType" => headers("Content-Type")=args(0).toString
+          case "setContentLength" => headers("Content-Length")=args(0).toString
+          case "getOutputStream" => return new ServletOutputStream { override def write(b:Int) { body.write(b) } }
+          case _ =>
+        }
+        null
+      }
+    }).asInstanceOf[HttpServletResponse]
+  }
+
+  def serve(asset:StaticAsset,headers:Map[String,String],parameters:Map[String,String]=Map.empty) : Response = {
+    val request = Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[HttpServletRequest]),new InvocationHandler {
+      override def invoke(proxy:AnyRef,method:Method,args:Array[AnyRef]) : AnyRef = method.getName match {
+        case "getHeader" => headers.get(args(0).toString).orNull
+        case "getDateHeader" => java.lang.Long.valueOf(headers.get(args(0).toString).map{_.toLong}.getOrElse(-1L))
+        case "getParameter" => parameters.get(args(0).toString).orNull
+        case _ => null
+      }
+    }).asInstanceOf[HttpServletRequest]
+    val res = new Response
+    StaticAssets.serve(request,res.servletResponse,asset)
+    res
+  }
+
+  val text = ("function f() { return 'xs'; }\n"*50).getBytes("UTF-8")
+  val asset = new StaticAsset("xs/test.js","application/javascript",text,1000000L)
+
+  @Test
+  def testETag {
+    val first = serve(asset,Map.empty)
+    assertEquals(HttpServletResponse.SC_OK,first.status)
+    assertEquals(asset.etag,first.headers("ETag"))
+    assertEquals("no-cache",first.headers("Cache-Control"))
+    assertArrayEquals(text,first.body.toByteArray)
+    val versioned = serve(asset,Map.empty,Map("v"->asset.hash))
+    assertTrue(versioned.headers("Cache-Control").contains("immutable"))
+    val stale = serve(asset,Map.empty,Map("v"->"old"))
+    assertEquals("no-cache",stale.headers("Cache-Control"))
+  }
+
+  @Test
+  def testNotModified {
+    val same = serve(asset,Map("If-None-Match"->asset.etag))
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED,same.status)
+    assertEquals(0,same.body.size)
+    val changed = serve(asset,Map("If-None-Match"->"\"something else\""))
+    assertEquals(HttpServletResponse.SC_OK,changed.status)
+    val changedButOldDate = serve(asset,Map("If-None-Match"->"\"something else\"","If-Modified-Since"->"2000000")) // ETag takes precedence
+    assertEquals(HttpServletResponse.SC_OK,changedButOldDate.status)
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED,serve(asset,Map("If-Modified-Since"->"2000000")).status)
+    assertEquals(HttpServletResponse.SC_OK,serve(asset,Map("If-Modified-Since"->"500000")).status)
+  }
+
+  @Test
+  def testGzip {
+    assertTrue(asset.gzipped.isDefined)
+    val zipped = serve(asset,Map("Accept-Encoding"->"gzip, deflate"))
+    assertEquals("gzip",zipped.headers("Content-Encoding"))
+    assertEquals("Accept-Encoding",zipped.headers("Vary"))
+    assertEquals(zipped.body.size.toString,zipped.headers("Content-Length"))
+    assertArrayEquals(text,FileUtil.readAllOfInputStream(new GZIPInputStream(new ByteArrayInputStream(zipped.body.toByteArray))))
+    val plain = serve(asset,Map.empty)
+    assertFalse(plain.headers.contains("Content-Encoding"))
+    assertArrayEquals(text,plain.body.toByteArray)
+    val png = new StaticAsset("xs/icon.png","image/png",text,0L) // already compressed, so never gzipped.
+    assertEquals(None,png.gzipped)
+    assertFalse(serve(png,Map("Accept-Encoding"->"gzip")).headers.contains("Content-Encoding"))
+  }
+}
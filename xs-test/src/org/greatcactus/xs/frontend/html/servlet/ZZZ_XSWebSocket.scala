@@ -0,0 +1,135 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html.servlet
+
+import org.junit.Assert._
+import org.junit.Test
+import java.net.URI
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import javax.servlet.http.HttpServlet
+import javax.websocket.ClientEndpointConfig
+import javax.websocket.CloseReason
+import javax.websocket.ContainerProvider
+import javax.websocket.Endpoint
+import javax.websocket.EndpointConfig
+import javax.websocket.MessageHandler
+import org.apache.catalina.startup.Tomcat
+import org.apache.tomcat.websocket.server.WsSci
+import scala.collection.JavaConverters._
+import org.greatcactus.xs.frontend.XSClipBoard
+import org.greatcactus.xs.frontend.html._
+
+/** Deploys the websocket for the embedded server in ZZZ_XSWebSocket */
+class WebSocketTestConfig extends XSWebSocketApplicationConfig
+
+/**
+ * Test XSWebSocketEndpoint end to end, with an embedded Tomcat server and a websocket client.
+ */
+class ZZZ_XSWebSocket {
+
+  val received = new LinkedBlockingQueue[String]
+
+  class Worker extends HTTPSessionWorker {
+    override def receivedMessage(message:SimpleClientMessage) { received.put(message.command) }
+    override def getDraggedElement(subid:String) : Option[XSClipBoard] = None
+  }
+
+  /** A websocket client that remembers what it is sent */
+  class Client extends Endpoint {
+    val frames = new LinkedBlockingQueue[String]
+    @volatile var closed = false
+    @volatile var session : javax.websocket.Session = null
+    override def onOpen(wsSession:javax.websocket.Session,config:EndpointConfig) {
+      session=wsSession
+      wsSession.addMessageHandler(new MessageHandler.Whole[String]() { override def onMessage(text:String) { frames.put(text) }})
+    }
+    override def onClose(wsSession:javax.websocket.Session,reason:CloseReason) { closed=true }
+    def send(text:String) { session.getBasicRemote().sendText(text) }
+    /** The next frame from the server, ignoring pings, or null if none comes soon. */
+    def next() : String = frames.poll(5,TimeUnit.SECONDS) match {
+      case f if f!=null && f.contains("\"Ping\"") => next()
+      case f => f
+    }
+  }
+
+  def withServer(code:Int=>Unit) {
+    val dir = java.nio.file.Files.createTempDirectory("xswstest").toFile
+    val tomcat = new Tomcat
+    tomcat.setPort(0)
+    tomcat.setBaseDir(dir.getPath)
+    val context = tomcat.addContext("",dir.getPath)
+    Tomcat.addServlet(context,"page",new HttpServlet {}) // the websocket upgrade is done by a filter, which needs something to map to.
+    context.addServletMapping("/","page")
+    context.addServletContainerInitializer(new WsSci,Set[Class[_]](classOf[WebSocketTestConfig]).asJava)
+    tomcat.start()
+    try { code(tomcat.getConnector.getLocalPort) } finally { tomcat.stop(); tomcat.destroy() }
+  }
+
+  def connect(port:Int,sessionID:String) : Client = {
+    val client = new Client
+    ContainerProvider.getWebSocketContainer().connectToServer(client,ClientEndpointConfig.Builder.create().build(),new URI("ws://localhost:"+port+"/xsws?xsSessionID="+sessionID))
+    client
+  }
+
+  def frame(count:Int,messages:ClientMessage*) : String = count+"\n"+new MultipleClientMessage(messages).serializeToString()
+
+  @Test
+  def testMessagesBothWays {
+    withServer{port=>
+      val session = new HTTPSession(new Worker)
+      val client = connect(port,session.id)
+      client.send(frame(1,SimpleClientMessage("second",Array()))) // arrives first, so must wait for frame 0.
+      client.send(frame(0,SimpleClientMessage("first",Array()),SimpleClientMessage("ReqWSAck",Array("1"))))
+      assertEquals("first",received.poll(5,TimeUnit.SECONDS))
+      assertEquals("second",received.poll(5,TimeUnit.SECONDS))
+      assertEquals("WSAck(1)",ClientMessage.deserialize(client.next()).toString)
+      session.addMessage(ClientMessage.setHTMLID("a","one"))
+      session.addMessage(ClientMessage.setHTMLID("b","other"))
+      session.addMessage(ClientMessage.setHTMLID("a","two"))
+      var got : List[String] = Nil // frames are sent as soon as possible, so "one" may or may not have been coalesced away.
+      while (!(got.contains("SetHTML(a,two)") && got.contains("SetHTML(b,other)"))) {
+        val f = client.next()
+        assertNotNull(f)
+        got = got++(ClientMessage.deserialize(f) match {
+          case m:MultipleClientMessage => m.commands.map{_.toString}
+          case m => List(m.toString)
+        })
+      }
+      assertEquals("SetHTML(a,two)",got.filter{_.startsWith("SetHTML(a,")}.last)
+      client.session.close()
+      for (i<-0 until 50 if !session.disposed) Thread.sleep(100)
+      assertTrue(session.disposed) // closing the socket ends the session, as the client reloads.
+    }
+  }
+
+  @Test
+  def testSchedulerBusy {
+    withServer{port=>
+      val session = new HTTPSession(new Worker)
+      val client = connect(port,session.id)
+      client.send(frame(0,SimpleClientMessage("ReqWSAck",Array("0"))))
+      assertEquals("WSAck(0)",ClientMessage.deserialize(client.next()).toString) // connected.
+      Thread.sleep(500) // so the server has finished with that frame, and the next one starts a new flush.
+      val release = new CountDownLatch(1)
+      SessionManagement.scheduler.execute(new Runnable() { override def run() { release.await(10,TimeUnit.SECONDS) }}) // e.g. a slow session timeout.
+      try {
+        session.addMessage(ClientMessage.setHTMLID("a","one"))
+        assertEquals("SetHTML(a,one)",ClientMessage.deserialize(client.next()).toString) // not held up by it.
+      } finally { release.countDown() }
+      session.dispose()
+    }
+  }
+
+  @Test
+  def testUnknownSession {
+    withServer{port=>
+      val client = connect(port,"nosuchsession")
+      assertEquals("LostSession()",ClientMessage.deserialize(client.next()).toString)
+      for (i<-0 until 50 if !client.closed) Thread.sleep(100)
+      assertTrue(client.closed)
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.swing
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.CountDownLatch
+import javax.swing.SwingUtilities
+
+/**
+ * Test that many requests from background threads become one flush on the event dispatch thread. No display is needed.
+ */
+class ZZZ_FrameCoalescer {
+
+  @Test
+  def testOneFlushPerFrame {
+    val flushes = new AtomicInteger
+    @volatile var flushedOnEDT = true
+    val coalescer = new FrameCoalescer(() => { flushes.incrementAndGet(); if (!FrameCoalescer.isEDT) flushedOnEDT=false })
+    val edtBusy = new CountDownLatch(1)
+    SwingUtilities.invokeLater(new Runnable { override def run() { edtBusy.await() }}) // so the frame can't end while the requests are made, however slowly.
+    val threads = for (i<-0 until 4) yield new Thread { override def run() { for (j<-0 until 100) coalescer.request() }}
+    for (t<-threads) t.start()
+    for (t<-threads) t.join()
+    edtBusy.countDown()
+    Thread.sleep(FrameCoalescer.frameMillis*10)
+    SwingUtilities.invokeAndWait(new Runnable { override def run() {} }) // anything already queued has run.
+    assertEquals(1,flushes.get)
+    assertTrue(flushedOnEDT)
+    coalescer.request() // a later request gets a later frame.
+    Thread.sleep(FrameCoalescer.frameMillis*10)
+    SwingUtilities.invokeAndWait(new Runnable { override def run() {} })
+    assertEquals(2,flushes.get)
+  }
+
+  @Test
+  def testRequestDuringFlush {
+    val flushes = new AtomicInteger
+    lazy val coalescer : FrameCoalescer = new FrameCoalescer(() => { if (flushes.incrementAndGet()==1) coalescer.request() })
+    coalescer.request()
+    Thread.sleep(FrameCoalescer.frameMillis*20)
+    SwingUtilities.invokeAndWait(new Runnable { override def run() {} })
+    assertEquals(2,flushes.get) // the change made while flushing isn't lost.
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.swing
+
+import org.junit.Assert._
+import org.junit.Test
+import javax.swing.event.TreeModelListener
+import javax.swing.event.TreeModelEvent
+import org.greatcactus.xs.frontend.XSEdit
+import org.greatcactus.xs.test._
+
+/**
+ * Test that SwingTreeModel only makes the Swing nodes that are asked for, and keeps them when the structure changes. No display is needed.
+ */
+class ZZZ_SwingTreeModel {
+
+  def planet(name:String) = new Planet(name,1.0,null,None,Nil,false,null)
+
+  @Test
+  def testLazyChildren {
+    val edit = new XSEdit(new Space(new History(""),List(new Star("Sol",None,List(planet("Earth"),planet("Mars"))),new Star("Alpha",None,Nil))))
+    val sol = edit.treeRoot.treeChildren.find{_.toString=="Sol"}.get
+    val earth = sol.treeChildren(0)
+    val mars = sol.treeChildren(1)
+    val model = new SwingTreeModel(edit.treeRoot)
+    assertNull(model.root.children)
+    assertEquals(None,model.loaded(sol))
+    assertEquals(edit.treeRoot.treeChildren.length,model.getChildCount(model.root)) // loads the top level only.
+    assertTrue(model.loaded(sol).isDefined)
+    val solS = model.loaded(sol).get
+    assertFalse(model.isLeaf(solS)) // without loading
+    assertNull(solS.children)
+    assertEquals(None,model.loaded(earth))
+    val earthS = model.find(earth).get // loads the children of Sol, as a JTree would when it is expanded.
+    assertSame(solS,earthS.parent)
+    assertEquals(List(earth,mars),solS.children.map{_.node}.toList)
+    assertEquals(1,model.getIndexOfChild(solS,model.loaded(mars).get))
+    assertTrue(model.isLeaf(earthS))
+  }
+
+  @Test
+  def testStructureChanged {
+    val edit = new XSEdit(new Space(new History(""),List(new Star("Sol",None,List(planet("Earth"),planet("Mars"))))))
+    val sol = edit.treeRoot.treeChildren.find{_.toString=="Sol"}.get
+    val earth = sol.treeChildren(0)
+    val mars = sol.treeChildren(1)
+    val model = new SwingTreeModel(edit.treeRoot)
+    var events : List[TreeModelEvent] = Nil
+    model.addTreeModelListener(new TreeModelListener {
+      override def treeNodesChanged(e:TreeModelEvent) {}
+      override def treeNodesInserted(e:TreeModelEvent) {}
+      override def treeNodesRemoved(e:TreeModelEvent) {}
+      override def treeStructureChanged(e:TreeModelEvent) { events::=e }
+    })
+    val marsS = model.find(mars).get
+    val solS = marsS.parent
+    edit.deleteTreeNode(earth)
+    assertEquals(List(earth,mars),solS.children.map{_.node}.toList) // a snapshot until told.
+    model.structureChanged(solS)
+    assertEquals(List(marsS),solS.children.toList) // kept, so the JTree's state for it (e.g. selection) is kept.
+    assertEquals(None,model.loaded(earth))
+    assertEquals(List(solS.path),events.map{_.getTreePath})
+    model.structureChanged(marsS) // children not loaded, so they shouldn't be loaded by this.
+    assertNull(marsS.children)
+  }
+}
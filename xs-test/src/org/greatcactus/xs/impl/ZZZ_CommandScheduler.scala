@@ -0,0 +1,92 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.impl
+
+import org.junit.Assert._
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import scala.collection.mutable.ListBuffer
+import org.greatcactus.xs.api.command.ProgressMonitor
+import org.greatcactus.xs.api.command.ProgressMonitorUI
+import org.greatcactus.xs.api.display.RichLabel
+
+/**
+ * Test queueing, priorities and coalescing of commands.
+ */
+class ZZZ_CommandScheduler {
+
+  import scala.concurrent.ExecutionContext.Implicits.global
+
+  class RecordingUI extends ProgressMonitorUI {
+    @volatile var position = -1
+    @volatile var result : Option[Boolean] = None
+    def donePortion(progressPortion:Double) {}
+    def failed(message:Option[RichLabel]) { result=Some(false) }
+    def succeeded(message:Option[RichLabel]) { result=Some(true) }
+    override def queued(position:Int) { this.position=position }
+  }
+
+  @Test
+  def testQueueing {
+    val oldPerSession = CommandScheduler.maxConcurrentPerSession
+    CommandScheduler.maxConcurrentPerSession=1
+    try {
+      val session = new Object
+      val blocker = new CountDownLatch(1)
+      val done = new CountDownLatch(5)
+      val order = new ListBuffer[String]
+      def submit(name:String,priority:Int,key:Option[CommandKey]) : RecordingUI = {
+        val ui = new RecordingUI
+        CommandScheduler.submit(key,session,priority,ProgressMonitor(ui),() => done.countDown(),() => {
+          if (name=="first") blocker.await()
+          order.synchronized { order+=name }
+          new CommandOutcome(true,None)
+        },global)
+        ui
+      }
+      val first = submit("first",0,None)
+      val low = submit("low",-10,None)
+      val high = submit("high",10,None)
+      val same = new Object
+      val key = CommandScheduler.key(session,null,same,Nil)
+      val dup1 = submit("dup1",0,key)
+      val dup2 = submit("dup2",0,key)
+      assertEquals(1,high.position)
+      assertEquals(2,dup1.position)
+      assertEquals(3,low.position)
+      blocker.countDown()
+      assertTrue(done.await(5,TimeUnit.SECONDS))
+      assertEquals(List("first","high","dup1","low"),order.toList) // dup2 coalesced with dup1.
+      assertEquals(Some(true),dup2.result)
+      assertEquals(0,CommandScheduler.numberQueued)
+    } finally { CommandScheduler.maxConcurrentPerSession=oldPerSession }
+  }
+
+  @Test
+  def testNotCoalescedAcrossSessions {
+    val same = new Object // e.g. an immutable object shared by two users' documents
+    val blocker = new CountDownLatch(1)
+    val done = new CountDownLatch(2)
+    val runs = new java.util.concurrent.atomic.AtomicInteger
+    def submit(session:AnyRef) : (RecordingUI,ProgressMonitor) = {
+      val ui = new RecordingUI
+      val monitor = ProgressMonitor(ui)
+      CommandScheduler.submit(CommandScheduler.key(session,null,same,Nil),session,0,monitor,() => done.countDown(),() => {
+        runs.incrementAndGet()
+        blocker.await(5,TimeUnit.SECONDS)
+        if (monitor.isCancelled) CommandOutcome.cancelled else new CommandOutcome(true,None)
+      },global)
+      (ui,monitor)
+    }
+    val (ui1,monitor1) = submit(new Object)
+    val (ui2,_) = submit(new Object)
+    monitor1.cancel()
+    blocker.countDown()
+    assertTrue(done.await(5,TimeUnit.SECONDS))
+    assertEquals(2,runs.get) // each session's request is run.
+    assertEquals(Some(false),ui1.result)
+    assertEquals(Some(true),ui2.result) // and not cancelled by the other's cancel.
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.impl
+
+import org.junit.Assert._
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import org.greatcactus.xs.frontend.html.SessionManagement
+
+/**
+ * Test that the metrics register and unregister their own JMX beans, and leave others in the same domain alone.
+ */
+class ZZZ_DependencyInjectionMetrics {
+
+  @Test
+  def testRegisterJMX {
+    val server = ManagementFactory.getPlatformMBeanServer()
+    val metrics = new ObjectName(DependencyInjectionMetrics.jmxDomain+":type=DependencyInjectionMetrics")
+    val queue = new ObjectName(DependencyInjectionMetrics.jmxDomain+":type=DependencyInjectionCleaningQueue")
+    val sessions = new ObjectName(DependencyInjectionMetrics.jmxDomain+":type=Sessions")
+    SessionManagement.registerJMX()
+    try {
+      DependencyInjectionMetrics.registerJMX()
+      DependencyInjectionMetrics.registerJMX() // a second servlet does the same.
+      assertTrue(server.isRegistered(metrics))
+      assertTrue(server.isRegistered(queue))
+      DependencyInjectionMetrics.unregisterJMX()
+      assertFalse(server.isRegistered(metrics))
+      assertFalse(server.isRegistered(queue))
+      assertTrue(server.isRegistered(sessions)) // not ours.
+      DependencyInjectionMetrics.registerJMX() // and again after being unregistered.
+      assertTrue(server.isRegistered(metrics))
+      DependencyInjectionMetrics.unregisterJMX()
+      assertFalse(server.isRegistered(metrics))
+    } finally { SessionManagement.unregisterJMX() }
+  }
+}
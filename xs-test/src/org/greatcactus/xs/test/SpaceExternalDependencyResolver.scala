@@ -26,7 +26,11 @@ object SpaceExternalDependencyResolver {
   
   val HistoryFileClass = classOf[HistoryFile]
   
-  val baseDir : Path = Paths.get("""C:\tmp""")
+  /** Where history files are looked for. C:\tmp if there is one, otherwise the temporary directory. */
+  val baseDir : Path = {
+    val windows = Paths.get("""C:\tmp""")
+    if (Files.isDirectory(windows)) windows else Paths.get(System.getProperty("java.io.tmpdir"))
+  }
   
   def resolve(filename:String) : ObsoletableAndInterruptableFuture[HistoryFile] = {
     if (filename==null || filename.isEmpty()) null
@@ -17,6 +17,8 @@ import java.util.Locale
 import org.greatcactus.xs.api.display.RichLabel
 import org.greatcactus.xs.api.icon.Icon
 import org.greatcactus.xs.api.errors.ResolvedXSError
+import org.greatcactus.xs.api.errors.ErrorCounts
+import org.greatcactus.xs.api.errors.Severity
 import org.greatcactus.xs.impl.GeneralizedField
 import org.greatcactus.xs.api.command.EditCommandDescriptionMadeConcrete
 
@@ -27,8 +29,236 @@ import org.greatcactus.xs.api.command.EditCommandDescriptionMadeConcrete
  */
 class ZZZ_EditSpace {
 
+  /** Use the details pane to add each body (the command that adds it, and its name) as a child of the one added before. */
+  def add(details:TestXSDetailsPane,bodies:List[(String,String)]) {
+    for ((command,name)<-bodies) {
+      details.uiActivated(command,0)
+      details.uiChangedTextField("name",name,true)
+    }
+  }
+  
+  /** 
+   * Edit original with a details pane, and use it to add the star Sol and then the given bodies, as a user would.
+   * beforeEditing is called with the new XSEdit before the details pane is added.
+   */
+  def editSol(bodies:List[(String,String)],original:Space=new Space(new History(""),Nil),beforeEditing:XSEdit=>Unit = _=>{}) : (XSEdit,TestXSDetailsPane) = {
+    val edit = new XSEdit(original)
+    beforeEditing(edit)
+    val details = new TestXSDetailsPane(Locale.FRANCE,edit)
+    edit.addDetailsPane(details)
+    add(details,("Ajoutez un étoile","Sol")::bodies)
+    (edit,details)
+  }
+  
+  val earthAndLuna = List(("Add Planet","Earth"),("Add moon","Luna"))
+  
+  @Test
+  def testPassivate {
+    val (edit,_) = editSol(List(("Add Planet","Mercury")))
+    assertTrue(edit.undo())
+    assertEquals(" - Space\n  . History\n  - Sol\n*  . New planet",edit.toString)
+    val bytes = new java.io.ByteArrayOutputStream
+    edit.passivate(new java.io.DataOutputStream(bytes))
+    val restored = XSEdit.restore(new java.io.DataInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray)),getClass.getClassLoader)
+    assertEquals(edit.toString,restored.toString)
+    assertEquals(edit.undoRedo.canUndo,restored.undoRedo.canUndo)
+    assertEquals(edit.undoRedo.canRedo,restored.undoRedo.canRedo)
+    assertTrue(restored.redo())
+    assertEquals(" - Space\n  . History\n  - Sol\n*  . Mercury",restored.toString)
+  }
   
+  @Test
+  def testInMemoryClipboard {
+    val (edit,_) = editSol(earthAndLuna)
+    val sol = edit.currentlyEditing.parent.parent
+    val earth = sol.treeChildren(0)
+    earth.isOpen=false
+    val copy = edit.copyData(List(earth))
+    assertTrue(copy.nodes.isDefined)
+    edit.pasteData(sol,copy,None)
+    assertEquals(" - Space\n  . History\n  - Sol\n   + Earth (1 moon)\n   + Earth (1 moon)",edit.toString.replace("*"," "))
+    assertFalse(sol.treeChildren(1).getObject eq earth.getObject) // already in this tree, so copied via XML.
+    edit.deleteTreeNode(earth)
+    edit.pasteData(sol,copy,None) // as for cut and paste
+    assertTrue(sol.treeChildren(1).getObject eq copy.nodes.get.nodes(0).obj) // no longer in this tree, so pasted by reference.
+    val (other,_) = editSol(Nil)
+    val otherSol = other.currentlyEditing
+    other.pasteData(otherSol,copy,None)
+    assertEquals(1,otherSol.treeChildren.length)
+    assertTrue(otherSol.treeChildren(0).getObject eq earth.getObject) // pasted by reference, not serialized.
+    other.pasteData(otherSol,copy,None)
+    assertEquals(2,otherSol.treeChildren.length)
+    assertFalse(otherSol.treeChildren(1).getObject eq earth.getObject)
+  }
+  
+  @Test
+  def testDrag {
+    val (edit,_) = editSol(earthAndLuna)
+    val sol = edit.currentlyEditing.parent.parent
+    edit.pasteData(sol,edit.copyData(List(sol.treeChildren(0))),None)
+    val copiedLuna = sol.treeChildren(1).treeChildren(0)
+    val m = copiedLuna.getObject.asInstanceOf[Planet]
+    edit.changeNode(copiedLuna,new Planet("Moon",m.distanceFromPrimary,m.tpe,m.core,m.moons,m.tidallyLocked,m.photo),None,"rename") // so the two can be told apart
+    val earth = sol.treeChildren(0).getObject
+    val luna = sol.treeChildren(0).treeChildren(0).getObject
+    edit.dragData(sol,List(sol.treeChildren(0)),None)
+    assertEquals(List("Earth (1 moon)","Earth (1 moon)"),sol.treeChildren.map{_.toString}.toList)
+    assertEquals("Moon",sol.treeChildren(0).treeChildren(0).toString)
+    assertTrue(sol.treeChildren(1).getObject eq earth) // moved, not copied.
+    assertTrue(sol.treeChildren(1).treeChildren(0).getObject eq luna)
+    edit.dragData(sol,List(sol.treeChildren(1)),Some(sol.treeChildren(0))) // and back again
+    assertTrue(sol.treeChildren(0).getObject eq earth)
+    assertEquals("Luna",sol.treeChildren(0).treeChildren(0).toString)
+    assertEquals(List(sol.treeChildren(0).treeChildren(0)),edit.nodesWithFieldValue(classOf[Planet],"name","Luna"))
+    assertTrue(edit.undo()) // a drag is one change
+    assertTrue(sol.treeChildren(1).getObject eq earth)
+    assertEquals(2,sol.treeChildren.length)
+  }
   
+  @Test
+  def testErrorIndex {
+    val (edit,details) = editSol(List(("Add Planet","Earth"),("Add moon","Earth"))) // planet names must be globally unique.
+    val moon = edit.currentlyEditing
+    val planet = moon.parent
+    val sol = planet.parent
+    def nodes(page:ErrorPage) = page.entries.map{_.node}
+    assertEquals(new ErrorCounts(2,1,0),edit.errorCounts) // and Sol has more planets than comets.
+    assertEquals(new ErrorCounts(2,0,0),planet.subtreeErrorCounts)
+    assertEquals(List(sol,planet,moon),nodes(edit.errorPage(0,10))) // in document order.
+    val second = edit.errorPage(1,1)
+    assertEquals(List(planet),nodes(second))
+    assertEquals(3,second.totalMatching)
+    assertTrue(second.hasMore)
+    val errors = edit.errorPage(1,10,Severity.ERROR)
+    assertEquals(List(moon),nodes(errors)) // the warning is not counted when skipping.
+    assertEquals(2,errors.totalMatching)
+    assertFalse(errors.hasMore)
+    assertEquals(Nil,edit.errorPage(3,10).entries)
+    details.uiChangedTextField("name","Luna",true)
+    assertEquals(new ErrorCounts(0,1,0),edit.errorCounts) // kept up to date as the document changes.
+    assertEquals(Nil,edit.errorPage(0,10,Severity.ERROR).entries)
+    details.uiChangedTextField("name","Earth",true)
+    assertEquals(new ErrorCounts(2,1,0),edit.errorCounts)
+  }
+
+  @Test
+  def testUniqueness {
+    val (edit,details) = editSol(List(("Add Planet","Earth"),("Add moon","Earth")))
+    val moon = edit.currentlyEditing
+    val planet = moon.parent
+    def nameErrors(node:XSTreeNode) = node.allErrors.filter{_._1=="name"}.length
+    assertEquals(1,nameErrors(planet)) // planet names must be globally unique.
+    assertEquals(1,nameErrors(moon))
+    details.uiChangedTextField("name","Luna",true)
+    assertEquals(0,nameErrors(planet))
+    assertEquals(0,nameErrors(moon))
+    details.uiChangedTextField("name","Earth",true) // and the errors come back.
+    assertEquals(1,nameErrors(moon))
+    assertEquals(1,nameErrors(planet))
+  }
+  
+  @Test
+  def testIndex {
+    val (edit,details) = editSol(Nil)
+    assertEquals(List("Sol"),edit.query("/Space/Star").map{_.toString}) // builds the index
+    add(details,earthAndLuna)
+    val luna = edit.currentlyEditing
+    assertEquals(List(luna),edit.nodesWithFieldValue(classOf[Planet],"name","Luna"))
+    assertEquals(Some(luna),edit.nodeByUid(luna.uid))
+    assertEquals(2,edit.nodesOfClass(classOf[Planet]).length)
+    assertEquals(3,edit.nodesOfClass(classOf[HeavenlyBody]).length)
+    assertEquals(List(luna),edit.query("/Space/Star[name=Sol]//Planet[name=Luna]"))
+    assertEquals(List("Earth (1 moon)"),edit.query("//Star/Planet").map{_.toString})
+    edit.deleteTreeNode(luna.parent)
+    assertEquals(Nil,edit.nodesOfClass(classOf[Planet]))
+    assertEquals(List("Sol"),edit.nodesOfClass(classOf[HeavenlyBody]).map{_.toString}) // removed from the superclass's index too.
+    assertEquals(Nil,edit.nodesWithFieldValue(classOf[Planet],"name","Luna"))
+    assertTrue(edit.undo())
+    assertEquals(List("Luna"),edit.query("//Planet[name=Luna]").map{_.toString})
+    assertEquals(3,edit.nodesOfClass(classOf[HeavenlyBody]).length)
+  }
+
+  @Test
+  def testJournal {
+    val dir = java.io.File.createTempFile("xsjournal","")
+    dir.delete()
+    val oldSnapshotEvery = XSEditJournal.snapshotEvery
+    XSEditJournal.snapshotEvery=3
+    try {
+      val original = new Space(new History(""),Nil)
+      var journal : XSEditJournal = null
+      val (edit,_) = editSol(earthAndLuna,original,e=>{ journal=XSEditJournal.attach(e,dir,scala.concurrent.ExecutionContext.Implicits.global) })
+      assertTrue(edit.undo())
+      journal.close()
+      for (f<-dir.listFiles() if f.getName.startsWith("journal")) { // only the changed parts, never the whole document.
+        assertFalse(new String(java.nio.file.Files.readAllBytes(f.toPath),"ISO-8859-1").contains("<Space"))
+      }
+      val recovered = XSEditJournal.recover(dir,original)
+      assertEquals(new String(org.greatcactus.xs.api.serialization.XMLSerialize.serializeToByteArray(edit.currentObject),"UTF-8"),new String(org.greatcactus.xs.api.serialization.XMLSerialize.serializeToByteArray(recovered),"UTF-8"))
+    } finally {
+      XSEditJournal.snapshotEvery=oldSnapshotEvery
+      for (f<-Option(dir.listFiles()).toList.flatten) f.delete()
+      dir.delete()
+    }
+  }
+
+  /** The object serialized, for comparing */
+  def xml(obj:AnyRef) : String = new String(org.greatcactus.xs.api.serialization.XMLSerialize.serializeToByteArray(obj),"UTF-8")
+  
+  @Test
+  def testDamagedJournal {
+    val dir = java.nio.file.Files.createTempDirectory("xsjournal").toFile
+    try {
+      val original = new Space(new History(""),Nil)
+      var journal : XSEditJournal = null
+      val (edit,details) = editSol(earthAndLuna,original,e=>{ journal=XSEditJournal.attach(e,dir,scala.concurrent.ExecutionContext.Implicits.global) })
+      journal.sync()
+      val file = dir.listFiles().find{_.getName.startsWith("journal")}.get
+      val beforeEdits = for (i<-1 to 3) yield { // where each edit's record starts, and the state before it.
+        val before = (file.length().toInt,xml(edit.currentObject))
+        details.uiChangedTextField("name","Luna "+i,true)
+        journal.sync()
+        before
+      }
+      journal.close()
+      val whole = java.nio.file.Files.readAllBytes(file.toPath)
+      def recoverFrom(bytes:Array[Byte]) : String = {
+        java.nio.file.Files.write(file.toPath,bytes)
+        xml(XSEditJournal.recover(dir,original))
+      }
+      assertEquals(xml(edit.currentObject),recoverFrom(whole))
+      for ((start,state)<-beforeEdits) {
+        assertEquals(state,recoverFrom(whole.take(start+20))) // torn part way through a record, as by a crash.
+        val badLength = whole.clone()
+        badLength(start)=0x7f
+        assertEquals(state,recoverFrom(badLength))
+        val badCRC = whole.clone()
+        badCRC(start+4)=(badCRC(start+4)^1).toByte
+        assertEquals(state,recoverFrom(badCRC))
+      }
+    } finally {
+      for (f<-Option(dir.listFiles()).toList.flatten) f.delete()
+      dir.delete()
+    }
+  }
+  
+  @Test
+  def testJournalWriterRejected {
+    val dir = java.nio.file.Files.createTempDirectory("xsjournal").toFile
+    val rejecting = new scala.concurrent.ExecutionContext {
+      override def execute(runnable:Runnable) { throw new java.util.concurrent.RejectedExecutionException("shut down") }
+      override def reportFailure(t:Throwable) {}
+    }
+    try {
+      val journal = XSEditJournal.attach(new XSEdit(new Space(new History(""),Nil)),dir,rejecting)
+      try { journal.sync(); fail() } catch { case _:java.io.IOException => } // rather than waiting forever.
+      try { journal.close(); fail() } catch { case _:java.io.IOException => }
+    } finally {
+      for (f<-Option(dir.listFiles()).toList.flatten) f.delete()
+      dir.delete()
+    }
+  }
+
   @Test
   def test {
     val base = new Space(new History(""),Nil)
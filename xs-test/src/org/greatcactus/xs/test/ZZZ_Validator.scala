@@ -0,0 +1,48 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.test
+
+import org.junit.Assert._
+import org.junit.Test
+import org.greatcactus.xs.api.errors.XSValidator
+import org.greatcactus.xs.api.errors.Severity
+
+/**
+ * Test headless validation of the Space classes.
+ */
+class ZZZ_Validator {
+
+  def planet(name:String) = new Planet(name,1.0,null,None,Nil,false,null)
+  
+  @Test
+  def testValid {
+    val space = new Space(new History(""),List(new Star("Sol",None,Nil)))
+    val report = XSValidator.validateBlocking(space)
+    assertTrue(report.isValid)
+    assertEquals(0,report.counts.total)
+    assertEquals(3,report.numberOfObjects)
+  }
+  
+  @Test
+  def testErrors {
+    val sol = new Star("Sol",None,List(planet("Earth"),planet("Earth"),planet("Mars!")))
+    val space = new Space(new History(""),List(sol,new Star("Sol",None,Nil)))
+    val report = XSValidator.validateBlocking(space)
+    assertFalse(report.isValid)
+    assertEquals(5,report.counts.errors) // two non unique stars, two non unique planets, one illegal character
+    assertEquals(1,report.counts.warnings) // more planets than comets
+    val firstStar = report.errors.filter{_.path=="/stars[0]"}
+    assertEquals(List(Severity.WARNING,Severity.ERROR),firstStar.map{_.error.severity}) // whole form comes before fields
+    assertEquals(List("/stars[0]/associated[0]","/stars[0]/associated[1]","/stars[0]/associated[2]"),report.errors.filter{_.path.startsWith("/stars[0]/")}.map{_.path})
+    assertEquals("name",report.errors.find{_.path=="/stars[1]"}.get.fieldname)
+  }
+  
+  @Test
+  def testMany {
+    val spaces = for (i<-0 until 20) yield new Space(new History(""),List(new Star("Star "+i,None,List(planet("P"+i)))))
+    val reports = scala.concurrent.Await.result(XSValidator.validateAll(spaces),scala.concurrent.duration.Duration.Inf)
+    assertEquals(20,reports.length)
+    for (r<-reports) assertEquals(1,r.counts.warnings)
+  }
+}
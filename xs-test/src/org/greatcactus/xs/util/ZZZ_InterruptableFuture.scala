@@ -128,4 +128,70 @@ class ZZZ_InterruptableFuture {
   	}
 
 
+  	@Test
+  	def testBoundedTraverse() {
+  	  val active = new java.util.concurrent.atomic.AtomicInteger
+  	  val maxActive = new java.util.concurrent.atomic.AtomicInteger
+  	  val res = InterruptableFuture.traverse((1 to 20).toList,3,true){i => InterruptableFuture.future{
+  	    val now = active.incrementAndGet()
+  	    synchronized { if (now>maxActive.get) maxActive.set(now) }
+  	    Thread.sleep(10)
+  	    active.decrementAndGet()
+  	    i*2
+  	  }}
+  	  assertEquals((1 to 20).map{_*2}.toList,soon(res))
+  	  assertTrue(maxActive.get<=3)
+  	  assertEquals(Nil,soon(InterruptableFuture.traverse(List[Int](),3,true){i => InterruptableFuture.eager(i)}))
+  	}
+  	
+  	@Test
+  	def testBoundedTraverseFailures() {
+  	  val started = new java.util.concurrent.atomic.AtomicInteger
+  	  def work(i:Int) = InterruptableFuture.future{ started.incrementAndGet(); Thread.sleep(20); if (i%5==2) throw new IllegalArgumentException; i }
+  	  try {
+  	    soon(InterruptableFuture.traverse((0 until 20).toList,2,true)(work))
+  	    assertFalse(true) // should throw exception
+  	  } catch {
+  	    case t:IllegalArgumentException => // OK
+  	  }
+  	  assertTrue(started.get<20)
+  	  val all = InterruptableFuture.traverse((0 until 10).toList,4,false)(work)
+  	  try {
+  	    soon(all)
+  	    assertFalse(true) // should throw exception
+  	  } catch {
+  	    case t:MultipleFailuresException => assertEquals(2,t.failures.length)
+  	  }
+  	}
+  	
+  	@Test
+  	def testBoundedTraverseCancelAndObsolete() {
+  	  val pool = concurrent.ExecutionContext.fromExecutorService(Executors.newFixedThreadPool(4)) // enough threads for both to run at once, however many CPUs.
+  	  try {
+  	    val started = new java.util.concurrent.atomic.AtomicInteger
+  	    val bothStarted = new CountDownLatch(2)
+  	    val res = InterruptableFuture.traverse((0 until 10).toList,2,true){i => InterruptableFuture.future{ started.incrementAndGet(); bothStarted.countDown(); Thread.sleep(3000); i }(pool)}(implicitly,pool)
+  	    assertTrue(bothStarted.await(5,TimeUnit.SECONDS))
+  	    res.cancel()
+  	    try {
+  	      soon(res)
+  	      assertFalse(true) // should throw exception
+  	    } catch {
+  	      case t:CancellationException => // OK
+  	    }
+  	    Thread.sleep(50) // give any wrongly started ones a chance to show up.
+  	    assertEquals(2,started.get)
+  	    val handle = new ConventionalChangeHandle
+  	    val obsolete = ObsoletableAndInterruptableFuture.traverse((0 until 10).toList,2,true){i => new ObsoletableAndInterruptableFuture(InterruptableFuture.future{ Thread.sleep(50); i }(pool),List(handle))}(implicitly,pool)
+  	    handle.change()
+  	    try {
+  	      soon(obsolete.future)
+  	      assertFalse(true) // should throw exception
+  	    } catch {
+  	      case t:IsObsoleteException => // OK
+  	    }
+  	    obsolete.dispose()
+  	  } finally { pool.shutdownNow() }
+  	}
+
 }
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.util
+
+import org.junit.Assert._
+import org.junit.Test
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import java.util.concurrent.atomic.AtomicInteger
+
+class ZZZ_LimitedExecutionContext {
+
+  @Test
+  def testLimit() {
+    val limited = new LimitedExecutionContext(ExecutionContext.global,2)
+    val running = new AtomicInteger
+    val maxRunning = new AtomicInteger
+    val all = for (i<-0 until 8) yield InterruptableFuture.future{
+      val now = running.incrementAndGet()
+      synchronized { if (now>maxRunning.get) maxRunning.set(now) }
+      Thread.sleep(20)
+      running.decrementAndGet()
+      i
+    }(limited)
+    for ((f,i)<-all.zipWithIndex) assertEquals(i,Await.result(f.future,Duration(5,SECONDS)))
+    assertTrue(maxRunning.get<=2)
+  }
+
+  @Test
+  def testWaitingOnSameContextDoesNotDeadlock() {
+    implicit val limited = new LimitedExecutionContext(ExecutionContext.global,1)
+    val outer = InterruptableFuture.future{
+      val inner = InterruptableFuture.future{ 3 } // nested
+      Await.result(inner.future,Duration(5,SECONDS))
+    }
+    val other = InterruptableFuture.future{ 4 } // queued behind outer, which gives up its place while waiting.
+    assertEquals(3,Await.result(outer.future,Duration(5,SECONDS)))
+    assertEquals(4,Await.result(other.future,Duration(5,SECONDS)))
+  }
+}
@@ -21,11 +21,37 @@ xs.grid = {
     getDataModel : function(elem) {
     	return {
 			getLength : function () { return elem.dataxs_rows.length; },
-			getItem : function (index) { return elem.dataxs_rows[index]; },
+			getItem : function (index) { return elem.dataxs_rows[index] || {}; }, // may not have all the rows yet - see checkWindow
 			getItemMetadata : function(index) { return elem.dataxs_rowmetadata&&elem.dataxs_rowmetadata.length>index?elem.dataxs_rowmetadata[index]:null;}
 		};
     },
     
+    /** 
+     * For a grid that only has some of its rows (see SetGridWindowed), ask the server for rows around those visible if 
+     * some that are visible, or nearly so, are missing.
+     */
+    checkWindow : function(elem) {
+    	var win = elem.dataxs_window;
+    	var slickgrid = elem.dataxs_sg;
+    	if (win && slickgrid) {
+    		var rows = elem.dataxs_rows;
+    		var viewport = slickgrid.getViewport();
+    		var top = Math.max(0,viewport.top);
+    		var bottom = Math.min(rows.length,viewport.bottom+1);
+    		var margin = Math.max(50,bottom-top);
+    		var missing = false;
+    		for (var i=Math.max(0,top-Math.floor(margin/2));i<Math.min(rows.length,bottom+Math.floor(margin/2));i++) if (!rows[i]) { missing=true; break; }
+    		if (missing) {
+    			var from = Math.max(0,top-margin);
+    			var to = Math.min(rows.length,bottom+margin);
+    			if (!(win.requested && win.requested.from==from && win.requested.to==to)) { // don't keep asking for the same thing.
+    				win.requested = {from:from,to:to};
+    				eval(slickgrid.xsPTFonInputObj).gridRange(slickgrid.xsPTFid,from,to,win.version);
+    			}
+    		}
+    	}
+    },
+    
     checkForOverflow : function(id) {
     	var tf = document.getElementById(id);
     	if (tf) {
@@ -14,6 +14,8 @@ function xsProcessClientMessageFromServer(json,session) {
 		} else if (json.cmd=="SetHTML") {
 			var elem = document.getElementById(json.args[0]);
             if (elem) elem.innerHTML=json.args[1];
+		} else if (json.cmd=="PatchHTML") {
+			xs.patchHTML(json.args);
 		} else if (json.cmd=="SetValue") {
 			var elem = document.getElementById(json.args[0]);
             if (elem) {
@@ -70,12 +72,21 @@ function xsProcessClientMessageFromServer(json,session) {
 			$(json.args[0]).show();
 		} else if (json.cmd=="Hide") {
 			$(json.args[0]).hide();
+		} else if (json.cmd=="ShowForm") {
+			$(json.args[0]).show().find(".xsTableHolder").each(function () {
+				if (this.dataxs_sg) this.dataxs_sg.resizeCanvas();
+				xs.resizeSlickGrid(this);
+				xs.grid.checkWindow(this);
+			});
 		} else if (json.cmd=="Enable") {
 			$(json.args[0]).removeAttr('disabled');
 		} else if (json.cmd=="Disable") {
 			$(json.args[0]).attr('disabled', 'disabled');
 		} else if (json.cmd=="LostSession") { 
 			session.errorInServerConnection("LostSession");
+		} else if (json.cmd=="Resync") { // server gave up sending incremental changes
+			session.sessionClosed = true;
+			location.reload(true);
 		} else if (json.cmd=="SetGridTooltip") {
 		    var id = json.args[0];	
 		    var html = json.args[1];
@@ -107,20 +118,38 @@ function xsProcessClientMessageFromServer(json,session) {
 		} else if (json.cmd=="SetRows") {
 			var elem = document.getElementById(json.id+"_ui");
 			elem.dataxs_rows = json.rows;
+			elem.dataxs_window = null;
+			xs.grid.majorDataChange(elem,false);
+		} else if (json.cmd=="SetGridWindowed") { // only have some rows, asking for others as needed. See xs.grid.checkWindow
+			var elem = document.getElementById(json.id+"_ui");
+			elem.dataxs_rows = new Array(json.total);
+			elem.dataxs_window = {version:json.version,requested:null};
 			xs.grid.majorDataChange(elem,false);
+			setTimeout(function () { xs.grid.checkWindow(elem); },0); // done later as a SetRowRange often comes in the same batch.
+		} else if (json.cmd=="SetRowRange") {
+			var elem = document.getElementById(json.id+"_ui");
+			if (elem.dataxs_window && elem.dataxs_window.version==json.version) { // otherwise out of date
+				var rows = new Array(elem.dataxs_rows.length); // the server will not send changes to rows outside the range, so forget them.
+				for (var i=0;i<json.rows.length;i++) rows[json.from+i]=json.rows[i];
+				elem.dataxs_rows = rows;
+				xs.grid.majorDataChange(elem,true);
+				xs.grid.checkWindow(elem);
+			}
 		} else if (json.cmd=="SetGridRowMetadata") {
 			var elem = document.getElementById(json.id+"_ui");
 			elem.dataxs_rowmetadata = json.rows;
 			xs.grid.majorDataChange(elem,true);
 		} else if (json.cmd=="SetRow") {
 			var elem = document.getElementById(json.id+"_ui");
-			elem.dataxs_rows[json.num] = json.row;
-			var slickgrid = elem.dataxs_sg;
-			if (slickgrid) {
-				var saved = xs.saveSlickGridEditor(slickgrid);
-			    slickgrid.invalidateRow(json.num);
-				slickgrid.render(); 
-				xs.restoreSlickGridEditor(slickgrid, saved,false);
+			if (!elem.dataxs_window || elem.dataxs_rows[json.num]) { // if windowed, don't fill in one row we don't otherwise have.
+				elem.dataxs_rows[json.num] = json.row;
+				var slickgrid = elem.dataxs_sg;
+				if (slickgrid) {
+					var saved = xs.saveSlickGridEditor(slickgrid);
+				    slickgrid.invalidateRow(json.num);
+					slickgrid.render(); 
+					xs.restoreSlickGridEditor(slickgrid, saved,false);
+				}
 			}
 		} else if (json.cmd=="GridSetCellCssStyles") {
 			var elem = document.getElementById(json.id+"_ui");
@@ -188,6 +217,7 @@ function xsProcessClientMessageFromServer(json,session) {
               // prevent the grid from cancelling drag'n'drop by default
               e.stopImmediatePropagation();
             });
+            slickgrid.onViewportChanged.subscribe(function (e, args) { xs.grid.checkWindow(elem); });
 
             xs.resizeSlickGrid(elem);
             slickgrid.render();
@@ -219,6 +249,10 @@ function xsProcessClientMessageFromServer(json,session) {
 				if (p1) p1.value=percent;
 				var p2 = document.getElementById(statusPercent);
 				if (p2) p2.textContent=""+percent+"%";
+			} else if (cmd=="Queued") {
+				var position = parseInt(json.args[2]);
+				var p2 = document.getElementById(statusPercent);
+				if (p2) p2.textContent= position>0 ? "Queued ("+position+")" : "0%";
 			} else if (cmd=="FinishedOK") {
 				statusel.innerHTML="Finished : "+json.args[2]; 
 				statusel.className="xsStatusGood";
@@ -289,7 +323,51 @@ var xs = {
 		  if (spinner) spinner.style.cssText="display:none;";
 	  }
   },
-  
+
+  /**
+   * Apply a patch to the inner HTML of an element, as made by HTMLDiff on the server. args[0] is the element id, followed by operations
+   * T path text, A path att value, R path att, C path from count html. A path is child node indices separated by periods.
+   * Operations that don't match the document are ignored.
+   */
+  patchHTML : function(args) {
+	  var root = document.getElementById(args[0]);
+	  if (!root) return;
+	  var find = function(path) {
+		  var node = root;
+		  if (path!="") {
+			  var indices = path.split(".");
+			  for (var j=0;j<indices.length && node;j++) node = node.childNodes[parseInt(indices[j])];
+		  }
+		  return node;
+	  };
+	  var i=1;
+	  while (i<args.length) {
+		  var op = args[i];
+		  var node = find(args[i+1]);
+		  if (op=="T") {
+			  if (node && node.nodeType==3) node.nodeValue=args[i+2];
+			  i+=3;
+		  } else if (op=="A") {
+			  if (node && node.nodeType==1) node.setAttribute(args[i+2],args[i+3]);
+			  i+=4;
+		  } else if (op=="R") {
+			  if (node && node.nodeType==1) node.removeAttribute(args[i+2]);
+			  i+=3;
+		  } else if (op=="C") {
+			  if (node && node.nodeType==1) {
+				  var from = parseInt(args[i+2]);
+				  var count = parseInt(args[i+3]);
+				  for (var j=0;j<count && node.childNodes[from];j++) node.removeChild(node.childNodes[from]);
+				  var holder = document.createElement("div");
+				  holder.innerHTML = args[i+4];
+				  var before = node.childNodes[from] || null;
+				  while (holder.firstChild) node.insertBefore(holder.firstChild,before);
+			  }
+			  i+=5;
+		  } else return; // unknown operation
+	  }
+  },
+
   /** Make the .xsEdit div take up all space other than that in the otherselectors variable (default ".xsToolbar").  */
   makeXSEditUseAllVerticalSpace : function(otherselectors) {
 	if (!otherselectors) otherselectors = ".xsToolbar";
@@ -470,6 +548,20 @@ var xs = {
     	  },delay);
       };	  
 	  
+      /** Messages waiting to be sent on the websocket at the end of this event loop tick */
+      var wsBatch = [];
+      var wsFrameCount = 0;
+      /** Send everything in wsBatch as one frame, numbered so the server can detect reordering. */
+      var flushWS = function() {
+    	  if (wsBatch.length==0) return;
+    	  wsBatch.push({cmd:"ReqWSAck",args:[""+ackExpectedFromWS]}); // sent for the sole purpose of wait cursor
+    	  var frame = wsFrameCount+"\n"+JSON.stringify({commands:wsBatch});
+    	  wsBatch = [];
+    	  wsFrameCount++;
+    	  if (xsthis.websocket.readyState==1) xsthis.websocket.send(frame);
+    	  else xsthis.websocket.addEventListener("open",function() { xsthis.websocket.send(frame); });
+      };
+      
       this.receivedWSAck = function(count) {
     	  //console.log("Received ack "+count+" waiting for "+ackExpectedFromWS);
     	  if (acksPending && count==ackExpectedFromWS) {
@@ -485,9 +577,10 @@ var xs = {
 		}
 	    if (this.usesWebsockets) {
 	      //console.log("Sending message "+message);
-		  this.websocket.send(JSON.stringify(message));	  
-		  this.websocket.send(JSON.stringify({cmd:"ReqWSAck",args:[""+this.sentMessageCount]})); // sent for the sole purpose of wait cursor
 		  ackExpectedFromWS=this.sentMessageCount;
+		  wsBatch.push(message);
+		  if (isSynchronous) flushWS();
+		  else if (wsBatch.length==1) setTimeout(flushWS,0);
 		  //console.log("Waiting for ack "+ackExpectedFromWS);
 		} else { 
 		  var cmd = { index : this.sentMessageCount, "message" : message };
@@ -535,6 +628,53 @@ var xs = {
 		  // end unnecessary code
 		  this.sendToServer({cmd:"TreeOpen",args:[id,""+isNowOpen]});		  
       }; 
+      var treeWindowTimer = null;
+      /** Called when a tree (or the window) scrolls. Checks windowed child lists shortly afterwards. */
+      this.treeScrolled = function() {
+    	  if (treeWindowTimer) return;
+    	  treeWindowTimer = setTimeout(function() { treeWindowTimer=null; xsthis.checkTreeWindows(); },100);
+      };
+      /** For nodes with so many children that the server only sends a window of them, ask for the window to move if the user has scrolled near its edge. */
+      this.checkTreeWindows = function() {
+    	  $("div.xsTreeWindowSpacer[id$='_wbefore']").each(function() {
+    		  var before = this;
+    		  var ul = before.parentNode;
+    		  if (ul.offsetParent==null) return; // not displayed
+    		  var id = ul.id.slice(0,-5); // remove _subs
+    		  var after = document.getElementById(id+"_wafter");
+    		  if (!after) return;
+    		  var start = parseInt(before.getAttribute("data-rows"));
+    		  var afterRows = parseInt(after.getAttribute("data-rows"));
+    		  if (start==0 && afterRows==0) return;
+    		  var tree = $(ul).closest(".xsEditTree")[0];
+    		  var view = tree ? tree.getBoundingClientRect() : {top:0,bottom:window.innerHeight};
+    		  var top = Math.max(view.top,0);
+    		  var bottom = Math.min(view.bottom,window.innerHeight);
+    		  var ulRect = ul.getBoundingClientRect();
+    		  if (ulRect.bottom<top || ulRect.top>bottom) return; // not visible
+    		  var rowHeight = (start>0 ? before.offsetHeight/start : after.offsetHeight/afterRows) || 16;
+    		  var rendered = [];
+    		  for (var c=before.nextSibling;c && c!=after;c=c.nextSibling) if (c.nodeType==1) rendered.push(c);
+    		  var total = start+rendered.length+afterRows;
+    		  var indexAt = function(y) { // index of the child at screen position y
+    			  var b = before.getBoundingClientRect();
+    			  if (y<b.bottom) return Math.floor((y-b.top)/rowHeight);
+    			  for (var i=0;i<rendered.length;i++) if (y<rendered[i].getBoundingClientRect().bottom) return start+i;
+    			  return start+rendered.length+Math.floor((y-after.getBoundingClientRect().top)/rowHeight);
+    		  };
+    		  var first = Math.max(0,Math.min(total-1,indexAt(top)));
+    		  var last = Math.max(first,Math.min(total-1,indexAt(bottom)));
+    		  var margin = Math.floor(rendered.length/4);
+    		  if ((start>0 && first<start+margin) || (afterRows>0 && last>=start+rendered.length-margin)) {
+    			  var request = first+","+last;
+    			  if (ul.xsRequestedWindow!=request) {
+    				  ul.xsRequestedWindow=request;
+    				  xsthis.sendToServer({cmd:"TreeWindow",args:[id,""+first,""+last]});
+    			  }
+    		  }
+    	  });
+      };
+      window.addEventListener("scroll",function() { xsthis.treeScrolled(); });
       /** Get the id of a tree given the id of an element inside it. Removes xsTreeNode from start and _xxxx from end */
       this.treeID = function(id) {
     	  return id.slice(10,id.indexOf("_"));
@@ -587,6 +727,11 @@ var xs = {
 		  this.sendToServer({cmd:"GridDnD",args:[id,rows.toString(),insertBefore.toString(),this.currentlyEditing]});  
 	  };
 
+	  /** Called when a grid (with id id) that only has some of its rows needs rows from (inclusive) to to (exclusive) */
+	  this.gridRange = function(id,from,to,version) {
+		  this.sendToServer({cmd:"GridRange",args:[id,from.toString(),to.toString(),version.toString()]});  
+	  };
+
 	  /** Called when a click is done on a toolbar button */
 	  this.toolbar = function(id) {
 		  this.sendToServer({cmd:"Toolbar",args:[id]});
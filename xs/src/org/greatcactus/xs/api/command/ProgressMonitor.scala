@@ -7,6 +7,12 @@ import org.greatcactus.xs.api.display.RichLabel
 import org.greatcactus.xs.util.ObsoletableAndInterruptableFuture
 import scala.concurrent.Await
 import scala.concurrent.ExecutionContext
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
 
 /**
  * Update the UI of a progress monitor
@@ -15,20 +21,40 @@ trait ProgressMonitorUI {
   def donePortion(progressPortion:Double)  
   def failed(message:Option[RichLabel])
   def succeeded(message:Option[RichLabel])
+  /** The task is waiting to be run, at the given position in a queue (1 is next). 0 means it has left the queue and started. */
+  def queued(position:Int) {}
 }
 
 /**
  * More friendly version of a progress monitor, adjusting units, allowing subtasks, and allowing subtasks with unknown extents.
+ * 
+ * doUnitWork is cheap and can be called from tight loops: it just adds to an atomic counter. The portion done by a monitor includes
+ * the portion done by its current subtask, computed when needed. The UI is told about progress at most maxUIUpdatesPerSecond times
+ * per second for a whole tree of monitors; if an update is skipped, the latest value is sent once the quiet period is over.
  */
 class ProgressMonitor private[command](ui:Option[ProgressMonitorUI],expectedWork:Option[Double],parent:Option[ProgressMonitor]) {
-  private var childPortionWork : Double = _;
-  private[command] var child : Option[ProgressMonitor] = None
-  private var workDone = 0.0
-  private var workDoneInChild = 0.0
-  private var lastPortionSentUp = Double.NaN
-  private var hasBeenCancelled = false
+  @volatile private var childPortionWork : Double = _;
+  @volatile private[command] var child : Option[ProgressMonitor] = None
+  private[this] val workDoneBits = new AtomicLong(java.lang.Double.doubleToLongBits(0.0)) // work done by this monitor itself and by finished subtasks.
+  @volatile private var hasBeenCancelled = false
   private[this] var notifyOfCancel : List[() => Unit] = Nil
   
+  private[command] val root : ProgressMonitor = parent match {
+    case Some(p) => p.root
+    case None => this
+  }
+  /** Maximum number of times per second the UI is told about progress. Only meaningful on the root of a tree of monitors. */
+  @volatile var maxUIUpdatesPerSecond : Double = ProgressMonitor.defaultMaxUIUpdatesPerSecond
+  private[this] val lastUIUpdate = new AtomicLong // only used on the root. Meaningless until hasUpdatedUI.
+  @volatile private[this] var hasUpdatedUI = false // only used on the root
+  private[this] val trailingUpdateScheduled = new AtomicBoolean(false) // only used on the root
+  @volatile private var hasEnded = false // only used on the root. Set when succeeded or failed.
+  @volatile private[this] var lastPortionSent = Double.NaN
+  private val unitsOfWorkCounter = new AtomicLong // only used on the root
+  
+  /** The number of times doUnitWork has been called on this tree of monitors. Only meaningful on the root. */
+  def unitsOfWork : Long = root.unitsOfWorkCounter.get
+  
   def addNotifyOfCancel(callback: ()=>Unit) {
     parent match {
       case Some(p) => p.addNotifyOfCancel(callback)
@@ -49,14 +75,21 @@ class ProgressMonitor private[command](ui:Option[ProgressMonitorUI],expectedWork
   }
 
   def failed(message:Option[RichLabel])  {
+    root.hasEnded=true
     for (p<-parent) p.failed(message)
     for (u<-ui) u.failed(message)
   }
   def succeeded(message:Option[RichLabel])  {
+    root.hasEnded=true
     for (p<-parent) p.succeeded(message)
     for (u<-ui) u.succeeded(message)
   }
 
+  def queued(position:Int)  {
+    for (p<-parent) p.queued(position)
+    for (u<-ui) u.queued(position)
+  }
+
   /** Called by the algorithm to see if should stop */
   def isCancelled : Boolean = hasBeenCancelled || parent.isDefined && parent.get.isCancelled
   /** Called by the algorithm periodically to see if should stop due to being cancelled, and throws and exception if so */
@@ -69,27 +102,37 @@ class ProgressMonitor private[command](ui:Option[ProgressMonitorUI],expectedWork
   def startTask(name:String,expectedWork:Option[Double],portionOfParent:Double=1.0,workUnits:Option[String]=None) : ProgressMonitor = {
     for (c<-child) c.finished()
     val res = new ProgressMonitor(None,expectedWork,Some(this))
-    child = Some(res)
     childPortionWork=portionOfParent
-    workDoneInChild=0.0
+    child = Some(res)
     res
   }
   /** More common method - makes a stub that a receiving function can use to set Task appropriately. This is used at the call site, and the get method is used at the start of the called function and together they are the same as startTask. */
   def subTask(portionOfParent:Double) : ProgressMonitorSource = {
     for (c<-child) c.finished()
-    val res = new ProgressMonitor(None,expectedWork,Some(this))
     child = None
     childPortionWork=portionOfParent
-    workDoneInChild=0.0
     new ProgressMonitorSource(None,Some(this))
   }
-  private def childHasFinished() {
-    childHasDoneWork(1.0)
-    child=None
+  private def childHasFinished(finishedChild:ProgressMonitor) {
+    if (child==Some(finishedChild)) {
+      addWork(childPortionWork)
+      child=None
+    }
+  }
+  private def addWork(amount:Double) {
+    var done = false
+    while (!done) {
+      val old = workDoneBits.get
+      done = workDoneBits.compareAndSet(old,java.lang.Double.doubleToLongBits(java.lang.Double.longBitsToDouble(old)+amount))
+    }
   }
-  private def childHasDoneWork(childPortionDone:Double) {
-    doUnitWork((childPortionDone-workDoneInChild)*childPortionWork)
-    workDoneInChild=childPortionDone;
+  /** Work done by this monitor, including the current subtask */
+  private def workDone : Double = {
+    val own = java.lang.Double.longBitsToDouble(workDoneBits.get)
+    child match {
+      case Some(c) => own+c.donePortion*childPortionWork
+      case None => own
+    }
   }
   /** The proportion of completed work */
   def donePortion : Double = {
@@ -101,20 +144,54 @@ class ProgressMonitor private[command](ui:Option[ProgressMonitorUI],expectedWork
   
   /** Increase the amount of work by some increment  */
   def doUnitWork(amount:Double=1.0) {
-    workDone+=amount;
-    val newportion = donePortion
-    if (!(lastPortionSentUp>newportion+0.01)) { // has to have the negative to make work with NaN
-      lastPortionSentUp=newportion
-      for (p<-parent) p.childHasDoneWork(newportion)
-      for (u<-ui) u.donePortion(newportion)
-    } 
+    addWork(amount)
+    root.workHasBeenDone()
     checkCancelled()
   }
+  
+  /** Called on the root when work is done anywhere in the tree. Tells the UI(s), if it is time to. */
+  private def workHasBeenDone() {
+    unitsOfWorkCounter.incrementAndGet()
+    val now = System.nanoTime()
+    val last = lastUIUpdate.get
+    val rate = maxUIUpdatesPerSecond
+    val interval = if (rate<=0) 0L else (1e9/rate).toLong
+    val due = rate<=0 || !hasUpdatedUI || now-last>=interval
+    if (due) {
+      if (lastUIUpdate.compareAndSet(last,now)) {
+        hasUpdatedUI=true
+        sendTreeToUI()
+      }
+    } else if (trailingUpdateScheduled.compareAndSet(false,true)) { // make sure the final value gets shown.
+      ProgressMonitor.scheduler.schedule(new Runnable() {
+        override def run() {
+          trailingUpdateScheduled.set(false)
+          if (!hasEnded) {
+            lastUIUpdate.set(System.nanoTime())
+            sendTreeToUI()
+          }
+        }
+      },interval-(now-last),TimeUnit.NANOSECONDS)
+    }
+  }
+  private def sendTreeToUI() {
+    sendPortionToUI()
+    var current = child
+    while (current.isDefined) { val c = current.get; c.sendPortionToUI(); current = c.child }
+  }
+  private def sendPortionToUI() {
+    for (u<-ui) {
+      val newportion = donePortion
+      if (!(lastPortionSent>newportion-0.01 && lastPortionSent<newportion+0.01)) { // has to have the negative to make work with NaN
+        lastPortionSent=newportion
+        u.donePortion(newportion)
+      }
+    }
+  }
   /** Finished this task or subtask */
   def finished() {
-    for (p<-parent) p.childHasFinished()
+    for (p<-parent) p.childHasFinished(this)
   }
-  
   def execute(work:ObsoletableAndInterruptableFuture[CommandResult])(implicit executor: ExecutionContext) : CommandResult = {
     try {
       addNotifyOfCancel(work.future.cancel)
@@ -153,6 +230,16 @@ object ProgressMonitorSource {
 class CancelledThrowable extends Throwable
 
 object ProgressMonitor {
+  /** The initial value of maxUIUpdatesPerSecond for new monitors. */
+  @volatile var defaultMaxUIUpdatesPerSecond : Double = 10.0
   val dummy : ProgressMonitor = new ProgressMonitor(None,None,None)
+  /** Used to send the last value to the UI after a rate limited gap. Uses a daemon thread. */
+  private[command] lazy val scheduler:ScheduledExecutorService = Executors.newScheduledThreadPool(1,new ThreadFactory() {
+    override def newThread(r:Runnable) = {
+      val t = new Thread(r,"XS progress monitor updates")
+      t.setDaemon(true)
+      t
+    }
+  })
   def apply(ui:ProgressMonitorUI) = new ProgressMonitor(Some(ui),Some(1.0),None)
 }
\ No newline at end of file
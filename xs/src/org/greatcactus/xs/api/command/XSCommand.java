@@ -13,9 +13,17 @@ import java.lang.annotation.Target;
  * and any available dependency injection information. 
  * 
  * It may produce a CommandResult which will indicate whether it worked. Otherwise it is assumed to have worked.
+ * 
+ * <p>
+ * Commands are queued if too many are already running (see CommandScheduler). Those with higher priority are run first.
+ * </p>
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.METHOD})
 public @interface XSCommand {
+	int HIGH = 10;
+	int NORMAL = 0;
+	int LOW = -10;
 	
+	int priority() default NORMAL;
 }
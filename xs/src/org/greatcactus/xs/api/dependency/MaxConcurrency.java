@@ -0,0 +1,25 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.api.dependency;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limit the number of tasks a dependency injection function or @XSCommand method may have running at once, over
+ * all documents. This is useful for functions that block (e.g. on I/O) so that they cannot starve everything else.
+ * 
+ * <p>
+ * The limit applies to the command itself, and to anything submitted to an ExecutionContext that is injected into
+ * the function (e.g. InterruptableFuture.future{...}(executionContext)). Tasks beyond the limit are queued, not rejected.
+ * Cancellation still works as usual; a task cancelled while queued will not run the user code.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface MaxConcurrency {
+	int value();
+}
@@ -28,10 +28,14 @@ final class RichLabel(
     case other:RichLabel => text==other.text && html==other.html && postCreationJavascript==other.postCreationJavascript
     case _ => false
   }
-  override def toString = html.toString
+  override def toString = htmlString
+  
+  /** html serialized. Computed once, as labels are often sent to clients many times. */
+  lazy val htmlString : String = html.toString
   
   def isBlank = text.trim.isEmpty
   def htmlNotBlank = if (isBlank) Text("???") else html
+  def htmlStringNotBlank = if (isBlank) "???" else htmlString
 }
 
 /**
@@ -53,11 +57,7 @@ abstract class Localizable {
 class LocalizableFromSources(val sources:List[TextLocalizationSource],val localizationKey:String,args:Array[AnyRef]=null) extends Localizable {
       /** Try looking up with existing key */
   private def lookup(bundle:TextLocalizationResources,locale:Locale) : Option[AnyRef] = for (text1<-bundle.get(localizationKey)) yield {
-      def format(msg:String) = if (args==null) msg else {
-        val formatter = new MessageFormat(text1);
-        formatter.setLocale(locale);
-        formatter.format(args)
-      } 
+      def format(msg:String) = if (args==null) msg else TextLocalizationResources.format(msg,locale,args)
       val text = format(text1)  
       bundle.get(localizationKey+".html") match {
         case Some(html) => RichLabel(text,format(html))
@@ -84,7 +84,26 @@ object RichLabel {
   def apply(text:String,html:NodeSeq,postCreationJavascript:List[String]) = new RichLabel(text,html,postCreationJavascript)
   def apply(text:String,html:NodeSeq) = new RichLabel(text,html,Nil)
   def apply(html:NodeSeq) = new RichLabel(html.text,html,Nil)
-  def apply(text:String,html:String) = new RichLabel(text,XML.loadString("<span>"+html+"</span>"),Nil)
+  def apply(text:String,html:String) = new RichLabel(text,parseHTML(html),Nil)
+  
+  /** 
+   * Parsed HTML fragments. The same strings (e.g. from localization resources) tend to be used over and over again, and scala.xml
+   * nodes are immutable, so can be shared. Not cleared except when it gets to maxParsedHTMLCacheSize.
+   */
+  private[this] val parsedHTMLCache = new java.util.concurrent.ConcurrentHashMap[String,NodeSeq]
+  var maxParsedHTMLCacheSize = 2000
+  
+  /** Parse a fragment of HTML (which must be well formed XML), wrapped in a span. */
+  def parseHTML(html:String) : NodeSeq = {
+    val existing = parsedHTMLCache.get(html)
+    if (existing!=null) existing
+    else {
+      val res = XML.loadString("<span>"+html+"</span>")
+      if (parsedHTMLCache.size>=maxParsedHTMLCacheSize) parsedHTMLCache.clear()
+      parsedHTMLCache.put(html,res)
+      res
+    }
+  }
   def apply(text:String) = {
     if (text==null) nullLabel 
     else {
@@ -8,6 +8,8 @@ import java.util.Locale
 import java.util.MissingResourceException
 import scala.collection.mutable.ListBuffer
 import java.text.MessageFormat
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.JavaConverters._
 
 /**
  * For each class, provides the text localization information for it.
@@ -20,10 +22,20 @@ trait TextLocalizationResources {
   def missing(key:String)
   def apply(key:String) : String = get(key).getOrElse{missing(key); key}
   
-  def format(key:String,args:Any*) : String = {
-    val formatter = new MessageFormat(apply(key))
-    formatter.setLocale(locale)
-    formatter.format(args.toArray)
+  def format(key:String,args:Any*) : String = TextLocalizationResources.format(apply(key),locale,args.map{_.asInstanceOf[AnyRef]}.toArray)
+}
+
+/**
+ * All the keys from a list of resource bundles (earlier ones taking priority) merged into one immutable map when loaded,
+ * so that a lookup is a single hash, and it can be safely used from many threads.
+ */
+class FlattenedTextLocalizationResources(val table:Map[String,String],val locale:Locale,val name:Option[String]) extends TextLocalizationResources {
+  def this(files:Seq[TextLocalizationSingleFile],locale:Locale) = this(files.reverse.foldLeft(Map.empty[String,String]){(m,f)=>m++f.all},locale,files.headOption.map{_.name})
+  
+  def get(key:String) : Option[String] = table.get(key)
+  
+  def missing(key:String) {
+    for (n<-name) println("Missing text resource "+key+" for "+n)
   }
 }
 
@@ -46,10 +58,49 @@ class PrefixedTextLocalizationResources(base:TextLocalizationResources,prefix:St
 }
 
 object TextLocalizationResources {
-  private val cache = new collection.mutable.HashMap[(Locale,Class[_]),TextLocalizationResources]
-  def getCached(locale:Locale,clazz:Class[_]) = cache.getOrElseUpdate((locale,clazz),getUncached(locale,clazz))
+  private val cache = new ConcurrentHashMap[(Locale,Class[_]),TextLocalizationResources]
+  def getCached(locale:Locale,clazz:Class[_]) : TextLocalizationResources = {
+    val key : (Locale,Class[_]) = (locale,clazz)
+    val existing = cache.get(key)
+    if (existing!=null) existing
+    else {
+      val res = getUncached(locale,clazz)
+      val already = cache.putIfAbsent(key,res)
+      if (already!=null) already else res
+    }
+  }
+  
+  /** Load the resources for the given classes in all the given locales, so that the first requests that need them are not slowed down. */
+  def preload(locales:Seq[Locale],classes:Seq[Class[_]]) {
+    for (locale<-locales;clazz<-classes) getCached(locale,clazz)
+  }
+  
+  /** 
+   * Compiled MessageFormats, as parsing the pattern is most of the work of formatting. MessageFormat is not thread safe, 
+   * so a compiled one is synchronized on while in use. Cleared when it gets to maxMessageFormatCacheSize.
+   */
+  private[this] val messageFormatCache = new ConcurrentHashMap[(String,Locale),MessageFormat]
+  var maxMessageFormatCacheSize = 2000
+  
+  def messageFormat(pattern:String,locale:Locale) : MessageFormat = {
+    val key = (pattern,locale)
+    val existing = messageFormatCache.get(key)
+    if (existing!=null) existing
+    else {
+      val res = new MessageFormat(pattern,locale)
+      if (messageFormatCache.size>=maxMessageFormatCacheSize) messageFormatCache.clear()
+      messageFormatCache.put(key,res)
+      res
+    }
+  }
   
-  def getUncached(locale:Locale,clazz:Class[_]) = {
+  /** Equivalent to new MessageFormat(pattern,locale).format(args) */
+  def format(pattern:String,locale:Locale,args:Array[AnyRef]) : String = {
+    val formatter = messageFormat(pattern,locale)
+    formatter.synchronized { formatter.format(args) }
+  }
+  
+  def getUncached(locale:Locale,clazz:Class[_]) : TextLocalizationResources = {
     val res = new ListBuffer[TextLocalizationSingleFile]
     var c = clazz
     def checkInterfaces(c:Class[_]) {
@@ -64,7 +115,7 @@ object TextLocalizationResources {
       c=c.getSuperclass
     }
     // also look at interfaces
-    new TextLocalizationResourcesAsSeq(res.toList,locale)
+    new FlattenedTextLocalizationResources(res.toList,locale)
   }
   private def getTopLevelClass(clazz:Class[_]) : Class[_] = {
     val cc = clazz.getDeclaringClass()
@@ -94,6 +145,16 @@ class TextLocalizationSingleFile(val prefix:String,val bundle:ResourceBundle,val
     } catch { case _:MissingResourceException => None}
   } 
   
+  /** All the keys in the bundle (and its parents) that start with the prefix, with the prefix removed. */
+  def all : Map[String,String] = {
+    val res = new collection.mutable.HashMap[String,String]
+    for (k<-bundle.keySet().asScala if k.startsWith(prefix)) bundle.getObject(k) match {
+      case v:String => res+=k.substring(prefix.length)->v
+      case _ =>
+    }
+    res.toMap
+  }
+  
   def missingError(key:String) = {
     (new IllegalArgumentException()).printStackTrace();
 	System.err.println("Expecting resource "+prefix+key+" in "+name);
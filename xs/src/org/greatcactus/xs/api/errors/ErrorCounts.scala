@@ -0,0 +1,38 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.api.errors
+
+/**
+ * Number of errors of each severity, for a node or a subtree.
+ */
+class ErrorCounts(val errors:Int,val warnings:Int,val infos:Int) {
+  def +(other:ErrorCounts) : ErrorCounts = if (other.isEmpty) this else if (isEmpty) other else new ErrorCounts(errors+other.errors,warnings+other.warnings,infos+other.infos)
+  def +(severity:Severity) : ErrorCounts = severity match {
+    case Severity.ERROR => new ErrorCounts(errors+1,warnings,infos)
+    case Severity.WARNING => new ErrorCounts(errors,warnings+1,infos)
+    case _ => new ErrorCounts(errors,warnings,infos+1)
+  }
+  def total = errors+warnings+infos
+  def isEmpty = total==0
+  /** Number of problems at least as severe as the given severity */
+  def atLeast(severity:Severity) : Int = severity match {
+    case Severity.ERROR => errors
+    case Severity.WARNING => errors+warnings
+    case _ => total
+  }
+  /** The level() of the worst severity present, or 1000 if there are none (the convention used by XSTreeNode.worstErrorLevel) */
+  def worstLevel : Int = if (errors>0) Severity.ERROR.level() else if (warnings>0) Severity.WARNING.level() else if (infos>0) Severity.INFO.level() else 1000
+
+  override def hashCode = errors*65521+warnings*31+infos
+  override def equals(obj:Any) = obj match {
+    case other:ErrorCounts => errors==other.errors && warnings==other.warnings && infos==other.infos
+    case _ => false
+  }
+  override def toString = errors+" errors, "+warnings+" warnings, "+infos+" info"
+}
+
+object ErrorCounts {
+  val none = new ErrorCounts(0,0,0)
+  def apply(errors:Traversable[XSError]) : ErrorCounts = errors.foldLeft(none){_ + _.severity}
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.api.errors
+
+import org.greatcactus.xs.impl._
+import org.greatcactus.xs.api.dependency.ExternallyChangingDependency
+import org.greatcactus.xs.api.dependency.OnObsoleteCallback
+import org.greatcactus.xs.api.dependency.Parent
+import org.greatcactus.xs.api.dependency.IndexInParentField
+import org.greatcactus.xs.util.InterruptableFuture
+import org.greatcactus.xs.util.ObsoletableAndInterruptableFuture
+import scala.concurrent.ExecutionContext
+import scala.concurrent.Future
+import scala.concurrent.Await
+import scala.concurrent.blocking
+import scala.concurrent.duration._
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.ListBuffer
+import scala.collection.JavaConverters._
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeoutException
+import java.lang.reflect.InvocationTargetException
+import java.util.Locale
+
+/** An error found by XSValidator. The path is like /field[index]/field[index] from the root object. */
+class ValidationError(val path:String,val obj:AnyRef,val fieldname:String,val error:XSError) {
+  def resolve(locale:Locale) : ResolvedXSError = error.resolve(locale,None)
+  override def toString = path+" "+fieldname+" : "+error
+}
+
+/**
+ * A dependency injection or error check function that could not be evaluated by XSValidator. The problem is None if its
+ * arguments were not available, otherwise the exception it threw (or a TimeoutException if it returned a future that took too long).
+ */
+class ValidationFailure(val path:String,val functionName:String,val problem:Option[Throwable]) {
+  override def toString = path+" "+functionName+" : "+problem.map{_.toString}.getOrElse("arguments not available")
+}
+
+class ValidationReport(val root:AnyRef,val errors:List[ValidationError],val failures:List[ValidationFailure],val numberOfObjects:Int) {
+  val counts = ErrorCounts(errors.map{_.error})
+  /** True iff there are no errors (warnings and info are acceptable) */
+  def isValid = counts.errors==0
+  override def toString = (counts.toString::errors.map{_.toString}:::failures.map{_.toString}).mkString("\n")
+}
+
+/**
+ * Compute all the errors for an object without an editor. This does not make an XSEdit or any tree nodes or GUI state,
+ * but does use the same error check definitions (@ErrorCheck functions, the dependency injection they need,
+ * simple error checks like @ErrorIfBlank, and uniqueness checks).
+ *
+ * Children are validated in parallel once their parent's dependencies are resolved, and multiple documents can be
+ * validated at once with validateAll. Dependency injection functions returning futures are waited for (inside scala.concurrent.blocking);
+ * the default execution context (ExecutionContext.global) copes with this, but a small fixed pool may not.
+ */
+object XSValidator {
+
+  /** How long to wait for a future returned by a dependency injection function before giving up on it */
+  var futureTimeout : FiniteDuration = Duration(60,SECONDS)
+
+  def validate(root:AnyRef,globalDependencyInjections:Set[AnyRef]=Set.empty,executionContext:ExecutionContext=ExecutionContext.global) : Future[ValidationReport] = {
+    implicit val ec = executionContext
+    Future {
+      val info = SerializableTypeInfo.get(root.getClass).getOrElse(throw new IllegalArgumentException("Object class "+root.getClass+" is not serializable by XS"))
+      new ValidationJob(new ValidationNode(root,info,null,"",0),executionContext)
+    }.flatMap{job => job.run(globalDependencyInjections)}
+  }
+
+  def validateAll(roots:Seq[AnyRef],globalDependencyInjections:Set[AnyRef]=Set.empty,executionContext:ExecutionContext=ExecutionContext.global) : Future[Seq[ValidationReport]] = {
+    implicit val ec = executionContext
+    Future.sequence(roots.map{validate(_,globalDependencyInjections,executionContext)})
+  }
+
+  def validateBlocking(root:AnyRef,globalDependencyInjections:Set[AnyRef]=Set.empty,executionContext:ExecutionContext=ExecutionContext.global) : ValidationReport = {
+    Await.result(validate(root,globalDependencyInjections,executionContext),Duration.Inf)
+  }
+}
+
+/** The headless equivalent of an XSTreeNode. Immutable apart from lazily computed uniqueness information. */
+private class ValidationNode(val obj:AnyRef,val info:SerializableTypeInfo[_],val parent:ValidationNode,val path:String,val indexInParentField:Int) extends ErrorCheckSubject {
+  def getObject = obj
+  /** Not lazy, as the lazy values below lock from a node down to its children, and this would lock upwards. Set before the children are made. */
+  val root : ValidationNode = if (parent==null) this else parent.root
+  val children : IndexedSeq[ValidationNode] = {
+    val res = new ArrayBuffer[ValidationNode]
+    for (field<-info.treeNodeFields++info.tableAndInlineNodeFields) {
+      var index = 0
+      for (elem<-field.getAllFieldElements(obj).filter{_!=null};childInfo<-SerializableTypeInfo.get(elem.getClass)) {
+        res+=new ValidationNode(elem.asInstanceOf[AnyRef],childInfo,this,path+"/"+field.name+"["+index+"]",index)
+        index+=1
+      }
+    }
+    res
+  }
+  def size : Int = children.foldLeft(1){_ + _.size}
+
+  lazy val nonuniqueLocal : NonuniqueElements = info.uniquenessCheckLocal.get(obj).justNonUnique
+  private lazy val dataForParent : AllElementsByClass = info.uniquenessCheckParent.get(obj)
+  private lazy val nonuniqueAmongstChildren : NonuniqueElements = children.foldLeft(AllElementsByClass.empty){_ + _.dataForParent}.justNonUnique
+  def nonuniqueInParent : NonuniqueElements = if (parent==null) NonuniqueElements.empty else parent.nonuniqueAmongstChildren
+  private lazy val dataForGlobal : AllElementsByClass = children.foldLeft(info.uniquenessCheckGlobal.get(obj)){_ + _.dataForGlobal}
+  private lazy val globalNonunique : NonuniqueElements = dataForGlobal.justNonUnique
+  def nonuniqueGlobal : NonuniqueElements = root.globalNonunique
+}
+
+/** The work of validating one document */
+private class ValidationJob(root:ValidationNode,executionContext:ExecutionContext) {
+  implicit val ec = executionContext
+  private[this] val failures = new ConcurrentLinkedQueue[ValidationFailure]
+  private[this] val disposals = new ConcurrentLinkedQueue[()=>Unit]
+  private[this] val noObsoleteCallback = new OnObsoleteCallback(()=>{})
+
+  def run(globalDependencyInjections:Set[AnyRef]) : Future[ValidationReport] = {
+    val res = validate(root,globalDependencyInjections).map{errors=> new ValidationReport(root.obj,errors,failures.asScala.toList,root.size)}
+    res.onComplete{_ => for (d<-disposals.asScala) try { d() } catch { case e:Exception => e.printStackTrace() } }
+    res
+  }
+
+  private def validate(node:ValidationNode,injectedFromParent:Set[AnyRef]) : Future[List[ValidationError]] = {
+    val (errors,toChildren) = resolve(node,injectedFromParent)
+    val kids = for (c<-node.children) yield Future{validate(c,toChildren(c))}.flatMap{identity}
+    Future.sequence(kids).map{kidErrors => errors:::kidErrors.toList.flatten}
+  }
+
+  /** Evaluate the dependency injection and error checks for one node, as DependencyInjectionCurrentStatus.clean() would, returning the errors and a function giving what to inject into each child */
+  private def resolve(node:ValidationNode,injectedFromParent:Set[AnyRef]) : (List[ValidationError],ValidationNode=>Set[AnyRef]) = {
+    val info = node.info.dependencyInjectionInfo
+    val mirror = scala.reflect.runtime.currentMirror.reflect(node.obj)
+    var injections : Set[AnyRef] = injectedFromParent+executionContext
+    var results : Map[DependencyInjectionFunction,Option[AnyRef]] = Map.empty
+    var mustDo : Seq[DependencyInjectionFunction] = info.providers++info.errorChecks.map{_.function}
+    def processed(f:DependencyInjectionFunction) : Boolean = f.getArgs(injections) match {
+      case Some(args) =>
+        val res = evaluate(f,args,mirror,node.path)
+        results+=f->res
+        if (f.isLocallyInjected) injections++=FunctionEvaluationStatus.flattenCollections(res)
+        true
+      case None => false
+    }
+    var finished=false
+    while (!finished) {
+      val (done,notDone) = mustDo.partition(processed(_))
+      mustDo = notDone
+      finished = notDone.isEmpty || done.isEmpty // former if all succeeded; latter if stuck.
+    }
+    for (f<-mustDo) failures.add(new ValidationFailure(node.path,f.name,None))
+    // errors
+    val byField = new collection.mutable.HashMap[String,ListBuffer[XSError]]
+    def add(fieldname:String,e:XSError) { byField.getOrElseUpdate(fieldname,new ListBuffer[XSError])+=e }
+    for ((fieldname,errors)<-info.simpleErrorChecks.check(node).errors;e<-errors) add(fieldname,e)
+    for (ff<-info.errorChecks;res<-results.get(ff.function);value<-res) DependencyInjectionCurrentStatus.processErrorResults(value,add(ff.fieldOrElseWhole,_),ff.function)
+    val errors = for (fieldname<-DependencyInjectionCurrentStatus.inFieldOrder(byField.keys,node.info.fields);e<-byField(fieldname)) yield new ValidationError(node.path,node.obj,fieldname,e)
+    // what to send to children
+    val base = injectedFromParent.filter(info.kidFilter).filter{case _:Parent[_] => false; case _:IndexInParentField => false; case _ => true}++results.filter{_._1.isInjectedToKids}.values.flatMap{FunctionEvaluationStatus.flattenCollections(_)}
+    val toChildren = new ToChildDependencies(base,new Parent(node.obj))
+    (errors,c=>toChildren.get(c.info.dependencyInjectionInfo.fromParentDependencyInfo,c.indexInParentField))
+  }
+
+  private def evaluate(f:DependencyInjectionFunction,args:Seq[AnyRef],mirror:reflect.runtime.universe.InstanceMirror,path:String) : Option[AnyRef] = {
+    def await(future:Future[_]) : Option[AnyRef] = Option(blocking{Await.result(future,XSValidator.futureTimeout)}.asInstanceOf[AnyRef])
+    def awaitInterruptable(future:InterruptableFuture[_]) : Option[AnyRef] = try { await(future.future) } catch { case e:TimeoutException => future.cancel(); throw e }
+    try {
+      val argsWithCallbacks = for (a<-args) yield if (a==null) noObsoleteCallback else a
+      f.timedApply(mirror,argsWithCallbacks) match {
+        case null => None
+        case e:ExternallyChangingDependency => disposals.add(e.onNoLongerUsed); Option(e.actual)
+        case e:ObsoletableAndInterruptableFuture[_] => disposals.add(()=>e.dispose()); awaitInterruptable(e.future)
+        case e:InterruptableFuture[_] => awaitInterruptable(e)
+        case e:Future[_] => await(e)
+        case value => Some(value)
+      }
+    } catch {
+      case e:InvocationTargetException => failures.add(new ValidationFailure(path,f.name,Some(e.getTargetException))); None
+      case e:Exception => failures.add(new ValidationFailure(path,f.name,Some(e))); None
+    }
+  }
+}
@@ -65,6 +65,8 @@ object IconManifests {
   
   /** Get the icon corresponding to a given name. Useful for HTTP clients serving icons */
   def iconFromFilename(fileName:String) : Option[ResolvedIcon] = trackedIcons.get(fileName)
+  /** All icons in manifests loaded so far */
+  def allIcons : Iterable[ResolvedIcon] = synchronized { trackedIcons.values }
     
   /** Should be set by client if used */
   var urlOfIcon : URLOfIcon = null;
@@ -360,7 +360,7 @@ class DetailsPaneFieldInline(val field:XSFieldInfo,val label:String,val tooltip:
 class ColumnExtractors(val fields:IndexedSeq[GeneralizedField],val locale:Locale) {
   def extract(parent:XSTreeNode) : IndexedSeq[String] = for (f<-fields) yield f match {
     case field:XSFieldInfo => field.getFieldAsString(parent.getObject)
-    case dep:DependencyInjectionFunction => parent.getPseudoField(dep, locale).html.toString
+    case dep:DependencyInjectionFunction => parent.getPseudoField(dep, locale).htmlString
     case _ => throw new IllegalArgumentException(f.toString)
   }
   
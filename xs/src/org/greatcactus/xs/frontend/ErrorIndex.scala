@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend
+
+import org.greatcactus.xs.api.errors.XSError
+import org.greatcactus.xs.api.errors.Severity
+import org.greatcactus.xs.api.errors.ResolvedXSError
+import java.util.Locale
+import scala.collection.mutable.ListBuffer
+
+/** One error in a whole document error listing */
+class ErrorIndexEntry(val node:XSTreeNode,val fieldname:String,val error:XSError) {
+  def resolve(locale:Locale) : ResolvedXSError = error.resolve(locale,None)
+  override def toString = fieldname+" : "+error
+}
+
+/** A page of errors from ErrorIndex.page */
+class ErrorPage(val entries:List[ErrorIndexEntry],val offset:Int,val totalMatching:Int) {
+  def hasMore = offset+entries.length<totalMatching
+}
+
+/**
+ * Whole document error listings, suitable for an error panel or a check before saving.
+ * 
+ * Errors are ordered by node in depth first order (a node before its children), and within a node by field.
+ * Paging uses XSTreeNode.subtreeErrorCounts to skip over whole subtrees, so fetching a page only
+ * visits the nodes on the path to the errors actually returned, not the whole document.
+ * 
+ * The results reflect the errors computed so far. If you need a definitive answer (e.g. before saving), wait until
+ * the dependency injection cleaning queue is empty first.
+ */
+object ErrorIndex {
+  
+  /** Get up to limit errors at least as severe as minSeverity, skipping the first offset of them. */
+  def page(root:XSTreeNode,offset:Int,limit:Int,minSeverity:Severity) : ErrorPage = {
+    val res = new ListBuffer[ErrorIndexEntry]
+    var toSkip = offset
+    def matches(e:XSError) = e.severity.level()<=minSeverity.level()
+    /** Returns true iff the page is full */
+    def visit(node:XSTreeNode) : Boolean = {
+      val inSubtree = node.subtreeErrorCounts.atLeast(minSeverity)
+      if (inSubtree==0) false
+      else if (inSubtree<=toSkip) { toSkip-=inSubtree; false }
+      else {
+        for ((fieldname,e)<-node.allErrors if matches(e)) {
+          if (toSkip>0) toSkip-=1
+          else {
+            res+=new ErrorIndexEntry(node,fieldname,e)
+            if (res.length>=limit) return true
+          }
+        }
+        node.allChildren.exists{visit _}
+      }
+    }
+    val total = root.subtreeErrorCounts.atLeast(minSeverity)
+    if (limit>0 && offset<total) visit(root)
+    new ErrorPage(res.toList,offset,total)
+  }
+  
+  /** All errors at least as severe as minSeverity. */
+  def all(root:XSTreeNode,minSeverity:Severity) : List[ErrorIndexEntry] = page(root,0,Int.MaxValue,minSeverity).entries
+}
@@ -7,11 +7,22 @@ import java.io.ByteArrayOutputStream
 import java.io.DataOutputStream
 import java.io.DataInputStream
 import java.io.ByteArrayInputStream
+import javax.xml.stream.XMLStreamWriter
+import scala.util.control.NonFatal
+import org.greatcactus.xs.api.serialization.XMLSerialize
+import org.greatcactus.xs.impl.SerializableTypeInfo
+import org.greatcactus.xs.impl.XSFieldInfo
+import org.greatcactus.xs.util.EqualityByPointerEquality
 
 /**
  * Information that is stored in a clipboard. Contents may change.
+ * 
+ * Copied tree nodes may also be held directly as references to the objects (nodes), which is much faster to paste
+ * within the same JVM. In that case data is only computed if needed.
  */
-class XSClipBoard(val data:Array[Byte],val datatype:XSClipboardRequest) {
+class XSClipBoard(getData: =>Array[Byte],val datatype:XSClipboardRequest,val nodes:Option[XSClipBoardNodes]=None) {
+  lazy val data : Array[Byte] = getData
+  
   def tabular: IndexedSeq[IndexedSeq[String]] = {
     val in = new DataInputStream(new ByteArrayInputStream(data))
     val len = in.readInt()
@@ -29,6 +40,8 @@ class XSClipBoard(val data:Array[Byte],val datatype:XSClipboardRequest) {
 
 object XSClipBoard {
   def serialized(data:Array[Byte]) = new XSClipBoard(data,XSClipboardRequest.xsSerializedData)
+  /** Copied nodes, serialized only if needed */
+  def nodes(nodes:XSClipBoardNodes) = new XSClipBoard(nodes.serialize(),XSClipboardRequest.xsSerializedData,Some(nodes))
   def tabular(rows:IndexedSeq[IndexedSeq[String]]) : XSClipBoard = {
     val serializer = new ByteArrayOutputStream()
     val data = new DataOutputStream(serializer)
@@ -41,6 +54,76 @@ object XSClipBoard {
     new XSClipBoard(serializer.toByteArray(),XSClipboardRequest.tabularData)
   }
 }
+/** One copied node. nameOverride is the name it should be serialized with, if not the default for its class. */
+class XSClipBoardNode(val obj:AnyRef,val info:SerializableTypeInfo[_],val nameOverride:Option[String]) {
+  def elementName : String = nameOverride.getOrElse(info.name)
+}
+
+/**
+ * Copied tree nodes. As the objects are immutable, they can be inserted directly into another tree, along with which of them were open.
+ */
+class XSClipBoardNodes(val nodes:Seq[XSClipBoardNode],val openNodes:Set[EqualityByPointerEquality[AnyRef]]) {
+  
+  /** The same as XSEdit used to produce by serializing each node */
+  def serialize() : Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    val writer:XMLStreamWriter = XMLSerialize.outputFactory.createXMLStreamWriter(out,"UTF-8");
+    { // write document header
+      writer.writeStartDocument("UTF-8","1.0");
+      writer.writeCharacters("\n");
+    }
+    writer.writeStartElement(XMLSerialize.CopiedDataTag) 
+    for (n<-nodes) XMLSerialize.serialize(n.obj,writer,n.info,n.nameOverride,openNodes)
+    writer.writeEndElement();
+    writer.writeEndDocument();
+    writer.close();
+    out.toByteArray()
+  }
+  
+  /** The copied objects and all the XS objects inside them, by pointer equality. */
+  lazy val allInstances : Set[EqualityByPointerEquality[AnyRef]] = {
+    var res : Set[EqualityByPointerEquality[AnyRef]] = Set.empty
+    def add(obj:AnyRef,info:SerializableTypeInfo[_]) {
+      res+=new EqualityByPointerEquality(obj)
+      for (f<-info.fields if f.xsinfo.isDefined && !f.isScalaMap;elem<-f.getAllFieldElements(obj)) elem match {
+        case sub:AnyRef => for (subinfo<-SerializableTypeInfo.get(sub.getClass)) add(sub,subinfo)
+        case _ =>
+      }
+    }
+    for (n<-nodes) add(n.obj,n.info)
+    res
+  }
+  
+  /**
+   * Insert the nodes into original (of type info), in the same places XMLDeserialize.deserializeInto would put them. Returns the new object 
+   * and the open nodes, or None if the nodes can't be inserted directly (e.g. they came from a different class loader), in which case
+   * the serialized form should be used instead. The caller must check that none of allInstances are already in the tree being inserted into,
+   * as the same instance twice in one tree can't be told apart when matching up tree nodes.
+   */
+  def insertInto(info:SerializableTypeInfo[_],original:AnyRef,loadBefore:Option[(XSFieldInfo,Int)]) : Option[(AnyRef,Set[EqualityByPointerEquality[AnyRef]])] = {
+    val placed = for (n<-nodes) yield {
+      val (field,subhelper,isWrapper) = try { info.getBlockField(n.elementName) } catch { case NonFatal(_) => return None }
+      subhelper match {
+        case Some(h) if !isWrapper && !field.isScalaMap && h.clazz.isInstance(n.obj) => (field,n.obj)
+        case _ => return None
+      }
+    }
+    val loadBeforeIndex = loadBefore match {
+      case Some((field,_)) => field.index
+      case None => Integer.MAX_VALUE
+    }
+    var res = original
+    var insertedSoFar : Map[XSFieldInfo,Int] = Map.empty
+    for ((field,obj)<-placed) {
+      val already = insertedSoFar.getOrElse(field,0)
+      val position = if (!field.isCollectionOrArray || field.index<loadBeforeIndex) None else if (field.index==loadBeforeIndex) Some(loadBefore.get._2+already) else Some(already)
+      res = info.addFieldAnyRef(res,position,field,obj)
+      insertedSoFar+=field->(already+1)
+    }
+    Some((res,openNodes))
+  }
+}
+
 class XSClipboardRequest {
   
 }
@@ -48,9 +48,49 @@ abstract class XSDetailsPane[T](val locale:Locale,val xsedit:XSEdit,val executio
   def dispose() {
     synchronized {
       for (gui<-currentUIElements) dispose(gui)
+      for ((_,gui)<-retainedGUIs) dispose(gui)
+      retainedGUIs=Nil
       currentUIElements=None
     }
   }
+  
+  /** 
+   * GUIs made for other panes (that is, other classes, or the same class with different mayDelete) that were hidden rather than disposed
+   * when something else was shown. Showing a node with one of these panes again then only needs the values, visibility, errors etc. 
+   * refreshed, rather than the whole GUI being made again. Most recently used first.
+   */
+  private var retainedGUIs : List[(DetailsPaneFields,UIFields)] = Nil
+  /** Maximum number of GUIs kept in retainedGUIs. Should be 0 unless the client implements hideGUI and showGUI */
+  def maxRetainedGUIs : Int = 0
+  /** Client code to hide a GUI that may later be shown again by showGUI. It should let go of anything only needed while the GUI is in use. */
+  def hideGUI(guis:UIFields) {}
+  /** Client code to show again a GUI hidden by hideGUI, restoring anything hideGUI let go of. */
+  def showGUI(guis:UIFields) {}
+  /** Whether there are GUIs hidden on the client. */
+  def hasRetainedGUIs : Boolean = synchronized { !retainedGUIs.isEmpty }
+  
+  /** Stop showing the current GUI, keeping it hidden for later if maxRetainedGUIs allows. */
+  private def retireCurrentGUI() {
+    for (gui<-currentUIElements) (currentPane,maxRetainedGUIs) match {
+      case (Some(pane),max) if max>0 =>
+        hideGUI(gui)
+        retainedGUIs=(pane,gui)::retainedGUIs
+        for ((_,old)<-retainedGUIs.drop(max)) { dispose(old); remove(old.wholegui) }
+        retainedGUIs=retainedGUIs.take(max)
+      case _ => dispose(gui)
+    }
+    currentUIElements=None
+  }
+  
+  /** Get (and remove) a retained GUI for the given pane, if there is one */
+  private def takeRetainedGUI(pane:DetailsPaneFields) : Option[UIFields] = {
+    retainedGUIs.find{_._1 eq pane} match {
+      case Some(found) =>
+        retainedGUIs=retainedGUIs.filter{_ ne found}
+        Some(found._2)
+      case None => None
+    }
+  }
 
   /** Whether you should store the currently selected element on the client. Typical case - in the URL or a browser */
   var shouldStoreSelectedOnClient = false
@@ -68,9 +108,16 @@ abstract class XSDetailsPane[T](val locale:Locale,val xsedit:XSEdit,val executio
             val newPane = t.info.getPane(locale,t.mayDelete)
             val wrappedNewPane = Some(newPane)
             if (currentPane!=wrappedNewPane) {
-              dispose()
+              retireCurrentGUI()
               currentPane=wrappedNewPane
-              currentUIElements=Some(makeNewGUI(t,newPane))
+              takeRetainedGUI(newPane) match {
+                case Some(old) =>
+                  showGUI(old)
+                  currentUIElements=Some(old)
+                  userHasAbandonedNoncanonicalEdits()
+                case None =>
+                  currentUIElements=Some(makeNewGUI(t,newPane))
+              }
             } else userHasAbandonedNoncanonicalEdits()
             refresh() // needs to be done even if a new GUI is made to update the errors.
           case None =>
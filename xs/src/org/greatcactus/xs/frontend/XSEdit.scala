@@ -14,6 +14,13 @@ import java.util.Locale
 import java.io.ByteArrayInputStream
 import org.greatcactus.xs.impl.DependencyInjectionCleaningQueue
 import org.greatcactus.xs.impl.CollectionStringUtil
+import org.greatcactus.xs.impl.UniquenessMultiset
+import org.greatcactus.xs.api.errors.ErrorCounts
+import org.greatcactus.xs.api.errors.Severity
+import java.io.DataOutputStream
+import java.io.DataInputStream
+import scala.reflect.ClassTag
+import org.greatcactus.xs.util.EqualityByPointerEquality
 
 /**
  * The master access for editing objects. 
@@ -27,10 +34,16 @@ class XSEdit(original:AnyRef) {
   
   val uidsForTreeNodes = new UniqueIDSource()
   val dependencyInjectionCleaningQueue = new DependencyInjectionCleaningQueue()
+  /** Values in the whole document that are checked by @ErrorIfNotGloballyUnique */
+  val globalUniqueness = new UniquenessMultiset
   
   val undoRedo = new UndoRedoManager(original)
   
   val treeRoot : XSTreeNode = XSTreeNode(original,this) // children can then be got via node.getChildren
+  /** Indexes for finding nodes without walking the tree. See also the query methods below */
+  val index = new XSEditIndex(this)
+  /** If set, committed edits are recorded in it. See XSEditJournal.attach */
+  @volatile var journal : Option[XSEditJournal] = None
   //def treeChildren(node:XSTree) : IndexedSeq[XSTree] = node.
   /** The result of all the editing */
   def currentObject = treeRoot.getObject
@@ -91,6 +104,16 @@ class XSEdit(original:AnyRef) {
     res.toString
   }
   
+  //
+  // finding nodes. See XSEditIndex
+  //
+
+  def nodeByUid(uid:Long) : Option[XSTreeNode] = index.byUid(uid)
+  def nodesOfClass(clazz:Class[_]) : List[XSTreeNode] = index.ofClass(clazz)
+  def nodesWithFieldValue(clazz:Class[_],fieldName:String,value:Any) : List[XSTreeNode] = index.withFieldValue(clazz,fieldName,value)
+  /** Nodes matching a path expression such as /Space/Star[name=Sol]//Planet */
+  def query(path:String) : List[XSTreeNode] = index.query(path)
+
   //
   // methods applying to the field currently being edited
   //
@@ -198,12 +221,14 @@ class XSEdit(original:AnyRef) {
       }
     }
     if (undoDescription!=null) undoRedo.addUserChange(currentObject,undoRedoKey,undoDescription)
+    for (j<-journal) j.record(currentObject) // the journal works out what has changed in the background.
     broadcast(new TreeChange(fullList.toList,true))
     updateToolbar()
     dependencyInjectionCleaningQueue.cleanReturningInstantlyIfSomeOtherThreadIsAlreadyCleaning()
   }}
 
   def broadcast(changes:TreeChange) {
+    index.update(changes) // before listeners, so they can use it.
     for (l<-treeListeners) l(changes)
     for (p<-detailsPanes) p.refresh(changes)
   }
@@ -260,19 +285,12 @@ class XSEdit(original:AnyRef) {
     processChangesToKids(List(changes),(parent,undoDescription),undoDescription)
   }
   
+  /** Copy nodes to a clipboard. They are held as references, and only serialized if they need to be (e.g. pasted in a different JVM). */
   def copyData(nodes:Seq[XSTreeNode]) : XSClipBoard = {
-    val out = new ByteArrayOutputStream
-    val writer:XMLStreamWriter = XMLSerialize.outputFactory.createXMLStreamWriter(out,"UTF-8");
-    { // write document header
-      writer.writeStartDocument("UTF-8","1.0");
-      writer.writeCharacters("\n");
-	}
-    writer.writeStartElement(XMLSerialize.CopiedDataTag) 
-    for (n<-nodes) n.serialize(writer)
-    writer.writeEndElement();
-	writer.writeEndDocument();
-	writer.close();
-	XSClipBoard.serialized(out.toByteArray())
+    val openTags = new ListBuffer[EqualityByPointerEquality[AnyRef]]
+    for (n<-nodes) n.getAllOpenNodes(openTags)
+    val copied = for (n<-nodes) yield new XSClipBoardNode(n.getObject,n.info,if (n.fieldInParent==null) None else n.fieldInParent.overridingName)
+    XSClipBoard.nodes(new XSClipBoardNodes(copied,openTags.toSet))
   }
   
   /**
@@ -281,24 +299,36 @@ class XSEdit(original:AnyRef) {
    */
   def pasteData(parent:XSTreeNode,data:XSClipBoard,before:Option[XSTreeNode],undoDesc:String="paste") {
     val loadBefore = for (b<-before) yield (b.fieldInParent,b.numberOfElementsBeforeThisOneOfGivenType(b.fieldInParent))
-    val reader = XMLDeserialize.inputFactory.createXMLStreamReader(new ByteArrayInputStream(data.data),"UTF-8");
-    val (newobj,openNodes) = parent.info.deserializeInto(reader,parent.getObject,loadBefore)
+    val byReference = data.nodes.filter{n=> !index.containsAnyOf(n.allInstances)} // not if already in this tree, e.g. copying and pasting within the same tree
+    val (newobj,openNodes) = byReference.flatMap{_.insertInto(parent.info,parent.getObject,loadBefore)}.getOrElse {
+      val reader = XMLDeserialize.inputFactory.createXMLStreamReader(new ByteArrayInputStream(data.data),"UTF-8");
+      parent.info.deserializeInto(reader,parent.getObject,loadBefore)
+    }
     val changes = parent.changeObject(newobj.asInstanceOf[AnyRef])
     for (c<-changes.addedChildren) c.setOpenNodes(openNodes)
     processChangesToKids(List(changes),null,undoDesc)
   }
   
-  def dragData(destination:XSTreeNode,source:Seq[XSTreeNode],before:Option[XSTreeNode]) {
+  /**
+   * Move the source nodes into destination. They are deleted first, so that they are no longer in the tree and the objects
+   * themselves can be moved rather than copied via XML. If the paste fails, the tree is put back as it was.
+   */
+  def dragData(destination:XSTreeNode,source:Seq[XSTreeNode],before:Option[XSTreeNode]) { synchronized {
     val asSet = source.toSet
     if (destination.hasSelfOrAncestorInSet(asSet)) throw new IllegalArgumentException("Cannot drag onto self")
-    //val safebefore = before match {
-    //  case Some(b) if asSet.contains(b) => b.parent.children.dropWhile{_ ne b}.find{!asSet.contains(_)} // get next child not being deleted.
-    //  case _ => before
-    //}
+    val safebefore = before match {
+      case Some(b) if asSet.contains(b) => // get next child not being deleted.
+        val siblings = if (b.fieldInParent.isTableOrInlineEditable) b.parent.tableAndInlineChildren(b.fieldInParent) else b.parent.treeChildren
+        siblings.dropWhile{_ ne b}.find{!asSet.contains(_)}
+      case _ => before
+    }
     val data = copyData(source)
-    pasteData(destination,data,before,null) // this may error. Do this before deleting nodes in case exception gets thrown - deleting but not reinserting would be bad for a user.
-    deleteTreeNodes(source,"drag")
-  }
+    val original = currentObject
+    deleteTreeNodes(source,null) // no undo entry of its own; the paste makes one for the whole drag.
+    try {
+      pasteData(destination,data,safebefore,"drag")
+    } catch { case e:Exception => changeRootTo(original); throw e } // deleting but not reinserting would be bad for a user.
+  }}
   
   def replaceRoot(newval:AnyRef) {
     synchronized {
@@ -313,6 +343,7 @@ class XSEdit(original:AnyRef) {
       var newCurrentlyEditing = currentlyEditing
       while (!newCurrentlyEditing.isStillBeingEdited) newCurrentlyEditing=newCurrentlyEditing.parent
       if (newCurrentlyEditing ne currentlyEditing) changeCurrentlyEditing(newCurrentlyEditing)
+      for (j<-journal) j.record(newval)
       broadcast(new TreeChange(List(change),true))
       updateToolbar()
       
@@ -337,6 +368,11 @@ class XSEdit(original:AnyRef) {
   }
   
   def getTitle(locale:Locale) : Option[String] = treeRoot.info.textResources(locale).get("PageTitle")
+  
+  /** Number of errors of each severity in the whole document (so far computed) */
+  def errorCounts : ErrorCounts = treeRoot.subtreeErrorCounts
+  /** Get a page of errors in the whole document, in document order. See ErrorIndex */
+  def errorPage(offset:Int,limit:Int,minSeverity:Severity=Severity.INFO) : ErrorPage = ErrorIndex.page(treeRoot,offset,limit,minSeverity)
 
   /** Change what is selected via a permalink previously received by a NodeInfo */
   def setSelectedViaPermalink(permalink:String) {
@@ -356,11 +392,78 @@ class XSEdit(original:AnyRef) {
     treeRoot.dependencyInjection.changedParentInjections(toInject)
     dependencyInjectionCleaningQueue.cleanReturningInstantlyIfSomeOtherThreadIsAlreadyCleaning()
   }
+  
+  //
+  // passivation
+  //
+  
+  /** 
+   * Write the document, the undo/redo history, what is selected and which nodes are open, so that XSEdit.restore can later
+   * make an equivalent XSEdit. Used to store idle sessions on disk (see SessionManagement.passivateAfter).
+   */
+  def passivate(out:DataOutputStream) {
+    synchronized {
+      def writeHistory(history:List[(AnyRef,String)]) {
+        out.writeInt(history.length)
+        for ((obj,desc)<-history) {
+          val xml = XMLSerialize.serializeToByteArray(obj)
+          out.writeUTF(obj.getClass.getName)
+          out.writeInt(xml.length)
+          out.write(xml)
+          out.writeBoolean(desc!=null)
+          if (desc!=null) out.writeUTF(desc)
+        }
+      }
+      writeHistory(undoRedo.oldElements) // the head is the current object.
+      writeHistory(undoRedo.redoElements)
+      out.writeBoolean(isIntrinsiclyDirty)
+      out.writeBoolean(isStale)
+      def writeOpen(node:XSTreeNode) {
+        out.writeBoolean(node.isOpen)
+        for (kid<-node.treeChildren) writeOpen(kid)
+      }
+      writeOpen(treeRoot)
+      val selected = if (currentlyEditing eq treeRoot) "" else currentlyEditing.somewhatPermalink
+      out.writeBoolean(selected.length>0 && selected.length<10000)
+      if (selected.length>0 && selected.length<10000) out.writeUTF(selected)
+    }
+  }
+  
     // do this last of all
   
   dependencyInjectionCleaningQueue.cleanReturningInstantlyIfSomeOtherThreadIsAlreadyCleaning()
 }
 
+object XSEdit {
+  /** Make an XSEdit from the results of XSEdit.passivate. Classes of the edited objects are loaded with the given class loader. */
+  def restore(in:DataInputStream,classLoader:ClassLoader) : XSEdit = {
+    def readHistory() : List[(AnyRef,String)] = List.fill(in.readInt()){
+      val clazz = Class.forName(in.readUTF(),true,classLoader)
+      val xml = new Array[Byte](in.readInt())
+      in.readFully(xml)
+      val obj = XMLDeserialize.deserialize[AnyRef](xml)(ClassTag(clazz))
+      val desc = if (in.readBoolean()) in.readUTF() else null
+      (obj,desc)
+    }
+    val undo = readHistory()
+    val redo = readHistory()
+    val res = new XSEdit(undo.head._1)
+    res.synchronized {
+      res.undoRedo.oldElements=undo
+      res.undoRedo.redoElements=redo
+      res.isIntrinsiclyDirty=in.readBoolean()
+      res.isStale=in.readBoolean()
+      def readOpen(node:XSTreeNode) {
+        node.isOpen=in.readBoolean()
+        for (kid<-node.treeChildren) readOpen(kid)
+      }
+      readOpen(res.treeRoot)
+      if (in.readBoolean()) res.setSelectedViaPermalink(in.readUTF())
+    }
+    res
+  }
+}
+
 class TreeChange(val elements:Seq[TreeNodeChange],/** True iff the actual data has changed */ val dataChanged:Boolean) {
   /** Elements, plus all subs */
   lazy val elementsIncludingRecursive : List[TreeNodeChange] = {
@@ -0,0 +1,229 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend
+
+import scala.collection.mutable.HashMap
+import scala.collection.mutable.LinkedHashSet
+import scala.collection.mutable.ListBuffer
+import org.greatcactus.xs.impl.XSFieldInfo
+import org.greatcactus.xs.util.EqualityByPointerEquality
+
+/** What a node was indexed under, so it can be removed or updated */
+private[frontend] class IndexEntry(val obj:AnyRef,val children:IndexedSeq[XSTreeNode],val name:String,val values:List[(String,String)])
+
+/**
+ * Secondary indexes over all the nodes (tree, table and inline) of an XSEdit, so that nodes can be found without walking
+ * the whole tree: uid to node, class to nodes, element name to nodes, and (field name, value) to nodes for fields that
+ * are not themselves XS objects. It also counts the nodes holding each object instance (by pointer equality). Field values are indexed by their string form, as they are serialized; each element of
+ * a collection is indexed separately.
+ *
+ * Built on first use, and then maintained incrementally from the changes XSEdit broadcasts. As node objects are
+ * immutable, a node only needs to be reindexed (along with its children) when its object is no longer the one indexed,
+ * so the work per edit is proportional to the size of the edit.
+ *
+ * Lock order is the XSEdit then this.
+ */
+class XSEditIndex(xsedit:XSEdit) {
+  private[this] var built = false
+  private[this] val entries = new HashMap[XSTreeNode,IndexEntry]
+  private[this] val uids = new HashMap[Long,XSTreeNode]
+  /** Nodes by the class of their object, and each of its superclasses and interfaces, so ofClass is a lookup */
+  private[this] val byClass = new HashMap[Class[_],LinkedHashSet[XSTreeNode]]
+  private[this] val byName = new HashMap[String,LinkedHashSet[XSTreeNode]]
+  private[this] val byFieldValue = new HashMap[(String,String),LinkedHashSet[XSTreeNode]]
+  private[this] val instances = new HashMap[EqualityByPointerEquality[AnyRef],Int]
+
+  private def ensureBuilt() {
+    if (!synchronized { built }) xsedit.synchronized { synchronized {
+      if (!built) {
+        add(xsedit.treeRoot)
+        built=true
+      }
+    }}
+  }
+
+  /** Called by XSEdit (while synchronized) when it broadcasts changes */
+  private[frontend] def update(changes:TreeChange) {
+    synchronized {
+      if (built && changes.dataChanged) {
+        for (c<-changes.elementsIncludingRecursive) {
+          for (gone<-c.removedChildren) remove(gone)
+          if (entries.contains(c.parent)) refresh(c.parent)
+        }
+      }
+    }
+  }
+
+  private def put[K](map:HashMap[K,LinkedHashSet[XSTreeNode]],key:K,node:XSTreeNode) { map.getOrElseUpdate(key,new LinkedHashSet[XSTreeNode])+=node }
+  private def take[K](map:HashMap[K,LinkedHashSet[XSTreeNode]],key:K,node:XSTreeNode) {
+    for (set<-map.get(key)) {
+      set-=node
+      if (set.isEmpty) map-=key
+    }
+  }
+
+  private def putClass(clazz:Class[_],node:XSTreeNode) { for (c<-XSEditIndex.supertypes(clazz)) put(byClass,c,node) }
+  private def takeClass(clazz:Class[_],node:XSTreeNode) { for (c<-XSEditIndex.supertypes(clazz)) take(byClass,c,node) }
+
+  private def addInstance(obj:AnyRef) { val key = new EqualityByPointerEquality(obj); instances+=key->(instances.getOrElse(key,0)+1) }
+  private def removeInstance(obj:AnyRef) {
+    val key = new EqualityByPointerEquality(obj)
+    instances.getOrElse(key,0) match {
+      case n if n>1 => instances+=key->(n-1)
+      case _ => instances-=key
+    }
+  }
+
+  private def indexValues(node:XSTreeNode,obj:AnyRef) : List[(String,String)] = {
+    for (f<-node.info.fields.toList if XSEditIndex.isIndexed(f);elem<-f.getAllFieldElements(obj).toList if elem!=null) yield (f.name,elem.toString)
+  }
+
+  private def add(node:XSTreeNode) {
+    val obj = node.getObject
+    val entry = new IndexEntry(obj,node.allChildren,XSEditIndex.elementName(node),indexValues(node,obj))
+    entries+=node->entry
+    uids+=node.uid->node
+    addInstance(obj)
+    putClass(obj.getClass,node)
+    put(byName,entry.name,node)
+    for (v<-entry.values) put(byFieldValue,v,node)
+    for (c<-entry.children) add(c)
+  }
+
+  private def remove(node:XSTreeNode) {
+    for (entry<-entries.remove(node)) {
+      uids-=node.uid
+      removeInstance(entry.obj)
+      takeClass(entry.obj.getClass,node)
+      take(byName,entry.name,node)
+      for (v<-entry.values) take(byFieldValue,v,node)
+      for (c<-entry.children) remove(c)
+    }
+  }
+
+  /** Bring the index for node up to date, if its object has changed. */
+  private def refresh(node:XSTreeNode) {
+    val old = entries(node)
+    val obj = node.getObject
+    if (old.obj ne obj) {
+      val entry = new IndexEntry(obj,node.allChildren,old.name,indexValues(node,obj))
+      entries+=node->entry
+      removeInstance(old.obj)
+      addInstance(obj)
+      if (old.obj.getClass!=obj.getClass) { takeClass(old.obj.getClass,node); putClass(obj.getClass,node) }
+      for (v<-old.values) take(byFieldValue,v,node)
+      for (v<-entry.values) put(byFieldValue,v,node)
+      val newChildren = entry.children.toSet
+      for (c<-old.children if !newChildren.contains(c)) remove(c)
+      for (c<-entry.children) if (entries.contains(c)) refresh(c) else add(c)
+    }
+  }
+
+  private def list(set:Option[LinkedHashSet[XSTreeNode]]) : List[XSTreeNode] = set.map{_.toList}.getOrElse(Nil)
+
+  def byUid(uid:Long) : Option[XSTreeNode] = { ensureBuilt(); synchronized { uids.get(uid) }}
+
+  /** All nodes whose object is an instance of clazz (including subclasses) */
+  def ofClass(clazz:Class[_]) : List[XSTreeNode] = { ensureBuilt(); synchronized { list(byClass.get(clazz)) }}
+
+  /** Whether any of the given object instances is held by a node in the tree. */
+  def containsAnyOf(objs:Set[EqualityByPointerEquality[AnyRef]]) : Boolean = { ensureBuilt(); synchronized { objs.exists{instances.contains(_)} }}
+
+  /** All nodes shown with the given element name (the name used for them in XML) */
+  def named(name:String) : List[XSTreeNode] = { ensureBuilt(); synchronized { list(byName.get(name)) }}
+
+  /** All nodes with a field called fieldName (that is not an XS object) with the given value, or containing it if a collection. */
+  def withFieldValue(fieldName:String,value:Any) : List[XSTreeNode] = {
+    ensureBuilt()
+    synchronized { list(byFieldValue.get((fieldName,value.toString))) }
+  }
+
+  /** As withFieldValue, restricted to nodes whose object is an instance of clazz */
+  def withFieldValue(clazz:Class[_],fieldName:String,value:Any) : List[XSTreeNode] = withFieldValue(fieldName,value).filter{n=>clazz.isInstance(n.getObject)}
+
+  /**
+   * Find nodes by a path expression, such as /Space/Star[name=Sol]//Planet . Each step is an element name (or * for any) with
+   * optional predicates [field=value] comparing with the string form of a field. Steps are separated by / (children) or // (descendants).
+   * The first step is matched against the root. Where possible, descendant steps are looked up in the indexes rather than by walking the tree.
+   */
+  def query(path:String) : List[XSTreeNode] = {
+    ensureBuilt()
+    val steps = XSEditIndex.parse(path)
+    synchronized {
+      var current : List[XSTreeNode] = Nil
+      var first = true
+      for (step<-steps) {
+        current = if (first && !step.descendant) List(xsedit.treeRoot).filter{step.matches(_)}
+        else if (step.descendant) {
+          val fromIndex : Option[List[XSTreeNode]] = step.predicates.headOption.map{p=>list(byFieldValue.get(p))}.orElse(step.name.map{n=>list(byName.get(n))})
+          val within : XSTreeNode=>Boolean = if (first) (_ => true) else { val s = current.toSet; n => hasAncestorIn(n,s) }
+          fromIndex match {
+            case Some(candidates) => candidates.filter{n=>step.matches(n) && within(n)}
+            case None => // no index applies; walk the tree.
+              val res = new LinkedHashSet[XSTreeNode]
+              def walk(n:XSTreeNode) { for (c<-entries(n).children) { if (step.matches(c)) res+=c; walk(c) } }
+              if (first) { if (step.matches(xsedit.treeRoot)) res+=xsedit.treeRoot; walk(xsedit.treeRoot) } else for (n<-current) walk(n)
+              res.toList
+          }
+        } else for (n<-current;c<-entries(n).children if step.matches(c)) yield c
+        first=false
+      }
+      current.distinct
+    }
+  }
+
+  private def hasAncestorIn(node:XSTreeNode,set:Set[XSTreeNode]) : Boolean = node.parent!=null && (set.contains(node.parent) || hasAncestorIn(node.parent,set))
+
+}
+
+/** A step in a path expression. name None means any. */
+private[frontend] class QueryStep(val descendant:Boolean,val name:Option[String],val predicates:List[(String,String)]) {
+  def matches(node:XSTreeNode) : Boolean = {
+    val entry = XSEditIndex.elementName(node)
+    name.forall{_==entry} && predicates.forall{case (field,value) => node.info.fields.exists{f=>f.name==field && XSEditIndex.isIndexed(f) && f.getAllFieldElements(node.getObject).exists{e=> e!=null && e.toString==value}}}
+  }
+}
+
+object XSEditIndex {
+  private[frontend] def isIndexed(f:XSFieldInfo) : Boolean = f.xsinfo.isEmpty && !f.isScalaMap
+  private[this] val supertypesCache = new java.util.concurrent.ConcurrentHashMap[Class[_],List[Class[_]]]
+  /** The class, and all its superclasses and interfaces */
+  private[frontend] def supertypes(clazz:Class[_]) : List[Class[_]] = {
+    val cached = supertypesCache.get(clazz)
+    if (cached!=null) cached else {
+      def all(c:Class[_]) : List[Class[_]] = if (c==null) Nil else c::(all(c.getSuperclass)++c.getInterfaces.toList.flatMap{all(_)})
+      val res = all(clazz).distinct
+      supertypesCache.put(clazz,res)
+      res
+    }
+  }
+  private[frontend] def elementName(node:XSTreeNode) : String = if (node.fieldInParent==null) node.info.name else node.fieldInParent.overridingName.getOrElse(node.info.name)
+
+  private val Step = """([^\[\]]+)((?:\[[^\]=]+=[^\]]*\])*)""".r
+  private val Predicate = """\[([^\]=]+)=([^\]]*)\]""".r
+
+  /** Parse a path expression. A / inside [] is part of a value, not a separator. */
+  private[frontend] def parse(path:String) : List[QueryStep] = {
+    val res = new ListBuffer[QueryStep]
+    val p = if (path.trim.startsWith("/")) path.trim else "/"+path.trim
+    var i = 0
+    while (i<p.length) {
+      val descendant = p.startsWith("//",i)
+      i+= (if (descendant) 2 else 1)
+      val start = i
+      var inPredicate = false
+      while (i<p.length && (inPredicate || p.charAt(i)!='/')) {
+        if (p.charAt(i)=='[') inPredicate=true else if (p.charAt(i)==']') inPredicate=false
+        i+=1
+      }
+      p.substring(start,i) match {
+        case Step(name,preds) =>
+          val predicates = Predicate.findAllMatchIn(preds).map{m=>(m.group(1).trim,m.group(2).trim)}.toList
+          res+=new QueryStep(descendant,if (name.trim=="*") None else Some(name.trim),predicates)
+        case bad => throw new IllegalArgumentException("Bad step "+bad+" in path "+path)
+      }
+    }
+    res.toList
+  }
+}
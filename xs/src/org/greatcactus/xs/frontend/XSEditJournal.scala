@@ -0,0 +1,462 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.FileInputStream
+import java.io.DataOutputStream
+import java.io.DataInputStream
+import java.io.BufferedOutputStream
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ByteArrayInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.util.zip.CRC32
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.ExecutionContext
+import scala.concurrent.blocking
+import scala.reflect.ClassTag
+import scala.util.control.NonFatal
+import org.greatcactus.xs.api.serialization.XMLSerialize
+import org.greatcactus.xs.api.serialization.XMLDeserialize
+import org.greatcactus.xs.impl.SerializableTypeInfo
+import org.greatcactus.xs.impl.XSFieldInfo
+import org.greatcactus.xs.util.EqualityByPointerEquality
+
+/** One change in a journal, to the object at path (the name of the field in the parent and index amongst the non null elements of that field, from the root down). */
+sealed abstract class JournalChange(val path:List[(String,Int)]) {
+  /** The new value of the object at path, given its current value */
+  def applyTo(obj:AnyRef) : AnyRef
+}
+
+/** The object at path is now obj */
+class ReplacedObject(path:List[(String,Int)],val obj:AnyRef) extends JournalChange(path) {
+  def applyTo(old:AnyRef) : AnyRef = obj
+}
+
+/** The field (which does not hold XS objects) of the object at path now has the value with the given string representation, as used by text fields. null means empty. */
+class ChangedFieldValue(path:List[(String,Int)],val fieldName:String,val value:String) extends JournalChange(path) {
+  def applyTo(old:AnyRef) : AnyRef = {
+    val info = XSEditJournal.typeInfo(old)
+    val field = info.getField(fieldName)
+    info.setFieldAnyRef(old,field,XSEditJournal.parseFieldValue(field,value))
+  }
+}
+
+/** The field (which holds XS objects) of the object at path now has the given elements. Each is Left(index of an element it had before), Right(new element) or null. */
+class ChangedFieldElements(path:List[(String,Int)],val fieldName:String,val elements:IndexedSeq[Either[Int,AnyRef]]) extends JournalChange(path) {
+  def applyTo(old:AnyRef) : AnyRef = {
+    val info = XSEditJournal.typeInfo(old)
+    val field = info.getField(fieldName)
+    val before = field.getAllFieldElements(old).toIndexedSeq
+    val now : IndexedSeq[AnyRef] = for (e<-elements) yield e match {
+      case Left(index) => before(index).asInstanceOf[AnyRef]
+      case Right(obj) => obj
+      case null => null
+    }
+    info.setFieldAnyRef(old,field,if (field.isCollectionOrArray) field.collectionOfBuffer(now) else now.headOption.orNull)
+  }
+}
+
+/**
+ * An append-only journal of the edits made in an XSEdit, so that work can be recovered after a crash, and saving
+ * only has to wait for the edits not yet on disk rather than serializing the whole object.
+ *
+ * Each committed edit (from XSEdit.processChangesToKids, or an undo or redo) is recorded on the calling thread just as a
+ * reference to the new (immutable) root. A background writer works out what changed from the previous root, looking only
+ * inside objects that are not the same instance, so that just the changed fields and children are serialized. It appends
+ * them to the journal file and fsyncs once for everything that has accumulated (group commit). Every snapshotEvery edits the journal moves to a new generation,
+ * and a snapshot of the root as of that point is written in the background. Once the snapshot is safely on disk,
+ * older generations are deleted.
+ *
+ * Files in dir are snapshot-N.xml and journal-N.log. Recovery (XSEditJournal.recover) takes the latest complete
+ * snapshot, and replays all journals of that generation or later.
+ *
+ * Use XSEditJournal.attach to create one.
+ */
+class XSEditJournal private (val dir:File,private[this] var generation:Int,executionContext:ExecutionContext) {
+  import XSEditJournal._
+
+  private[this] val pending = new ListBuffer[Either[AnyRef,AnyRef]] // Left is the root after an edit, Right a root to snapshot.
+  private[this] var writing = false
+  private[this] var snapshotsWriting = 0
+  private[this] var requested = 0L // number of entries given to the writer
+  private[this] var durable = 0L // number of entries on disk
+  private[this] var sinceSnapshot = 0
+  private[this] var failure : Option[Throwable] = None
+  private[this] var closed = false
+  private[this] var out : FileOutputStream = null
+  private[this] var dataOut : DataOutputStream = null
+  private[this] var lastRoot : AnyRef = null // the root as of what has been given to the writer. Only used by the writer.
+
+  /** Called by XSEdit (while synchronized) after changes have been made. root is the new root object. */
+  private[frontend] def record(root:AnyRef) {
+    synchronized {
+      if (!closed) {
+        enqueue(Left(root))
+        sinceSnapshot+=1
+        if (sinceSnapshot>=snapshotEvery) snapshot(root)
+      }
+    }
+  }
+
+  /** Start a new generation, writing a snapshot of root in the background. Must be called in the same order as record with respect to the root. */
+  private[frontend] def snapshot(root:AnyRef) {
+    synchronized {
+      if (!closed) {
+        sinceSnapshot=0
+        enqueue(Right(root))
+      }
+    }
+  }
+
+  private def enqueue(e:Either[AnyRef,AnyRef]) {
+    pending+=e
+    requested+=1
+    if (!writing) {
+      writing=true
+      try {
+        executionContext.execute(new Runnable() { override def run() { writeLoop() }})
+      } catch { case NonFatal(e) => e.printStackTrace(); writing=false; failure=Some(e); notifyAll() } // e.g. rejected as shut down. Don't leave sync and close waiting for a writer that will never run.
+    }
+  }
+
+  /** 
+   * Block until everything recorded so far is on disk. Throws an IOException if writing failed. The wait is inside scala.concurrent.blocking,
+   * as the writer may need a thread from the same pool as the caller.
+   */
+  def sync() {
+    synchronized {
+      val target = requested
+      while (durable<target && failure.isEmpty) blocking { wait() }
+      for (e<-failure) throw new IOException("Could not write journal",e)
+    }
+  }
+
+  /** Write what is pending, and stop accepting more. Waits for snapshots being written, so dir doesn't change after this. */
+  def close() {
+    synchronized { closed=true }
+    try { sync() } finally {
+      synchronized {
+        while (writing || snapshotsWriting>0) blocking { wait() }
+        if (dataOut!=null) dataOut.close()
+        dataOut=null
+      }
+    }
+  }
+
+  private def writeLoop() {
+    var finished = false
+    while (!finished) {
+      val batch = synchronized {
+        val res = pending.toList
+        pending.clear()
+        if (res.isEmpty) { writing=false; notifyAll() }
+        res
+      }
+      if (batch.isEmpty) finished=true
+      else {
+        try {
+          if (failure.isEmpty) {
+            for (e<-batch) e match {
+              case Left(root) => append(diff(Nil,lastRoot,root)); lastRoot=root
+              case Right(root) => rotate(root); lastRoot=root
+            }
+            if (dataOut!=null) { dataOut.flush(); out.getChannel().force(false) } // one fsync for the whole batch.
+          }
+        } catch { case NonFatal(e) => e.printStackTrace(); synchronized { failure=Some(e) } }
+        synchronized { durable+=batch.length; notifyAll() }
+      }
+    }
+  }
+
+  private def append(changes:List[JournalChange]) {
+    if (changes.isEmpty) return
+    if (dataOut==null) openJournal()
+    val record = encode(changes)
+    val crc = new CRC32
+    crc.update(record)
+    dataOut.writeInt(record.length)
+    dataOut.writeLong(crc.getValue())
+    dataOut.write(record)
+  }
+
+  private def openJournal() {
+    out = new FileOutputStream(journalFile(dir,generation),true)
+    dataOut = new DataOutputStream(new BufferedOutputStream(out))
+  }
+
+  /** Finish the current generation, and start writing the snapshot for the next one */
+  private def rotate(root:AnyRef) {
+    if (dataOut!=null) {
+      dataOut.flush()
+      out.getChannel().force(false)
+      dataOut.close()
+      dataOut=null
+    }
+    generation+=1
+    val snapshotGeneration = generation
+    openJournal()
+    synchronized { snapshotsWriting+=1 }
+    try {
+      executionContext.execute(new Runnable() { override def run() { writeSnapshot(root,snapshotGeneration) }})
+    } catch { case e:Throwable => synchronized { snapshotsWriting-=1; notifyAll() }; throw e }
+  }
+
+  private def writeSnapshot(root:AnyRef,snapshotGeneration:Int) {
+    try {
+      val tmp = new File(dir,"snapshot-"+snapshotGeneration+".tmp")
+      val fos = new FileOutputStream(tmp)
+      try {
+        fos.write(XMLSerialize.serializeToByteArray(root))
+        fos.getFD().sync()
+      } finally { fos.close() }
+      val dest = snapshotFile(dir,snapshotGeneration)
+      if (!tmp.renameTo(dest)) throw new IOException("Could not rename "+tmp+" to "+dest)
+      for ((g,f)<-generations(dir) if g<snapshotGeneration) f.delete()
+    } catch { case NonFatal(e) => e.printStackTrace() } // the older generations are still there, so nothing is lost.
+    finally { synchronized { snapshotsWriting-=1; notifyAll() } }
+  }
+}
+
+object XSEditJournal {
+  /** Number of edits between snapshots */
+  @volatile var snapshotEvery = 1000
+
+  private def snapshotFile(dir:File,generation:Int) = new File(dir,"snapshot-"+generation+".xml")
+  private def journalFile(dir:File,generation:Int) = new File(dir,"journal-"+generation+".log")
+  private val RecordHeaderSize = 12 // length and CRC
+  private val FileName = """(snapshot|journal)-(\d+)\.(xml|log)""".r
+
+  /** All the journal and complete snapshot files in dir, with their generations */
+  private def generations(dir:File) : List[(Int,File)] = {
+    val files = dir.listFiles()
+    if (files==null) Nil else files.toList.flatMap{f => f.getName match {
+      case FileName(_,g,_) => List(g.toInt->f)
+      case _ => Nil
+    }}
+  }
+
+  /**
+   * Start journalling the edits to xsedit into dir. xsedit should have been made from the result of recover on the
+   * same directory (or the original object, if there is nothing to recover), as the journal continues on from it.
+   */
+  def attach(xsedit:XSEdit,dir:File,executionContext:ExecutionContext) : XSEditJournal = {
+    dir.mkdirs()
+    val latest = generations(dir).map{_._1}.foldLeft(0){math.max(_,_)}
+    val res = new XSEditJournal(dir,latest,executionContext)
+    xsedit.synchronized {
+      res.snapshot(xsedit.currentObject)
+      xsedit.journal=Some(res)
+    }
+    res
+  }
+
+  /**
+   * Get the state of the edited object as of the last edit written to the journal in dir. original is what was being
+   * edited when the journal was first attached, used if no snapshot has been completed. Any partly written record at
+   * the end of a journal is ignored.
+   */
+  def recover(dir:File,original:AnyRef) : AnyRef = {
+    val classLoader = original.getClass.getClassLoader
+    val all = generations(dir)
+    val snapshots = all.filter{_._2.getName.startsWith("snapshot")}
+    val (base,baseGeneration) = if (snapshots.isEmpty) (original,0) else {
+      val (g,f) = snapshots.maxBy{_._1}
+      (XMLDeserialize.deserialize[AnyRef](new FileInputStream(f))(ClassTag(original.getClass)),g)
+    }
+    var res = base
+    val journals = all.filter{case (g,f) => g>=baseGeneration && f.getName.startsWith("journal")}.sortBy{_._1}
+    for ((_,f)<-journals) {
+      val in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))
+      try {
+        var remaining = f.length()
+        var finished = false
+        while (!finished) readRecord(in,remaining).flatMap{decode(_,classLoader)} match {
+          case Some((changes,length)) =>
+            remaining-=length
+            for (c<-changes) res=applyChange(res,c.path,c)
+          case None => finished=true
+        }
+      } finally { in.close() }
+    }
+    res
+  }
+
+  /**
+   * Read the next record, or None if at the end or the record is incomplete or corrupt (as from a crash while writing).
+   * remaining is the number of bytes left in the file, which a record's length can't exceed.
+   */
+  private def readRecord(in:DataInputStream,remaining:Long) : Option[Array[Byte]] = {
+    try {
+      if (remaining<RecordHeaderSize) None else {
+        val length = in.readInt()
+        val crc = in.readLong()
+        if (length<0 || length>remaining-RecordHeaderSize) None else {
+          val record = new Array[Byte](length)
+          in.readFully(record)
+          val check = new CRC32
+          check.update(record)
+          if (check.getValue()==crc) Some(record) else None
+        }
+      }
+    } catch { case _:EOFException => None }
+  }
+
+  private def encode(changes:List[JournalChange]) : Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    val out = new DataOutputStream(bytes)
+    out.writeInt(changes.length)
+    for (c<-changes) {
+      out.writeInt(c.path.length)
+      for ((field,index)<-c.path) { out.writeUTF(field); out.writeInt(index) }
+      c match {
+        case r:ReplacedObject =>
+          out.writeByte(0)
+          writeObject(out,r.obj)
+        case v:ChangedFieldValue =>
+          out.writeByte(1)
+          out.writeUTF(v.fieldName)
+          writeString(out,v.value)
+        case e:ChangedFieldElements =>
+          out.writeByte(2)
+          out.writeUTF(e.fieldName)
+          out.writeInt(e.elements.length)
+          for (elem<-e.elements) elem match {
+            case null => out.writeByte(0)
+            case Left(index) => out.writeByte(1); out.writeInt(index)
+            case Right(obj) => out.writeByte(2); writeObject(out,obj)
+          }
+      }
+    }
+    out.close()
+    bytes.toByteArray()
+  }
+
+  private def writeObject(out:DataOutputStream,obj:AnyRef) {
+    out.writeUTF(obj.getClass.getName)
+    val xml = XMLSerialize.serializeToByteArray(obj)
+    out.writeInt(xml.length)
+    out.write(xml)
+  }
+
+  /** Not writeUTF, as that is limited to 64K */
+  private def writeString(out:DataOutputStream,s:String) {
+    if (s==null) out.writeInt(-1) else {
+      val utf8 = s.getBytes("UTF-8")
+      out.writeInt(utf8.length)
+      out.write(utf8)
+    }
+  }
+
+  /** Read count bytes, which must be in the record */
+  private def readBytes(in:DataInputStream,count:Int) : Array[Byte] = {
+    if (count<0 || count>in.available()) throw new IOException("Corrupt journal record")
+    val res = new Array[Byte](count)
+    in.readFully(res)
+    res
+  }
+
+  /** The changes in a record, and the number of bytes the record took in the file, or None if it does not make sense. */
+  private def decode(record:Array[Byte],classLoader:ClassLoader) : Option[(List[JournalChange],Int)] = {
+    val in = new DataInputStream(new ByteArrayInputStream(record))
+    def readObject() : AnyRef = {
+      val clazz = Class.forName(in.readUTF(),true,classLoader)
+      XMLDeserialize.deserialize[AnyRef](readBytes(in,in.readInt()))(ClassTag(clazz))
+    }
+    def readString() : String = in.readInt() match {
+      case -1 => null
+      case length => new String(readBytes(in,length),"UTF-8")
+    }
+    def readCount() : Int = { val res = in.readInt(); if (res<0 || res>in.available()) throw new IOException("Corrupt journal record"); res }
+    try {
+      val changes = List.fill(readCount()){
+        val path = List.fill(readCount()){ (in.readUTF(),in.readInt()) }
+        in.readByte() match {
+          case 0 => new ReplacedObject(path,readObject())
+          case 1 => new ChangedFieldValue(path,in.readUTF(),readString())
+          case 2 =>
+            val fieldName = in.readUTF()
+            val elements = IndexedSeq.fill(readCount()){ in.readByte() match {
+              case 0 => null
+              case 1 => Left(in.readInt())
+              case 2 => Right(readObject())
+              case _ => throw new IOException("Corrupt journal record")
+            }}
+            new ChangedFieldElements(path,fieldName,elements)
+          case _ => throw new IOException("Corrupt journal record")
+        }
+      }
+      Some((changes,RecordHeaderSize+record.length))
+    } catch { case _:IOException => None }
+  }
+
+  private[frontend] def typeInfo(obj:AnyRef) : SerializableTypeInfo[_] = SerializableTypeInfo.get(obj.getClass).getOrElse(throw new IllegalArgumentException("Not an XS class "+obj.getClass))
+
+  /** Apply change to the object at path in obj, producing a new obj. */
+  private def applyChange(obj:AnyRef,path:List[(String,Int)],change:JournalChange) : AnyRef = path match {
+    case Nil => change.applyTo(obj)
+    case (fieldName,index)::rest =>
+      val info = typeInfo(obj)
+      val field = info.getField(fieldName)
+      val elements = field.getAllFieldElements(obj).filter{_!=null}.toIndexedSeq // indexed the same way as XSTreeNode.indexOfFieldInParent
+      info.changeFieldAnyRef(obj,index,field,applyChange(elements(index).asInstanceOf[AnyRef],rest,change))
+  }
+
+  /** The value of a field with the given string representation, as used by ChangedFieldValue */
+  private[frontend] def parseFieldValue(field:XSFieldInfo,value:String) : AnyRef = {
+    if (value==null) { if (field.isCollectionOrArray) field.emptyCollection.asInstanceOf[AnyRef] else null }
+    else field.parseStringPossiblyMultipleSafe(value).get
+  }
+
+  private def sameValue(a:Any,b:Any) : Boolean = (a,b) match {
+    case (x:Array[_],y:Array[_]) => x.sameElements(y)
+    case _ => a==b
+  }
+
+  /**
+   * The changes that turn old (at path) into now. Objects that are the same instance are not looked inside, so the work is
+   * proportional to the size of the change rather than of the whole object. Fields that can't be expressed as a change on
+   * their own (such as maps) have the whole object replaced.
+   */
+  private[frontend] def diff(path:List[(String,Int)],old:AnyRef,now:AnyRef) : List[JournalChange] = {
+    if (old eq now) Nil
+    else SerializableTypeInfo.get(now.getClass) match {
+      case Some(info) if old!=null && old.getClass==now.getClass =>
+        val byField = info.fields.toList.map{diffField(path,_,old,now)}
+        if (byField.forall{_.isDefined}) byField.flatMap{_.get} else List(new ReplacedObject(path,now))
+      case _ => List(new ReplacedObject(path,now))
+    }
+  }
+
+  /** The changes to one field, or None if they can't be expressed other than by replacing the whole object. */
+  private def diffField(path:List[(String,Int)],field:XSFieldInfo,old:AnyRef,now:AnyRef) : Option[List[JournalChange]] = {
+    if (field.xsinfo.isDefined && !field.isScalaMap) {
+      val was = field.getAllFieldElements(old).toIndexedSeq.map{_.asInstanceOf[AnyRef]}
+      val is = field.getAllFieldElements(now).toIndexedSeq.map{_.asInstanceOf[AnyRef]}
+      val wasIndex : Map[EqualityByPointerEquality[AnyRef],Int] = was.zipWithIndex.filter{_._1!=null}.reverse.map{case (e,i) => new EqualityByPointerEquality(e)->i}.toMap
+      def moved(i:Int) = (is(i) ne was(i)) && wasIndex.contains(new EqualityByPointerEquality(is(i)))
+      if (was.length==is.length && !was.contains(null) && !is.contains(null) && !is.indices.exists{moved(_)}) { // same elements, some of which have changed.
+        Some(for (i<-is.indices.toList;c<-diff(path:+((field.name,i)),was(i),is(i))) yield c)
+      } else { // elements added, removed or moved.
+        val elements = for (e<-is) yield if (e==null) null else wasIndex.get(new EqualityByPointerEquality(e)) match {
+          case Some(index) => Left(index)
+          case None => Right(e)
+        }
+        Some(List(new ChangedFieldElements(path,field.name,elements)))
+      }
+    } else {
+      val is = field.getField(now)
+      if (sameValue(field.getField(old),is)) Some(Nil)
+      else if (field.isScalaMap) None
+      else {
+        val value = field.getFieldAsString(now)
+        val roundTrips = try { sameValue(parseFieldValue(field,value),is) } catch { case NonFatal(_) => false }
+        if (roundTrips) Some(List(new ChangedFieldValue(path,field.name,value))) else None
+      }
+    }
+  }
+}
@@ -12,6 +12,7 @@ class XSToolBar {
   def useRevert : Boolean = false
   def others : List[String] = Nil
   
+  /** Called on a background thread by the HTML5 client to save the whole object. Not called if the XSEdit has a journal, as syncing that saves the edits. */
   def onSave() {}
   def onRevert() {}
   def onOther(cmd:String) {}
@@ -6,6 +6,7 @@ package org.greatcactus.xs.frontend
 import org.greatcactus.xs.impl.SerializableTypeInfo
 import org.greatcactus.xs.impl.XSFieldInfo
 import org.greatcactus.xs.api.errors.XSError
+import org.greatcactus.xs.api.errors.ErrorCounts
 import scala.collection.mutable.ArrayBuffer
 import scala.collection.mutable.ListBuffer
 import javax.xml.stream.XMLStreamWriter
@@ -25,6 +26,9 @@ import org.greatcactus.xs.util.InvalidatableCache
 import org.greatcactus.xs.impl.CollectionStringUtil
 import org.greatcactus.xs.api.edit.UpdateField
 import org.greatcactus.xs.impl.XSDeserializationError
+import org.greatcactus.xs.impl.ErrorCheckSubject
+import org.greatcactus.xs.impl.NonuniqueElements
+import org.greatcactus.xs.impl.NonuniqueLookup
 
 /**
  * Contain information about the hierarchical structure of an XS object, suitable for displaying in a JTree or similar.
@@ -50,11 +54,13 @@ class XSTreeNode(
     val xsedit:XSEdit,
     /** Correct at the time of creation, but not afterwards. Can't just use indexOfFieldInParent as parent's children will be be initialized yet.  */
     indexInParentFieldAtTimeOfCreation:Int
-    ) {
+    ) extends ErrorCheckSubject {
   /** Unique amongst all nodes for a given edit structure */
   val uid : Long = xsedit.uidsForTreeNodes.newID()
   def injectionNodesFromParent : Set[AnyRef] = if (parent==null) xsedit.globalDependencyInjections else parent.dependencyInjection.dependenciesToPropagateToChildren(info.dependencyInjectionInfo.fromParentDependencyInfo,indexInParentFieldAtTimeOfCreation)
   private[xs] val dependencyInjection = new DependencyInjectionCurrentStatus(info.dependencyInjectionInfo,this)
+  /** Needs to be created before the children are, as they refer to it. */
+  val uniquenessCheckResolution = new org.greatcactus.xs.impl.UniquenessCheckResolution(this,info.uniquenessCheckLocal,info.uniquenessCheckParent,info.uniquenessCheckGlobal)
   dependencyInjection.changedObject(null,obj)
   @volatile private[this] var disposed=false
   var isOpen : Boolean = if (fieldInParent==null) true else fieldInParent.isExpandOnFirstDisplay
@@ -189,8 +195,8 @@ class XSTreeNode(
   def changeObject(newobj : AnyRef) : TreeNodeChange = { 
     synchronized {
       uniquenessCheckResolution.invalidate()
-      tableFieldsCache.clear()
-      worstErrorLevelCache.invalidate()
+      invalidateTableFields()
+      errorCountsCache.invalidate()
       dependencyInjection.changedObject(obj,newobj)
       obj = newobj
       val kids = getTreeChildren(treeChildren)
@@ -208,6 +214,7 @@ class XSTreeNode(
       disposed=true
       for (c<-allChildren) c.dispose()
       dependencyInjection.dispose()
+      uniquenessCheckResolution.dispose()
     }
   }
   
@@ -222,7 +229,7 @@ class XSTreeNode(
     uniquenessCheckResolution.clean()
    // println("In cleanDependencies for "+this)
     if (dependencyInjection.clean()) { // need to refresh this node on clients.
-      tableFieldsCache.clear()
+      invalidateTableFields()
       updateGUIincludingErrorLevels()
     }
     if (disposed) dependencyInjection.discardDependencies()
@@ -252,14 +259,14 @@ class XSTreeNode(
   }
   
   def updateGUIincludingErrorLevels() {
-      worstErrorLevelCache.invalidate()
+      errorCountsCache.invalidate()
       if (parent!=null) parent.childHadWorstErrorLevelRecomputed()
       //println("Boadcasting clean event for "+this)
       updateGUI()    
   }
 
   def updateGUIIncludingTableFieldsCache() {
-      tableFieldsCache.clear()
+      invalidateTableFields()
       updateGUI()
   }
   
@@ -267,20 +274,19 @@ class XSTreeNode(
     xsedit.broadcast(new TreeChange(List(new TreeNodeChange(this,treeChildren,Nil,Nil,Nil)),false))
   }
   
+  /** Recompute the subtree error counts. Propagates up the tree only as far as counts change, and only refreshes the GUI where the worst level changed. */
   private def childHadWorstErrorLevelRecomputed() {
-    val changed = worstErrorLevelCache.synchronized {
-       val existing = worstErrorLevelCache.get
-       worstErrorLevelCache.invalidate()
-       val newRes = worstErrorLevelCache.get
-       existing!=newRes 
-    }
-    if (changed) {
-      updateGUI()
-      if (parent!=null) parent.childHadWorstErrorLevelRecomputed()
+    val (countsChanged,levelChanged) = errorCountsCache.synchronized {
+       val existing = errorCountsCache.get
+       errorCountsCache.invalidate()
+       val newRes = errorCountsCache.get
+       (existing!=newRes,existing.worstLevel!=newRes.worstLevel) 
     }
+    if (levelChanged) updateGUI()
+    if (countsChanged && parent!=null) parent.childHadWorstErrorLevelRecomputed()
   }
   
-  private def getAllOpenNodes(openTags:ListBuffer[EqualityByPointerEquality[AnyRef]]) {
+  private[frontend] def getAllOpenNodes(openTags:ListBuffer[EqualityByPointerEquality[AnyRef]]) {
     if (isOpen) openTags+=new EqualityByPointerEquality(obj)
     for (c<-treeChildren) c.getAllOpenNodes(openTags)
   } 
@@ -319,17 +325,43 @@ class XSTreeNode(
     lazy val collectionLengths = for (field<-info.fields.find(_.name==fieldname);col<-field.getFieldAsStringCollectionLengthInfo(obj,humanEdited)) yield col 
     dependencyInjection.getErrors(fieldname,this).map{_.resolve(locale, collectionLengths)}
   }
-  private[this] val worstErrorLevelCache = new InvalidatableCache[Int](
-      allChildren.foldLeft(dependencyInjection.worstErrorLevel(this))((e,n)=>e.min(n.worstErrorLevel))
-    
+  /** All errors on this node (not children), in field order, paired with the field name */
+  def allErrors : List[(String,XSError)] = dependencyInjection.allErrors(this)
+  
+  private[this] val errorCountsCache = new InvalidatableCache[ErrorCounts](
+      allChildren.foldLeft(dependencyInjection.errorCounts(this))((e,n)=>e+n.subtreeErrorCounts)
   )
-  def worstErrorLevel : Int = worstErrorLevelCache.get
+  /** Number of errors of each severity in this node and all its descendents. Maintained incrementally as dependency injection and error checks complete. */
+  def subtreeErrorCounts : ErrorCounts = errorCountsCache.get
+  def worstErrorLevel : Int = subtreeErrorCounts.worstLevel
   
   def getPseudoField(function:DependencyInjectionFunction,locale:Locale) : RichLabel = RichLabel(dependencyInjection.getFunctionResult(function,this),"",locale)
   
-  private[this] val tableFieldsCache =new collection.mutable.HashMap[ColumnExtractors,IndexedSeq[String]]
+  /** Strings for this node as a row in a table, per set of columns. Read from table refreshes and grid range requests on other threads, so concurrent. Cleared whenever this node changes. */
+  private[this] val tableFieldsCache = new java.util.concurrent.ConcurrentHashMap[ColumnExtractors,IndexedSeq[String]]
+  
+  /** Incremented whenever tableFieldsCache is cleared, so that a value extracted from an out of date object is not left in the cache. */
+  @volatile private[this] var tableFieldsGeneration = 0
   
-  def getTableFields(extractor:ColumnExtractors) : IndexedSeq[String] = tableFieldsCache.getOrElseUpdate(extractor,extractor.extract(this))
+  private def invalidateTableFields() {
+    tableFieldsGeneration+=1
+    tableFieldsCache.clear()
+  }
+  
+  def getTableFields(extractor:ColumnExtractors) : IndexedSeq[String] = {
+    val existing = tableFieldsCache.get(extractor)
+    if (existing!=null) existing
+    else {
+      val generation = tableFieldsGeneration
+      val res = extractor.extract(this)
+      val raced = tableFieldsCache.putIfAbsent(extractor,res)
+      if (raced!=null) raced 
+      else {
+        if (generation!=tableFieldsGeneration) tableFieldsCache.remove(extractor,res)
+        res
+      }
+    }
+  }
   
   def mayDelete = parent!=null && fieldInParent.isCollectionOrArray && (!info.mayNotRemoveChildren) && !fieldInParent.mayNotRemoveChildren
   def isEnabled(field:String) = dependencyInjection.isEnabled(field,this)
@@ -397,16 +429,17 @@ class XSTreeNode(
   // code for handling uniqueness annotations
   //
   
-  val uniquenessCheckResolution = new org.greatcactus.xs.impl.UniquenessCheckResolution(this,info.uniquenessCheckLocal,info.uniquenessCheckParent,info.uniquenessCheckGlobal)
+  def nonuniqueLocal : NonuniqueLookup = uniquenessCheckResolution.getBadLocal
+  def nonuniqueInParent : NonuniqueLookup = if (parent==null) NonuniqueElements.empty else parent.uniquenessCheckResolution.getBadParent
+  def nonuniqueGlobal : NonuniqueLookup = uniquenessCheckResolution.getBadGlobal
   def parentUniquenessErrorsChanged() {
     //println("parentUniquenessErrorsChanged for "+this)
-    if (!uniquenessCheckResolution.parent.isEmpty) { worstErrorLevelCache.invalidate(); dependencyInjection.changedUniquenessValues(uniquenessCheckResolution.parent) }
+    if (!uniquenessCheckResolution.parent.isEmpty) { errorCountsCache.invalidate(); dependencyInjection.changedUniquenessValues(uniquenessCheckResolution.parent) }
   }
   
   def globalUniquenessErrorsChanged() {
     //println("globalUniquenessErrorsChanged for "+this)
-    if (!uniquenessCheckResolution.global.isEmpty)  { worstErrorLevelCache.invalidate(); dependencyInjection.changedUniquenessValues(uniquenessCheckResolution.global) }
-    for (c<-allChildren) c.globalUniquenessErrorsChanged()
+    if (!uniquenessCheckResolution.global.isEmpty)  { errorCountsCache.invalidate(); dependencyInjection.changedUniquenessValues(uniquenessCheckResolution.global) }
   }
   
   
@@ -45,6 +45,8 @@ sealed abstract class ClientMessage {
     sw.toString()
   }
   override def toString = serializeToString
+  /** Approximate number of characters when serialized, used for limiting queue sizes. Override if there is a cheaper way than serializing. */
+  def approximateSize : Int = serializeToString().length
 }
 
 case class SimpleClientMessage(val command:String,val args:Array[String]) extends ClientMessage {
@@ -59,6 +61,7 @@ case class SimpleClientMessage(val command:String,val args:Array[String]) extend
     g.writeEndObject()
   }
   override def toString = command+args.mkString("(" , "," , ")")
+  override def approximateSize = if (args==null) command.length+10 else args.foldLeft(command.length+20){(sum,a) => sum+ClientMessage.approximateSize(a)+3}
 }
 
 class ErrorClientMessage(val id:String,val errors:List[ResolvedXSError],val gridID:Option[String]) extends ClientMessage {
@@ -73,7 +76,7 @@ class ErrorClientMessage(val id:String,val errors:List[ResolvedXSError],val grid
       g.writeNumberField("severity",e.severity.level);
       g.writeNumberField("from",e.from)
       g.writeNumberField("to",e.to)
-      g.writeStringField("text",e.description.html.toString)
+      g.writeStringField("text",e.description.htmlString)
       g.writeArrayFieldStart("run")
       for (cmd<-e.description.postCreationJavascript) g.writeString(cmd)
       g.writeEndArray()
@@ -95,6 +98,7 @@ class MultipleClientMessage(val commands:Seq[ClientMessage]) extends ClientMessa
     g.writeEndObject()
   }
   override def toString = commands.mkString("[",";","]")
+  override def approximateSize = commands.foldLeft(16){_ + _.approximateSize+1}
 }
 
 class SetRow(val baseid:String,val rownumber:Int,val row:IndexedSeq[String],val columnNames:Int=>String) extends ClientMessage {
@@ -109,6 +113,7 @@ class SetRow(val baseid:String,val rownumber:Int,val row:IndexedSeq[String],val
     g.writeEndObject()
   }
   override def toString = "SetRow("+baseid+","+rownumber+","+row.mkString(";")+")"  
+  override def approximateSize = row.foldLeft(baseid.length+40){(sum,cell) => sum+ClientMessage.approximateSize(cell)+10}
 }
 
 class SetRows(val baseid:String,val rows:Seq[Seq[String]],val columnNames:Int=>String) extends ClientMessage {
@@ -128,6 +133,40 @@ class SetRows(val baseid:String,val rows:Seq[Seq[String]],val columnNames:Int=>S
   override def toString = "SetRows("+baseid+","+rows.map{_.mkString("[",";","]")}.mkString(";")+")"  
 }
 
+/** Tell the client that a grid has total rows, which it should request as needed with "GridRange" quoting the version. Any rows it has are out of date. */
+class SetGridWindowed(val baseid:String,val total:Int,val version:Int) extends ClientMessage {
+   def serialize(g:JsonGenerator) {
+    g.writeStartObject()
+    g.writeStringField("cmd","SetGridWindowed")
+    g.writeStringField("id",baseid)
+    g.writeNumberField("total",total)
+    g.writeNumberField("version",version)
+    g.writeEndObject()
+  }
+  override def toString = "SetGridWindowed("+baseid+","+total+","+version+")"  
+}
+
+/** The rows of a windowed grid starting at row number from, in reply to a "GridRange" request. The client should discard rows it has outside this range. */
+class SetRowRange(val baseid:String,val from:Int,val version:Int,val rows:Seq[Seq[String]],val columnNames:Int=>String) extends ClientMessage {
+   def serialize(g:JsonGenerator) {
+    g.writeStartObject()
+    g.writeStringField("cmd","SetRowRange")
+    g.writeStringField("id",baseid)
+    g.writeNumberField("from",from)
+    g.writeNumberField("version",version)
+    g.writeArrayFieldStart("rows")
+    for (row<-rows) {
+      g.writeStartObject()
+      for (i<-0 until row.length) g.writeStringField(columnNames(i),row(i))
+      g.writeEndObject()
+    }
+    g.writeEndArray()
+    g.writeEndObject()
+  }
+  override def toString = "SetRowRange("+baseid+","+from+","+version+","+rows.map{_.mkString("[",";","]")}.mkString(";")+")"  
+  override def approximateSize = rows.foldLeft(baseid.length+60){(s,row)=>row.foldLeft(s+4){(sum,cell) => sum+ClientMessage.approximateSize(cell)+10}}
+}
+
 class SetGridRowMetadata(val baseid:String,val rows:Seq[Map[String,String]]) extends ClientMessage {
    def serialize(g:JsonGenerator) {
     g.writeStartObject()
@@ -170,6 +209,9 @@ class GridSetCellCssStyles(val baseid:String,illegalEntries:Map[Int,List[Int]],v
 object ClientMessage {
   val jsonFactory = new JsonFactory()
   
+  /** Approximate size of a string argument when serialized. null is sent as null. */
+  def approximateSize(s:String) : Int = if (s==null) 4 else s.length
+  
   def deserialize(data:Array[Byte]) : ClientMessage = deserializeObjAndClose(jsonFactory.createJsonParser(data))
   def deserialize(data:String) : ClientMessage = deserializeObjAndClose(jsonFactory.createJsonParser(data))
   def deserialize(data:InputStream) : ClientMessage = deserializeObjAndClose(jsonFactory.createJsonParser(data))
@@ -183,15 +225,18 @@ object ClientMessage {
   private def deserializeObj(p:JsonParser) : ClientMessage = {
     val st = p.nextToken() // should produce START_OBJECT
     assert(st==JsonToken.START_OBJECT)
+    deserializeObjContents(p)
+  }
+  /** Deserialize an object whose START_OBJECT is the current token */
+  private def deserializeObjContents(p:JsonParser) : ClientMessage = {
     val f1t = p.nextToken() // should produce FIELD_NAME
     assert(f1t==JsonToken.FIELD_NAME)
     val fieldname = p.getCurrentName()
     p.nextToken()
     val res = if (fieldname=="commands") { // it is MultipleJavascriptCommands
         val a = new ArrayBuffer[ClientMessage]
-        val sa = p.nextToken()
-        assert (sa==JsonToken.START_ARRAY)
-        while (p.nextToken()!=JsonToken.END_ARRAY) a+=deserializeObj(p)
+        assert (p.getCurrentToken()==JsonToken.START_ARRAY)
+        while (p.nextToken()!=JsonToken.END_ARRAY) a+=deserializeObjContents(p)
         val eo = p.nextToken()
         assert(eo == JsonToken.END_OBJECT)
         new MultipleClientMessage(a.toSeq)
@@ -219,7 +264,12 @@ object ClientMessage {
   def addAfterID(id:String,html:NodeSeq) = new SimpleClientMessage("AddAfter",Array("#"+id,html.toString))
   def addAtStartID(id:String,html:NodeSeq) = new SimpleClientMessage("AddAtStart",Array("#"+id,html.toString))
   def addAtEndID(id:String,html:NodeSeq) = new SimpleClientMessage("AddAtEnd",Array("#"+id,html.toString))
+  def addAfterID(id:String,html:String) = new SimpleClientMessage("AddAfter",Array("#"+id,html))
+  def addAtStartID(id:String,html:String) = new SimpleClientMessage("AddAtStart",Array("#"+id,html))
+  def addAtEndID(id:String,html:String) = new SimpleClientMessage("AddAtEnd",Array("#"+id,html))
   def setVisibleID(id:String,visible:Boolean) = new SimpleClientMessage(if (visible) "Show" else "Hide",Array("#"+id))
+  /** Show a form that was hidden, fixing up the sizes of any grids in it as they can't be laid out while hidden */
+  def showForm(id:String) = new SimpleClientMessage("ShowForm",Array("#"+id))
   //def setEnabledID(id:String,enabled:Boolean) = new SimpleClientMessage(if (enabled) "Enable" else "Disable",Array("#"+id))
   def setValueID(id:String,value:String) = { new SimpleClientMessage("SetValue",Array(id,value)) }
   def setCheckedID(id:String,value:Boolean) = { new SimpleClientMessage("SetChecked",Array(id,value.toString)) }
@@ -238,7 +288,7 @@ object ClientMessage {
   def setHTMLID(id:String,html:RichLabel) : ClientMessage = {
     if (html==null) setHTMLID(id,NodeSeq.Empty)
     else {
-      val main = setHTMLID(id,html.html)
+      val main = setHTMLID(id,html.htmlString)
       html.postCreationJavascript match {
         case Nil => main
         case l => new MultipleClientMessage(main:: l.map{ClientMessage.run(_)})
@@ -248,7 +298,7 @@ object ClientMessage {
   def setHTMLIDnotBlank(id:String,html:RichLabel) : ClientMessage = {
     if (html==null) setHTMLID(id,"???")
     else {
-      val main = setHTMLID(id,html.htmlNotBlank)
+      val main = setHTMLID(id,html.htmlStringNotBlank)
       html.postCreationJavascript match {
         case Nil => main
         case l => new MultipleClientMessage(main:: l.map{ClientMessage.run(_)})
@@ -259,7 +309,10 @@ object ClientMessage {
   def addClass(selector:String,className:String,add:Boolean) = new SimpleClientMessage(if (add) "AddClass" else "RemoveClass",Array(selector,className))
   def setFieldIllegalContentsID(id:String,isIllegal:Boolean) = addClass("#"+id,"xsTotallyIllegal",isIllegal)
   def setGridTooltip(id:String,html:NodeSeq,gridID:String) = new SimpleClientMessage("SetGridTooltip",Array(id,html.toString,gridID))
+  def setGridTooltip(id:String,html:String,gridID:String) = new SimpleClientMessage("SetGridTooltip",Array(id,html,gridID))
   def lostSession = new SimpleClientMessage("LostSession",Array())
+  /** Sent instead of a backlog of messages that got too large. The client reloads the page. */
+  def resync = new SimpleClientMessage("Resync",Array())
   def ping = new SimpleClientMessage("Ping",Array()) // just keep a websocket connection alive.
   def websocketAckMessage(ackid:String) = new SimpleClientMessage("WSAck",Array(ackid))
   def ackMessage(ackid:String) = new SimpleClientMessage("ACK",Array(ackid))
@@ -268,6 +321,9 @@ object ClientMessage {
   
   val defaultStartGridOptions = """[{"autoHeight":true, "editable":true, "enableAddRow":true, "enableCellNavigation":true, "fullWidthRows":true, "forceFitColumns":true}][0]""" // produces an error if I have l instead of [l][0]. I don't know why.
   val mayNotAddStartGridOptions = """[{"autoHeight":true, "editable":true, "enableAddRow":false, "enableCellNavigation":true, "fullWidthRows":true, "forceFitColumns":true}][0]""" // produces an error if I have l instead of [l][0]. I don't know why.
+  /** For tables with many rows - a fixed height so only the visible rows need to be on the client */
+  val windowedStartGridOptions = """[{"editable":true, "enableAddRow":true, "enableCellNavigation":true, "fullWidthRows":true, "forceFitColumns":true}][0]"""
+  val windowedMayNotAddStartGridOptions = """[{"editable":true, "enableAddRow":false, "enableCellNavigation":true, "fullWidthRows":true, "forceFitColumns":true}][0]"""
   val noAutoheightGridOptions = """[{"editable":true, "enableAddRow":true, "enableCellNavigation":true, "fullWidthRows":true, "forceFitColumns":true}][0]""" // produces an error if I have l instead of [l][0]. I don't know why.
   def startGrid(baseid:String,columns:String,onInputObj:String,options:String=defaultStartGridOptions) = new SimpleClientMessage("StartGrid",Array(baseid,columns,onInputObj,options))
   def stopGrid(baseid:String) = new SimpleClientMessage("StopGrid",Array(baseid))
@@ -278,8 +334,9 @@ object ClientMessage {
 
   def progressStart(baseid:String) = new SimpleClientMessage("ProgressBar",Array(baseid,"Start"))
   def progressProgress(baseid:String,progress:Double) = new SimpleClientMessage("ProgressBar",Array(baseid,"Progress",progress.toString))
-  def progressFinishedGood(baseid:String,message:Option[RichLabel]) = new SimpleClientMessage("ProgressBar",Array(baseid,"FinishedOK",message.getOrElse(RichLabel.nullLabel).html.toString))
-  def progressFinishedError(baseid:String,message:Option[RichLabel]) = new SimpleClientMessage("ProgressBar",Array(baseid,"FinishedError",message.getOrElse(RichLabel.nullLabel).html.toString))
+  def progressQueued(baseid:String,position:Int) = new SimpleClientMessage("ProgressBar",Array(baseid,"Queued",position.toString))
+  def progressFinishedGood(baseid:String,message:Option[RichLabel]) = new SimpleClientMessage("ProgressBar",Array(baseid,"FinishedOK",message.getOrElse(RichLabel.nullLabel).htmlString))
+  def progressFinishedError(baseid:String,message:Option[RichLabel]) = new SimpleClientMessage("ProgressBar",Array(baseid,"FinishedError",message.getOrElse(RichLabel.nullLabel).htmlString))
   
   def acknowledge(justReceived:Long,expectedNext:Long,biggestEverReceived:Long) = new SimpleClientMessage("ACK",Array(justReceived.toString,expectedNext.toString,biggestEverReceived.toString))
   
@@ -308,6 +365,8 @@ class ClientMessageBuffer {
   
   def +=(message:ClientMessage) { synchronized { buffer+=message; }}
   
+  def isEmpty : Boolean = synchronized { buffer.isEmpty }
+  
   def get() : Option[ClientMessage] = {
     synchronized {
       val cmds = buffer.toList
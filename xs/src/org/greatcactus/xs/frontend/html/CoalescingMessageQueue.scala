@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import scala.collection.JavaConverters._
+
+/**
+ * Messages waiting to be sent to a client. A message that completely overwrites the effect of an earlier one
+ * (e.g. setting the HTML of the same element, or the same grid row) removes the earlier one, so a client that
+ * is slow to collect its messages does not get sent a long list of stale updates. This is only done if no message
+ * that may change the structure of the page (see isStructural) has been queued since the earlier one, as such a
+ * message may depend on it (e.g. javascript or a patch working on the HTML it set) or change the element it
+ * applies to (e.g. setting the HTML of an ancestor). The replacement goes at the end, and the relative order of the
+ * messages that remain is unchanged.
+ *
+ * The queue is bounded by number of messages and approximate size (characters of JSON). If adding a message would exceed
+ * either limit, add returns false and the caller should give up on incremental updates (see ClientMessage.resync).
+ */
+class CoalescingMessageQueue(val maxMessages:Int,val maxSize:Long) {
+  private[this] class Entry(val message:ClientMessage,val size:Int,val sequence:Long)
+  /** Each entry has its own key, so that two messages with the same coalescing key can both be present. */
+  private[this] val queue = new java.util.LinkedHashMap[AnyRef,Entry]
+  /** The key in queue of the latest message with a given coalescing key */
+  private[this] val latest = new java.util.HashMap[AnyRef,AnyRef]
+  private[this] var size = 0L
+  private[this] var sequence = 0L
+  /** The sequence number of the last structural message queued */
+  private[this] var lastStructural = -1L
+
+  /** Add a message. Returns false (and doesn't add it) if that would make the queue too large. */
+  def add(message:ClientMessage) : Boolean = synchronized {
+    message match {
+      case m:MultipleClientMessage => m.commands.forall{add(_)}
+      case _ =>
+        val coalescingKey = CoalescingMessageQueue.key(message)
+        val oldKey = coalescingKey.map{latest.get(_)}.orNull
+        val old = if (oldKey==null) null else queue.get(oldKey)
+        val replacing = old!=null && old.sequence>=lastStructural // nothing since that could depend on it.
+        if (replacing && CoalescingMessageQueue.isNewerServerStatus(old.message,message)) true
+        else {
+          val entry = new Entry(message,message.approximateSize,sequence)
+          val newSize = if (replacing) size-old.size+entry.size else size+entry.size
+          if ((!replacing && queue.size>=maxMessages) || newSize>maxSize) false
+          else {
+            if (replacing) queue.remove(oldKey)
+            val key = new Object
+            queue.put(key,entry)
+            for (k<-coalescingKey) latest.put(k,key)
+            if (CoalescingMessageQueue.isStructural(message)) lastStructural=sequence
+            sequence+=1
+            size=newSize
+            true
+          }
+        }
+    }
+  }
+
+  /** Remove everything from the queue, returning it as a single message, or None if the queue is empty */
+  def drain() : Option[ClientMessage] = synchronized {
+    val messages = queue.values.asScala.toList.map{_.message}
+    clear()
+    messages match {
+      case Nil => None
+      case h::Nil => Some(h)
+      case l => Some(new MultipleClientMessage(l))
+    }
+  }
+
+  def clear() { synchronized { queue.clear(); latest.clear(); size=0 }}
+  def isEmpty : Boolean = synchronized { queue.isEmpty }
+  def length : Int = synchronized { queue.size }
+  /** approximate number of characters of JSON in the queue */
+  def approximateSize : Long = synchronized { size }
+}
+
+object CoalescingMessageQueue {
+
+  /** A key such that a later message with the same key completely replaces the effect of an earlier one, if there is one. */
+  def key(message:ClientMessage) : Option[AnyRef] = message match {
+    case m:SimpleClientMessage =>
+      val args = m.args
+      def arg(n:Int) = if (args!=null && args.length>n) Some(args(n)) else None
+      m.command match {
+        case "SetHTML" | "SetValue" | "SetChecked" | "ToolbarStatus" => arg(0).map{(m.command,_)}
+        case "SetAtt" | "RemoveAtt" => for (id<-arg(0);att<-arg(1)) yield ("Att",id,att)
+        case "AddClass" | "RemoveClass" => for (selector<-arg(0);className<-arg(1)) yield ("Class",selector,className)
+        case "Show" | "Hide" | "ShowForm" => arg(0).map{("Visible",_)}
+        case "ProgressBar" if arg(1)==Some("Progress") => arg(0).map{("ProgressBar",_)}
+        case "ServerStatus" => Some("ServerStatus")
+        case _ => None
+      }
+    case m:ErrorClientMessage => Some(("Errors",m.id,m.gridID))
+    case m:SetRow => Some(("SetRow",m.baseid,m.rownumber))
+    case m:SetRows => Some(("SetRows",m.baseid))
+    case m:SetGridWindowed => Some(("SetRows",m.baseid)) // either replaces the whole contents of the grid
+    case m:SetRowRange => Some(("SetRowRange",m.baseid))
+    case m:SetGridRowMetadata => Some(("SetGridRowMetadata",m.baseid))
+    case m:GridSetCellCssStyles => Some(("GridSetCellCssStyles",m.baseid,m.cssStyle))
+    case _ => None
+  }
+
+  /** 
+   * Whether a message may change which elements exist, or depend on the HTML of one. Messages with no coalescing key
+   * (javascript, adding, removing or patching HTML) are assumed to, as is setting HTML.
+   */
+  def isStructural(message:ClientMessage) : Boolean = message match {
+    case m:SimpleClientMessage if m.command=="SetHTML" => true
+    case _ => key(message).isEmpty
+  }
+
+  /** ServerStatus messages have a sequence number; an older one should never replace a newer one. */
+  private def isNewerServerStatus(existing:ClientMessage,replacement:ClientMessage) : Boolean = (existing,replacement) match {
+    case (e:SimpleClientMessage,r:SimpleClientMessage) if e.command=="ServerStatus" && r.command=="ServerStatus" =>
+      try { e.args(1).toLong > r.args(1).toLong } catch { case _:Exception => false }
+    case _ => false
+  }
+}
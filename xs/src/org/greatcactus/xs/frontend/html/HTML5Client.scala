@@ -18,10 +18,19 @@ import org.greatcactus.xs.frontend.ToolbarStatusListener
 import org.greatcactus.xs.frontend.StatusForToolbar
 import org.greatcactus.xs.frontend.XSClipboardRequest
 import scala.concurrent.ExecutionContext
+import scala.util.control.NonFatal
 import org.greatcactus.xs.frontend.XSClipBoard
 import org.greatcactus.xs.api.serialization.StringMapSerialize
 import org.greatcactus.xs.impl.QueueEmptyStatusListener
 import org.greatcactus.xs.impl.QueueEmptyStatus
+import java.io.DataOutputStream
+import java.io.DataInputStream
+import java.io.BufferedOutputStream
+import java.io.BufferedInputStream
+import java.io.FileOutputStream
+import java.io.FileInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.GZIPInputStream
 //import scala.concurrent.ExecutionContext.Implicits.global
 
 
@@ -63,24 +72,35 @@ abstract class HTML5ClientBase { hbthis =>
 
   def dispose() {}
   def getDraggedElement(subid:String) : Option[XSClipBoard] = None
+  /** See HTTPSessionWorker.passivate */
+  def passivate() : Option[PassivatedSessionWorker] = None
+  /** If defined, this client is taking over an existing session whose previous client was passivated, rather than starting a new session. */
+  def reactivatedSession : Option[HTTPSession] = None
   
     // FIXME add some time based sanity check that shuts down the client when the session expires to stop a memory leak. The client currently does a decent job of warning the server of a closed window, but crashes are still a possibility.
   // This is not a problem when using WebSockets.
 
-  val session = new HTTPSession(new HTTPSessionWorker{
+  private[this] val sessionWorker = new HTTPSessionWorker{
     override def receivedMessage(message:SimpleClientMessage) { process(message) }
     override def dispose() {
       xsedit.removeDetailsPane(detailsPane)
       xsedit.dependencyInjectionCleaningQueue.removeQueueEmptyListener(queueEmptyListener)
+      xsedit.removeToolbarStatusListener(toolbarListener)
       xsedit.unregisterActiveEditor()
       hbthis.dispose() 
     }
     override def getDraggedElement(subid:String) : Option[XSClipBoard] = hbthis.getDraggedElement(subid)
-  })
+    override def passivate() : Option[PassivatedSessionWorker] = hbthis.passivate()
+  }
+  val session : HTTPSession = reactivatedSession match {
+    case Some(s) => s.setWorker(sessionWorker); s
+    case None => new HTTPSession(sessionWorker)
+  }
   val transport = new HTMLTransport {
     def sendMessageWork(message:ClientMessage) { session.addMessage(message) }
   }
   val detailsPane : HTML5DetailsPane = new HTML5DetailsPane(this)
+  if (reactivatedSession.isDefined) transport.sendMessage(ClientMessage.setHTMLID(detailsPane.detailsPaneID,"")) // remove what the previous client showed.
   xsedit.addDetailsPane(detailsPane)
   val queueEmptyListener : QueueEmptyStatusListener = new QueueEmptyStatusListener {
     override def queueEmptyStatusChanged(status:QueueEmptyStatus) {
@@ -92,6 +112,37 @@ abstract class HTML5ClientBase { hbthis =>
 
   
 
+  /**
+   * Save in the background, so the request thread is not held up by serialization. Saves are done one at a time. The
+   * document is marked as not dirty once saving has succeeded, unless it was edited while saving. If the XSEdit has a 
+   * journal (see XSEditJournal.attach), saving just waits for the edits not yet on disk, and starts a snapshot in the 
+   * background; otherwise (or if the journal can't be written) the toolbar's onSave is called to save the whole object.
+   */
+  private def save(t:XSToolBar) {
+    executionContext.execute(new Runnable() {
+      override def run() {
+        saveLock.synchronized {
+          try {
+            val (saving,journal) = xsedit.synchronized { 
+              val journal = xsedit.journal
+              for (j<-journal) j.snapshot(xsedit.currentObject)
+              (xsedit.currentObject,journal) 
+            }
+            val journalled = journal.exists{j=> try { j.sync(); true } catch { case e:java.io.IOException => e.printStackTrace(); false }}
+            if (!journalled) t.onSave()
+            xsedit.synchronized {
+              if (xsedit.currentObject eq saving) {
+                xsedit.undoRedo.reset(saving)
+                xsedit.updateToolbar()
+              }
+            }
+          } catch { case NonFatal(e) => e.printStackTrace() }
+        }
+      }
+    })
+  }
+  private[this] val saveLock = new Object
+
   private def process(message:SimpleClientMessage) {
     try {
       transport.startBuffering();
@@ -118,7 +169,7 @@ abstract class HTML5ClientBase { hbthis =>
           args(0) match {
             case "undo" => xsedit.undo()
             case "redo" => xsedit.redo()
-            case "save" => for (t<-toolbar) { t.onSave(); xsedit.undoRedo.reset(xsedit.currentObject); xsedit.updateToolbar() }
+            case "save" => for (t<-toolbar) save(t)
             case "revert" => for (t<-toolbar) t.onRevert()
             case _ =>
           }
@@ -207,11 +258,29 @@ abstract class HTML5ClientBase { hbthis =>
  * The controller for communication with an HTML client. The details of the transport are not
  * included here - it could be via HTTP or Websockets.
  */
-class HTML5Client(val xsedit:XSEdit,val toolbar:Option[XSToolBar],val locale:Locale,val executionContext:ExecutionContext) extends HTML5ClientBase {
+class HTML5Client(val xsedit:XSEdit,val toolbar:Option[XSToolBar],val locale:Locale,val executionContext:ExecutionContext,override val reactivatedSession:Option[HTTPSession]=None) extends HTML5ClientBase {
 
     override def dispose() {
       xsedit.removeTreeListener(treeListener)
     }
+    
+  /**
+   * Set this to allow the session to be saved to disk and released from memory when idle (see SessionManagement.passivateAfter).
+   * When the client next talks to the server, the XSEdit is rebuilt and this is called with it. It should redo anything
+   * that was done to the original XSEdit (such as setRootDependencyInjections), and return the toolbar to use. 
+   * Only set this if nothing else uses this client's XSEdit, as it is disposed of when passivated.
+   */
+  var reactivate : Option[XSEdit=>Option[XSToolBar]] = None
+  
+  override def passivate() : Option[PassivatedSessionWorker] = for (rebuild<-reactivate) yield {
+    val file = SessionManagement.passivationFile(session)
+    val out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))
+    try { xsedit.passivate(out) } finally { out.close() }
+    val res = new PassivatedHTML5Client(file,xsedit.currentObject.getClass.getClassLoader,rebuild,locale,executionContext,savePermalinkInURL,storeWholeEditedObjectInURL)
+    session.worker.dispose()
+    xsedit.dispose()
+    res
+  }
 
     override def getDraggedElement(subid:String) : Option[XSClipBoard] = {
       treePane.ID.unapply(subid) match {
@@ -255,6 +324,7 @@ class HTML5Client(val xsedit:XSEdit,val toolbar:Option[XSToolBar],val locale:Loc
   }
   val treePane : HTML5Tree[XSTreeNode] = new HTML5Tree(locale,transport,treeModel,xsedit.treeRoot,session.sessionPrefix,session.id,false,true) 
   addMessageProcessor(treePane.processMessages)
+  if (reactivatedSession.isDefined) treePane.replaceOnClient()
   var storeWholeEditedObjectInURL : Boolean = false
   var lastSentURL : String = null
   
@@ -296,6 +366,19 @@ class HTML5Client(val xsedit:XSEdit,val toolbar:Option[XSToolBar],val locale:Loc
   
 }
 
+/** An HTML5Client whose XSEdit has been saved to a file. Holds nothing that refers to the old client, so that can be garbage collected. */
+class PassivatedHTML5Client(file:java.io.File,classLoader:ClassLoader,rebuild:XSEdit=>Option[XSToolBar],locale:Locale,executionContext:ExecutionContext,savePermalinkInURL:Boolean,storeWholeEditedObjectInURL:Boolean) extends PassivatedSessionWorker {
+  override def reactivate(session:HTTPSession) {
+    val in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))
+    val xsedit = try { XSEdit.restore(in,classLoader) } finally { in.close() }
+    val client = new HTML5Client(xsedit,rebuild(xsedit),locale,executionContext,Some(session))
+    client.reactivate=Some(rebuild)
+    client.savePermalinkInURL=savePermalinkInURL
+    client.storeWholeEditedObjectInURL=storeWholeEditedObjectInURL
+  }
+  override def discard() { file.delete() }
+}
+
 abstract class HTMLTransport {
   private[this] val buffer = new ClientMessageBuffer
   private[this] var ifZeroThenDontBuffer = 0
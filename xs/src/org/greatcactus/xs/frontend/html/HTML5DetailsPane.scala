@@ -52,15 +52,25 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
       bySource=bySource+(gui -> (p::oldlist))
       fullListValid=false
     }
+    // controllers of hidden forms, which should not get messages until shown again.
+    private var detached : Map[String,List[PartialFunction[SimpleClientMessage,Unit]]] = Map.empty
     def dispose() { synchronized {
       fullListValid=false;
       fullList=Nil
       bySource=Map.empty
+      detached=Map.empty
     }}
     def dispose(gui:String) { synchronized {
       fullListValid=false;
       fullList=Nil
       bySource-=gui
+      detached-=gui
+    }}
+    def detach(gui:String) { synchronized {
+      for (l<-bySource.get(gui)) { detached+=gui->l; bySource-=gui; fullListValid=false }
+    }}
+    def reattach(gui:String) { synchronized {
+      for (l<-detached.get(gui)) { bySource+=gui->l; detached-=gui; fullListValid=false }
     }}
   }
   
@@ -81,6 +91,30 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
   def jsSetHTML(id:String,html:RichLabel) {
     message( ClientMessage.setHTMLID(id,html))
   } 
+  
+  /** The HTML last sent by jsChangeHTML to each id, so that changes can be sent as patches. */
+  private[this] var lastSentHTML : Map[String,NodeSeq] = Map.empty
+  
+  /** Like jsSetHTML, but if this was used before for the same id, only send the changes (see HTMLDiff). Should only be used for ids whose contents are not altered on the client. */
+  def jsChangeHTML(id:String,html:NodeSeq) {
+    synchronized {
+      val msg = HTMLDiff.change(id,lastSentHTML.get(id).orNull,html)
+      lastSentHTML+=id->html
+      message(msg)
+    }
+  }
+  /** Like jsSetHTML, but if this was used before for the same id, only send the changes (see HTMLDiff). */
+  def jsChangeHTML(id:String,html:RichLabel) {
+    if (html==null || !html.postCreationJavascript.isEmpty) { // javascript may change the DOM, so can't diff against it later.
+      synchronized { lastSentHTML-=id }
+      jsSetHTML(id,html)
+    } else jsChangeHTML(id,html.html)
+  }
+  /** Forget the HTML sent by jsChangeHTML to ids starting with the given prefix, as the elements no longer exist. */
+  private def forgetHTML(idPrefix:String) {
+    synchronized { if (!lastSentHTML.isEmpty) lastSentHTML=lastSentHTML.filterKeys{!_.startsWith(idPrefix)}.toMap }
+  }
+  
   /** Send a javascript command to set the attribute to a given value (or remove the attribute if value is null) */
   def jsSetAttribute(id:String,att:String,value:String) {
     val msg = if (att=="value") ClientMessage.setValueID(id,value) else ClientMessage.setAttributeID(id,att,value)
@@ -89,17 +123,72 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
   }
   def message(message:ClientMessage) { client.queueMessage(message) }
   
+  /** 
+   * A table with at least HTML5DetailsPane.gridWindowMinRows rows. The client only has the rows [from,to) it last asked for with "GridRange",
+   * and only changes to those rows are sent. Synchronize on the GridWindow while using it, and while sending messages depending on it so they are in order.
+   */
+  private class GridWindow {
+    var rows : IndexedSeq[IndexedSeq[String]] = IndexedSeq.empty
+    /** Changes whenever the whole table is resent, so the client can tell if a range it gets is out of date. */
+    var version = 0
+    var from = 0
+    var to = 0
+    def rangeMessage(gui:String,columnNames:Int=>String) = new SetRowRange(gui,from,version,rows.slice(from,to),columnNames)
+  }
+  private[this] val gridWindows = new java.util.concurrent.ConcurrentHashMap[String,GridWindow]
+  private[this] val gridVersions = new java.util.concurrent.atomic.AtomicInteger
+  
+  /** Whether a table with the given number of rows should only have a window of its rows on the client. */
+  def isWindowedGrid(numRows:Int) = numRows>=HTML5DetailsPane.gridWindowMinRows
+  
+  /** Send (via send) the client messages to set the whole contents of a table. For a large table, this is only the rows the client has asked for. */
+  def setTableContents(gui:String,rows:IndexedSeq[IndexedSeq[String]],columnNames:Int=>String)(send:ClientMessage=>Unit) {
+    if (!isWindowedGrid(rows.length)) {
+      gridWindows.remove(gui)
+      send(new SetRows(gui,rows,columnNames))
+    } else {
+      val fresh = new GridWindow
+      fresh.to = HTML5DetailsPane.gridWindowInitialRows // so a newly created grid can show something straight away.
+      val existing = gridWindows.putIfAbsent(gui,fresh)
+      val w = if (existing==null) fresh else existing
+      w.synchronized {
+        w.rows=rows
+        w.version=gridVersions.incrementAndGet()
+        w.to = w.to min rows.length
+        w.from = w.from min w.to
+        send(new SetGridWindowed(gui,rows.length,w.version))
+        if (w.to>w.from) send(w.rangeMessage(gui,columnNames))
+      }
+    }
+  }
+  
+  /** The client wants rows [from,to) of a windowed table. Ignored if the table has been resent since the client got the given version. */
+  def uiGridRange(gui:String,from:Int,to:Int,version:Int) {
+    for (columns<-getColumnExtractor(gui);w<-Option(gridWindows.get(gui))) w.synchronized {
+      if (w.version==version) {
+        w.from = 0 max from min w.rows.length
+        w.to = w.from max to min w.rows.length min (w.from+HTML5DetailsPane.gridWindowMaxRequest)
+        client.sendMessage(w.rangeMessage(gui,columns.names))
+      }
+    }
+  }
+  
   override def dispose() {
     synchronized {
       super.dispose()
       CustomControllerProcessMessageBuffer.dispose()
+      lastSentHTML=Map.empty
+      gridWindows.clear()
     }
   }
 
   def dispose(guis:UIFields) {
     // disposal is automatic, except for tables which need to be explicitly deallocated.
+    for (uifield<-guis.elems) forgetHTML(uifield.gui+"_")
     for (uifield<-guis.elems) uifield match {
-      case table:UIFieldTable => message(ClientMessage.stopGrid(table.gui))
+      case table:UIFieldTable => 
+        gridWindows.remove(table.gui)
+        message(ClientMessage.stopGrid(table.gui))
       case custom:UIFieldCustom[_] => 
         custom.work.dispose()
         CustomControllerProcessMessageBuffer.dispose(custom.gui)
@@ -107,6 +196,10 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
         inline.dispose()
       case _ =>
     }
+    closePopup()
+  } 
+  
+  private def closePopup() {
     synchronized {
       currentlyShowingPopup match {
         case Some(p) => 
@@ -117,7 +210,34 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
       currentlyShowingPopup=None
       // fullCustomControllerProcessMessages=Nil // may not be nil in the presence of inline elements.
     }
-  } 
+  }
+  
+  override def maxRetainedGUIs = HTML5DetailsPane.maxRetainedForms
+  /** Hidden forms keep their HTML on the client, but nothing on the server that is only needed while they are being used. */
+  override def hideGUI(guis:UIFields) {
+    closePopup()
+    for (uifield<-guis.elems) {
+      forgetHTML(uifield.gui+"_") // labels etc. will be sent in full if they change.
+      uifield match {
+        case table:UIFieldTable => gridWindows.remove(table.gui)
+        case custom:UIFieldCustom[_] => CustomControllerProcessMessageBuffer.detach(custom.gui)
+        case _ =>
+      }
+    }
+    message(ClientMessage.setVisibleID(guis.wholegui,false))
+  }
+  override def showGUI(guis:UIFields) {
+    for (uifield<-guis.elems) uifield match {
+      case table:UIFieldTable if isWindowedGrid(table.currentlyShowing.length) => setTableContents(table.gui,table.currentlyShowing,table.field.columnExtractors.names)(message) // its window was dropped when hidden.
+      case custom:UIFieldCustom[_] => CustomControllerProcessMessageBuffer.reattach(custom.gui)
+      case _ =>
+    }
+    message(ClientMessage.showForm(guis.wholegui))
+  }
+  
+  private[this] val formCounter = new java.util.concurrent.atomic.AtomicInteger
+  /** The start of the ids of a new top level form. Distinct for each form as several may be on the client at once (see maxRetainedGUIs). */
+  def newFormIDBase() : String = "XS_Form"+client.session.jsSessionID+"_"+formCounter.incrementAndGet()+"_"
   override def remove(gui:String) : Unit = { message(ClientMessage.removeID(gui))}
   override def getClipboard(param:XSClipboardRequest) : Future[XSClipBoard] = client.session.getClipboard(param,client.executionContext)
   override def setClipboard(data:XSClipBoard) { client.session.setClipboard(data)}
@@ -132,25 +252,33 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
   def changeUIImageField(id:String,shouldBe:String) { jsSetAttribute(id+"_image","src",shouldBe) }
 
   def changeUIBooleanField(id:String,shouldBe:Boolean) { client.queueMessage(ClientMessage.setCheckedID(id+"_ui",shouldBe)) }
-  def changeUIShowText(id:String,shouldBe:RichLabel) { jsSetHTML(id+"_ui",shouldBe)}
+  def changeUIShowText(id:String,shouldBe:RichLabel) { jsChangeHTML(id+"_ui",shouldBe)}
 
   def changeUIvisibility(id:String,visible:Boolean) {
     // println("Set visibility "+id+" to "+visible)
     client.queueMessage(ClientMessage.setVisibleID(id+"_all", visible)) 
   } // hidden does not work on IE. jsSetAttribute(id+"_all","hidden",if (visible) null else "hidden") }
   def changeUIenabledness(id:String,enabled:Boolean)  { /* client.queueMessage(ClientMessage.setEnabledID(id+"_ui", enabled))} */ jsSetAttribute(id+"_ui","disabled",if (enabled) null else "disabled") }
-  def changeUILabelText(id:String,shouldBe:RichLabel) { jsSetHTML(id+"_labeltext",shouldBe) }
+  def changeUILabelText(id:String,shouldBe:RichLabel) { jsChangeHTML(id+"_labeltext",shouldBe) }
   def changeUILabelIcon(id:String,shouldBe:Option[Icon]) { jsSetHTML(id+"_labelicon",GUICreatorHTML5.rawicon(shouldBe)) }
   def changeErrors(gui:String,errors:List[ResolvedXSError]) { client.queueMessage(ClientMessage.changeErrors(gui+"_ui",errors))}
   def changeGridErrors(gui:String,row:Int,col:Int,colfield:GeneralizedField,errors:List[ResolvedXSError]) { client.queueMessage(ClientMessage.changeGridErrors(gui+"_grid_R"+row+"C"+colfield.name, errors, gui))}
   def setUIFieldIllegalContents(gui:String,isIllegal:Boolean) { client.queueMessage(ClientMessage.setFieldIllegalContentsID(gui+"_ui",isIllegal))}
-  def changeUIWholeTable(gui:String,shouldBe:IndexedSeq[IndexedSeq[String]]) { for (columns<-getColumnExtractor(gui)) message(new SetRows(gui,shouldBe,columns.names))} 
-  def changeUISingleLineTable(gui:String,index:Int,shouldBe:IndexedSeq[String]) { for (columns<-getColumnExtractor(gui)) message(new SetRow(gui,index,shouldBe,columns.names))} 
+  def changeUIWholeTable(gui:String,shouldBe:IndexedSeq[IndexedSeq[String]]) { for (columns<-getColumnExtractor(gui)) setTableContents(gui,shouldBe,columns.names)(message)} 
+  def changeUISingleLineTable(gui:String,index:Int,shouldBe:IndexedSeq[String]) { 
+    for (columns<-getColumnExtractor(gui)) Option(gridWindows.get(gui)) match {
+      case Some(w) => w.synchronized {
+        if (index<w.rows.length) w.rows=w.rows.updated(index,shouldBe)
+        if (index>=w.from && index<w.to) message(new SetRow(gui,index,shouldBe,columns.names)) // the client doesn't have other rows.
+      }
+      case None => message(new SetRow(gui,index,shouldBe,columns.names))
+    }
+  } 
   override def setUITableEntriesIllegalContents(gui:String,illegalEntries:Map[Int,List[Int]]) { for (columns<-getColumnExtractor(gui)) message(new GridSetCellCssStyles(gui,illegalEntries,columns.names,"xsTotallyIllegal"))} 
   
-  override def changeGridTooltip(gui:String,row:Int,col:Int,colfield:GeneralizedField,tooltip:Option[RichLabel]) { message(ClientMessage.setGridTooltip(gui+"_grid_R"+row+"C"+colfield.name,tooltip.getOrElse(RichLabel.nullLabel).html,gui+"_ui"))} // FIXME also should put them there in the first place maybe
-  override def changeUITooltip(id:String,tooltip:Option[RichLabel]) {  jsSetHTML(id+"_tooltip",tooltip.getOrElse(RichLabel.nullLabel)) } 
-  override def changeUIShowCommands(id:String,shouldBe:List[EditCommandDescriptionMadeConcrete]) {jsSetHTML(id+"_ui",GUICreatorHTML5.editCommandsHTML(id,client.session.sessionPrefix,shouldBe))}
+  override def changeGridTooltip(gui:String,row:Int,col:Int,colfield:GeneralizedField,tooltip:Option[RichLabel]) { message(ClientMessage.setGridTooltip(gui+"_grid_R"+row+"C"+colfield.name,tooltip.getOrElse(RichLabel.nullLabel).htmlString,gui+"_ui"))} // FIXME also should put them there in the first place maybe
+  override def changeUITooltip(id:String,tooltip:Option[RichLabel]) {  jsChangeHTML(id+"_tooltip",tooltip.getOrElse(RichLabel.nullLabel)) } 
+  override def changeUIShowCommands(id:String,shouldBe:List[EditCommandDescriptionMadeConcrete]) {jsChangeHTML(id+"_ui",GUICreatorHTML5.editCommandsHTML(id,client.session.sessionPrefix,shouldBe))}
 
   /*override def changeUIShowCustom[S](gui:String,custom:CustomComponent[S,String],shouldBe:S,old:S) { 
     custom match {
@@ -249,6 +377,7 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
       if (ok && gridInd!= -1) uiChangeGrid(id.substring(0,gridInd),row,columnName,newValue)
     case SimpleClientMessage("ChangeCB",Array(id,Bool(newValue),Current(ok))) => if (ok) uiChangedBooleanField(id,newValue)
     case SimpleClientMessage("KeyPress",Array(id,newValue,Current(ok))) => if (ok) uiChangedTextField(id,newValue,false) 
+    case SimpleClientMessage("GridRange",Array(id,Int(from),Int(to),Int(version))) => uiGridRange(id,from,to,version)
     case SimpleClientMessage("GridDnD",Array(id,rows,Int(insertBefore),Current(ok))) => if (ok) uiDragGridRows(id,rows.split(',').map{_.toInt},insertBefore)
     case SimpleClientMessage("TableContextMenu",Array(id,command,rows,Current(ok))) => if (ok) uiTableContextMenu(id,command,rows.split(',').map{_.toInt})
     case SimpleClientMessage("Edited",Array(id,newValue)) => uiChangedTextField(id,newValue,true)
@@ -271,7 +400,18 @@ class HTML5DetailsPane(val client:HTML5ClientBase) extends XSDetailsPane[String]
 }
 
 
-object HTML5DetailsPane extends CustomComponentStore[String]
+object HTML5DetailsPane extends CustomComponentStore[String] {
+  /** Tables with at least this many rows only have the rows near what the user can see on the client, which asks for more as it scrolls. */
+  var gridWindowMinRows = 1000
+  /** Number of rows of a windowed table sent when it is created, before the client has asked for any. */
+  var gridWindowInitialRows = 100
+  /** Maximum number of rows sent in reply to a single request from the client. */
+  var gridWindowMaxRequest = 2000
+  /** Height of a windowed table. Other tables are as high as needed to show all their rows. */
+  var gridWindowHeightEm = 30
+  /** Number of forms for other classes kept hidden on the client, so that going back to a class recently shown is fast. */
+  var maxRetainedForms = 5
+}
 
 object GUICreatorHTML5 {
   
@@ -318,7 +458,7 @@ object GUICreatorHTML5 {
 class GUICreatorHTML5(pane:HTML5DetailsPane,inlineParentDivId:Option[String]) extends GUICreator[String] {
   import GUICreatorHTML5._
   private[this] var idIndex = 0 
-  private[this] val idBase = inlineParentDivId.map{_+"inline_"}.getOrElse("XS_Form"+pane.client.session.jsSessionID+"_") 
+  private[this] val idBase = inlineParentDivId.map{_+"inline_"}.getOrElse(pane.newFormIDBase()) 
   private[this] def newid() = { idIndex+=1; idBase+idIndex }
   private[this] val rowBuffer = new ListBuffer[xml.Elem]
   private[this] val sectionBuffer = new ListBuffer[xml.Elem]
@@ -399,6 +539,7 @@ class GUICreatorHTML5(pane:HTML5DetailsPane,inlineParentDivId:Option[String]) ex
     sectionBuffer.clear()
     inlineParentDivId match {
       case Some(divid) => pane.message(ClientMessage.addAtEndID(divid,res))
+      case None if pane.hasRetainedGUIs => pane.message(ClientMessage.addAtEndID(pane.detailsPaneID,res)) // other (hidden) forms are still there.
       case None => pane.jsSetHTML(pane.detailsPaneID,res) 
     }
     for (m<-postCreationJavascript) pane.message(m)
@@ -429,6 +570,7 @@ class GUICreatorHTML5(pane:HTML5DetailsPane,inlineParentDivId:Option[String]) ex
       def donePortion(progressPortion:Double) { pane.message(ClientMessage.progressProgress(id, progressPortion)); pane.flushClientCommands()}  
       def failed(message:Option[RichLabel]) { pane.message(ClientMessage.progressFinishedError(id, message)); pane.flushClientCommands() }
       def succeeded(message:Option[RichLabel]) { pane.message(ClientMessage.progressFinishedGood(id, message)); pane.flushClientCommands() }
+      override def queued(position:Int) { pane.message(ClientMessage.progressQueued(id, position)); pane.flushClientCommands() }
     }
     ProgressMonitor(ui)
   }
@@ -472,7 +614,9 @@ class GUICreatorHTML5(pane:HTML5DetailsPane,inlineParentDivId:Option[String]) ex
   }
   def createTableField(field:DetailsPaneFieldTable,currently:CurrentFieldState,initialValue:IndexedSeq[IndexedSeq[String]]) = {
     val id = newid()
-    val holder = <div id={id+"_ui"} class="xsTableHolder"><div id={id+"_grid"} class="xsTableGrid"></div><div class="xsTableTooltip xsTableTooltipNormal"></div><div class="xsTableTooltip xsTableTooltipError"></div></div>
+    val windowed = pane.isWindowedGrid(initialValue.length)
+    val grid = addOption(<div id={id+"_grid"} class="xsTableGrid"></div>,"style",if (windowed) Some("height:"+HTML5DetailsPane.gridWindowHeightEm+"em;") else None)
+    val holder = <div id={id+"_ui"} class="xsTableHolder">{grid}<div class="xsTableTooltip xsTableTooltipNormal"></div><div class="xsTableTooltip xsTableTooltipError"></div></div>
     //val baseVarID = "document.getElementById('"+id+"_ui').dataxs"
     //val varid = baseVarID+"_sg"
     val useDummyHeader = false; // put a set of row headers on the table, useful (but not necessary) for drag and drop. If used, need to alter the selection function to allow selection of non-focussable elements 
@@ -530,9 +674,15 @@ class GUICreatorHTML5(pane:HTML5DetailsPane,inlineParentDivId:Option[String]) ex
         if (editor==null) g.writeNull() else g.writeRawValue(editor)       
       }
     })
-    postCreationJavascript+=new SetRows(id,initialValue,field.columnExtractors.names);
+    pane.setTableContents(id,initialValue,field.columnExtractors.names){postCreationJavascript+=_}
     val mayNotAdd = field.field.mayNotAddChildren || field.field.xsinfo.map{_.mayNotAddChildren}.getOrElse(false)
-    postCreationJavascript+=ClientMessage.startGrid(id,columns,sessionPrefixNoTrailingPeriod,if (mayNotAdd) ClientMessage.mayNotAddStartGridOptions else ClientMessage.defaultStartGridOptions)
+    val options = (mayNotAdd,windowed) match {
+      case (false,false) => ClientMessage.defaultStartGridOptions
+      case (true,false) => ClientMessage.mayNotAddStartGridOptions
+      case (false,true) => ClientMessage.windowedStartGridOptions
+      case (true,true) => ClientMessage.windowedMayNotAddStartGridOptions
+    }
+    postCreationJavascript+=ClientMessage.startGrid(id,columns,sessionPrefixNoTrailingPeriod,options)
     //run(varid+"=new Slick.Grid('#"+id+"_ui',"+baseVarID+"_rows,"+columns+",{autoHeight:true,editable:true,enableAddRow:true,enableCellNavigation:true,fullWidthRows:true})")
     //postCreationJavascript+=ClientMessage.run(varid+".setSelectionModel(new Slick.CellSelectionModel())")
     //postCreationJavascript+=ClientMessage.run(varid+".render()")
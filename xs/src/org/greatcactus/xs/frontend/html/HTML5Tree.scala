@@ -23,6 +23,10 @@ import org.greatcactus.xs.frontend.XSClipBoard
  *   4) Call the baseHTML() function once to get the initial HTML for the tree.
  *   5) Include appropriate Javascript and CSS files (xsedit.js and xsedit.css)
  *   6) When a node changes in any way (open/closed, label, icon, children), call the refresh() function with that node.
+ *   
+ * A node with very many children (more than childWindow) only has a window of them on the client, and in the OnClientTreeNode mirror.
+ * Spacer elements stand in for the children before and after the window. As the user scrolls, the client reports which
+ * children are visible (TreeWindow message) and the window is moved.
  */
 class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val model:TreeModel[T],val root:T,val sessionprefix:String,val treeID:String,val allowMultipleSelection:Boolean,val allowDragging:Boolean,val initialSelection:Option[T]=None) {
 
@@ -40,61 +44,99 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
     
   var clientNodes : Map[String,OnClientTreeNode] = Map.empty
   
-  def newHTML(node:T,clicksAwayFromVisible:Int,postCreationJavascript:ListBuffer[String]) : (NodeSeq,OnClientTreeNode) = {
+  /** Get the HTML for a node and the visible part of its subtree. */
+  def newHTML(node:T,clicksAwayFromVisible:Int,postCreationJavascript:ListBuffer[String]) : (String,OnClientTreeNode) = {
+    val w = new HTMLWriter
+    val localnode = writeHTML(w,node,clicksAwayFromVisible,postCreationJavascript)
+    (w.toString,localnode)
+  }
+  
+  /** Write the HTML for a node and the visible part of its subtree. This is done with a HTMLWriter rather than scala.xml as large trees have lots of nodes. */
+  private def writeHTML(w:HTMLWriter,node:T,clicksAwayFromVisible:Int,postCreationJavascript:ListBuffer[String]) : OnClientTreeNode = {
     val id = treePrefix+model.uniqueID(node)
     val isOpen = model.isOpen(node)
-    val children = model.children(node)
+    val allChildren = model.children(node)
+    val windowStart = clampWindowStart(initialWindowStart(allChildren),allChildren.length)
+    val children = childrenInWindow(allChildren,windowStart)
     val isOpenString = if (children.isEmpty) "" else if (isOpen) "▼" else "►"
     //println("isOpenString = "+isOpenString+" length="+isOpenString.length)
-    val opener = <span id={id+"_opener"} class="xsOpener" onclick={sessionprefix+"treeOpen('"+id+"'); return false"}>{isOpenString}</span>
     val iconURL = model.icon(node)
-    val icon = iconURL match {
-      case Some(url) => <img id={id+"_icon"} src={url} class="xsIcon"/>
-      case None => NodeSeq.Empty
-    }
     val labelS = model.title(node)
-    val label = <span id={id+"_label"} class="xsTreeNodeName">{labelS.htmlNotBlank}</span>
     postCreationJavascript++=labelS.postCreationJavascript
-    val childrenClicksAwayFromVisible = clicksAwayFromVisible+(if (isOpen) 0 else 1)
-    val (kidsHTML,kidsLocal) = 
-      if (childrenClicksAwayFromVisible<=clicksAwayFromVisibleCutoff) children.map{newHTML(_,childrenClicksAwayFromVisible,postCreationJavascript)}.unzip
-      else (Nil,Nil)
-    val subsVisUnchecked = <ul id={id+"_subs"}>{kidsHTML.toList}</ul>
-    val subs = XSHTMLUtil.possiblySetNoDisplay(subsVisUnchecked, isOpen)
     val errorlevel = model.errorLevel(node)
-    val erroricon = <span id={id+"_erroricon"} class={"xsErrorIcon xsErrorIcon"+errorlevel}></span>
     val isCurrentlySelected = getAllSelected.contains(node)
     val isCurrentlyGhosted = model.isGhosted(node)
     val selectableClass : String = "xsTreeSelectable"+(if (isCurrentlySelected) " xsSelected" else "")+(if (isCurrentlyGhosted) " xsGhosted" else "")
-    val selectable = <span id={id+"_selectable"} class={selectableClass} onclick={sessionprefix+"treeSelect(event,'"+id+"'); return false"} oncontextmenu={sessionprefix+"treeSelect(event,'"+id+"'); return true"}>{erroricon}{icon}{label}</span>
-    //val selectable = if (isCurrentlySelected) selectableNoSelection%Attribute(None,"class",Text("xsTreeSelectable xsSelected"),scala.xml.Null)  else selectableNoSelection
-    val html = <div id={id+"_all"} draggable={allowDragging.toString} class="xsTreeNodeCompleteNode">{opener}{selectable}{subs}</div>
+    w.start("div").att("id",id+"_all").att("draggable",allowDragging.toString).att("class","xsTreeNodeCompleteNode")
+    w.start("span").att("id",id+"_opener").att("class","xsOpener").att("onclick",sessionprefix+"treeOpen('"+id+"'); return false").text(isOpenString).end("span")
+    w.start("span").att("id",id+"_selectable").att("class",selectableClass).att("onclick",sessionprefix+"treeSelect(event,'"+id+"'); return false").att("oncontextmenu",sessionprefix+"treeSelect(event,'"+id+"'); return true")
+    w.start("span").att("id",id+"_erroricon").att("class","xsErrorIcon xsErrorIcon"+errorlevel).end("span")
+    for (url<-iconURL) w.start("img").att("id",id+"_icon").att("src",url).att("class","xsIcon").endEmpty()
+    w.start("span").att("id",id+"_label").att("class","xsTreeNodeName").raw(labelS.htmlStringNotBlank).end("span")
+    w.end("span")
+    val childrenClicksAwayFromVisible = clicksAwayFromVisible+(if (isOpen) 0 else 1)
+    val windowed = isWindowed(allChildren.length)
+    val showKids = childrenClicksAwayFromVisible<=clicksAwayFromVisibleCutoff
+    val spacerRows = if (windowed && showKids && !children.isEmpty) (windowStart,allChildren.length-windowStart-children.length) else (0,0)
+    w.start("ul").att("id",id+"_subs").att("style",if (isOpen) null else "display:none;")
+    if (windowed) writeSpacer(w,id+"_wbefore",spacerRows._1)
+    val kidsLocal = if (showKids) children.map{writeHTML(w,_,childrenClicksAwayFromVisible,postCreationJavascript)} else Nil
+    if (windowed) writeSpacer(w,id+"_wafter",spacerRows._2)
+    w.end("ul")
+    w.end("div")
     val localnode = new OnClientTreeNode(iconURL,labelS,isOpenString,kidsLocal,clicksAwayFromVisible,!isOpen,isCurrentlySelected,isCurrentlyGhosted,errorlevel,node,id)
+    localnode.windowStart=windowStart
+    localnode.hasSpacers=windowed
+    localnode.spacerRows=spacerRows
     clientNodes+=id->localnode
-    (html,localnode)
+    localnode
   }
   
   /** This should only be called once */
   def baseHTML(divClasses:String="") : NodeSeq = {
     if (clientNodes.isEmpty) {
       val postCreationJavascript=new ListBuffer[String]
-      val res= <div class={"xsEditTree "+divClasses} id={treeDivID} data-multiselect={allowMultipleSelection.toString} data-oninputobj={sessionprefixNoTrailingPeriod} ondragstart={sessionprefix+"dragStart(event);"} ondragend={sessionprefix+"dragEnd(event);"} ondragover={sessionprefix+"dragOver(event)"} ondragenter={sessionprefix+"dragEnter(event)"} ondragleave={sessionprefix+"dragLeave(event)"} ondrop={sessionprefix+"drop(event)"}>{newHTML(root,0,postCreationJavascript)._1}</div>
+      val w = new HTMLWriter
+      w.start("div").att("class","xsEditTree "+divClasses).att("id",treeDivID).att("data-multiselect",allowMultipleSelection.toString).att("data-oninputobj",sessionprefixNoTrailingPeriod)
+      w.att("ondragstart",sessionprefix+"dragStart(event);").att("ondragend",sessionprefix+"dragEnd(event);").att("ondragover",sessionprefix+"dragOver(event)").att("ondragenter",sessionprefix+"dragEnter(event)").att("ondragleave",sessionprefix+"dragLeave(event)").att("ondrop",sessionprefix+"drop(event)").att("onscroll",sessionprefix+"treeScrolled()")
+      writeHTML(w,root,0,postCreationJavascript)
+      w.end("div")
       for (cmd<-postCreationJavascript) transport.sendMessage(ClientMessage.run(cmd)) // this doesn't look like post-creation, but actually is because the tree is created and then it starts the comet which gets these things. However, if this is called a second time, bad things will happen. Thus javadoc comment about only calling once.
-      res
+      xml.Unparsed(w.toString)
     }
     else throw new IllegalArgumentException("Called baseHTML more than once.")
   }
   
+  /** 
+   * Instead of baseHTML, replace the contents of a tree div already on the client with this tree. Used when a passivated session 
+   * is rebuilt (see SessionManagement.passivateAfter), as the div has the same id.
+   */
+  def replaceOnClient() {
+    if (clientNodes.isEmpty) {
+      val postCreationJavascript=new ListBuffer[String]
+      val w = new HTMLWriter
+      writeHTML(w,root,0,postCreationJavascript)
+      transport.sendMessage(ClientMessage.setHTMLID(treeDivID,w.toString))
+      for (cmd<-postCreationJavascript) transport.sendMessage(ClientMessage.run(cmd))
+    }
+    else throw new IllegalArgumentException("Called replaceOnClient after the tree was created.")
+  }
+  
   object ID { // used in processMessages for extracting the node given a string id
     def unapply(id:String) : Option[OnClientTreeNode] = clientNodes.get(id)
   }
   object Bool {
     def unapply(arg:String) : Option[Boolean] = Some(arg.toBoolean)
   }
+  object Num {
+    def unapply(arg:String) : Option[Int] = try { Some(arg.toInt) } catch { case _:NumberFormatException => None }
+  }
   
   val processMessages : PartialFunction[SimpleClientMessage,Unit] = {
     case SimpleClientMessage("TreeOpen",Array(ID(n),Bool(shouldNowBeOpen))) =>
       model.userToggledStatus(n.node,shouldNowBeOpen)
+    case SimpleClientMessage("TreeWindow",Array(ID(n),Num(first),Num(last))) =>
+      n.setWindow(first,last)
     case SimpleClientMessage("TreeSelect",Array(ID(n),Bool(added))) =>
       setSelected(Some(n.node),added)
       model.userSelected(n.node) 
@@ -160,17 +202,53 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
         } else Nil
         //println("Set selected "+newSelected+" addTo="+addTo+"  alsoSelected="+alsoSelected)    
         currentlySelected=newSelected
-        for (n<-newSelected) refresh(n) 
+        for (n<-newSelected) { reveal(n); refresh(n) }
         for (n<-oldSelected) refresh(n) 
       }
     }
   }
   
   
+  /** If node is a child of a windowed node on the client, but outside the window, move the window to it and scroll it into view. */
+  private def reveal(node:T) {
+    for (parent<-clientNodes.values.find{p=>p.hasSpacers && !p.children.exists{_.node eq node} && model.children(p.node).exists{_ eq node}}) {
+      parent.windowStart=model.children(parent.node).indexWhere{_ eq node}-childWindow/2 // clamped by setIsOpen
+      parent.setIsOpen()
+      val id = treePrefix+model.uniqueID(node)+"_all"
+      transport.sendMessage(ClientMessage.run("var e=document.getElementById('"+id+"'); if (e) e.scrollIntoView(false);"))
+    }
+  }
+  
   /** Children nodes are maintained on the client (for snappy response) if the number of clicks needed to see them is this or less. Small numbers (eg 0) mean low bandwidth; large numbers (eg 1,2) mean low latency */
   val clicksAwayFromVisibleCutoff = 1
   
+  /** If positive, a node with more children than this only has this many of them on the client at a time. */
+  var childWindow = 200
+  /** The height, in em, that a spacer uses for each child it stands in for. */
+  var windowRowHeightEm = 1.3
+  
+  private def isWindowed(numChildren:Int) = childWindow>0 && numChildren>childWindow
+  private def clampWindowStart(start:Int,numChildren:Int) = if (isWindowed(numChildren)) 0 max start min (numChildren-childWindow) else 0
+  private def childrenInWindow(children:Seq[T],windowStart:Int) : Seq[T] = if (isWindowed(children.length)) children.slice(windowStart,windowStart+childWindow) else children
+  /** Start the window so as to show the selected node, if it is a child */
+  private def initialWindowStart(children:Seq[T]) : Int = if (!isWindowed(children.length)) 0 else {
+    val selected = getAllSelected
+    children.indexWhere{selected.contains(_)} match {
+      case -1 => 0
+      case i => i-childWindow/2
+    }
+  }
+  private def spacerStyle(rows:Int) = "height:"+(rows*windowRowHeightEm)+"em"
+  private def writeSpacer(w:HTMLWriter,id:String,rows:Int) { w.start("div").att("id",id).att("class","xsTreeWindowSpacer").att("data-rows",rows.toString).att("style",spacerStyle(rows)).end("div") }
+  private def spacer(id:String,rows:Int) : String = { val w = new HTMLWriter; writeSpacer(w,id,rows); w.toString }
+  
   class OnClientTreeNode(var iconURL:Option[String],var label:RichLabel,var isOpenString:String,var children:Seq[OnClientTreeNode],var clicksAwayFromVisible:Int,var childrenCurrentlyHidden:Boolean,var isCurrentlySelected:Boolean,var isCurrentlyGhosted:Boolean,var currentErrorLevel:Int,val node:T,val id:String) {
+    /** Index of the first child in children, if the children are windowed */
+    var windowStart = 0
+    /** Whether the spacers for windowing exist on the client. Once created they are not removed. */
+    var hasSpacers = false
+    /** The number of children the before and after spacers are currently standing in for */
+    var spacerRows = (0,0)
     def setIcon(newURL:Option[String]) {
       //println("Set icon "+newURL)
       if (newURL!=iconURL) {
@@ -209,10 +287,21 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
       }
     }
     def isOpenOnClient = isOpenString=="▼"
+    /** The client says that children first to last (inclusive) are visible. Move the window so they are in the middle of it. */
+    def setWindow(first:Int,last:Int) {
+      val numChildren = model.children(node).length
+      val newStart = clampWindowStart(first-(childWindow-(last-first+1))/2,numChildren)
+      if (newStart!=windowStart) {
+        windowStart=newStart
+        setIsOpen()
+      }
+    }
     def setIsOpen() {
       val newIsOpen = model.isOpen(node)
-      val newChildren = model.children(node)
-      val newIsOpenString = if (newChildren.isEmpty) "" else if (newIsOpen) "▼" else "►"
+      val allChildren = model.children(node)
+      windowStart=clampWindowStart(windowStart,allChildren.length)
+      val newChildren = childrenInWindow(allChildren,windowStart)
+      val newIsOpenString = if (allChildren.isEmpty) "" else if (newIsOpen) "▼" else "►"
       if (newIsOpenString!=isOpenString) {
         transport.sendMessage(ClientMessage.setHTMLID(id+"_opener",Text(newIsOpenString)))
         isOpenString=newIsOpenString
@@ -228,7 +317,12 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
         val newChildrenAsSet = newChildren.map{new EqualityByPointerEquality(_)}.toSet
         val (keepChildren,discardChildren) = children.partition(c=>newChildrenAsSet.contains(new EqualityByPointerEquality(c.node)))
         for (d<-discardChildren) d.discard()
-        var availableChildren = keepChildren
+        if (isWindowed(allChildren.length) && !hasSpacers) { // before adding children, so that they go after the first spacer.
+          transport.sendMessage(ClientMessage.addAtStartID(id+"_subs",spacer(id+"_wbefore",0)))
+          transport.sendMessage(ClientMessage.addAtEndID(id+"_subs",spacer(id+"_wafter",0)))
+          hasSpacers=true
+        }
+        var availableChildren = keepChildren.toList
         var lastGoodNode : Option[String] = None
         val addMessages = new ListBuffer[ClientMessage]
         children=for (c<-newChildren) yield {
@@ -240,6 +334,7 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
               val postCreationJavascript = new ListBuffer[String]
               val (html,kid) = newHTML(c,childrenClicksAwayFromVisible,postCreationJavascript)
               addMessages+=(lastGoodNode match {
+                case None if hasSpacers => ClientMessage.addAfterID(id+"_wbefore",html)
                 case None => ClientMessage.addAtStartID(id+"_subs",html)
                 case Some(afterid) => ClientMessage.addAfterID(afterid+"_all",html)
               })
@@ -252,6 +347,16 @@ class HTML5Tree[T <: AnyRef](val locale:Locale,val transport:HTMLTransport,val m
         for (a<-availableChildren) a.discard()
         for (m<-addMessages) transport.sendMessage(m) // may need to have these messages after the discards if nodes are reordered
       }
+      if (hasSpacers && (childrenClicksAwayFromVisible<=clicksAwayFromVisibleCutoff || !children.isEmpty)) {
+        val newSpacerRows = if (isWindowed(allChildren.length)) (windowStart,allChildren.length-windowStart-children.length) else (0,0)
+        def setSpacer(spacerid:String,rows:Int) {
+          transport.sendMessage(ClientMessage.setAttributeID(spacerid,"data-rows",rows.toString))
+          transport.sendMessage(ClientMessage.setAttributeID(spacerid,"style",spacerStyle(rows)))
+        }
+        if (newSpacerRows._1!=spacerRows._1) setSpacer(id+"_wbefore",newSpacerRows._1)
+        if (newSpacerRows._2!=spacerRows._2) setSpacer(id+"_wafter",newSpacerRows._2)
+        spacerRows=newSpacerRows
+      }
       for (c<-children) c.setClicksAwayFromVisible(childrenClicksAwayFromVisible)
       
     }
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import scala.xml.Node
+import scala.xml.NodeSeq
+import scala.xml.Elem
+import scala.xml.Text
+import scala.xml.EntityRef
+import scala.xml.Comment
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Work out a compact patch that changes the inner HTML of an element from one value to another, as an alternative to
+ * sending the whole new HTML with ClientMessage.setHTMLID. The patch is a single "PatchHTML" message applied by xs.patchHTML in xsedit.js.
+ *
+ * The arguments of the message are the element id followed by a sequence of operations, each addressed by a path
+ * of child node indices (separated by periods) from the element:
+ *   T path text                   set the text of a text node
+ *   A path attribute value        set an attribute of an element
+ *   R path attribute              remove an attribute of an element
+ *   C path from count html        replace count child nodes starting at from with the given html
+ *
+ * Paths index DOM child nodes, so the HTML must be parsed by the browser into exactly the same tree. Adjacent text is merged
+ * and empty text dropped, as the browser does, and HTML containing elements that the browser's parser may restructure
+ * (tables, paragraphs, etc.) or raw content is never diffed.
+ */
+object HTMLDiff {
+
+  var enabled = true
+  /** If a patch would need more operations than this, just send the whole thing. */
+  var maxOperations = 20
+
+  /** Elements whose contents browsers may rearrange when parsing, or which could contain things we can't see. */
+  private val unsafeLabels = Set("table","thead","tbody","tfoot","tr","td","th","col","colgroup","caption","p","select","option","optgroup","pre","textarea","listing","script","style","template","noscript","form")
+
+  /**
+   * Get the message to change the element id from old to now. This is a patch if that is smaller than sending the whole
+   * new HTML, otherwise a SetHTML message.
+   */
+  def change(id:String,old:NodeSeq,now:NodeSeq) : ClientMessage = {
+    val full = ClientMessage.setHTMLID(id,now)
+    if (!enabled || old==null) full else patch(id,old,now) match {
+      case Some(p) if p.approximateSize<full.approximateSize => p
+      case _ => full
+    }
+  }
+
+  /** Get a patch message, or None if no patch is possible. */
+  def patch(id:String,old:NodeSeq,now:NodeSeq) : Option[SimpleClientMessage] = {
+    for (oldNodes<-normalize(old);newNodes<-normalize(now);res<-patchNormalized(id,oldNodes,newNodes)) yield res
+  }
+  
+  private def patchNormalized(id:String,oldNodes:IndexedSeq[Node],newNodes:IndexedSeq[Node]) : Option[SimpleClientMessage] = {
+    val ops = new ArrayBuffer[String]
+    ops+=id
+    var numOps = 0
+    def add(op:String*) { ops++=op; numOps+=1 }
+    def childPath(path:String,index:Int) = if (path.isEmpty) index.toString else path+"."+index
+    def diffChildren(path:String,old:IndexedSeq[Node],now:IndexedSeq[Node]) {
+      val minLength = old.length min now.length
+      var prefix = 0
+      while (prefix<minLength && old(prefix)==now(prefix)) prefix+=1
+      var suffix = 0
+      while (suffix<minLength-prefix && old(old.length-1-suffix)==now(now.length-1-suffix)) suffix+=1
+      val oldMid = old.slice(prefix,old.length-suffix)
+      val newMid = now.slice(prefix,now.length-suffix)
+      if (oldMid.length==1 && newMid.length==1) diffNode(path,prefix,oldMid(0),newMid(0))
+      else if (!(oldMid.isEmpty && newMid.isEmpty)) add("C",path,prefix.toString,oldMid.length.toString,newMid.mkString)
+    }
+    def diffNode(path:String,index:Int,old:Node,now:Node) {
+      (old,now) match {
+        case (_:Text,n:Text) => add("T",childPath(path,index),n.text)
+        case (o:Elem,n:Elem) if o.label==n.label && o.prefix==n.prefix =>
+          val p = childPath(path,index)
+          val oldAtts = o.attributes.asAttrMap
+          val newAtts = n.attributes.asAttrMap
+          for ((key,value)<-newAtts if oldAtts.get(key)!=Some(value)) add("A",p,key,value)
+          for (key<-oldAtts.keys if !newAtts.contains(key)) add("R",p,key)
+          for (oc<-normalize(o.child);nc<-normalize(n.child)) diffChildren(p,oc,nc)
+        case _ => add("C",path,index.toString,"1",now.toString)
+      }
+    }
+    diffChildren("",oldNodes,newNodes)
+    if (numOps>maxOperations) None else Some(new SimpleClientMessage("PatchHTML",ops.toArray))
+  }
+
+  /**
+   * Get the child nodes as the browser will see them, merging adjacent text and removing empty text.
+   * None if there is something that is not safe to diff anywhere in the tree.
+   */
+  private def normalize(nodes:Seq[Node]) : Option[IndexedSeq[Node]] = {
+    val res = new ArrayBuffer[Node]
+    val text = new StringBuilder
+    def endText() { if (text.length>0) { res+=Text(text.toString); text.clear() }}
+    for (n<-nodes) n match {
+      case t:Text => text++=t.text
+      case e:EntityRef if e.text.length==1 => text++=e.text // only the standard XML entities.
+      case c:Comment => endText(); res+=c
+      case e:Elem if !unsafeLabels.contains(e.label.toLowerCase) && normalize(e.child).isDefined => endText(); res+=e
+      case _ => return None
+    }
+    endText()
+    Some(res)
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html
+
+import scala.xml.NodeSeq
+import scala.xml.Utility
+import org.greatcactus.xs.api.display.RichLabel
+
+/**
+ * Writes HTML straight into a StringBuilder, escaping as it goes. This is a cheaper alternative to building a scala.xml
+ * tree and then calling toString on it, for HTML that is produced often (like tree nodes).
+ *
+ * Usage: w.start("span").att("id",id).text("hello").end("span")
+ *
+ * Attributes can be added until something is written inside the element. Null attribute values are omitted, as with scala.xml.
+ */
+final class HTMLWriter(val out:StringBuilder) {
+  def this() = this(new StringBuilder)
+
+  private[this] var inStartTag = false
+  private def finishStartTag() { if (inStartTag) { out.append('>'); inStartTag=false }}
+
+  def start(tag:String) : HTMLWriter = { finishStartTag(); out.append('<').append(tag); inStartTag=true; this }
+  def att(name:String,value:String) : HTMLWriter = {
+    if (value!=null) {
+      out.append(' ').append(name).append("=\"")
+      HTMLWriter.escape(value,out)
+      out.append('"')
+    }
+    this
+  }
+  /** End an element started with start. */
+  def end(tag:String) : HTMLWriter = { finishStartTag(); out.append("</").append(tag).append('>'); this }
+  /** End an element with no contents that doesn't have an end tag in HTML, like img */
+  def endEmpty() : HTMLWriter = { out.append("/>"); inStartTag=false; this }
+
+  def text(s:String) : HTMLWriter = { finishStartTag(); if (s!=null) HTMLWriter.escape(s,out); this }
+  /** Add some HTML that is already known to be valid */
+  def raw(html:String) : HTMLWriter = { finishStartTag(); out.append(html); this }
+  def raw(html:NodeSeq) : HTMLWriter = { finishStartTag(); for (n<-html) Utility.serialize(n,sb=out); this }
+  def raw(label:RichLabel) : HTMLWriter = raw(label.htmlString)
+
+  override def toString = { finishStartTag(); out.toString }
+}
+
+object HTMLWriter {
+  /** Escape text for use in HTML text or in an attribute value. */
+  def escape(s:String,out:StringBuilder) {
+    var i=0
+    while (i<s.length) {
+      s.charAt(i) match {
+        case '<' => out.append("&lt;")
+        case '>' => out.append("&gt;")
+        case '&' => out.append("&amp;")
+        case '"' => out.append("&quot;")
+        case c => out.append(c)
+      }
+      i+=1
+    }
+  }
+}
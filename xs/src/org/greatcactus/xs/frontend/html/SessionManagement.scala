@@ -3,7 +3,6 @@
  */
 package org.greatcactus.xs.frontend.html
 
-import java.util.concurrent.LinkedBlockingQueue
 import scala.collection.mutable.PriorityQueue
 import scala.math.Ordered
 import scala.collection.mutable.ListBuffer
@@ -14,6 +13,15 @@ import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.Executors
 import org.greatcactus.xs.frontend.XSClipBoard
 import org.greatcactus.xs.frontend.XSClipboardRequest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicBoolean
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import scala.collection.JavaConverters._
+import java.io.File
 
 /**
  * Keep track of who is still talking to us (and thus for whom we need to keep track of what is currently showing on their browser in order to be able to send diffs).
@@ -23,53 +31,150 @@ import org.greatcactus.xs.frontend.XSClipboardRequest
 
 object SessionManagement {
   var sessionTimeout = 1000 * 60 * 60 // one hour
+  /** How often (in milliseconds) to look for sessions that have timed out. Must be set before the first session is created. */
+  var sweepInterval = 1000L * 60
+  /** Maximum number of messages waiting to be sent to a client before giving up and making the client reload. */
+  var maxPendingMessages = 5000
+  /** Maximum approximate size (characters of JSON) of messages waiting to be sent to a client before giving up and making the client reload. */
+  var maxPendingSize = 4000000L
+  /** 
+   * If positive, a session that the client hasn't talked to for this many milliseconds has its state saved to disk (in passivationDirectory) 
+   * and released from memory, if its worker supports it (see HTML5Client.reactivate). It is rebuilt when the client next talks to the server.
+   */
+  var passivateAfter = 0L
+  var passivationDirectory = new File(System.getProperty("java.io.tmpdir"),"xs-sessions")
+  
+  private[this] val sessions = new ConcurrentHashMap[String,HTTPSession]
+  private[this] val created = new AtomicLong
+  private[this] val expired = new AtomicLong
+  private[this] val removed = new AtomicLong
+  private[this] val resynced = new AtomicLong
+  private[this] val passivated = new AtomicLong
+  private[this] val reactivated = new AtomicLong
   
-  private var sessions : Map[String,HTTPSession] = Map.empty
   def removeSession(session:HTTPSession) {
-    synchronized {
-      sessions-=session.id
-    }
-  }/*
-  def addSession(session:HTTPSession) {
-    synchronized {
-      sessions+=session.id->session
-    }
-  }*/
-  private var gcCount = 0;
-  private var gcInverseFrequency = 10000
+    if (sessions.remove(session.id,session)) removed.incrementAndGet()
+  }
+  
   val random = new java.util.Random
+  /** Get a session, rebuilding it if it has been passivated. None if there is no such session (or it could not be rebuilt) */
   def get(id:String) : Option[HTTPSession] = {
-    var res = sessions.get(id)
+    val res = Option(sessions.get(id))
     for (s<-res) s.keepAlive()
-    synchronized {
-      gcCount+=1
-      if (gcCount==gcInverseFrequency) { gcCount=0; gc(); }  
-    }
-    for (s<-res if !s.disposed) yield s
+    res.filter{_.reactivate()}
   }
+  /** 
+   * Dispose of sessions that have timed out, and passivate idle ones (see passivateAfter). This is done periodically on the scheduler thread, 
+   * so does not need to be called explicitly. 
+   */
   def gc() {
     val now = System.currentTimeMillis()
-    for (s<-sessions.values) if (s.shouldDie(now)) s.dispose()
+    for (s<-sessions.values.asScala) {
+      if (s.shouldDie(now)) {
+        expired.incrementAndGet()
+        try { s.dispose() } catch { case e:Exception => e.printStackTrace() }
+      } else if (passivateAfter>0 && s.lastTimeTalkedToClient+passivateAfter<now && !s.isPassivated) {
+        try { s.passivate(passivateAfter) } catch { case e:Exception => e.printStackTrace() }
+      }
+    }
+  }
+  
+  /** The file used to store the state of a passivated session */
+  def passivationFile(session:HTTPSession) : File = {
+    passivationDirectory.mkdirs()
+    new File(passivationDirectory,"session"+session.id+".xs")
   }
   /** Get a new ID for a session, and add the session. Done at this point (before the session object is fully created) to prevent exceedingly unlikely race condition. */
   def newID(session:HTTPSession) = {
     def rndID() = (random.nextLong()&0xffffffffffffL).toString
     var res = rndID()
-    synchronized {
-       while (sessions.contains(res)) res=rndID()
-       sessions+=res->session
-    }
+    while (sessions.putIfAbsent(res,session)!=null) res=rndID()
+    created.incrementAndGet()
+    startSweeper()
     res
   } 
   
-  /** Used for timeout in Session.cometCallFuture. If that method is not used, then this will never be created, which means there is no need to shut it down. */
-  lazy val scheduler:ScheduledExecutorService = Executors.newScheduledThreadPool(1) 
+  private[this] val sweeperStarted = new AtomicBoolean(false)
+  private[this] def startSweeper() {
+    if (sweeperStarted.compareAndSet(false,true)) {
+      scheduler.scheduleWithFixedDelay(new Runnable() { override def run() { try { gc() } catch { case e:Exception => e.printStackTrace() } } },sweepInterval,sweepInterval,TimeUnit.MILLISECONDS)
+    }
+  }
+  
+  /** Used for timeouts in Session.cometCallFuture, and for disposing of old sessions. Created when the first session is created, and uses daemon threads. */
+  lazy val scheduler:ScheduledExecutorService = Executors.newScheduledThreadPool(1,new ThreadFactory() {
+    override def newThread(r:Runnable) = {
+      val t = new Thread(r,"XS session scheduler")
+      t.setDaemon(true)
+      t
+    }
+  }) 
+  
+  //
+  // metrics
+  //
+  
+  def activeSessions : Int = sessions.size
+  def sessionsCreated : Long = created.get
+  /** Number of sessions disposed of due to timeout */
+  def sessionsExpired : Long = expired.get
+  /** Number of sessions disposed of for any reason (timeout, client closed connection, explicit dispose) */
+  def sessionsRemoved : Long = removed.get
+  /** Number of times a client's backlog of messages got too large, and it was told to reload */
+  def sessionsResynced : Long = resynced.get
+  private[html] def recordResync() { resynced.incrementAndGet() }
+  /** Number of times an idle session was saved to disk and released from memory */
+  def sessionsPassivated : Long = passivated.get
+  /** Number of times a passivated session was rebuilt */
+  def sessionsReactivated : Long = reactivated.get
+  private[html] def recordPassivation() { passivated.incrementAndGet() }
+  private[html] def recordReactivation() { reactivated.incrementAndGet() }
+  def passivatedSessions : Int = sessions.values.asScala.count{_.isPassivated}
+  
+  private[this] val objectName = new ObjectName("org.greatcactus.xs:type=Sessions")
+  def registerJMX() {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer()
+      if (!server.isRegistered(objectName)) server.registerMBean(new SessionMetrics,objectName)
+    } catch { case e:Exception => e.printStackTrace() }
+  }
+  def unregisterJMX() {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer()
+      if (server.isRegistered(objectName)) server.unregisterMBean(objectName)
+    } catch { case e:Exception => e.printStackTrace() }
+  }
+}
+
+trait SessionMetricsMBean {
+  def getActiveSessions : Int
+  def getSessionsCreated : Long
+  def getSessionsExpired : Long
+  def getSessionsRemoved : Long
+  def getSessionsResynced : Long
+  def getSessionsPassivated : Long
+  def getSessionsReactivated : Long
+  def getPassivatedSessions : Int
+}
+
+class SessionMetrics extends SessionMetricsMBean {
+  def getActiveSessions = SessionManagement.activeSessions
+  def getSessionsCreated = SessionManagement.sessionsCreated
+  def getSessionsExpired = SessionManagement.sessionsExpired
+  def getSessionsRemoved = SessionManagement.sessionsRemoved
+  def getSessionsResynced = SessionManagement.sessionsResynced
+  def getSessionsPassivated = SessionManagement.sessionsPassivated
+  def getSessionsReactivated = SessionManagement.sessionsReactivated
+  def getPassivatedSessions = SessionManagement.passivatedSessions
 }
 
 /** Used for dependency injection. Not added by default as there could be multiple session prefixes in a given dependency injection tree. */
 class HTTPSessionPrefix(val prefix:String)
 
-class HTTPSession(val worker:HTTPSessionWorker) {
+class HTTPSession(initialWorker:HTTPSessionWorker) {
+  @volatile private[this] var currentWorker = initialWorker
+  /** What deals with messages from the client. null while passivated. */
+  def worker : HTTPSessionWorker = currentWorker
   val id:String = SessionManagement.newID(this)
   /** Gets appended before each action command */
   val jsSessionID = "S"+id
@@ -79,7 +184,7 @@ class HTTPSession(val worker:HTTPSessionWorker) {
     <script type="text/javascript">
       xs.S{id}=new xs.Session('{id}');
     </script>
-  var lastTimeTalkedToClient = System.currentTimeMillis()
+  @volatile var lastTimeTalkedToClient = System.currentTimeMillis()
   def shouldDie(now:Long) = lastTimeTalkedToClient+SessionManagement.sessionTimeout < now
   def keepAlive() { lastTimeTalkedToClient = System.currentTimeMillis() }
   @volatile var disposed = false
@@ -88,14 +193,63 @@ class HTTPSession(val worker:HTTPSessionWorker) {
       if (!disposed) {
         disposed=true
         SessionManagement.removeSession(this)
+        outgoingSyncObject.synchronized { for (p<-pendingResponse) p.success(None); pendingResponse=None } // rather than leave a comet call waiting for its timeout.
         clientDispose()
+        for (p<-passivatedWorker) p.discard()
+        passivatedWorker=None
       }
     }
   }
-  def clientDispose() { worker.dispose() }
+  def clientDispose() { for (w<-Option(worker)) w.dispose() }
+  
+  /** Used by a worker rebuilt from a passivated one to take over this session */
+  private[html] def setWorker(newWorker:HTTPSessionWorker) { currentWorker=newWorker }
+  
+  @volatile private[this] var passivatedWorker : Option[PassivatedSessionWorker] = None
+  def isPassivated = passivatedWorker.isDefined
+  
+  /** 
+   * Save the worker's state to disk and release it, if the worker supports that and the client has not talked to the server for at least 
+   * minIdle milliseconds. Returns true if it did so. 
+   */
+  def passivate(minIdle:Long=0) : Boolean = {
+    synchronized {
+      if (disposed || isPassivated || lastTimeTalkedToClient+minIdle>System.currentTimeMillis() || outgoingSyncObject.synchronized { directSendToClient.isDefined || pendingResponse.isDefined }) false
+      else worker.passivate() match {
+        case Some(p) =>
+          passivatedWorker=Some(p)
+          currentWorker=null
+          SessionManagement.recordPassivation()
+          true
+        case None => false
+      }
+    }
+  }
+  
+  /** 
+   * If passivated, rebuild the worker. Returns false if the session is disposed, or could not be rebuilt. In the latter case
+   * it stays passivated, with its saved state kept, so a later call can try again.
+   */
+  def reactivate() : Boolean = {
+    if (!isPassivated) !disposed
+    else synchronized {
+      for (p<-passivatedWorker) {
+        try {
+          p.reactivate(this)
+          if (currentWorker==null) throw new IllegalStateException("Reactivated worker did not take over session "+id)
+          passivatedWorker=None
+          SessionManagement.recordReactivation()
+          p.discard()
+        } catch { case e:Exception => e.printStackTrace(); currentWorker=null }
+      }
+      !disposed && !isPassivated
+    }
+  }
   
   /** Messages to be sent to client. */
-  private[this] var pendingSendToClient = new LinkedBlockingQueue[ClientMessage]
+  private[this] val pendingSendToClient = new CoalescingMessageQueue(SessionManagement.maxPendingMessages,SessionManagement.maxPendingSize)
+  /** Set when pendingSendToClient overflowed. The only thing left to send is ClientMessage.resync, after which the session is disposed. */
+  private[this] var resyncPending = false
   /** A promise that can be completed by the next message that should be sent to the client */
   private[this] var pendingResponse : Option[Promise[Option[ClientMessage]]] = None
   /** A function that can consume messages that should be sent to the client */
@@ -138,34 +292,25 @@ class HTTPSession(val worker:HTTPSessionWorker) {
     outgoingSyncObject.synchronized {
       pendingResponse match {
         case Some(p) if p eq promise => pendingResponse=None; promise.success(None)
-        case None =>
+        case _ =>
       }
     }
   }
   
   def cometCallShouldReturnImmediately() : Option[ClientMessage] = {
     keepAlive()
-    val buffer = new ClientMessageBuffer
-    var busyness : SimpleClientMessage = null // optimization - ignore all client busy messages other than the current one. This variable stores the most current one in thw queue so far.
-    def hasAvailable() = {
-      val head = pendingSendToClient.poll()
-      head match {
-        case null => false
-        case m:SimpleClientMessage if m.command=="ServerStatus" => // optimization - ignore all client busy messages other than the current one.
-          if (busyness==null || busyness.args(1).toLong < m.args(1).toLong) busyness=m
-          true 
-        case _ => buffer+=head; true
-      }
+    outgoingSyncObject.synchronized {
+      val res = pendingSendToClient.drain()
+      if (resyncPending && res.isDefined) SessionManagement.scheduler.execute(new Runnable() { override def run() { dispose() }}) // client will reload.
+      res
     }
-    while (hasAvailable()) {}
-    if (busyness!=null) buffer+=busyness
-    buffer.get
   }
   
-  /** A comet call method that blocks for 10s if nothing is present. You are probably better off using cometCallFuture unless you are on a platform that doesn't support non-blocking responses.*/
+  /** A comet call method that blocks for up to 10s if nothing is present. You are probably better off using cometCallFuture unless you are on a platform that doesn't support non-blocking responses.*/
   def cometCallBlocking() : Option[ClientMessage] = {
-    keepAlive()
-    Option(pendingSendToClient.poll(10,java.util.concurrent.TimeUnit.SECONDS))
+    try {
+      Await.result(cometCallFuture,duration.Duration(15,java.util.concurrent.TimeUnit.SECONDS))
+    } catch { case _:TimeoutException => None }
   }
   
   def addMessage(message:ClientMessage) {
@@ -173,7 +318,8 @@ class HTTPSession(val worker:HTTPSessionWorker) {
       directSendToClient match {
         case Some(callback) => callback(message)
         case None => pendingResponse match {
-          case None => pendingSendToClient.add(message)
+          case None => 
+            if (!resyncPending && !pendingSendToClient.add(message)) resynchronize("Too many messages pending")
           case Some(promise) =>
             pendingResponse=None
             assert (pendingSendToClient.isEmpty)
@@ -183,6 +329,28 @@ class HTTPSession(val worker:HTTPSessionWorker) {
     }  
   }
   
+  /** Put back a message that was taken to send to the client but could not be, ahead of anything queued since. */
+  def requeueMessage(message:ClientMessage) {
+    outgoingSyncObject.synchronized {
+      val since = pendingSendToClient.drain()
+      addMessage(message)
+      for (m<-since) addMessage(m)
+    }
+  }
+  
+  /** The client can no longer be kept in step with the server, so tell it to reload. Nothing queued for it is sent after that. */
+  def resynchronize(reason:String) {
+    outgoingSyncObject.synchronized {
+      if (!resyncPending) {
+        println(reason+" for session "+id+" : resynchronizing")
+        SessionManagement.recordResync()
+        pendingSendToClient.clear()
+        addMessage(ClientMessage.resync)
+        resyncPending=true
+      }
+    }
+  }
+  
   val incomingSyncObject = new Object
   val outgoingSyncObject = new Object
   var numProcessedFromClientMessage = 0L
@@ -232,7 +400,10 @@ class HTTPSession(val worker:HTTPSessionWorker) {
            dispose()
         } else if (sm.command=="ReqWSAck" && sm.args.length==1) {
            addMessage(ClientMessage.websocketAckMessage(sm.args(0)))
-        } else worker.receivedMessage(sm)
+        } else synchronized { // so it can't be passivated while the worker is using the message.
+          if (reactivate()) worker.receivedMessage(sm)
+          else if (!disposed) resynchronize("Could not reactivate") // the message is lost, so the client is out of step.
+        }
       case mm:MultipleClientMessage => for (sub<-mm.commands) receivedOrderedMessage(sub)
       case _ => throw new IllegalArgumentException(message.toString)
     }
@@ -264,4 +435,17 @@ abstract class HTTPSessionWorker {
   def dispose() {}
   def receivedMessage(message:SimpleClientMessage) {}
   def getDraggedElement(subid:String) : Option[XSClipBoard] 
+  /** 
+   * Save the state to disk and release it (including calling dispose()), returning something that can rebuild it. 
+   * None (the default) if this worker can't be passivated. 
+   */
+  def passivate() : Option[PassivatedSessionWorker] = None
+}
+
+/** The state of an HTTPSessionWorker that has been saved to disk. See SessionManagement.passivateAfter */
+abstract class PassivatedSessionWorker {
+  /** Rebuild the worker, which should then call session.setWorker */
+  def reactivate(session:HTTPSession)
+  /** The saved state is no longer needed */
+  def discard()
 }
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html.servlet
+
+import java.net.URL
+import java.net.URLEncoder
+import java.security.MessageDigest
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import javax.xml.bind.DatatypeConverter
+import org.greatcactus.xs.api.icon.IconManifests
+import org.greatcactus.xs.api.icon.ResolvedIcon
+import org.greatcactus.xs.util.FileUtil
+
+/**
+ * An icon or static file held in memory, ready to be sent. The etag is a hash of the contents, and is used as a version
+ * in URLs (see StaticAssets.versionedURL) so that browsers can cache the contents forever.
+ */
+class StaticAsset(val name:String,val mimeType:String,val data:Array[Byte],val lastModified:Long) {
+  val hash : String = DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(data)).substring(0,20).toLowerCase
+  val etag : String = "\""+hash+"\""
+  /** The contents gzipped, if that is worth doing (not for already compressed images) */
+  val gzipped : Option[Array[Byte]] = if (!StaticAssets.isCompressible(mimeType)) None else {
+    val bos = new ByteArrayOutputStream
+    val gz = new GZIPOutputStream(bos)
+    gz.write(data)
+    gz.close()
+    val res = bos.toByteArray
+    if (res.length<data.length*9/10) Some(res) else None
+  }
+  lazy val dataURI : String = "data:"+mimeType+";base64,"+DatatypeConverter.printBase64Binary(data)
+}
+
+/**
+ * Serve icons (from IconManifests) and static files (such as xsedit.js) from memory, with strong ETags,
+ * gzip done once rather than per request, and permanent caching for versioned URLs.
+ */
+object StaticAssets {
+
+  /** Icons at most this many bytes are included in the HTML as data: URIs rather than fetched separately. 0 means never. */
+  var maxDataURISize = 0
+  /** How long, in seconds, a browser may cache something requested with the right version. */
+  var immutableMaxAge = 31536000
+
+  private[this] val icons = new ConcurrentHashMap[String,StaticAsset]
+  private[this] val files = new ConcurrentHashMap[String,StaticAsset]
+
+  def isCompressible(mimeType:String) = mimeType.startsWith("text/") || mimeType=="image/svg+xml" || mimeType=="application/javascript" || mimeType=="application/json"
+
+  def mimeTypeOfName(name:String) : String = name.substring(name.lastIndexOf('.')+1).toLowerCase match {
+    case "js" => "application/javascript"
+    case "css" => "text/css"
+    case "html" => "text/html"
+    case "svg" => "image/svg+xml"
+    case "png" => "image/png"
+    case "gif" => "image/gif"
+    case "jpg" | "jpeg" => "image/jpeg"
+    case _ => "application/octet-stream"
+  }
+
+  def icon(icon:ResolvedIcon) : StaticAsset = {
+    val existing = icons.get(icon.fileName)
+    if (existing!=null) existing
+    else {
+      val res = new StaticAsset(icon.fileName,icon.mimeType,icon.contents.contents,icon.contents.lastModified)
+      icons.putIfAbsent(icon.fileName,res)
+      res
+    }
+  }
+
+  /** Load all icons known so far into memory, so that the first requests for them are fast. */
+  def preloadIcons() {
+    for (i<-IconManifests.allIcons) try { icon(i) } catch { case e:Exception => e.printStackTrace() }
+  }
+
+  /** The URL to use for an icon in a page served by XSServlet */
+  def iconURL(i:ResolvedIcon) : String = {
+    val asset = icon(i)
+    if (asset.data.length<=maxDataURISize) asset.dataURI
+    else "?sub=icon&name="+URLEncoder.encode(i.fileName,"UTF-8")+"&v="+asset.hash
+  }
+
+  /**
+   * Get a file from the web application, such as "xs/xsedit.js". Only files in the xs directory are allowed.
+   * Cached forever, as these files don't change while the web application is running.
+   */
+  def file(context:ServletContext,name:String) : Option[StaticAsset] = {
+    if (name==null || !name.startsWith("xs/") || name.contains("..")) None
+    else Option(files.get(name)).orElse {
+      val url : URL = context.getResource("/"+name)
+      if (url==null) None
+      else {
+        val conn = url.openConnection()
+        val res = new StaticAsset(name,mimeTypeOfName(name),FileUtil.readAllOfInputStream(conn.getInputStream()),conn.getLastModified())
+        files.putIfAbsent(name,res)
+        Some(res)
+      }
+    }
+  }
+
+  /** URL for a file in the web application, with its version so it can be cached permanently, or the plain name if it can't be found. */
+  def versionedURL(context:ServletContext,name:String) : String = file(context,name) match {
+    case Some(asset) => "?sub=static&name="+URLEncoder.encode(name,"UTF-8")+"&v="+asset.hash
+    case None => name
+  }
+
+  /** Send an asset, or just a "not modified" if the client already has it. */
+  def serve(request:HttpServletRequest,response:HttpServletResponse,asset:StaticAsset) {
+    val ifNoneMatch = request.getHeader("If-None-Match")
+    if (request.getParameter("v")==asset.hash) response.setHeader("Cache-Control","public, max-age="+immutableMaxAge+", immutable")
+    else response.setHeader("Cache-Control","no-cache") // may change, so check the ETag each time
+    response.setHeader("ETag",asset.etag)
+    if (asset.lastModified>0) response.setDateHeader("Last-Modified",asset.lastModified)
+    if (ifNoneMatch!=null) { if (ifNoneMatch.contains(asset.etag) || ifNoneMatch.trim=="*") { response.setStatus(HttpServletResponse.SC_NOT_MODIFIED); return } }
+    else if (asset.lastModified>0 && asset.lastModified<=request.getDateHeader("If-Modified-Since")) { response.setStatus(HttpServletResponse.SC_NOT_MODIFIED); return }
+    response.setContentType(asset.mimeType)
+    val body = asset.gzipped match {
+      case Some(gz) =>
+        response.setHeader("Vary","Accept-Encoding")
+        val accept = request.getHeader("Accept-Encoding")
+        if (accept!=null && accept.contains("gzip")) { response.setHeader("Content-Encoding","gzip"); gz } else asset.data
+      case None => asset.data
+    }
+    response.setContentLength(body.length)
+    val os = response.getOutputStream()
+    os.write(body)
+    os.close()
+  }
+}
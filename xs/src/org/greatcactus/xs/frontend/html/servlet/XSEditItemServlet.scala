@@ -52,12 +52,13 @@ abstract class XSEditItemServlet(val hasTree:Boolean) extends XSServlet {
     val out = response.getWriter();
     out.println("""<!DOCTYPE html>""")
     val xsEditor = new XSEdit(xssi.obj)
-    object Toolbar extends XSToolBar {
+    def toolbar(xsEditor:XSEdit) : Option[XSToolBar] = Some(new XSToolBar {
       override def onSave() { xssi.save(xsEditor.currentObject)}
       override def onRevert() { xsEditor.replaceRoot(xssi.obj)}
       override def useRevert = true
-    }
-    val client = new HTML5Client(xsEditor,Some(Toolbar),Locale.ENGLISH,executionContext)
+    })
+    val client = new HTML5Client(xsEditor,toolbar(xsEditor),Locale.ENGLISH,executionContext)
+    client.reactivate=Some(toolbar _) // the editor is only used by this client, so it can be passivated.
     val page =  
       <html>
         <head>
@@ -71,9 +72,9 @@ abstract class XSEditItemServlet(val hasTree:Boolean) extends XSServlet {
           }
           <script src="jQuery/jquery-1.9.1.min.js"> </script>
           <script src="jQuery/jquery-migrate-1.1.0.js"> </script>
-          <script src="xs/xsedit.js"> </script>
-          <script src="xs/xsPTF.js"> </script>
-          <script src="xs/xsGrid.js"> </script>
+          <script src={staticURL("xs/xsedit.js")}> </script>
+          <script src={staticURL("xs/xsPTF.js")}> </script>
+          <script src={staticURL("xs/xsGrid.js")}> </script>
           <script src="jQueryUI/js/jquery-ui-1.10.0.custom.min.js"></script>
           <script src="jQuery/jquery.event.drag-2.2.js"></script>
           <script src="jQuery/jquery.event.drop-2.2.js"></script>
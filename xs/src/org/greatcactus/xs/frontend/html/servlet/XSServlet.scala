@@ -20,11 +20,19 @@ import java.io.FileOutputStream
 import org.greatcactus.xs.api.icon.IconManifests
 import org.greatcactus.xs.api.icon.URLOfIcon
 import org.greatcactus.xs.api.icon.ResolvedIcon
-import java.net.URLEncoder
 import scala.concurrent.Await
 import org.greatcactus.xs.frontend.XSToolBar
 import scala.concurrent.ExecutionContext
 import org.greatcactus.xs.impl.XSExecutionContext
+import org.greatcactus.xs.impl.DependencyInjectionMetrics
+import javax.servlet.AsyncContext
+import javax.servlet.AsyncListener
+import javax.servlet.AsyncEvent
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.JavaConverters._
+import scala.util.Success
+import scala.util.Failure
 
 /**
  * A base class for a typical servlet using the XS framework. Takes care of the XS connections (images, comet, events) and separates out the user code.
@@ -32,10 +40,17 @@ import org.greatcactus.xs.impl.XSExecutionContext
 abstract class XSServlet extends HttpServlet {  
   
   import concurrent.ExecutionContext
-  val executorService = java.util.concurrent.Executors.newFixedThreadPool(4)
-  val executionContext = ExecutionContext.fromExecutorService(executorService)
+  /** 
+   * Override to return true to run dependency injection futures and commands with a thread per task rather than a fixed pool of 4 threads. 
+   * This is better if user code blocks. See XSExecutionContext.threadPerTask. 
+   */
+  def useThreadPerTask : Boolean = false
+  val executionContext = if (useThreadPerTask) XSExecutionContext.threadPerTask() else ExecutionContext.fromExecutorService(java.util.concurrent.Executors.newFixedThreadPool(4))
+  val executorService : java.util.concurrent.ExecutorService = executionContext
   
   XSExecutionContext.context = executionContext
+  DependencyInjectionMetrics.registerJMX()
+  SessionManagement.registerJMX()
 
   //val executionContext : ExecutionContext = scala.concurrent.ExecutionContext.Implicits.global
   
@@ -45,28 +60,42 @@ abstract class XSServlet extends HttpServlet {
   override def doGet(request:HttpServletRequest,response:HttpServletResponse) {
     request.getParameter("sub") match {
       case null => mainPage(request,response)
-      case "icon" => XSServletUtil.icon(response,request.getParameter("name"),request.getDateHeader("If-Modified-Since"))
+      case "icon" => XSServletUtil.icon(request,response)
+      case "static" => XSServletUtil.staticFile(getServletContext(),request,response)
     }
   }
 
+  /** URL for a file in the xs directory of the web application, such as "xs/xsedit.js", that can be cached by the browser until it changes. */
+  def staticURL(name:String) : String = StaticAssets.versionedURL(getServletContext(),name)
 
   IconManifests.urlOfIcon = new URLOfIcon {
-    def apply(icon:ResolvedIcon) : String = "?sub=icon&name="+URLEncoder.encode(icon.fileName,"UTF-8")
+    def apply(icon:ResolvedIcon) : String = StaticAssets.iconURL(icon)
   }
   
   private val openCometThreadsSync = new Object
   private var openCometThreads : Set[Thread] = Set.empty
+  /** Suspended comet requests, mapped to a function that will complete them with no message */
+  private val openAsyncComets = new ConcurrentHashMap[AsyncContext,()=>Unit]
+  
+  /** 
+   * Backstop timeout, in milliseconds, for a suspended comet request. The session normally times the request out itself 
+   * (via SessionManagement.scheduler) well before this.
+   */
+  var asyncCometTimeout = 30000L
   
   /** Sending via comet or message */
   override def doPost(request:HttpServletRequest,response:HttpServletResponse) {
     val responseMessage = (for (sessionID<-Option(request.getParameter("xsSessionID"));e<-SessionManagement.get(sessionID)) yield e) match {
       case Some(session) =>
         request.getParameter("sub") match {
-          case "comet" =>
+          case "comet" if request.isAsyncSupported() =>
+            cometAsync(session,request)
+            return
+          case "comet" => // container does not support async - have to block a thread.
             val t = Thread.currentThread()
             openCometThreadsSync.synchronized{ openCometThreads+=t }
             val res = try {
-              Await.result(session.cometCallFuture,scala.concurrent.duration.Duration.Inf) // TODO should do asynchronously rather than await.
+              Await.result(session.cometCallFuture,scala.concurrent.duration.Duration.Inf)
             } catch { case _:InterruptedException => None }
             openCometThreadsSync.synchronized{ openCometThreads-=t }
               //session.cometCallShouldReturnImmediately().orElse{session.cometCall()}
@@ -87,6 +116,10 @@ abstract class XSServlet extends HttpServlet {
         }
       case None => Some(ClientMessage.lostSession)
     } 
+    writeResponse(response,responseMessage)
+  }
+  
+  private def writeResponse(response:HttpServletResponse,responseMessage:Option[ClientMessage]) {
     response.setContentType("text/json");
     responseMessage match {
       case Some(message) => message.serialize(response.getOutputStream())
@@ -94,13 +127,62 @@ abstract class XSServlet extends HttpServlet {
     }
   }
   
+  /** 
+   * Suspend the request until the session has something to send, or times out. No thread is held while waiting. The response
+   * is written on a container thread (via AsyncContext.start) rather than on whatever thread completed the promise, as that
+   * thread holds the session's outgoing lock. A message that comes after the request has already been finished (e.g. timed out)
+   * has been taken from the session, so it is put back to go with the next comet request.
+   */
+  private def cometAsync(session:HTTPSession,request:HttpServletRequest) {
+    val async = request.startAsync()
+    async.setTimeout(asyncCometTimeout)
+    val done = new AtomicBoolean(false)
+    /** Write the response, unless it has already been done. Returns false if it had. */
+    def finish(message:Option[ClientMessage]) : Boolean = {
+      if (done.compareAndSet(false,true)) {
+        openAsyncComets.remove(async)
+        try {
+          writeResponse(async.getResponse().asInstanceOf[HttpServletResponse],message)
+        } catch { case e:Exception => e.printStackTrace() } 
+        finally { try { async.complete() } catch { case e:IllegalStateException => } }
+        true
+      } else false
+    }
+    openAsyncComets.put(async,()=>finish(None))
+    async.addListener(new AsyncListener() {
+      override def onTimeout(event:AsyncEvent) { finish(None) }
+      override def onError(event:AsyncEvent) { finish(None) }
+      override def onComplete(event:AsyncEvent) { openAsyncComets.remove(async) }
+      override def onStartAsync(event:AsyncEvent) {}
+    })
+    session.cometCallFuture.onComplete{result =>
+      val message = result match {
+        case Success(m) => m
+        case Failure(_) => None
+      }
+      def requeue() { for (m<-message) session.requeueMessage(m) }
+      if (done.get) requeue()
+      else try {
+        async.start(new Runnable() { override def run() { if (!finish(message)) requeue() }})
+      } catch { case e:IllegalStateException => requeue() } // the request has already completed.
+    }(XSServlet.callingThread)
+  }
+  
+  override def init() {
+    super.init()
+    StaticAssets.preloadIcons() // so the first page's icons don't each wait to be read and hashed.
+  }
+
   override def destroy() {
     println("Start destroy in XSServlet")
     println("Current open comet threads = "+openCometThreads)
     var tokill = openCometThreads
     for (k<-tokill) k.interrupt()
+    for (finish<-openAsyncComets.values.asScala) finish()
     executorService.shutdown()
     SessionManagement.scheduler.shutdownNow()
+    DependencyInjectionMetrics.unregisterJMX()
+    SessionManagement.unregisterJMX()
     Thread.sleep(10)
     super.destroy()
     println("About to end destroy in  XSServlet")
@@ -110,4 +192,12 @@ abstract class XSServlet extends HttpServlet {
   }
   
 
-}  
\ No newline at end of file
+}
+
+object XSServlet {
+  /** Run a callback on whatever thread completes a future. Only for callbacks that do almost nothing. */
+  private object callingThread extends ExecutionContext {
+    override def execute(runnable:Runnable) { runnable.run() }
+    override def reportFailure(t:Throwable) { t.printStackTrace() }
+  }
+}
@@ -3,6 +3,8 @@
  */
 package org.greatcactus.xs.frontend.html.servlet
 
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import org.greatcactus.xs.api.icon.IconManifests
 
@@ -11,18 +13,21 @@ import org.greatcactus.xs.api.icon.IconManifests
  */
 object XSServletUtil {
   
-  /** Return an icon with the given name. Use the lastMod to see if hasn't changed */
-  def icon(response:HttpServletResponse,name:String,lastMod:Long) {
+  /** Return the icon named in the "name" parameter. See StaticAssets.serve for caching. */
+  def icon(request:HttpServletRequest,response:HttpServletResponse) {
+    val name = request.getParameter("name")
     if (name==null || name.isEmpty) response.sendError(HttpServletResponse.SC_BAD_REQUEST,"Query string doesn't make sense")
     else IconManifests.iconFromFilename(name) match {
       case None => response.sendError(HttpServletResponse.SC_NOT_FOUND)
-      case Some(icon) if icon.contents.lastModified>0 &&  icon.contents.lastModified <= lastMod => response.sendError(HttpServletResponse.SC_NOT_MODIFIED) 
-      case Some(icon) => 
-        response.setContentType(icon.mimeType)
-        if (icon.contents.lastModified>0) response.setDateHeader("Last-Modified",icon.contents.lastModified)
-        val os = response.getOutputStream();
-        os.write(icon.data)
-        os.close()
+      case Some(icon) => StaticAssets.serve(request,response,StaticAssets.icon(icon))
+    }
+  }
+  
+  /** Return the static file (in the xs directory of the web application) named in the "name" parameter. */
+  def staticFile(context:ServletContext,request:HttpServletRequest,response:HttpServletResponse) {
+    StaticAssets.file(context,request.getParameter("name")) match {
+      case None => response.sendError(HttpServletResponse.SC_NOT_FOUND)
+      case Some(asset) => StaticAssets.serve(request,response,asset)
     }
   }
 
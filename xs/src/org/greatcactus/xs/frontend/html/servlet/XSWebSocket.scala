@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.html.servlet
+
+import javax.websocket.Endpoint
+import javax.websocket.EndpointConfig
+import javax.websocket.MessageHandler
+import javax.websocket.CloseReason
+import javax.websocket.SendHandler
+import javax.websocket.SendResult
+import javax.websocket.server.ServerApplicationConfig
+import javax.websocket.server.ServerEndpointConfig
+import org.greatcactus.xs.frontend.html._
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import scala.collection.JavaConverters._
+
+/**
+ * A websocket transport for XS sessions, an alternative to the comet and message posts in XSServlet.
+ *
+ * To use it, make a concrete subclass of XSWebSocketApplicationConfig (the container will find it), and set xs.wsURL
+ * in the page to the corresponding ws: URL. The client connects with the parameter xsSessionID.
+ *
+ * Messages from the server are batched - everything that arrives while a frame is being sent goes into the next frame,
+ * with stale updates coalesced by a CoalescingMessageQueue.
+ * Messages from the client are batched by the client per event loop tick, and each frame is prefixed by a count and a newline
+ * so that they go through HTTPSession.receivedPossiblyUnorderedMessage just like posted messages.
+ *
+ * Compression is left to the container's per message deflate extension (permessage-deflate), which browsers negotiate automatically.
+ */
+class XSWebSocketEndpoint extends Endpoint {
+
+  override def onOpen(wsSession:javax.websocket.Session,config:EndpointConfig) {
+    val sessionID = wsSession.getRequestParameterMap().get("xsSessionID") match {
+      case null => None
+      case l => l.asScala.headOption
+    }
+    sessionID.flatMap{SessionManagement.get(_)} match {
+      case Some(session) =>
+        val connection = new XSWebSocketConnection(wsSession,session)
+        wsSession.getUserProperties().put(XSWebSocketEndpoint.connectionKey,connection)
+        wsSession.addMessageHandler(new MessageHandler.Whole[String]() {
+          override def onMessage(text:String) { connection.received(text) }
+        })
+        connection.start()
+      case None =>
+        wsSession.getBasicRemote().sendText(ClientMessage.lostSession.serializeToString())
+        wsSession.close()
+    }
+  }
+
+  override def onClose(wsSession:javax.websocket.Session,reason:CloseReason) {
+    wsSession.getUserProperties().get(XSWebSocketEndpoint.connectionKey) match {
+      case c:XSWebSocketConnection => c.closed()
+      case _ =>
+    }
+  }
+
+  override def onError(wsSession:javax.websocket.Session,error:Throwable) {
+    error.printStackTrace()
+  }
+}
+
+object XSWebSocketEndpoint {
+  private val connectionKey = "xsConnection"
+  /** How often, in milliseconds, to ping the client. This keeps both the connection and the HTTPSession alive while the user is idle. */
+  var pingInterval = 30000L
+  /** The number of threads in flushExecutor. Only read when it is created. */
+  var flushThreads = 4
+  
+  /** 
+   * Serializes and starts sending frames, when a connection was idle. Later frames are started by the container when the previous one 
+   * has been sent. This is not SessionManagement.scheduler, so a slow client can't hold up the session timeouts, and is more than one 
+   * thread so it can't hold up every other client. Uses daemon threads.
+   */
+  lazy val flushExecutor:ExecutorService = Executors.newFixedThreadPool(flushThreads,new ThreadFactory() {
+    override def newThread(r:Runnable) = {
+      val t = new Thread(r,"XS websocket flush")
+      t.setDaemon(true)
+      t
+    }
+  })
+}
+
+/** The glue between one websocket and the HTTPSession it talks to. */
+class XSWebSocketConnection(wsSession:javax.websocket.Session,session:HTTPSession) {
+  private[this] val outgoing = new CoalescingMessageQueue(SessionManagement.maxPendingMessages,SessionManagement.maxPendingSize)
+  /** Set if outgoing overflowed. The client is sent ClientMessage.resync, and then the socket is closed */
+  @volatile private[this] var resyncPending = false
+  /** true iff a frame is being sent, or a flush has been requested and not yet run. Only one asynchronous send may be in progress at a time. */
+  private[this] var busy = false
+  private[this] var ping : Option[ScheduledFuture[_]] = None
+  @volatile private[this] var isClosed = false
+
+  def start() {
+    session.setDirectSendToClient(send)
+    val interval = XSWebSocketEndpoint.pingInterval
+    ping = Some(SessionManagement.scheduler.scheduleWithFixedDelay(new Runnable() { override def run() { send(ClientMessage.ping) }},interval,interval,TimeUnit.MILLISECONDS))
+  }
+
+  def send(message:ClientMessage) {
+    if (!isClosed && !resyncPending) {
+      if (!outgoing.add(message)) {
+        println("Too many messages pending for websocket session "+session.id+" : resynchronizing")
+        SessionManagement.recordResync()
+        resyncPending=true
+        outgoing.clear()
+        outgoing.add(ClientMessage.resync)
+      }
+      val shouldFlush = synchronized { if (busy) false else { busy=true; true } }
+      if (shouldFlush) XSWebSocketEndpoint.flushExecutor.execute(new Runnable() { override def run() { flush() }})
+    }
+  }
+
+  private def flush() {
+    outgoing.drain() match {
+      case Some(message) if !isClosed =>
+        //println("Sending "+message)
+        try {
+          wsSession.getAsyncRemote().sendText(message.serializeToString(),new SendHandler() {
+            override def onResult(result:SendResult) {
+              if (result.isOK()) { session.keepAlive(); flush() }
+              else { result.getException().printStackTrace(); closed() }
+            }
+          })
+        } catch { case e:Exception => e.printStackTrace(); closed() }
+      case _ =>
+        // a message may have been added after the get() by a sender that saw busy set.
+        val again = synchronized { if (outgoing.isEmpty || isClosed) { busy=false; false } else true }
+        if (again) flush()
+        else if (resyncPending && !isClosed) wsSession.close()
+    }
+  }
+
+  /** A frame from the client, either "count\njson" or just json for a client that does not number its frames. */
+  def received(text:String) {
+    session.keepAlive()
+    val newline = text.indexOf('\n')
+    try {
+      if (newline>0 && text.charAt(0)!='{') session.receivedPossiblyUnorderedMessage(ClientMessage.deserialize(text.substring(newline+1)),text.substring(0,newline).toLong)
+      else session.receivedOrderedMessage(ClientMessage.deserialize(text))
+    } catch { case e:Exception => e.printStackTrace() }
+  }
+
+  def closed() {
+    if (!isClosed) {
+      isClosed=true
+      for (p<-ping) p.cancel(false)
+      session.dispose() // the client reloads the page when the websocket closes, making a new session.
+    }
+  }
+}
+
+/**
+ * Deploys XSWebSocketEndpoint. Make a concrete subclass (overriding path if desired) and the servlet container will find it.
+ */
+abstract class XSWebSocketApplicationConfig extends ServerApplicationConfig {
+  /** The path, relative to the web application, of the websocket */
+  def path : String = "/xsws"
+
+  override def getEndpointConfigs(scanned:java.util.Set[Class[_ <: Endpoint]]) : java.util.Set[ServerEndpointConfig] = {
+    Set(ServerEndpointConfig.Builder.create(classOf[XSWebSocketEndpoint],path).build()).asJava
+  }
+  override def getAnnotatedEndpointClasses(scanned:java.util.Set[Class[_]]) : java.util.Set[Class[_]] = scanned
+}
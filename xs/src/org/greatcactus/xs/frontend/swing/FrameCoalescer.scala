@@ -0,0 +1,36 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.frontend.swing
+
+import javax.swing.Timer
+import javax.swing.SwingUtilities
+import java.awt.event.ActionListener
+import java.awt.event.ActionEvent
+
+/**
+ * Calls flush on the Swing event dispatch thread at most once per frame, however many times (and from whatever threads)
+ * request() is called in the meantime. Used to turn a stream of changes from background threads into one GUI update.
+ */
+class FrameCoalescer(flush: ()=>Unit) {
+  private[this] var scheduled = false
+  private[this] val timer = new Timer(FrameCoalescer.frameMillis,new ActionListener {
+    override def actionPerformed(e:ActionEvent) {
+      FrameCoalescer.this.synchronized { scheduled=false } // anything requested during flush gets another frame.
+      flush()
+    }
+  })
+  timer.setRepeats(false)
+
+  def request() {
+    val start = synchronized { val res = !scheduled; scheduled=true; res }
+    if (start) timer.start()
+  }
+}
+
+object FrameCoalescer {
+  /** Time between updates, in milliseconds. Must be set before FrameCoalescers are created. */
+  @volatile var frameMillis = 16
+
+  def isEDT : Boolean = SwingUtilities.isEventDispatchThread()
+}
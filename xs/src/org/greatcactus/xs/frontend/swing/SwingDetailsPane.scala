@@ -46,6 +46,31 @@ class SwingDetailsPane(_locale:Locale,_xsedit:XSEdit) extends XSDetailsPane[Comp
   
   def flushClientCommands() {}
 
+  // changes from other threads, waiting to be shown on the event dispatch thread.
+  private[this] val pendingChanges = new ListBuffer[TreeNodeChange]
+  private[this] var pendingDataChanged = false
+  private[this] val coalescer = new FrameCoalescer(() => {
+    val merged = pendingChanges.synchronized {
+      val res = new TreeChange(pendingChanges.toList,pendingDataChanged)
+      pendingChanges.clear()
+      pendingDataChanged=false
+      res
+    }
+    if (!merged.elements.isEmpty) super.refresh(merged)
+  })
+
+  /** Changes made on other threads are merged and shown at most once per frame. */
+  override def refresh(changes:TreeChange) {
+    if (FrameCoalescer.isEDT) super.refresh(changes)
+    else {
+      pendingChanges.synchronized {
+        pendingChanges++=changes.elements
+        pendingDataChanged|=changes.dataChanged
+      }
+      coalescer.request()
+    }
+  }
+
   def newCreator() = new GUICreatorSwing(this)
 
   override def changeUITextField(id:Component,shouldBe:String) { id match {
@@ -3,100 +3,204 @@
  */
 package org.greatcactus.xs.frontend.swing
 
-import javax.swing.tree.DefaultMutableTreeNode
 import javax.swing.JTree
 import javax.swing.JScrollPane
 import javax.swing.event.TreeSelectionListener
 import javax.swing.event.TreeSelectionEvent
-import javax.swing.tree.DefaultTreeModel
+import javax.swing.event.TreeModelListener
+import javax.swing.event.TreeModelEvent
+import javax.swing.event.EventListenerList
+import javax.swing.tree.TreeModel
 import javax.swing.tree.TreePath
 import scala.swing.Component
+import scala.collection.mutable.LinkedHashSet
 import javax.swing.event.TreeExpansionListener
 import javax.swing.event.TreeExpansionEvent
 import org.greatcactus.xs.frontend._
 
 /**
  * A Swing implementation of the TreePane (to the left of the SwingDetailsPane)
+ *
+ * Changes may come from any thread. They are noted, and applied on the event dispatch thread at most once per frame.
  */
 class SwingTreePane(edit:XSEdit) extends XSEditListener {
-  
-  var currentlyEditing = edit.currentlyEditing
-  var lookup : Map[XSTreeNode,DefaultMutableTreeNode] = Map.empty
-  
-  private def build(node:XSTreeNode) : DefaultMutableTreeNode = {
-      val gui = new DefaultMutableTreeNode(node)
-      lookup+=node->gui
-      for (c<-node.treeChildren) gui.add(build(c))
-      gui
-  }
-  
-  val treeModel = new DefaultTreeModel(build(edit.treeRoot))
+
+  @volatile var currentlyEditing = edit.currentlyEditing
+
+  val treeModel = new SwingTreeModel(edit.treeRoot)
   val jtree = new JTree(treeModel)
-  
+
     jtree.addTreeSelectionListener(new TreeSelectionListener {
       override def valueChanged(e:TreeSelectionEvent) {
         jtree.getLastSelectedPathComponent match {
-          case n:DefaultMutableTreeNode =>
-            val node = n.getUserObject.asInstanceOf[XSTreeNode]
-            currentlyEditing=node
-            edit.changeCurrentlyEditing(node)
+          case n:SwingTreeNode =>
+            val node = n.node
+            if (currentlyEditing!=node) {
+              currentlyEditing=node
+              edit.changeCurrentlyEditing(node)
+            }
           case _ =>
         }
       }
     })
-  
+
   jtree.addTreeExpansionListener(new TreeExpansionListener {
     override def treeExpanded(e:TreeExpansionEvent) { state(e,true) }
     override def treeCollapsed(e:TreeExpansionEvent) { state(e,false) }
-    
+
     def state(e:TreeExpansionEvent,isOpen:Boolean) {
       e.getPath().getLastPathComponent() match {
-        case n:DefaultMutableTreeNode => 
-          val node = n.getUserObject.asInstanceOf[XSTreeNode]
+        case n:SwingTreeNode =>
+          val node = n.node
           //println("Expanded "+node+" state="+isOpen)
-          edit.setOpen(node,isOpen)
+          if (node.isOpen!=isOpen) edit.setOpen(node,isOpen)
         case _ => println("Strange thing expanded")
       }
     }
   })
-    
+
+  syncExpansion(treeModel.root)
+
   val treeView = new JScrollPane(jtree)
   val wrapped = Component.wrap(treeView)
-  
-  
-  def removeFromLookup(n:DefaultMutableTreeNode) {
-    lookup-=n.getUserObject.asInstanceOf[XSTreeNode]
-    import collection.JavaConversions._
-    for (c<-n.children().toSeq) removeFromLookup(c.asInstanceOf[DefaultMutableTreeNode])
-  }
-  
-  def change(c:TreeNodeChange) {
-    val parent = lookup(c.parent)
-    if (c.changedStructure) {
-      for (d<-c.removedChildren;dd<-lookup.get(d)) treeModel.removeNodeFromParent(dd)
-      for (n<-c.addedChildren.sortBy{c.children.indexOf(_)}) treeModel.insertNodeInto(build(n),parent,c.children.indexOf(n))
-      treeModel.nodeStructureChanged(parent)
-    }
-    val parentpath = getPath(parent)
-    val currentlyExpanded = jtree.isExpanded(parentpath)
-    if (currentlyExpanded!=c.parent.isOpen) {
-      if (c.parent.isOpen) jtree.expandPath(parentpath)
-      else jtree.collapsePath(parentpath)
-    }
-    treeModel.nodeChanged(parent)
-    for (sub<-c.sub) change(sub)
+
+  // changes waiting to be applied on the event dispatch thread
+  private[this] val pendingStructure = new LinkedHashSet[XSTreeNode]
+  private[this] val pendingChanged = new LinkedHashSet[XSTreeNode]
+  private[this] var pendingSelection : Option[XSTreeNode] = None
+  private[this] val coalescer = new FrameCoalescer(flush)
+
+  private def note(c:TreeNodeChange) {
+    if (c.changedStructure) pendingStructure+=c.parent else pendingChanged+=c.parent
+    for (sub<-c.sub) note(sub)
   }
   override def apply(changes:TreeChange) {
-    for (e<-changes.elements) change(e)
+    synchronized { for (e<-changes.elements) note(e) }
+    if (FrameCoalescer.isEDT) flush() else coalescer.request()
   }
   override def setCurrentlyEditing(node:Option[XSTreeNode]) {
-    for (n<-node;ln<-lookup.get(n)) if (currentlyEditing!=n) {
+    if (node.isDefined) {
+      synchronized { pendingSelection=node }
+      if (FrameCoalescer.isEDT) flush() else coalescer.request()
+    }
+  }
+
+  /** Apply pending changes. Must be called on the event dispatch thread. */
+  private def flush() {
+    val (structure,changed,selection) = synchronized {
+      val res = (pendingStructure.toList,(pendingChanged--pendingStructure).toList,pendingSelection)
+      pendingStructure.clear()
+      pendingChanged.clear()
+      pendingSelection=None
+      res
+    }
+    for (n<-structure;s<-treeModel.loaded(n)) {
+      treeModel.structureChanged(s)
+      syncExpansion(s)
+    }
+    for (n<-changed;s<-treeModel.loaded(n)) {
+      treeModel.nodeChanged(s)
+      syncExpansion(s)
+    }
+    for (n<-selection;s<-treeModel.find(n)) {
       currentlyEditing=n
-      val path = getPath(ln)
-      jtree.setSelectionPath(path) 
+      val path = s.path
+      if (jtree.getSelectionPath!=path) jtree.setSelectionPath(path)
     }
   }
 
+  /** Make the JTree's expansion state for a node and its loaded descendants agree with XSTreeNode.isOpen. Opening a node loads its children. */
+  private def syncExpansion(s:SwingTreeNode) {
+    val path = s.path
+    if (jtree.isExpanded(path)!=s.node.isOpen) {
+      if (s.node.isOpen) jtree.expandPath(path)
+      else jtree.collapsePath(path)
+    }
+    if (s.node.isOpen) for (c<-s.loadedChildren) syncExpansion(c)
+  }
 
-  def getPath(node:DefaultMutableTreeNode) = new TreePath(node.getPath().asInstanceOf[Array[Object]])
-}
\ No newline at end of file
+  def getPath(node:SwingTreeNode) = node.path
+}
+
+/**
+ * The Swing view of an XSTreeNode. The children are only made when Swing asks for them, which it does when this node is expanded.
+ * Only used in the event dispatch thread.
+ */
+class SwingTreeNode(val node:XSTreeNode,val parent:SwingTreeNode) {
+  private[swing] var children : IndexedSeq[SwingTreeNode] = null // null if not loaded yet.
+
+  def loadedChildren : IndexedSeq[SwingTreeNode] = if (children==null) IndexedSeq.empty else children
+  def path : TreePath = if (parent==null) new TreePath(this) else parent.path.pathByAddingChild(this)
+  override def toString = node.toString
+}
+
+/**
+ * A TreeModel backed by XSTreeNode.treeChildren, with nodes made lazily. Only used in the event dispatch thread.
+ * The children of a node are a snapshot, taken when first asked for and refreshed by structureChanged, so that the JTree
+ * never sees a structure that it has not been told about.
+ */
+class SwingTreeModel(rootNode:XSTreeNode) extends TreeModel {
+  val root = new SwingTreeNode(rootNode,null)
+  private[this] val listeners = new EventListenerList
+  private[this] var lookup : Map[XSTreeNode,SwingTreeNode] = Map(rootNode->root) // the nodes that have been made.
+
+  private def childrenOf(parent:AnyRef) : IndexedSeq[SwingTreeNode] = parent match {
+    case s:SwingTreeNode =>
+      if (s.children==null) s.children = makeChildren(s,Map.empty)
+      s.children
+    case _ => IndexedSeq.empty
+  }
+
+  private def makeChildren(s:SwingTreeNode,reuse:Map[XSTreeNode,SwingTreeNode]) : IndexedSeq[SwingTreeNode] = {
+    for (c<-s.node.treeChildren) yield reuse.getOrElse(c,{ val res = new SwingTreeNode(c,s); lookup+=c->res; res })
+  }
+
+  private def forget(s:SwingTreeNode) {
+    lookup-=s.node
+    for (c<-s.loadedChildren) forget(c)
+  }
+
+  /** The Swing node for the given node, if it has been made. */
+  def loaded(node:XSTreeNode) : Option[SwingTreeNode] = lookup.get(node)
+
+  /** The Swing node for the given node, making it (and its ancestors) if necessary. None if the node is no longer in the tree. */
+  def find(node:XSTreeNode) : Option[SwingTreeNode] = lookup.get(node).orElse {
+    if (node.parent==null) None
+    else find(node.parent).flatMap{p=>childrenOf(p).find{_.node eq node}}
+  }
+
+  def getRoot : AnyRef = root
+  def getChild(parent:AnyRef,index:Int) : AnyRef = childrenOf(parent)(index)
+  def getChildCount(parent:AnyRef) : Int = childrenOf(parent).length
+  def isLeaf(node:AnyRef) : Boolean = node match {
+    case s:SwingTreeNode => if (s.children==null) s.node.treeChildren.isEmpty else s.children.isEmpty
+    case _ => true
+  }
+  def getIndexOfChild(parent:AnyRef,child:AnyRef) : Int = if (parent==null || child==null) -1 else childrenOf(parent).indexOf(child)
+  def valueForPathChanged(path:TreePath,newValue:AnyRef) {}
+  def addTreeModelListener(l:TreeModelListener) { listeners.add(classOf[TreeModelListener],l) }
+  def removeTreeModelListener(l:TreeModelListener) { listeners.remove(classOf[TreeModelListener],l) }
+
+  /** The children of s may have changed. Retakes the snapshot (if there was one) and tells listeners */
+  def structureChanged(s:SwingTreeNode) {
+    if (s.children!=null) {
+      val old = s.children
+      val reuse : Map[XSTreeNode,SwingTreeNode] = (for (c<-old) yield c.node->c)(collection.breakOut)
+      s.children = makeChildren(s,reuse)
+      val kept = s.children.toSet
+      for (c<-old if !kept.contains(c)) forget(c)
+    }
+    val e = new TreeModelEvent(this,s.path)
+    for (l<-listeners.getListeners(classOf[TreeModelListener])) l.treeStructureChanged(e)
+  }
+
+  /** The label etc. of s may have changed */
+  def nodeChanged(s:SwingTreeNode) {
+    val e = if (s.parent==null) new TreeModelEvent(this,s.path,null,null) else {
+      val index = s.parent.loadedChildren.indexOf(s)
+      if (index<0) return
+      new TreeModelEvent(this,s.parent.path,Array(index),Array[AnyRef](s))
+    }
+    for (l<-listeners.getListeners(classOf[TreeModelListener])) l.treeNodesChanged(e)
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.impl
+
+import scala.concurrent.ExecutionContext
+import scala.collection.mutable.ListBuffer
+import scala.util.control.NonFatal
+import org.greatcactus.xs.api.command.ProgressMonitor
+import org.greatcactus.xs.api.command.ProgressMonitorSource
+import org.greatcactus.xs.api.display.RichLabel
+import org.greatcactus.xs.util.EqualityByPointerEquality
+
+/** What happened when a command was run */
+class CommandOutcome(val success:Boolean,val message:Option[RichLabel])
+
+object CommandOutcome {
+  val cancelled = new CommandOutcome(false,Some(RichLabel("Cancelled")))
+}
+
+/** 
+ * Two requests to run a command with equal keys will produce the same result: same session (XSEdit), same function, same object, 
+ * same arguments (other than progress monitors). The session is included as objects may be shared between sessions, and one user's
+ * request should not be merged with (or cancelled by) another's.
+ */
+case class CommandKey(session:EqualityByPointerEquality[AnyRef],function:DependencyInjectionFunction,parentObject:EqualityByPointerEquality[AnyRef],args:List[EqualityByPointerEquality[AnyRef]])
+
+/** Someone wanting a command run. work runs the command, reporting progress to monitor. */
+private[impl] class CommandRequester(val monitor:ProgressMonitor,val release:()=>Unit,val work:()=>CommandOutcome)
+
+/**
+ * A command waiting to be run, or running. waiting has everyone who wants the result, in order. When it is started, the first
+ * of them becomes the leader, whose work is actually done. The others are duplicate requests that get the same outcome.
+ */
+private[impl] class CommandJob(val key:Option[CommandKey],val session:AnyRef,val priority:Int,val executionContext:ExecutionContext) {
+  var waiting : List[CommandRequester] = Nil
+  var leader : CommandRequester = null // set when started
+  var lastPosition = 0 // last queue position told to the waiting monitors. 0 means not queued.
+}
+
+/**
+ * Runs @XSCommand methods. At most maxConcurrent run at once, and at most maxConcurrentPerSession for one session (XSEdit).
+ * Others are queued, higher priority (see XSCommand.priority) first, and otherwise in the order requested. Progress monitors
+ * are told their position in the queue.
+ *
+ * A request for a command that is already queued or running with the same key (same function on the same unchanged
+ * object with the same arguments, in the same session) does not run it again but gets the same outcome.
+ *
+ * Cancelling a queued request removes it from the queue. Cancelling a running one cancels the work, and any duplicate
+ * requests waiting for it get told it was cancelled.
+ */
+object CommandScheduler {
+  /** Maximum number of commands running at once over all sessions */
+  @volatile var maxConcurrent = 8
+  /** Maximum number of commands running at once for one session */
+  @volatile var maxConcurrentPerSession = 2
+  /** Whether duplicate requests are coalesced */
+  @volatile var coalesceDuplicates = true
+
+  private[this] var queue : List[CommandJob] = Nil // in the order they should be started
+  private[this] var running : List[CommandJob] = Nil
+
+  def numberRunning : Int = synchronized { running.length }
+  def numberQueued : Int = synchronized { queue.length }
+
+  def key(session:AnyRef,function:DependencyInjectionFunction,parentObject:AnyRef,args:Seq[AnyRef]) : Option[CommandKey] = {
+    if (parentObject==null) None
+    else Some(CommandKey(EqualityByPointerEquality(session),function,EqualityByPointerEquality(parentObject),args.toList.filter{
+        case _:ProgressMonitor => false
+        case _:ProgressMonitorSource => false
+        case _ => true
+      }.map{EqualityByPointerEquality(_)}))
+  }
+
+  /**
+   * Run work when there is capacity. monitor gets told the outcome (failed or succeeded) and then release is called.
+   * work should not tell the monitor the outcome itself.
+   **/
+  def submit(key:Option[CommandKey],session:AnyRef,priority:Int,monitor:ProgressMonitor,release:()=>Unit,work:()=>CommandOutcome,executionContext:ExecutionContext) {
+    val requester = new CommandRequester(monitor,release,work)
+    val toStart = synchronized {
+      val existing = if (coalesceDuplicates && key.isDefined) (running:::queue).find{_.key==key} else None
+      existing match {
+        case Some(job) => job.waiting:+=requester
+        case None =>
+          val job = new CommandJob(key,session,priority,executionContext)
+          job.waiting=List(requester)
+          val (before,after) = queue.span{_.priority>=priority}
+          queue = before:::job::after
+      }
+      dispatch()
+    }
+    monitor.addNotifyOfCancel(() => cancelled(requester))
+    for (job<-toStart) start(job)
+    notifyPositions()
+  }
+
+  /** Move jobs from the queue to running, as limits permit. Must be called while synchronized. Returns the jobs to start. */
+  private[this] def dispatch() : List[CommandJob] = {
+    val res = new ListBuffer[CommandJob]
+    var candidates = queue
+    while (running.length<maxConcurrent && !candidates.isEmpty) {
+      val job = candidates.head
+      candidates=candidates.tail
+      if (running.count{_.session eq job.session}<maxConcurrentPerSession) {
+        queue = queue.filter{_ ne job}
+        running = job::running
+        job.leader = job.waiting.head
+        res+=job
+      }
+    }
+    res.toList
+  }
+
+  private[this] def start(job:CommandJob) {
+    if (job.lastPosition!=0) for (r<-job.waiting) r.monitor.queued(0)
+    try {
+      job.executionContext.execute(new Runnable() {
+        override def run() { runJob(job) }
+      })
+    } catch { case NonFatal(e) => e.printStackTrace(); finished(job,new CommandOutcome(false,Some(RichLabel("Could not run command")))) } // e.g. rejected as shut down.
+  }
+
+  private[this] def runJob(job:CommandJob) {
+    val outcome = try { job.leader.work() } catch { case NonFatal(e) => e.printStackTrace(); new CommandOutcome(false,Some(RichLabel("Could not run command"))) }
+    finished(job,outcome)
+  }
+
+  private[this] def finished(job:CommandJob,outcome:CommandOutcome) {
+    val (toNotify,toStart) = synchronized {
+      running = running.filter{_ ne job}
+      val toNotify = job.waiting
+      job.waiting=Nil
+      (toNotify,dispatch())
+    }
+    for (r<-toNotify) {
+      try {
+        if (outcome.success) r.monitor.succeeded(outcome.message) else r.monitor.failed(outcome.message)
+      } finally { r.release() }
+    }
+    for (j<-toStart) start(j)
+    notifyPositions()
+  }
+
+  /** Called when a requester's monitor is cancelled. If it is running the work, the work will notice by itself. */
+  private[this] def cancelled(requester:CommandRequester) {
+    val removed = synchronized {
+      (queue:::running).find{job => (job.leader ne requester) && job.waiting.exists{_ eq requester}} match {
+        case Some(job) =>
+          job.waiting = job.waiting.filter{_ ne requester}
+          if (job.waiting.isEmpty) queue = queue.filter{_ ne job}
+          true
+        case None => false
+      }
+    }
+    if (removed) {
+      try { requester.monitor.failed(CommandOutcome.cancelled.message) } finally { requester.release() }
+      notifyPositions()
+    }
+  }
+
+  /** Tell queued monitors whose position has changed what their new position is. */
+  private[this] def notifyPositions() {
+    val changed = synchronized {
+      for ((job,i)<-queue.zipWithIndex if job.lastPosition!=i+1) yield { job.lastPosition=i+1; (job.waiting,i+1) }
+    }
+    for ((requesters,position)<-changed;r<-requesters) r.monitor.queued(position)
+  }
+}
@@ -47,6 +47,7 @@ class DependencyInjectionCleaningQueue {
   def add(node:XSTreeNode) {
     synchronized {
       nodesNeedingCleaning+=node  
+      DependencyInjectionMetrics.queue.added()
       //println("nodesNeedingCleaning length = "+nodesNeedingCleaning.length)
     }
     checkFullness()
@@ -67,15 +68,20 @@ class DependencyInjectionCleaningQueue {
   def isEmpty = synchronized { nodesNeedingCleaning.isEmpty }
   
   private[this] def doRealWork() {
+    val startTime = System.nanoTime()
+    var nodesCleaned = 0
     try {
       while (!isEmpty) {
         //println("Cleaning : nodesNeedingCleaning length = "+nodesNeedingCleaning.length)
         val node = synchronized { nodesNeedingCleaning.dequeue() }
+        DependencyInjectionMetrics.queue.removed(1)
+        nodesCleaned+=1
         if (activated) node.cleanDependencies()
         if (!activated) node.discardDependencies()
       }
     } finally {
       someThreadIsAlreadyCleaning.release()
+      if (nodesCleaned>0) DependencyInjectionMetrics.queue.drained(nodesCleaned,System.nanoTime()-startTime)
     }
     if (!isEmpty) cleanWaitingUntilAllClean() // deal with the (unusual) race condition where some other thread both adds a node to the queue, and calls cleanReturningInstantlyIfSomeOtherThreadIsAlreadyCleaning(), in between the empty check and the release of the semaphore.
     checkFullness()
@@ -90,10 +96,12 @@ class DependencyInjectionCleaningQueue {
   //
   def addPendingFuture(f:FunctionEvaluationStatus) {
     synchronized { pendingFutures+=f }
+    DependencyInjectionMetrics.queue.futureAdded()
     checkFullness()
   }
   def removePendingFuture(f:FunctionEvaluationStatus) {
     synchronized { pendingFutures-=f }
+    DependencyInjectionMetrics.queue.futureRemoved()
     checkFullness()
   }
   
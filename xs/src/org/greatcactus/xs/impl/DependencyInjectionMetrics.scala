@@ -0,0 +1,358 @@
+/**
+ * Copyright Andrew Conway 2014. All rights reserved.
+ */
+package org.greatcactus.xs.impl
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.ConcurrentHashMap
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import scala.collection.JavaConverters._
+
+/**
+ * Metrics on what the dependency injection system is doing. This is the structured alternative to the
+ * println output from @DebugDependencies / DependencyInjectionCurrentStatus.debugDependencyInjections.
+ *
+ * Everything is recorded with atomic counters, so it is cheap, but not free. For production use,
+ * set sampleEvery to something like 100, in which case counts are still exact but only one in a hundred
+ * evaluations is timed (so the histograms count samples, not evaluations).
+ *
+ * The metrics are available programmatically (functions, queue, report) or through JMX after calling registerJMX().
+ */
+object DependencyInjectionMetrics {
+  /** If false, nothing is recorded. */
+  @volatile var enabled = true
+  /** Time one in this many evaluations (of a given function). 1 means time everything. */
+  @volatile var sampleEvery = 1
+
+  private[this] val byFunction = new ConcurrentHashMap[DependencyInjectionFunction,FunctionMetrics]
+
+  /** Metrics for the cleaning queue, summed over all documents */
+  val queue = new CleaningQueueMetrics
+
+  def forFunction(function:DependencyInjectionFunction) : FunctionMetrics = {
+    val existing = byFunction.get(function)
+    if (existing!=null) existing else {
+      val created = new FunctionMetrics(function.javaMethod.getDeclaringClass.getName+"."+function.name)
+      val previous = byFunction.putIfAbsent(function,created)
+      if (previous!=null) previous else { if (registeredWithJMX) register(created,created.objectName); created }
+    }
+  }
+
+  /** All functions that have been evaluated, most expensive (total time sampled) first */
+  def functions : List[FunctionMetrics] = byFunction.values.asScala.toList.sortBy{- _.timedNanos}
+
+  def reset() {
+    for (f<-byFunction.values.asScala) f.reset()
+    queue.reset()
+  }
+
+  /** Human readable summary, most expensive function first */
+  def report : String = {
+    val res = new StringBuilder
+    res++=queue.toString+"\n"
+    for (f<-functions) res++=f.toString+"\n"
+    res.toString
+  }
+
+  def shouldTime(count:Long) : Boolean = { val n = sampleEvery; n<=1 || count%n==0 }
+
+  //
+  // JMX
+  //
+
+  val jmxDomain = "org.greatcactus.xs"
+  @volatile private[this] var registeredWithJMX = false
+  /** The beans this object registered, which are all that it unregisters. Other beans (e.g. SessionManagement's) share the domain. */
+  private[this] var registeredNames : Set[ObjectName] = Set.empty
+
+  /** Make the metrics visible through the platform MBean server. Functions first evaluated later are registered when first evaluated. */
+  def registerJMX() {
+    synchronized {
+      if (!registeredWithJMX) {
+        registeredWithJMX=true
+        register(settings,new ObjectName(jmxDomain+":type=DependencyInjectionMetrics"))
+        register(queue,new ObjectName(jmxDomain+":type=DependencyInjectionCleaningQueue"))
+        for (f<-byFunction.values.asScala) register(f,f.objectName)
+      }
+    }
+  }
+  def unregisterJMX() {
+    synchronized {
+      if (registeredWithJMX) {
+        registeredWithJMX=false
+        val server = ManagementFactory.getPlatformMBeanServer()
+        for (name<-registeredNames) try { if (server.isRegistered(name)) server.unregisterMBean(name) } catch { case e:Exception => e.printStackTrace() }
+        registeredNames=Set.empty
+      }
+    }
+  }
+  private def register(bean:AnyRef,name:ObjectName) {
+    synchronized {
+      try {
+        val server = ManagementFactory.getPlatformMBeanServer()
+        if (!server.isRegistered(name)) {
+          server.registerMBean(bean,name)
+          registeredNames+=name
+        }
+      } catch { case e:Exception => e.printStackTrace() }
+    }
+  }
+
+  private val settings = new DependencyInjectionMetricsSettings
+}
+
+trait DependencyInjectionMetricsSettingsMBean {
+  def getEnabled : Boolean
+  def setEnabled(enabled:Boolean)
+  def getSampleEvery : Int
+  def setSampleEvery(n:Int)
+  def reset()
+  def getReport : String
+}
+
+class DependencyInjectionMetricsSettings extends DependencyInjectionMetricsSettingsMBean {
+  def getEnabled = DependencyInjectionMetrics.enabled
+  def setEnabled(enabled:Boolean) { DependencyInjectionMetrics.enabled=enabled }
+  def getSampleEvery = DependencyInjectionMetrics.sampleEvery
+  def setSampleEvery(n:Int) { DependencyInjectionMetrics.sampleEvery = n max 1 }
+  def reset() { DependencyInjectionMetrics.reset() }
+  def getReport = DependencyInjectionMetrics.report
+}
+
+/**
+ * A thread safe histogram of durations. Bucket i (i>0) holds durations of less than 2^i microseconds, and at least half that. Bucket 0 holds durations less than 1 microsecond. The last bucket holds everything larger.
+ */
+class LatencyHistogram {
+  private[this] val buckets = new AtomicLongArray(LatencyHistogram.numBuckets)
+
+  def add(nanos:Long) { buckets.incrementAndGet(LatencyHistogram.bucket(nanos)) }
+  def counts : IndexedSeq[Long] = for (i<-0 until LatencyHistogram.numBuckets) yield buckets.get(i)
+  def total : Long = counts.sum
+  def reset() { for (i<-0 until LatencyHistogram.numBuckets) buckets.set(i,0) }
+
+  /** An upper bound on the given percentile (0 to 100), in microseconds. 0 if no data. */
+  def percentileMicros(percentile:Double) : Long = {
+    val c = counts
+    val needed = math.ceil(c.sum*percentile/100.0).toLong
+    if (needed==0) 0 else {
+      var sofar = 0L
+      for (i<-0 until c.length) {
+        sofar+=c(i)
+        if (sofar>=needed) return LatencyHistogram.upperBoundMicros(i)
+      }
+      Long.MaxValue
+    }
+  }
+  override def toString = counts.zipWithIndex.filter{_._1>0}.map{case (n,i)=>"<"+LatencyHistogram.upperBoundMicros(i)+"us:"+n}.mkString(" ")
+}
+
+object LatencyHistogram {
+  val numBuckets = 32
+  def bucket(nanos:Long) : Int = {
+    val micros = nanos/1000
+    if (micros<=0) 0 else (64-java.lang.Long.numberOfLeadingZeros(micros)) min (numBuckets-1)
+  }
+  def upperBoundMicros(bucket:Int) : Long = if (bucket==numBuckets-1) Long.MaxValue else 1L<<bucket
+}
+
+object MetricsUtil {
+  def max(counter:AtomicLong,value:Long) {
+    var current = counter.get
+    while (value>current && !counter.compareAndSet(current,value)) current=counter.get
+  }
+  def meanMicros(nanos:Long,count:Long) : Double = if (count==0) 0.0 else nanos/1000.0/count
+}
+
+trait FunctionMetricsMBean {
+  def getName : String
+  def getEvaluations : Long
+  def getFailures : Long
+  def getMeanMicros : Double
+  def getMaxMicros : Long
+  def getP50Micros : Long
+  def getP99Micros : Long
+  def getLatencyHistogram : Array[Long]
+  def getFutures : Long
+  def getFutureFailures : Long
+  def getFuturesPending : Long
+  def getMeanFutureWaitMicros : Double
+  def getP99FutureWaitMicros : Long
+  def getFutureWaitHistogram : Array[Long]
+  def getJobs : Long
+  def getJobsFailed : Long
+  def getJobsCancelled : Long
+  def getJobCancelRate : Double
+  def getMeanJobMillis : Double
+  def getMaxJobMillis : Long
+  def getJobWorkUnitsPerSecond : Double
+}
+
+/**
+ * Metrics for one dependency injection function (or command). Evaluation latency is just the time taken by the user's method.
+ * If that returns a future, the time until the future completes is recorded separately as the future wait time.
+ * For commands run as jobs with a progress monitor, the whole job (duration, outcome, and calls to ProgressMonitor.doUnitWork) is also recorded.
+ **/
+class FunctionMetrics(val name:String) extends FunctionMetricsMBean {
+  private[this] val evaluations = new AtomicLong
+  private[this] val failures = new AtomicLong
+  private[this] val timed = new AtomicLong
+  private[this] val _timedNanos = new AtomicLong
+  private[this] val maxNanos = new AtomicLong
+  val latency = new LatencyHistogram
+
+  private[this] val futures = new AtomicLong
+  private[this] val futureFailures = new AtomicLong
+  private[this] val futuresCompleted = new AtomicLong
+  private[this] val futuresTimed = new AtomicLong
+  private[this] val futureWaitNanos = new AtomicLong
+  val futureWait = new LatencyHistogram
+
+  private[this] val jobs = new AtomicLong
+  private[this] val jobsFailed = new AtomicLong
+  private[this] val jobsCancelled = new AtomicLong
+  private[this] val jobNanos = new AtomicLong
+  private[this] val maxJobNanos = new AtomicLong
+  private[this] val jobWorkUnits = new AtomicLong
+
+  /** Call before evaluating. Returns the start time if this evaluation should be timed, else -1. */
+  def start() : Long = if (!DependencyInjectionMetrics.enabled) -1 else {
+    if (DependencyInjectionMetrics.shouldTime(evaluations.incrementAndGet())) System.nanoTime() else -1
+  }
+  /** Call after evaluating, successfully or not, with the result of start() */
+  def finished(start:Long,failed:Boolean) {
+    if (failed && DependencyInjectionMetrics.enabled) failures.incrementAndGet()
+    if (start>=0) {
+      val taken = System.nanoTime()-start
+      timed.incrementAndGet()
+      _timedNanos.addAndGet(taken)
+      MetricsUtil.max(maxNanos,taken)
+      latency.add(taken)
+    }
+  }
+  /** Call when the function returned a future. Returns the start time if the wait should be timed, else -1. */
+  def futureStarted() : Long = if (!DependencyInjectionMetrics.enabled) -1 else {
+    if (DependencyInjectionMetrics.shouldTime(futures.incrementAndGet())) System.nanoTime() else -1
+  }
+  def futureFinished(start:Long,failed:Boolean) {
+    if (DependencyInjectionMetrics.enabled) {
+      futuresCompleted.incrementAndGet()
+      if (failed) futureFailures.incrementAndGet()
+    }
+    if (start>=0) {
+      val taken = System.nanoTime()-start
+      futuresTimed.incrementAndGet()
+      futureWaitNanos.addAndGet(taken)
+      futureWait.add(taken)
+    }
+  }
+
+  /** Call when a command run as a job has finished, with how long it took and how many units of work it reported. */
+  def jobFinished(nanos:Long,workUnits:Long,failed:Boolean,cancelled:Boolean) {
+    if (DependencyInjectionMetrics.enabled) {
+      jobs.incrementAndGet()
+      if (cancelled) jobsCancelled.incrementAndGet() else if (failed) jobsFailed.incrementAndGet()
+      jobNanos.addAndGet(nanos)
+      MetricsUtil.max(maxJobNanos,nanos)
+      jobWorkUnits.addAndGet(workUnits)
+    }
+  }
+
+  def reset() {
+    for (c<-List(evaluations,failures,timed,_timedNanos,maxNanos,futures,futureFailures,futuresCompleted,futuresTimed,futureWaitNanos,jobs,jobsFailed,jobsCancelled,jobNanos,maxJobNanos,jobWorkUnits)) c.set(0)
+    latency.reset()
+    futureWait.reset()
+  }
+
+  def timedNanos = _timedNanos.get
+  def getName = name
+  def getEvaluations = evaluations.get
+  def getFailures = failures.get
+  def getMeanMicros = MetricsUtil.meanMicros(_timedNanos.get,timed.get)
+  def getMaxMicros = maxNanos.get/1000
+  def getP50Micros = latency.percentileMicros(50)
+  def getP99Micros = latency.percentileMicros(99)
+  def getLatencyHistogram = latency.counts.toArray
+  def getFutures = futures.get
+  def getFutureFailures = futureFailures.get
+  def getFuturesPending = futures.get-futuresCompleted.get
+  def getMeanFutureWaitMicros = MetricsUtil.meanMicros(futureWaitNanos.get,futuresTimed.get)
+  def getP99FutureWaitMicros = futureWait.percentileMicros(99)
+  def getFutureWaitHistogram = futureWait.counts.toArray
+  def getJobs = jobs.get
+  def getJobsFailed = jobsFailed.get
+  def getJobsCancelled = jobsCancelled.get
+  def getJobCancelRate = if (jobs.get==0) 0.0 else jobsCancelled.get.toDouble/jobs.get
+  def getMeanJobMillis = MetricsUtil.meanMicros(jobNanos.get,jobs.get)/1000.0
+  def getMaxJobMillis = maxJobNanos.get/1000000
+  def getJobWorkUnitsPerSecond = if (jobNanos.get==0) 0.0 else jobWorkUnits.get*1e9/jobNanos.get
+
+  def objectName = new ObjectName(DependencyInjectionMetrics.jmxDomain+":type=DependencyInjectionFunction,name="+ObjectName.quote(name))
+
+  override def toString = {
+    val futurePart = if (getFutures==0) "" else " futures "+getFutures+" failed "+getFutureFailures+" pending "+getFuturesPending+" wait mean "+getMeanFutureWaitMicros.toLong+"us p99<"+getP99FutureWaitMicros+"us"
+    val jobPart = if (getJobs==0) "" else " jobs "+getJobs+" failed "+getJobsFailed+" cancelled "+getJobsCancelled+" mean "+getMeanJobMillis.toLong+"ms max "+getMaxJobMillis+"ms units/s "+getJobWorkUnitsPerSecond.toLong
+    name+" evaluations "+getEvaluations+" failed "+getFailures+" mean "+getMeanMicros.toLong+"us max "+getMaxMicros+"us p99<"+getP99Micros+"us"+futurePart+jobPart
+  }
+}
+
+trait CleaningQueueMetricsMBean {
+  def getQueueDepth : Long
+  def getMaxQueueDepth : Long
+  def getDrains : Long
+  def getNodesCleaned : Long
+  def getMeanNodesPerDrain : Double
+  def getMeanDrainMicros : Double
+  def getMaxDrainMicros : Long
+  def getDrainHistogram : Array[Long]
+  def getPendingFutures : Long
+}
+
+/**
+ * Metrics for DependencyInjectionCleaningQueue. A drain is one period where a thread owns the queue and cleans nodes until it is empty.
+ * Depth and pending futures are current values summed over all queues (i.e. all documents being edited).
+ */
+class CleaningQueueMetrics extends CleaningQueueMetricsMBean {
+  private[this] val depth = new AtomicLong
+  private[this] val maxDepth = new AtomicLong
+  private[this] val drains = new AtomicLong
+  private[this] val nodesCleaned = new AtomicLong
+  private[this] val drainNanos = new AtomicLong
+  private[this] val maxDrainNanos = new AtomicLong
+  private[this] val pendingFutures = new AtomicLong
+  val drainTime = new LatencyHistogram
+
+  def added() { if (DependencyInjectionMetrics.enabled) MetricsUtil.max(maxDepth,depth.incrementAndGet()) else depth.incrementAndGet() }
+  def removed(n:Int) { depth.addAndGet(-n) }
+  def drained(nodes:Int,nanos:Long) {
+    if (DependencyInjectionMetrics.enabled) {
+      drains.incrementAndGet()
+      nodesCleaned.addAndGet(nodes)
+      drainNanos.addAndGet(nanos)
+      MetricsUtil.max(maxDrainNanos,nanos)
+      drainTime.add(nanos)
+    }
+  }
+  def futureAdded() { pendingFutures.incrementAndGet() }
+  def futureRemoved() { pendingFutures.decrementAndGet() }
+
+  /** Reset the cumulative values; current values (depth, pending futures) are left alone. */
+  def reset() {
+    for (c<-List(drains,nodesCleaned,drainNanos,maxDrainNanos)) c.set(0)
+    maxDepth.set(depth.get)
+    drainTime.reset()
+  }
+
+  def getQueueDepth = depth.get
+  def getMaxQueueDepth = maxDepth.get
+  def getDrains = drains.get
+  def getNodesCleaned = nodesCleaned.get
+  def getMeanNodesPerDrain = if (drains.get==0) 0.0 else nodesCleaned.get.toDouble/drains.get
+  def getMeanDrainMicros = MetricsUtil.meanMicros(drainNanos.get,drains.get)
+  def getMaxDrainMicros = maxDrainNanos.get/1000
+  def getDrainHistogram = drainTime.counts.toArray
+  def getPendingFutures = pendingFutures.get
+
+  override def toString = "Cleaning queue depth "+getQueueDepth+" (max "+getMaxQueueDepth+") drains "+getDrains+" nodes/drain "+getMeanNodesPerDrain+" drain mean "+getMeanDrainMicros.toLong+"us max "+getMaxDrainMicros+"us pending futures "+getPendingFutures
+}
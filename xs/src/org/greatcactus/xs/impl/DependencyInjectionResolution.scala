@@ -11,6 +11,7 @@ import org.greatcactus.xs.api.errors.XSError
 import scala.collection.GenTraversable
 import org.greatcactus.xs.frontend.DetailsPaneFields
 import org.greatcactus.xs.api.errors.Severity
+import org.greatcactus.xs.api.errors.ErrorCounts
 import org.greatcactus.xs.api.dependency.ExternallyChangingDependency
 import org.greatcactus.xs.api.dependency.OnObsoleteCallback
 import org.greatcactus.xs.api.command.ProgressMonitor
@@ -20,6 +21,7 @@ import java.io.StringWriter
 import org.greatcactus.xs.api.command.CancelledThrowable
 import org.greatcactus.xs.api.display.RichLabel
 import org.greatcactus.xs.api.command.CommandResult
+import org.greatcactus.xs.api.command.XSCommand
 import java.lang.reflect.InvocationTargetException
 import org.greatcactus.xs.api.dependency.IndexInParentField
 import org.greatcactus.xs.frontend.ProgressMonitorInfo
@@ -37,6 +39,14 @@ import org.greatcactus.xs.api.display.Localizable
 import java.util.Locale
 import org.greatcactus.xs.api.display.TextLocalizationResources
 import java.util.concurrent.ExecutionException
+import scala.concurrent.ExecutionContextExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.SynchronousQueue
+import org.greatcactus.xs.util.LimitedExecutionContext
+import org.greatcactus.xs.api.dependency.MaxConcurrency
 
 
 /** 
@@ -45,6 +55,30 @@ import java.util.concurrent.ExecutionException
  */
 object XSExecutionContext {
   var context : ExecutionContext = ExecutionContext.global 
+  
+  /**
+   * Make an execution context that runs each task on its own (pooled, daemon) thread rather than a small fixed pool.
+   * This is appropriate when dependency injection functions or commands block on I/O, as a few slow ones cannot starve
+   * everything else. Idle threads are discarded after a minute. Use @MaxConcurrency or concurrencyLimits to stop
+   * any one function from creating too many threads.
+   */
+  def threadPerTask() : ExecutionContextExecutorService = {
+    val threadFactory = new ThreadFactory() {
+      val count = new AtomicInteger
+      override def newThread(r:Runnable) = {
+        val t = new Thread(r,"XS task "+count.incrementAndGet())
+        t.setDaemon(true)
+        t
+      }
+    }
+    ExecutionContext.fromExecutorService(new ThreadPoolExecutor(0,Integer.MAX_VALUE,60L,TimeUnit.SECONDS,new SynchronousQueue[Runnable],threadFactory))
+  }
+  
+  /** 
+   * Concurrency limits for particular functions, by name (class name + "." + method name). Overrides any @MaxConcurrency annotation.
+   * Must be set before the function is first used.
+   **/
+  var concurrencyLimits : Map[String,Int] = Map.empty
 }
 
 
@@ -135,7 +169,7 @@ class FunctionEvaluationStatus(val function:DependencyInjectionFunction,val args
   /** The result of the function, or None if it executed with an error */
   val rawres: Option[AnyRef] = try {
     val argsWithChanges = for (a<-args) yield if (a==null) new OnObsoleteCallback(onExternalChange _) else a
-    function.apply(obj,argsWithChanges) match {
+    function.timedApply(obj,argsWithChanges) match {
       case null => None
       case e:ExternallyChangingDependency =>
         setCallbackOnDispose(e.onNoLongerUsed)
@@ -156,6 +190,7 @@ class FunctionEvaluationStatus(val function:DependencyInjectionFunction,val args
   private[this] var updateOnFutureDirtyable : Set[DependencyInjectionCurrentStatus] = Set.empty
   
   private[this] def dealWithFuture(f:Future[_]) {
+    val metricsStart = function.metrics.futureStarted()
     f.onSuccess{
       case newres => 
         if (holder.debug) println("Function "+function.name+" resolved as a future to "+newres)
@@ -184,7 +219,10 @@ class FunctionEvaluationStatus(val function:DependencyInjectionFunction,val args
       case e:Throwable => println("Error in future "); e.printStackTrace()
     }(XSExecutionContext.context)
     holder.associatedNode.xsedit.dependencyInjectionCleaningQueue.addPendingFuture(festhis)
-    f.onComplete{case _ => holder.associatedNode.xsedit.dependencyInjectionCleaningQueue.removePendingFuture(festhis)}(XSExecutionContext.context)
+    f.onComplete{res => 
+      function.metrics.futureFinished(metricsStart,res.isFailure)
+      holder.associatedNode.xsedit.dependencyInjectionCleaningQueue.removePendingFuture(festhis)
+    }(XSExecutionContext.context)
   }
   rawres match {
     case Some(p:Future[_]) => completedFuture=None; dealWithFuture(p) 
@@ -236,14 +274,7 @@ class FunctionEvaluationStatus(val function:DependencyInjectionFunction,val args
     }
   }
   
-  def flattenCollections(x:Any) : List[AnyRef] = x match {
-    case null => Nil
-    case None => Nil
-    case Some(o) => flattenCollections(o)
-    case a:Array[_] => a.toList.flatMap{flattenCollections _}
-    case c:GenSeq[_] => c.toList.flatMap{flattenCollections _}
-    case x => List(x.asInstanceOf[AnyRef])
-  }
+  def flattenCollections(x:Any) : List[AnyRef] = FunctionEvaluationStatus.flattenCollections(x)
   
   def shouldInjectToKids = function.isInjectedToKids && completedFuture.isDefined && completedFuture.get!=null
   
@@ -259,6 +290,17 @@ class FunctionEvaluationStatus(val function:DependencyInjectionFunction,val args
   } 
 }
 
+object FunctionEvaluationStatus {
+  def flattenCollections(x:Any) : List[AnyRef] = x match {
+    case null => Nil
+    case None => Nil
+    case Some(o) => flattenCollections(o)
+    case a:Array[_] => a.toList.flatMap{flattenCollections _}
+    case c:GenSeq[_] => c.toList.flatMap{flattenCollections _}
+    case x => List(x.asInstanceOf[AnyRef])
+  }
+}
+
 class CanPassToChildren(classesToBlockForChildren:Seq[Class[_]]) extends Function[AnyRef,Boolean] {
   def apply(x:AnyRef) : Boolean = {
     if (x==null) return false
@@ -280,6 +322,26 @@ class ToChildDependencies(val base:Set[AnyRef],val parent:Parent[_]) {
 
 object DependencyInjectionCurrentStatus {
   var debugDependencyInjections=false
+  
+  /** Sort field names (as used for errors) into the order the fields are declared, with the whole form first and anything unknown last */
+  def inFieldOrder(fieldnames:Iterable[String],fields:Seq[XSFieldInfo]) : List[String] = {
+    val fieldOrder = fields.map{_.name}
+    def position(fieldname:String) : Int = if (fieldname==DetailsPaneFields.wholeFormAsFieldName) -1 else { val i = fieldOrder.indexOf(fieldname); if (i== -1) Int.MaxValue else i }
+    fieldnames.toList.sortBy{f=>(position(f),f)}
+  }
+  
+  def processErrorResults(result:Any,found: XSError=>Unit,function:DependencyInjectionFunction) { result match {
+          case null =>
+          case None =>
+          case Some(a) => processErrorResults(a,found,function)
+          case e:XSError => found(e)
+          case c:GenTraversable[_] => for (e<-c) processErrorResults(e,found,function)
+          case a:Array[_] => for (e<-a) processErrorResults(e,found,function)
+          // should have a LocalizableErrorDetails class
+          case _ =>
+            println("***** ERROR ** Error check function "+function.name+"(...) produced "+result)
+            // throw new IllegalArgumentException("Error check function "+function.name+"(...) produced "+result)
+        }}
 }
 /**
  * Information about dependency injection functions and error functions for one particular tree node object.
@@ -297,7 +359,7 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
   private var parentMirror : reflect.runtime.universe.InstanceMirror = null
   private var parentObject : AnyRef = null
   private val errorListCache = new collection.mutable.HashMap[String,List[XSError]] // gets reset whenever lastGoodResolved is changed.
-  private var worstErrorCache : Option[Int] = None // gets reset whenever lastGoodResolved is changed.
+  private var errorCountsCache : Option[ErrorCounts] = None // gets reset whenever lastGoodResolved is changed.
   private var simpleErrorCheckResults : Option[SimpleErrorCheckResults] = None // gets reset whenever invalid.
   
   def dependenciesToPropagateToChildren(ci:FromParentDependencyInfo,indexInParent:Int) = sendToChildren.get(ci,indexInParent)
@@ -341,18 +403,7 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
     case None => true
   }
   
-  def processErrorResults(result:Any,found: XSError=>Unit,function:DependencyInjectionFunction) { result match {
-          case null =>
-          case None =>
-          case Some(a) => processErrorResults(a,found,function)
-          case e:XSError => found(e)
-          case c:GenTraversable[_] => for (e<-c) processErrorResults(e,found,function)
-          case a:Array[_] => for (e<-a) processErrorResults(e,found,function)
-          // should have a LocalizableErrorDetails class
-          case _ =>
-            println("***** ERROR ** Error check function "+function.name+"(...) produced "+result)
-            // throw new IllegalArgumentException("Error check function "+function.name+"(...) produced "+result)
-        }}
+  def processErrorResults(result:Any,found: XSError=>Unit,function:DependencyInjectionFunction) { DependencyInjectionCurrentStatus.processErrorResults(result,found,function) }
   
   private def getSimpleErrors(fieldname:String) : List[XSError] = synchronized {
     //println("Getting simple errors for "+fieldname)
@@ -372,21 +423,23 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
     }
   } 
   
-  def worstErrorLevel(node:XSTreeNode) : Int = synchronized {
-    if (worstErrorCache.isEmpty) {
-      var worst = 1000
-      def proc(result:AnyRef,function:DependencyInjectionFunction) { processErrorResults(result,e=>worst=worst min e.severity.level(),function) }
-      for (functionForField<-info.errorChecks;fr<-lastGoodResolved.get(functionForField.function); frres<-fr.resForErrors(node)) proc(frres,functionForField.function)
-      for (name<-info.simpleErrorChecks.checks.keys;e<-getSimpleErrors(name)) worst=worst min e.severity.level() 
-      worstErrorCache = Some(worst)
-    }
-    worstErrorCache.get
+  /** All errors for this node, in field order (whole form first), paired with the field name */
+  def allErrors(node:XSTreeNode) : List[(String,XSError)] = {
+    for (fieldname<-DependencyInjectionCurrentStatus.inFieldOrder(info.fieldsThatCouldHaveErrors,node.info.fields);e<-getErrors(fieldname,node)) yield (fieldname,e)
+  }
+  
+  /** Number of errors of each severity for just this node (not children) */
+  def errorCounts(node:XSTreeNode) : ErrorCounts = synchronized {
+    if (errorCountsCache.isEmpty) errorCountsCache = Some(ErrorCounts(allErrors(node).map{_._2}))
+    errorCountsCache.get
   }
+  
+  def worstErrorLevel(node:XSTreeNode) : Int = errorCounts(node).worstLevel
 
   def changedUniquenessValues(ftc:FieldsToCheckForUniqueness) {
     synchronized {
       dirtyStatus.makeSimpleErrorChecksDirty()
-      worstErrorCache=None
+      errorCountsCache=None
       for (c<-ftc.classes;field<-c.fields) errorListCache-=field.name 
       simpleErrorCheckResults=None
     }
@@ -464,7 +517,7 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
         existingResolved = resResolved
         lastGoodResolved = resResolved
         errorListCache.clear()
-        worstErrorCache = None
+        errorCountsCache = None
         sendToChildren = new ToChildDependencies(injectedFromParent.filter(info.kidFilter).filter{case _:Parent[_] => false; case _:IndexInParentField => false; case _ => true}++existingResolved.values.filter{_.shouldInjectToKids}.flatMap{_.resAsList(this)},new Parent(parentObject))
         val _ = {
           var fieldInParent : XSFieldInfo = null
@@ -506,9 +559,10 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
         //println("Got args")
         //import concurrent.ExecutionContext.Implicits.global
         val mirror = parentMirror
-        concurrent.Future{
-          def err(e:Throwable) = e match {
-            case _:CancelledThrowable => monitor.failed(Some(RichLabel("Cancelled")))
+        def run() : CommandOutcome = {
+          val jobStart = System.nanoTime()
+          def err(e:Throwable) : CommandOutcome = e match {
+            case _:CancelledThrowable => CommandOutcome.cancelled
             case _ =>
               e.printStackTrace()
               val os = new StringWriter
@@ -516,23 +570,23 @@ class DependencyInjectionCurrentStatus(val info:DependencyInjectionInformation,v
               e.printStackTrace(pw)
               pw.flush
               val text = os.toString
-              monitor.failed(Some(RichLabel(text, <pre>{text}</pre>)))            
+              new CommandOutcome(false,Some(RichLabel(text, <pre>{text}</pre>)))
           }
-          try {
+          val outcome = try {
             //println("in future")
-            function.apply(mirror, args) match {
-              case res:CommandResult => 
-                if (res.success) monitor.succeeded(res.info)
-                else monitor.failed(res.info)
-              case _ => monitor.succeeded(None)
+            function.timedApply(mirror, args) match {
+              case res:CommandResult => new CommandOutcome(res.success,res.info)
+              case _ => new CommandOutcome(true,None)
             }           
           } catch {
-            case _:CancelledThrowable => monitor.failed(Some(RichLabel("Cancelled")))
+            case _:CancelledThrowable => CommandOutcome.cancelled
             case e:InvocationTargetException => err(e.getTargetException())
             case e:Exception => err(e)
           }
-          getMonitor.releaseMonitor()
-        }(executionContext)
+          function.metrics.jobFinished(System.nanoTime()-jobStart,monitor.unitsOfWork,!outcome.success,monitor.isCancelled)
+          outcome
+        }
+        CommandScheduler.submit(CommandScheduler.key(associatedNode.xsedit,function,parentObject,args),associatedNode.xsedit,function.commandPriority,monitor,getMonitor.releaseMonitor _,run _,function.limitedContext(executionContext))
       case None => 
         //println("executeCommandInSeparateThread could not get args")
         monitor.failed(Some(RichLabel("Could not run command")))
@@ -604,6 +658,46 @@ class DependencyInjectionFunction(
     javaMethod.invoke(obj.instance,args.toArray :_*)
   }
   
+  lazy val metrics : FunctionMetrics = DependencyInjectionMetrics.forFunction(this)
+  
+  /** For @XSCommand methods, the priority with which they are scheduled by CommandScheduler */
+  lazy val commandPriority : Int = Option(javaMethod.getAnnotation(classOf[XSCommand])).map{_.priority}.getOrElse(XSCommand.NORMAL)
+  
+  lazy val concurrencyLimit : Option[Int] = XSExecutionContext.concurrencyLimits.get(javaMethod.getDeclaringClass.getName+"."+name).orElse{
+    Option(javaMethod.getAnnotation(classOf[MaxConcurrency])).map{_.value}
+  }
+  
+  private[this] var limitedContexts : Map[ExecutionContext,LimitedExecutionContext] = Map.empty
+  /** 
+   * If this function has a concurrency limit, an execution context that enforces it on top of base, otherwise base. 
+   * The same object is returned for the same base so that argument comparisons in clean() do not cause spurious recomputation,
+   * and so that the limit applies across all uses on that base.
+   */
+  def limitedContext(base:ExecutionContext) : ExecutionContext = concurrencyLimit match {
+    case Some(limit) => synchronized {
+      limitedContexts.get(base) match {
+        case Some(existing) => existing
+        case None =>
+          val res = new LimitedExecutionContext(base,limit)
+          limitedContexts+=base->res
+          res
+      }
+    }
+    case None => base
+  }
+  
+  
+  /** apply, recording evaluation count, latency and failures in DependencyInjectionMetrics */
+  def timedApply(obj:reflect.runtime.universe.InstanceMirror,args:Seq[AnyRef]) : AnyRef = {
+    val start = metrics.start()
+    var failed = true
+    try {
+      val res = apply(obj,args)
+      failed = false
+      res
+    } finally { metrics.finished(start,failed) }
+  }
+  
   def survivesChange(oldObject:AnyRef,newObject:AnyRef) = onlyAffectedByFields match {
     case Some(troublesomeFields) if oldObject!=null && newObject!=null => 
       troublesomeFields.forall{ field => field.getField(oldObject)==field.getField(newObject)}
@@ -613,6 +707,7 @@ class DependencyInjectionFunction(
     Some(for (t<-argTypes) yield {
       if (t == SerializableTypeInfo.classOnObsoleteCallback) null
       else injections.find{inj=>t.isAssignableFrom(inj.getClass())} match {
+        case Some(ec:ExecutionContext) => limitedContext(ec)
         case Some(injected) => injected
         case None => return None
       }
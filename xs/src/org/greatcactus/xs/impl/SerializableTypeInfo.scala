@@ -13,6 +13,7 @@ import scala.reflect.ClassTag
 import scala.collection.mutable.ArrayBuffer
 import javax.xml.stream.XMLStreamReader
 import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
 import org.greatcactus.xs.api.errors._
 import org.greatcactus.xs.frontend.DetailsPaneFields
 import org.greatcactus.xs.api.icon.IconManifests
@@ -432,16 +433,45 @@ class SerializableTypeInfo[T <: AnyRef] private (val clazz : java.lang.Class[T])
   // functions that pertain to resource bundles
   //
     
-  private val cacheTextResources = new scala.collection.mutable.HashMap[Locale,TextLocalizationResources]
-  def textResources(locale:Locale) : TextLocalizationResources = cacheTextResources.getOrElseUpdate(locale,TextLocalizationResources.getUncached(locale, clazz))
+  def textResources(locale:Locale) : TextLocalizationResources = TextLocalizationResources.getCached(locale, clazz)
+  
+  /** 
+   * Load the localization resources and edit panes for this class, its subclasses, and the classes of its children, for all the given locales. 
+   * Useful at startup, so that the first users don't have to wait.
+   */
+  def preloadLocales(locales:Seq[Locale]) {
+    val done = new collection.mutable.HashSet[SerializableTypeInfo[_]]
+    def load(info:SerializableTypeInfo[_]) {
+      if (!done.contains(info)) {
+        done+=info
+        for (locale<-locales) {
+          info.textResources(locale)
+          if (!info.isAbstract) { info.getPane(locale,false); info.getPane(locale,true) }
+          for (f<-info.fields;c<-f.fixedOptions;cl<-c.classForLocalizationResources) TextLocalizationResources.getCached(locale,cl)
+        }
+        for (s<-info.transitiveSubclasses) load(s)
+        for (f<-info.fields;sub<-f.xsinfo) load(sub)
+      }
+    }
+    load(this)
+  }
   
   //
   // code that pertains to EditPanes
   //
-  private[this] val panesNoDelete = new collection.mutable.HashMap[Locale,DetailsPaneFields] // cache
-  private[this] val panesDelete = new collection.mutable.HashMap[Locale,DetailsPaneFields]  // cache
-  
-  def getPane(locale:Locale,mayDelete:Boolean) : DetailsPaneFields = (if (mayDelete) panesDelete else panesNoDelete).getOrElseUpdate(locale,DetailsPaneFields(this,locale,mayDelete))
+  private[this] val panesNoDelete = new ConcurrentHashMap[Locale,DetailsPaneFields] // cache
+  private[this] val panesDelete = new ConcurrentHashMap[Locale,DetailsPaneFields]  // cache
+  
+  def getPane(locale:Locale,mayDelete:Boolean) : DetailsPaneFields = {
+    val cache = if (mayDelete) panesDelete else panesNoDelete
+    val existing = cache.get(locale)
+    if (existing!=null) existing
+    else {
+      val res = DetailsPaneFields(this,locale,mayDelete)
+      val already = cache.putIfAbsent(locale,res)
+      if (already!=null) already else res
+    }
+  }
   
   //
   // code pertaining to templates
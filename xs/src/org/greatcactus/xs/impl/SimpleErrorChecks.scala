@@ -3,7 +3,6 @@
  */
 package org.greatcactus.xs.impl
 
-import org.greatcactus.xs.frontend.XSTreeNode
 import org.greatcactus.xs.api.errors.XSError
 import scala.collection.GenTraversable
 import org.greatcactus.xs.api.errors.Severity
@@ -20,13 +19,27 @@ import java.text.MessageFormat
  */
 class SimpleErrorChecks(val checks:Map[String,List[SimpleErrorCheck]]) {
   def isEmpty = checks.isEmpty
-  def check(parent:XSTreeNode) = new SimpleErrorCheckResults(Map.empty++(
+  def check(parent:ErrorCheckSubject) = new SimpleErrorCheckResults(Map.empty++(
     for ((field,checklist)<-checks;errors=checklist.flatMap{_(parent)};if !errors.isEmpty) yield field->errors  
   ))
 }
 
 class SimpleErrorCheckResults(val errors:Map[String,List[XSError]])
 
+/** 
+ * What the simple error checks need to know about the object being checked. This is implemented by XSTreeNode
+ * when editing, and by XSValidator when validating without an editor. 
+ */
+trait ErrorCheckSubject {
+  def getObject : AnyRef
+  /** Elements that are not unique within this object, for @ErrorIfNotUniqueInObject */
+  def nonuniqueLocal : NonuniqueLookup
+  /** Elements that are not unique amongst the children of this object's parent, for @ErrorIfNotUniqueInParent */
+  def nonuniqueInParent : NonuniqueLookup
+  /** Elements that are not unique in the whole document, for @ErrorIfNotGloballyUnique */
+  def nonuniqueGlobal : NonuniqueLookup
+}
+
 class SimpleErrorChecksBuffer {
   var map : Map[String,List[SimpleErrorCheck]] = Map.empty
   def add(fieldName:String,check:SimpleErrorCheck) {
@@ -44,7 +57,7 @@ class SimpleErrorChecksBuffer {
   def addErrorIfEmptyCollection(field:XSFieldInfo,severity:Option[String]) { add(field.name,new PseudoDIErrorIfEmptyCollection(field,sev(severity)))} 
   def addErrorIfNotSuffix(field:XSFieldInfo,suffix:String,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNotSuffix(field,suffix,sev(severity)))} 
   def addErrorIfNotRegex(field:XSFieldInfo,regexp:String,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNotRegex(field,regexp.r,sev(severity)))} 
-  def addErrorIfNotUnique(field:XSFieldInfo,key:UniquenessClass,getBadness:XSTreeNode=>NonuniqueElements,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNotUnique(field,key,getBadness,sev(severity)))} 
+  def addErrorIfNotUnique(field:XSFieldInfo,key:UniquenessClass,getBadness:ErrorCheckSubject=>NonuniqueLookup,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNotUnique(field,key,getBadness,sev(severity)))} 
   def addErrorIfNotNumber(field:XSFieldInfo,integer:Boolean,min:Double,max:Double,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNotNumber(field,integer,min,max,sev(severity)))}
   def addErrorIfNegative(field:XSFieldInfo,severity:Option[String]) { add(field.name,new PseudoDIErrorIfNegative(field,sev(severity)))}
   def addErrorIfZero(field:XSFieldInfo,severity:Option[String]) { add(field.name,new PseudoDIErrorIfZero(field,sev(severity)))}
@@ -62,13 +75,13 @@ abstract class SimpleErrorCheck {
   def trivialError = XSError(severity,errorDescription,-1,-1,-1)
   def error(fieldNo:Int) = XSError(severity,errorDescription,-1,-1,fieldNo)
 
-  def apply(parent:XSTreeNode) : List[XSError] = {
+  def apply(parent:ErrorCheckSubject) : List[XSError] = {
     val res = new ListBuffer[XSError]
     apply(parent,field.getAllFieldElements(parent.getObject),res)
     //println("Testing "+parent+" for "+this.getClass.getName()+" value "+field.getFieldAsString(parent.getObject)+" result "+res.toList.mkString(";"))
     res.toList
   }
-  def apply(parent:XSTreeNode,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
+  def apply(parent:ErrorCheckSubject,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
     for ((elem,index)<-elems.toList.zipWithIndex) if (!isElemOK(elem)) res+=error(index)
   }
   def isElemOK(elem:Any) : Boolean
@@ -77,7 +90,7 @@ abstract class SimpleErrorCheck {
 
 class PseudoDIErrorIfBlank(val field:XSFieldInfo,val severity:Severity) extends SimpleErrorCheck {
   def localizationKey = "ErrorIfBlank"
-  override def apply(parent:XSTreeNode,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
+  override def apply(parent:ErrorCheckSubject,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
     if (elems.isEmpty && !field.isCollectionOrArrayButNotOption) res+=error(-1)
     super.apply(parent,elems,res)
   }
@@ -86,17 +99,17 @@ class PseudoDIErrorIfBlank(val field:XSFieldInfo,val severity:Severity) extends
 
 class PseudoDIErrorIfEmptyCollection(val field:XSFieldInfo,val severity:Severity) extends SimpleErrorCheck {
   def localizationKey = "ErrorIfEmptyCollection"
-  override def apply(parent:XSTreeNode,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
+  override def apply(parent:ErrorCheckSubject,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
     if (elems.isEmpty) res+=error(-1)
   }
   def isElemOK(elem:Any) = true
 }
 
-class PseudoDIErrorIfNotUnique(val field:XSFieldInfo,val key:UniquenessClass,val getBadness:XSTreeNode=>NonuniqueElements,val severity:Severity) extends SimpleErrorCheck {
+class PseudoDIErrorIfNotUnique(val field:XSFieldInfo,val key:UniquenessClass,val getBadness:ErrorCheckSubject=>NonuniqueLookup,val severity:Severity) extends SimpleErrorCheck {
   def localizationKey = "ErrorIfNotUnique"
-  override def apply(parent:XSTreeNode,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
-    for (bads <- getBadness(parent).map.get(key))
-      for ((elem,index)<-elems.toList.zipWithIndex) if (bads!=null && bads.contains(elem.asInstanceOf[AnyRef])) res+=error(index)
+  override def apply(parent:ErrorCheckSubject,elems:GenTraversable[Any],res:ListBuffer[XSError]) {
+    val bads = getBadness(parent)
+    for ((elem,index)<-elems.toList.zipWithIndex) if (elem!=null && bads.isNonunique(key,elem.asInstanceOf[AnyRef])) res+=error(index)
   }
   override def isElemOK(elem:Any) = true // NOT USED
 }
@@ -31,74 +31,143 @@ class FieldsToCheckForUniqueness(val classes:List[FieldsToCheckForUniquessForGiv
     )
     new AllElementsByClass(map)
   }
+  /** The values in obj to be checked, with the number of times each occurs */
+  def contribution(obj:AnyRef) : UniquenessMultiset.Contribution = {
+    if (classes.isEmpty || obj==null) Map.empty else {
+      var res : UniquenessMultiset.Contribution = Map.empty
+      for (c<-classes;field<-c.fields;elem<-field.getAllFieldElements(obj)) if (elem!=null) {
+        val key = (c.key,elem.asInstanceOf[AnyRef])
+        res+=key->(res.getOrElse(key,0)+1)
+      }
+      res
+    }
+  }
   def isEmpty = classes.isEmpty
 }
 
 object UniquenessCheckResolution {
-  val getGlobalBadness : XSTreeNode=>NonuniqueElements = node => node.root.uniquenessCheckResolution.getBadGlobal
-  val getLocalBadness : XSTreeNode=>NonuniqueElements = node => node.uniquenessCheckResolution.getBadLocal
-  val getParentBadness : XSTreeNode=>NonuniqueElements = node => if (node.parent==null) NonuniqueElements.empty else node.parent.uniquenessCheckResolution.getBadParent
+  val getGlobalBadness : ErrorCheckSubject=>NonuniqueLookup = _.nonuniqueGlobal
+  val getLocalBadness : ErrorCheckSubject=>NonuniqueLookup = _.nonuniqueLocal
+  val getParentBadness : ErrorCheckSubject=>NonuniqueLookup = _.nonuniqueInParent
 }
+
+/**
+ * Uniqueness information for one tree node.
+ * 
+ * Local uniqueness (within one object) is cheap, and is just recomputed. Parent and global uniqueness use a
+ * UniquenessMultiset (in the parent node and the XSEdit respectively) into which each node puts the values it contains.
+ * When a node is cleaned, only the difference between its old and new values is applied to those multisets,
+ * and only nodes holding a value whose duplicate status changed are told about it. So an edit costs time
+ * proportional to what changed, not to the size of the document.
+ */
 class UniquenessCheckResolution(val node:XSTreeNode,val local:FieldsToCheckForUniqueness,val parent:FieldsToCheckForUniqueness,val global:FieldsToCheckForUniqueness) {
   private var dirty = true
+  private var disposed = false
+  private var localNonUnique : Option[NonuniqueElements] = None
+  private var contributedToParent : UniquenessMultiset.Contribution = Map.empty
+  private var contributedToGlobal : UniquenessMultiset.Contribution = Map.empty
   
-  private var localNonUnique = NonuniqueElements.empty
-  private var parentNonUnique = NonuniqueElements.empty
-  private var dataForParent = AllElementsByClass.empty
-  private var dataForGlobal = AllElementsByClass.empty
-  private var globalNonUnique = NonuniqueElements.empty // only meaningful if this is the root node.
-   
-  def getDataForParent : AllElementsByClass = synchronized { clean(); dataForParent }
-  def getDataForGlobal : AllElementsByClass = synchronized { clean(); dataForGlobal }
+  /** The values in the children of this node that need to be unique amongst each other */
+  val childValues = new UniquenessMultiset
   
-  private def getBadGlobal : NonuniqueElements = synchronized { clean(); globalNonUnique }
-  private def getBadParent : NonuniqueElements = synchronized { clean(); parentNonUnique }
-  private def getBadLocal : NonuniqueElements = synchronized { clean(); localNonUnique }
+  private[xs] def getBadGlobal : NonuniqueLookup = node.xsedit.globalUniqueness
+  private[xs] def getBadParent : NonuniqueLookup = childValues
+  private[xs] def getBadLocal : NonuniqueLookup = synchronized { 
+    if (localNonUnique.isEmpty) localNonUnique=Some(local.get(node.getObject).justNonUnique)
+    localNonUnique.get 
+  }
   
   def invalidate() {
    // println("UniquenessCheckResolution.invalidate("+node+")")
-    synchronized { dirty=true; }
+    synchronized { dirty=true; localNonUnique=None }
   }
   
   def clean() {
     //println("UniquenessCheckResolution.clean("+node+")")
-    synchronized {
-      if (dirty) {
-        dirty=false;
-        localNonUnique=local.get(node.getObject).justNonUnique
-        dataForParent=parent.get(node.getObject)
-        val oldParentData = parentNonUnique
-        var parentCumSum = AllElementsByClass.empty
-        var globalCumSum = global.get(node.getObject)
-        for (c<-node.allChildren) {
-           parentCumSum+=c.uniquenessCheckResolution.getDataForParent
-           globalCumSum+=c.uniquenessCheckResolution.getDataForGlobal
-        } 
-        parentNonUnique=parentCumSum.justNonUnique
-        //println("Node "+node.toString)
-        //println("Parent Cum Sum"+parentCumSum)
-        //println("Global Cum Sum"+globalCumSum)
-        dataForGlobal=globalCumSum
-        if (parentNonUnique!=oldParentData) { // send out recomputation
-          for (c<-node.allChildren) c.parentUniquenessErrorsChanged()
-        }
-        if (node.isRoot) {
-          val oldGlobalNonUnique = globalNonUnique
-          globalNonUnique = dataForGlobal.justNonUnique
-          if (oldGlobalNonUnique!=globalNonUnique) { // send out recomputation messages
-            node.globalUniquenessErrorsChanged()
-          }
-        }
+    update{ 
+      if (dirty && !disposed) { 
+        dirty=false
+        val obj = node.getObject // read while synchronized, so a clean that started earlier can't publish an older object's values after a newer one's.
+        Some((parent.contribution(obj),global.contribution(obj))) 
+      } else None 
+    }
+  }
+  
+  /** Remove this node's values from the parent and global multisets */
+  def dispose() {
+    update{ if (!disposed) { disposed=true; Some((Map.empty,Map.empty)) } else None }
+  }
+  
+  /** Change the values this node contributes to what getNew returns (evaluated while synchronized) if it is not None. Notifications are sent outside of the synchronized block to prevent deadlock */
+  private def update(getNew : => Option[(UniquenessMultiset.Contribution,UniquenessMultiset.Contribution)]) {
+    val (notifyParent,notifyGlobal) = synchronized {
+      getNew match {
+        case Some((newParent,newGlobal)) =>
+          val p = if (node.parent==null || newParent==contributedToParent) Set.empty[XSTreeNode] else node.parent.uniquenessCheckResolution.childValues.update(node,contributedToParent,newParent)
+          val g = if (newGlobal==contributedToGlobal) Set.empty[XSTreeNode] else node.xsedit.globalUniqueness.update(node,contributedToGlobal,newGlobal)
+          contributedToParent=newParent
+          contributedToGlobal=newGlobal
+          (p,g)
+        case None => (Set.empty[XSTreeNode],Set.empty[XSTreeNode])
+      }
+    }
+    for (n<-notifyParent) n.parentUniquenessErrorsChanged()
+    for (n<-notifyGlobal) n.globalUniquenessErrorsChanged()
+  }
+}
+
+/** Something that can say whether an element is not unique */
+trait NonuniqueLookup extends Any {
+  def isNonunique(key:UniquenessClass,elem:AnyRef) : Boolean
+}
+
+object UniquenessMultiset {
+  /** The values a node contains, with the number of times each occurs. */
+  type Contribution = Map[(UniquenessClass,AnyRef),Int]
+}
+
+/**
+ * A count of how many times each value (for each uniqueness class) occurs, and which nodes contain it. Thread safe.
+ */
+class UniquenessMultiset extends NonuniqueLookup {
+  private[this] class Entry {
+    var count = 0
+    var nodes : Map[XSTreeNode,Int] = Map.empty
+  }
+  private[this] val entries = new java.util.HashMap[(UniquenessClass,AnyRef),Entry]
+  
+  def isNonunique(key:UniquenessClass,elem:AnyRef) : Boolean = synchronized {
+    val e = entries.get((key,elem))
+    e!=null && e.count>1
+  }
+  
+  /** Replace the values node contributes. Returns the nodes that contain a value whose duplicate status has changed. */
+  def update(node:XSTreeNode,oldValues:UniquenessMultiset.Contribution,newValues:UniquenessMultiset.Contribution) : Set[XSTreeNode] = synchronized {
+    var affected : Set[XSTreeNode] = Set.empty
+    for (key<-oldValues.keySet++newValues.keySet) {
+      val oldN = oldValues.getOrElse(key,0)
+      val newN = newValues.getOrElse(key,0)
+      if (oldN!=newN) {
+        val e = { val existing = entries.get(key); if (existing!=null) existing else { val n = new Entry; entries.put(key,n); n } }
+        val wasDuplicate = e.count>1
+        e.count+=newN-oldN
+        if (newN==0) e.nodes-=node else e.nodes+=node->newN
+        if (e.count<=0) entries.remove(key)
+        if (wasDuplicate!=(e.count>1)) affected++=e.nodes.keys
       }
     }
+    affected
   }
+  
+  def size : Int = synchronized { entries.size }
 }
 
 object NonuniqueElements {
   val empty = new NonuniqueElements(Map.empty)
 }
 /** The set of non-unique elements, divided up by class. */
-class NonuniqueElements(val map:Map[UniquenessClass,Set[AnyRef]]) extends AnyVal {
+class NonuniqueElements(val map:Map[UniquenessClass,Set[AnyRef]]) extends AnyVal with NonuniqueLookup {
+  def isNonunique(key:UniquenessClass,elem:AnyRef) : Boolean = map.get(key) match { case Some(bads) => bads!=null && bads.contains(elem); case None => false }
   //def this(extendedMap:Map[UniquenessClass,AllElements[AnyRef]]) = this(extendedMap.map{case (key,el) => (key,el.moreThanOnce)})
   //override def equals(other:Any) = other map {
   //  case o:NonuniqueElements => 
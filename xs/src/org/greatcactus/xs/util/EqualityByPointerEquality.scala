@@ -14,7 +14,7 @@ class EqualityByPointerEquality[+T <: AnyRef](val contents:T) {
     case _ => false
   }
   
-  override def hashCode : Int = contents.##
+  override def hashCode : Int = System.identityHashCode(contents) // contents.## would be structural, and walk the whole of a case class.
 }
 
 object EqualityByPointerEquality {
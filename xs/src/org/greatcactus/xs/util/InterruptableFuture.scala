@@ -15,6 +15,7 @@ import org.greatcactus.xs.api.command.ProgressMonitor
 import scala.collection.generic.CanBuildFrom
 import scala.language.higherKinds
 import java.util.concurrent.ExecutionException
+import java.util.concurrent.CancellationException
 
 /**
  * Make a future that can be interrupted. Generally behaves like a future, except
@@ -225,10 +226,110 @@ object InterruptableFuture {
     } map (_.result)
   }
 
+  /**
+   * Like sequence, except that the futures are made by calling fn on each element of in, and at most maxConcurrent of them are running
+   * at once. The others are started as earlier ones finish.
+   * 
+   * If failFast, the first failure cancels everything still running and becomes the result. Otherwise everything is run, and if anything
+   * failed the result fails with that failure (or a MultipleFailuresException if more than one did).
+   * 
+   * Cancelling the result cancels the running futures, and the rest are never started. The result then fails with a CancellationException.
+   */
+  def traverse[A, B, M[X] <: TraversableOnce[X]](in: M[A],maxConcurrent:Int,failFast:Boolean)(fn: A => InterruptableFuture[B])(implicit cbf: CanBuildFrom[M[A], B, M[B]], executor: ExecutionContext): InterruptableFuture[M[B]] = {
+    val traversal = new BoundedTraversal[A,B,M[B]](in.toIndexedSeq,maxConcurrent,failFast,fn,{res=> val b = cbf(in); b++=res; b.result },executor)
+    traversal.start()
+    traversal.promise.future
+  }
+  
+  /** Like traverse, for futures that have not been made yet. Unlike sequence above, which gets futures that have already started. */
+  def sequence[A, M[X] <: TraversableOnce[X]](in: M[() => InterruptableFuture[A]],maxConcurrent:Int,failFast:Boolean)(implicit cbf: CanBuildFrom[M[() => InterruptableFuture[A]], A, M[A]], executor: ExecutionContext): InterruptableFuture[M[A]] = {
+    traverse(in,maxConcurrent,failFast){(f:() => InterruptableFuture[A]) => f()}
+  }
+  
   def apply[T](future:Future[T]) : InterruptableFuture[T] = new SimpleInterruptableFuture(future)
 
 }
 
+/** The result of a traverse that was not fail fast, and had more than one failure. The first is the cause. */
+class MultipleFailuresException(val failures:List[Throwable]) extends Exception(failures.length+" failures",failures.head)
+
+/**
+ * The work behind InterruptableFuture.traverse. Elements of inputs have fn called on them in order, with at most maxConcurrent of the resulting
+ * futures running at once. Call start() once after construction. The result (passed through build) is put into promise.
+ */
+private class BoundedTraversal[A,B,R](inputs:IndexedSeq[A],maxConcurrent:Int,failFast:Boolean,fn:A=>InterruptableFuture[B],build:IndexedSeq[B]=>R,executor:ExecutionContext) {
+  if (maxConcurrent<1) throw new IllegalArgumentException("maxConcurrent must be positive, not "+maxConcurrent)
+  
+  val promise = new InterruptablePromise[R]
+  private[this] val results = new Array[Any](inputs.length)
+  private[this] var next = 0 // index of the next input to start
+  private[this] var numRunning = 0 // includes ones claimed but not yet in running.
+  private[this] var running : Map[Int,InterruptableFuture[B]] = Map.empty
+  private[this] var failures : List[Throwable] = Nil // most recent first
+  private[this] var stopped : Option[Throwable] = None // if defined, nothing more will be started, and this is the failure to report.
+  private[this] var cancelling = false // if true, things running should be cancelled.
+  
+  promise.onCancel(() => stop(new CancellationException,true)) // not InterruptedException, which is fatal so would be boxed by the promise.
+  
+  def start() { if (inputs.isEmpty) finish() else launch() }
+  
+  /** Start nothing more. If cancelRunning, cancel things that are running and produce the result now, otherwise produce it when they have finished. */
+  def stop(reason:Throwable,cancelRunning:Boolean) {
+    val (toCancel,finishNow) = synchronized {
+      if (stopped.isEmpty) stopped=Some(reason)
+      val toCancel = if (cancelRunning && !cancelling) running.values.toList else Nil
+      if (cancelRunning) cancelling=true
+      (toCancel,cancelling || numRunning==0)
+    }
+    for (f<-toCancel) f.cancel()
+    if (finishNow) finish()
+  }
+  
+  private[this] def launch() {
+    var more = true
+    while (more) {
+      val index = synchronized {
+        if (stopped.isEmpty && next<inputs.length && numRunning<maxConcurrent) { numRunning+=1; next+=1; next-1 } else -1
+      }
+      if (index<0) more=false else run(index)
+    }
+  }
+  
+  private[this] def run(index:Int) {
+    val f = try { fn(inputs(index)) } catch { case NonFatal(e) => InterruptableFuture.eagerFailure[B](e) }
+    val cancelNow = synchronized { running+=index->f; cancelling }
+    if (cancelNow) f.cancel()
+    f.future.onComplete{ r => completed(index,r) }(executor)
+  }
+  
+  private[this] def completed(index:Int,r:Try[B]) {
+    val (toCancel,finishNow) = synchronized {
+      running-=index
+      numRunning-=1
+      val toCancel = r match {
+        case Success(v) => results(index)=v; Nil
+        case Failure(e) =>
+          failures::=e
+          if (failFast && stopped.isEmpty) { stopped=Some(e); cancelling=true; running.values.toList } else Nil
+      }
+      (toCancel,cancelling || (numRunning==0 && (stopped.isDefined || next==inputs.length)))
+    }
+    for (f<-toCancel) f.cancel()
+    if (finishNow) finish() else launch()
+  }
+  
+  private[this] def finish() {
+    val result : Try[R] = synchronized {
+      stopped match {
+        case Some(reason) => Failure(reason)
+        case None if failures.isEmpty => Try(build(results.toIndexedSeq.asInstanceOf[IndexedSeq[B]]))
+        case None => Failure(if (failures.tail.isEmpty) failures.head else new MultipleFailuresException(failures.reverse))
+      }
+    }
+    promise.promise.tryComplete(result)
+  }
+}
+
 class SimpleInterruptableFuture[T](override val future:Future[T]) extends InterruptableFuture[T] with Interruptable 
   
 
@@ -469,6 +570,28 @@ object ObsoletableAndInterruptableFuture {
     } map (_.result)
   }
   
+  /**
+   * Like InterruptableFuture.traverse, with at most maxConcurrent of the futures produced by fn running at once.
+   * If any of them become obsolete, nothing more is started, and the result fails with an IsObsoleteException once the running ones finish.
+   */
+  def traverse[A, B, M[X] <: TraversableOnce[X]](in: M[A],maxConcurrent:Int,failFast:Boolean)(fn: A => ObsoletableAndInterruptableFuture[B])(implicit cbf: CanBuildFrom[M[A], B, M[B]], executor: ExecutionContext): ObsoletableAndInterruptableFuture[M[B]] = {
+    val buffer = new ChangeHandleBuffer
+    def modf(a:A) : InterruptableFuture[B] = {
+      val oif = fn(a)
+      for (c<-oif.changes) buffer.add(c)
+      oif.future
+    }
+    val traversal = new BoundedTraversal[A,B,M[B]](in.toIndexedSeq,maxConcurrent,failFast,modf,{res=> val b = cbf(in); b++=res; b.result },executor)
+    buffer.addChangeListener(() => traversal.stop(new IsObsoleteException,false))
+    traversal.start()
+    new ObsoletableAndInterruptableFuture(traversal.promise.future,List(buffer))
+  }
+  
+  /** Like traverse, for futures that have not been made yet. */
+  def sequence[A, M[X] <: TraversableOnce[X]](in: M[() => ObsoletableAndInterruptableFuture[A]],maxConcurrent:Int,failFast:Boolean)(implicit cbf: CanBuildFrom[M[() => ObsoletableAndInterruptableFuture[A]], A, M[A]], executor: ExecutionContext): ObsoletableAndInterruptableFuture[M[A]] = {
+    traverse(in,maxConcurrent,failFast){(f:() => ObsoletableAndInterruptableFuture[A]) => f()}
+  }
+  
   val alreadyObsoleteHandle = new ChangeHandle{ def dispose() {}}
   alreadyObsoleteHandle.change()
 
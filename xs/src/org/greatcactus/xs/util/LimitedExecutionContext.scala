@@ -0,0 +1,76 @@
+/**
+ * Copyright 2014 Andrew Conway. All rights reserved.
+ */
+package org.greatcactus.xs.util
+
+import scala.concurrent.ExecutionContext
+import scala.concurrent.ExecutionContextExecutor
+import scala.concurrent.BlockContext
+import scala.concurrent.CanAwait
+import scala.collection.mutable.Queue
+
+/**
+ * An execution context that passes work on to some underlying execution context, but never has more than maxConcurrent
+ * tasks running at once. Excess tasks are queued in order. Tasks are run on the underlying context's threads, so
+ * InterruptableFuture cancellation (which interrupts the executing thread) is unaffected.
+ *
+ * So that a task can wait for work it gives to this same context without deadlocking, only work that is actually using a
+ * thread is counted. Work submitted from inside a running task goes straight to the underlying context, and a task that
+ * is blocked (in scala.concurrent.blocking, which includes Await) gives up its place until it continues.
+ */
+class LimitedExecutionContext(val underlying:ExecutionContext,val maxConcurrent:Int) extends ExecutionContextExecutor {
+  if (maxConcurrent<1) throw new IllegalArgumentException("maxConcurrent must be positive, not "+maxConcurrent)
+  
+  private[this] var running = 0
+  private[this] val waiting = new Queue[Runnable]
+  private[this] val inTask = new ThreadLocal[java.lang.Boolean]
+  
+  override def execute(runnable:Runnable) {
+    if (inTask.get==java.lang.Boolean.TRUE) underlying.execute(new Runnable() { // nested, so not counted.
+      override def run() { withinTask(runnable) }
+    }) else {
+      val startNow = synchronized {
+        if (running<maxConcurrent) { running+=1; true }
+        else { waiting.enqueue(runnable); false }
+      }
+      if (startNow) start(runnable)
+    }
+  }
+  
+  private[this] def start(runnable:Runnable) {
+    try {
+      underlying.execute(new Runnable() {
+        override def run() {
+          try {
+            val outer = BlockContext.current
+            BlockContext.withBlockContext(new BlockContext {
+              override def blockOn[T](thunk: =>T)(implicit permission:CanAwait) : T = {
+                finished()
+                try { outer.blockOn(thunk) } finally { LimitedExecutionContext.this.synchronized { running+=1 } } // may briefly exceed the limit rather than block again.
+              }
+            }) { withinTask(runnable) }
+          } finally { finished() }
+        }
+      })
+    } catch { case e:Throwable => finished(); throw e } // e.g. rejected as underlying shut down.
+  }
+  
+  private[this] def withinTask(runnable:Runnable) {
+    val was = inTask.get
+    inTask.set(java.lang.Boolean.TRUE)
+    try { runnable.run() } finally { inTask.set(was) }
+  }
+  
+  private[this] def finished() {
+    val next = synchronized {
+      if (waiting.isEmpty) { running-=1; None }
+      else Some(waiting.dequeue())
+    }
+    for (r<-next) start(r) // goes back through the underlying context rather than running here, so one task's interrupt status cannot leak into the next.
+  }
+  
+  override def reportFailure(t:Throwable) { underlying.reportFailure(t) }
+  
+  def numberRunning : Int = synchronized { running }
+  def numberWaiting : Int = synchronized { waiting.length }
+}